@@ -5,13 +5,21 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import android.Manifest;
 
+import android.app.ActivityManager;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.TextureView;
 import android.view.View;
 import android.widget.Button;
@@ -19,19 +27,26 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.nuuneoi.camera2lab.manager.Camera2ApiManager;
+import com.nuuneoi.camera2lab.memory.MemoryBudget;
+import com.nuuneoi.camera2lab.metadata.CaptureMetadataJournal;
+import com.nuuneoi.camera2lab.pipeline.PipelineScheduler;
+import com.nuuneoi.camera2lab.streaming.MjpegServer;
+import com.nuuneoi.camera2lab.trace.EventTracer;
 import com.nuuneoi.camera2lab.utils.BitmapUtils;
+import com.nuuneoi.camera2lab.utils.ExposedByteArrayOutputStream;
+import com.nuuneoi.camera2lab.utils.TemporalDenoiser;
+import com.nuuneoi.camera2lab.utils.YuvTransformer;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends AppCompatActivity {
 
-    private final int CAMERA_WIDTH = 1280;
-    private final int CAMERA_HEIGHT = 720;
-
     private Camera2ApiManager mCamera2ApiManager;
 
     private TextureView mPreviewTextureView;
@@ -48,6 +63,60 @@ public class MainActivity extends AppCompatActivity {
 
     private boolean isPictureTakingRequested = false;
 
+    private static final String TAG = "MainActivity";
+    private static final int FPS_UPDATE_INTERVAL_MS = 1000;
+    private static final int BUSY_LOG_EVERY_UPDATES = 5;
+
+    // Longest side the camera streams ask for; the manager negotiates the nearest supported sizes
+    private static final int MAX_CAMERA_LONG_SIDE = 1920;
+
+    private static final int MJPEG_SERVER_PORT = 8080;
+    private static final int MJPEG_QUALITY = 70;
+
+    private static final int THUMBNAIL_WIDTH = 160;
+    private static final int THUMBNAIL_QUALITY = 60;
+
+    // Share of the app heap class the pipeline buffers may take, heap and direct together
+    private static final int MEMORY_BUDGET_DIVISOR = 2;
+    private static final int LOW_RAM_MEMORY_BUDGET_DIVISOR = 4;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private int mFpsUpdateCount;
+
+    // Serves the ImageReader frames on the LAN while a frame listener is set. Off unless
+    // enabled in initCamera(): anyone on the network can watch, there is no authentication
+    private boolean mMjpegServerEnabled;
+    private volatile MjpegServer mMjpegServer;
+    // Frames are compressed on their own thread from a copy, one at a time; the analysis
+    // thread skips frames while one is being compressed
+    private HandlerThread mMjpegThread;
+    private volatile Handler mMjpegHandler;
+    private final AtomicBoolean mMjpegCompressing = new AtomicBoolean();
+    private byte[] mMjpegFrame;
+    private int mMjpegFrameWidth;
+    private int mMjpegFrameHeight;
+    // Sideways frames are copied here first and turned upright into mMjpegFrame
+    private YuvTransformer mMjpegTransformer;
+    private byte[] mMjpegSource;
+    private byte[] mMjpegRow;
+    private final Rect mMjpegRect = new Rect();
+    private final ExposedByteArrayOutputStream mJpegStream = new ExposedByteArrayOutputStream();
+
+    // Turns analysis frames upright before they are compressed
+    private YuvTransformer mFrameTransformer;
+    private int mFrameTransformerRotation;
+    private byte[] mOrientedFrame;
+
+    // Thumbnails for the index sidecar of the running recording
+    private YuvTransformer mThumbnailTransformer;
+    private byte[] mThumbnailFrame;
+    private final ExposedByteArrayOutputStream mThumbnailStream = new ExposedByteArrayOutputStream();
+
+    // The frame buffers above, dropped under memory pressure and rebuilt on the next frame
+    private final Object mFrameBufferLock = new Object();
+    private MemoryBudget.Pool mFrameBufferPool;
+    private MemoryBudget.Pool mTracePool;
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -76,7 +145,9 @@ public class MainActivity extends AppCompatActivity {
         btnTakeVideo.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                btnTakePicture.setVisibility(View.GONE);
+                // Pictures while recording need a snapshot output
+                if (!mCamera2ApiManager.isVideoSnapshotAvailable())
+                    btnTakePicture.setVisibility(View.GONE);
                 btnTakeVideo.setVisibility(View.GONE);
                 btnStopVideoRecording.setVisibility(View.VISIBLE);
                 startRecording();
@@ -96,30 +167,84 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void initFpsUpdater() {
-        Timer fpsUpdaterTimer = new Timer();
-        fpsUpdaterTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                runOnUiThread(new Runnable() {
+        mMainHandler.post(fpsUpdater);
+    }
+
+    private final Runnable fpsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (mCamera2ApiManager != null) {
+                tvFps.setText("FPS: " + mCamera2ApiManager.getCurrentPreviewFps());
+                if (++mFpsUpdateCount % BUSY_LOG_EVERY_UPDATES == 0) {
+                    Log.d(TAG, "Pipeline busy: " + mCamera2ApiManager.getScheduler().dumpBusyRatio());
+                    Log.d(TAG, MemoryBudget.global().dump());
+                    TemporalDenoiser denoiser = mCamera2ApiManager.getTemporalDenoiser();
+                    if (denoiser != null)
+                        Log.d(TAG, String.format(Locale.US, "Denoise: %.2fms/frame avg, last %.2fms, %d/%d tiles moving, %d dropped",
+                                denoiser.getAverageCostNs() / 1e6, denoiser.getLastCostNs() / 1e6,
+                                denoiser.getLastMovingTiles(), denoiser.getTileCount(),
+                                mCamera2ApiManager.getDenoiseDroppedFrames()));
+                }
+            }
+            mMainHandler.postDelayed(this, FPS_UPDATE_INTERVAL_MS);
+        }
+    };
+
+    private void initMemoryBudget() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        int divisor = activityManager.isLowRamDevice() ? LOW_RAM_MEMORY_BUDGET_DIVISOR : MEMORY_BUDGET_DIVISOR;
+        MemoryBudget budget = MemoryBudget.global();
+        budget.setCapBytes(activityManager.getMemoryClass() * 1024L * 1024L / divisor);
+
+        mTracePool = budget.register("Event trace", MemoryBudget.Kind.HEAP, MemoryBudget.PRIORITY_REQUIRED, null);
+        mTracePool.reserve(EventTracer.global().getByteSize());
+        mFrameBufferPool = budget.register("Analysis frames", MemoryBudget.Kind.HEAP, MemoryBudget.PRIORITY_NORMAL,
+                new MemoryBudget.Reclaimer() {
                     @Override
-                    public void run() {
-                        if (mCamera2ApiManager != null)
-                            tvFps.setText("FPS: " + mCamera2ApiManager.getCurrentPreviewFps());
+                    public long reclaim(long bytes) {
+                        return dropFrameBuffers();
                     }
                 });
-            }
-        }, 0, 1000);
     }
 
     private void initCamera() {
+        initMemoryBudget();
+
+        // Per-frame tracing in debuggable builds only, dumped when a recording stops
+        EventTracer.global().setEnabled((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+
         mCamera2ApiManager = new Camera2ApiManager(this);
-        mCamera2ApiManager.setPreviewDimension(CAMERA_WIDTH, CAMERA_HEIGHT);
+        requestCameraDimension();
+        // Uncomment the next line to save per-frame capture metadata next to each recording
+//        mCamera2ApiManager.setCaptureMetadataPersistence(true);
+        // Uncomment the next line to denoise recorded frames on the CPU, for low light
+//        mCamera2ApiManager.setTemporalDenoise(true);
+        // Uncomment the next line to put key frames on scene changes, with a 30 second base GOP
+//        mCamera2ApiManager.setSceneChangeKeyFrames(true, 30);
+        // Uncomment the next line to take full-resolution pictures from the session, also while recording
+//        mCamera2ApiManager.setVideoSnapshot(true);
+        // Uncomment the next line to watch the frames below as MJPEG on port 8080, from any host on the network
+//        mMjpegServerEnabled = true;
         // Comment the next line if you want to hide the preview
 //        mCamera2ApiManager.setPreviewTextureView(mPreviewTextureView);
         // Comment the next line if you don't want to get the preview frame
 //        mCamera2ApiManager.setOnImageAvailableListener(onImageAvailableListener);
     }
 
+    // The display's aspect ratio in landscape, scaled down to at most MAX_CAMERA_LONG_SIDE
+    private void requestCameraDimension() {
+        DisplayMetrics metrics = new DisplayMetrics();
+        getWindowManager().getDefaultDisplay().getRealMetrics(metrics);
+        int longSide = Math.max(metrics.widthPixels, metrics.heightPixels);
+        int shortSide = Math.min(metrics.widthPixels, metrics.heightPixels);
+        if (longSide > MAX_CAMERA_LONG_SIDE) {
+            shortSide = (int) ((long) shortSide * MAX_CAMERA_LONG_SIDE / longSide);
+            longSide = MAX_CAMERA_LONG_SIDE;
+        }
+        // 4:2:0 streams need even sizes
+        mCamera2ApiManager.setPreviewDimension(longSide & ~1, shortSide & ~1);
+    }
+
     ImageReader.OnImageAvailableListener onImageAvailableListener = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader imageReader) {
@@ -127,6 +252,7 @@ public class MainActivity extends AppCompatActivity {
 
             // Drop frame if the previous frame is still being processed
             if (isProcessingImage) {
+                mCamera2ApiManager.reportAnalysisFrameDropped();
                 try {
                     image = imageReader.acquireLatestImage();
                 } finally {
@@ -142,12 +268,21 @@ public class MainActivity extends AppCompatActivity {
             // Process Image
             try {
                 image = imageReader.acquireLatestImage();
+                if (image != null)
+                    mCamera2ApiManager.detectSceneChange(image);
 
                 if (isPictureTakingRequested) {
                     isPictureTakingRequested = false;
                     saveImage(image);
                     Toast.makeText(MainActivity.this, "Picture Taken", Toast.LENGTH_SHORT).show();
                 }
+
+                MjpegServer server = mMjpegServer;
+                if (image != null && server != null && server.wantsFrame())
+                    publishMjpegFrame(image);
+
+                if (image != null && mCamera2ApiManager.wantsRecordingThumbnail())
+                    addRecordingThumbnail(image);
             } finally {
                 if (image != null) {
                     image.close();
@@ -162,6 +297,13 @@ public class MainActivity extends AppCompatActivity {
         if (mCamera2ApiManager == null) {
             throw new RuntimeException("Camera2ApiManager has not been initialized yet");
         }
+        if (mCamera2ApiManager.isVideoSnapshotAvailable()) {
+            File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES)
+                    + "/snapshot-" + System.currentTimeMillis() + ".jpg");
+            if (mCamera2ApiManager.takeVideoSnapshot(file))
+                Toast.makeText(MainActivity.this, "Picture Taken", Toast.LENGTH_SHORT).show();
+            return;
+        }
         if (!mCamera2ApiManager.hasOnImageAvailableListener()) {
             throw new RuntimeException("onImageAvailableListener required to take a picture");
         }
@@ -169,12 +311,16 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void saveImage(Image image) {
+        CaptureMetadataJournal.Entry metadata = new CaptureMetadataJournal.Entry();
+        if (mCamera2ApiManager.getMetadataJournal().find(image.getTimestamp(), metadata))
+            Log.d(TAG, "Picture " + metadata);
+
         final File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES) + "/picture.jpg");
 
         FileOutputStream fos = null;
         try {
             fos = new FileOutputStream(file);
-            YuvImage yuvImage = BitmapUtils.toYuvImage(image);
+            YuvImage yuvImage = orient(BitmapUtils.toYuvImage(image));
             yuvImage.compressToJpeg(new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), 80, fos);
         } catch (Exception e) {
         } finally {
@@ -185,6 +331,242 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    // Encoded once, whatever the number of viewers. The analysis thread only copies the frame,
+    // into buffers kept from one frame to the next
+    private void publishMjpegFrame(Image image) {
+        Handler handler = mMjpegHandler;
+        if (handler == null || !mMjpegCompressing.compareAndSet(false, true))
+            return;
+
+        int rotation = mCamera2ApiManager.getFrameRotation();
+        boolean copied;
+        synchronized (mFrameBufferLock) {
+            copied = copyMjpegFrame(image, rotation);
+        }
+        if (!copied || !handler.post(mMjpegCompressor))
+            mMjpegCompressing.set(false);
+    }
+
+    // Called with mFrameBufferLock held
+    private boolean copyMjpegFrame(Image image, int rotation) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int size = width * height * 3 / 2;
+        int rowSize = BitmapUtils.getNv12RowScratchSize(width);
+        if (mMjpegRow == null || mMjpegRow.length < rowSize)
+            mMjpegRow = new byte[rowSize];
+
+        if (rotation == 0) {
+            if (mMjpegSource != null) {
+                mFrameBufferPool.release(mMjpegSource.length);
+                mMjpegSource = null;
+                mMjpegTransformer = null;
+            }
+            if (!ensureMjpegFrame(size))
+                return false;
+            BitmapUtils.copyToNv21(image, mMjpegFrame, mMjpegRow);
+            mMjpegFrameWidth = width;
+            mMjpegFrameHeight = height;
+            return true;
+        }
+
+        YuvTransformer transformer = mMjpegTransformer;
+        if (transformer == null || transformer.getRotation() != rotation
+                || transformer.getSourceWidth() != width || transformer.getSourceHeight() != height) {
+            transformer = new YuvTransformer(YuvTransformer.Format.NV21, width, height).setRotation(rotation);
+            if (!replaceFrameBuffer(mMjpegSource, size)) {
+                mMjpegTransformer = null;
+                mMjpegSource = null;
+                return false;
+            }
+            mMjpegTransformer = transformer;
+            mMjpegSource = new byte[size];
+        }
+        if (!ensureMjpegFrame(transformer.getOutputSize()))
+            return false;
+        BitmapUtils.copyToNv21(image, mMjpegSource, mMjpegRow);
+        transformer.transform(mMjpegSource, mMjpegFrame);
+        mMjpegFrameWidth = transformer.getOutputWidth();
+        mMjpegFrameHeight = transformer.getOutputHeight();
+        return true;
+    }
+
+    // Called with mFrameBufferLock held
+    private boolean ensureMjpegFrame(int size) {
+        if (mMjpegFrame != null && mMjpegFrame.length == size)
+            return true;
+        if (!replaceFrameBuffer(mMjpegFrame, size)) {
+            mMjpegFrame = null;
+            return false;
+        }
+        mMjpegFrame = new byte[size];
+        return true;
+    }
+
+    private final Runnable mMjpegCompressor = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                MjpegServer server = mMjpegServer;
+                byte[] frame;
+                int width;
+                int height;
+                synchronized (mFrameBufferLock) {
+                    frame = mMjpegFrame;
+                    width = mMjpegFrameWidth;
+                    height = mMjpegFrameHeight;
+                }
+                if (server == null || frame == null)
+                    return;
+
+                YuvImage yuvImage = new YuvImage(frame, ImageFormat.NV21, width, height, null);
+                mMjpegRect.set(0, 0, width, height);
+                mJpegStream.reset();
+                yuvImage.compressToJpeg(mMjpegRect, MJPEG_QUALITY, mJpegStream);
+                // Copied by the server, straight from the stream's buffer
+                server.publishJpeg(mJpegStream.getBuffer(), 0, mJpegStream.size());
+            } finally {
+                mMjpegCompressing.set(false);
+            }
+        }
+    };
+
+    // Scaled down and turned upright in one pass, then compressed
+    private void addRecordingThumbnail(Image image) {
+        YuvImage yuvImage = BitmapUtils.toYuvImage(image);
+        int width = yuvImage.getWidth();
+        int height = yuvImage.getHeight();
+        int rotation = mCamera2ApiManager.getFrameRotation();
+        YuvTransformer transformer;
+        byte[] frame;
+        synchronized (mFrameBufferLock) {
+            transformer = mThumbnailTransformer;
+            if (transformer == null || transformer.getSourceWidth() != width || transformer.getSourceHeight() != height
+                    || transformer.getRotation() != rotation) {
+                // Scaling happens before rotation, so the long side follows the sensor
+                int scaledWidth = THUMBNAIL_WIDTH;
+                int scaledHeight = Math.max(2, (THUMBNAIL_WIDTH * height / width) & ~1);
+                transformer = new YuvTransformer(YuvTransformer.Format.NV21, width, height)
+                        .setScale(scaledWidth, scaledHeight)
+                        .setRotation(rotation);
+                // No thumbnail this time when the budget has no room
+                if (!replaceFrameBuffer(mThumbnailFrame, transformer.getOutputSize())) {
+                    mThumbnailTransformer = null;
+                    mThumbnailFrame = null;
+                    return;
+                }
+                mThumbnailTransformer = transformer;
+                mThumbnailFrame = new byte[transformer.getOutputSize()];
+            }
+            frame = mThumbnailFrame;
+            transformer.transform(yuvImage.getYuvData(), frame);
+        }
+
+        int thumbnailWidth = transformer.getOutputWidth();
+        int thumbnailHeight = transformer.getOutputHeight();
+        YuvImage thumbnail = new YuvImage(frame, ImageFormat.NV21, thumbnailWidth, thumbnailHeight, null);
+        mThumbnailStream.reset();
+        thumbnail.compressToJpeg(new Rect(0, 0, thumbnailWidth, thumbnailHeight), THUMBNAIL_QUALITY, mThumbnailStream);
+        mCamera2ApiManager.addRecordingThumbnail(mThumbnailStream.getBuffer(), 0, mThumbnailStream.size(),
+                thumbnailWidth, thumbnailHeight);
+    }
+
+    // The returned image shares a buffer with the next call
+    private YuvImage orient(YuvImage yuvImage) {
+        int rotation = mCamera2ApiManager.getFrameRotation();
+        if (rotation == 0)
+            return yuvImage;
+
+        int width = yuvImage.getWidth();
+        int height = yuvImage.getHeight();
+        YuvTransformer transformer;
+        byte[] frame;
+        synchronized (mFrameBufferLock) {
+            transformer = mFrameTransformer;
+            if (transformer == null || mFrameTransformerRotation != rotation
+                    || transformer.getSourceWidth() != width || transformer.getSourceHeight() != height) {
+                transformer = new YuvTransformer(YuvTransformer.Format.NV21, width, height).setRotation(rotation);
+                // Sideways beats no image at all when the budget has no room
+                if (!replaceFrameBuffer(mOrientedFrame, transformer.getOutputSize())) {
+                    mFrameTransformer = null;
+                    mOrientedFrame = null;
+                    return yuvImage;
+                }
+                mFrameTransformer = transformer;
+                mFrameTransformerRotation = rotation;
+                mOrientedFrame = new byte[transformer.getOutputSize()];
+            }
+            frame = mOrientedFrame;
+            transformer.transform(yuvImage.getYuvData(), frame);
+        }
+        return new YuvImage(frame, ImageFormat.NV21,
+                transformer.getOutputWidth(), transformer.getOutputHeight(), null);
+    }
+
+    // Called with mFrameBufferLock held, before a frame buffer is reallocated; the previous
+    // buffer is released either way
+    private boolean replaceFrameBuffer(byte[] previous, int size) {
+        if (previous != null)
+            mFrameBufferPool.release(previous.length);
+        return mFrameBufferPool.tryReserve(size);
+    }
+
+    private long dropFrameBuffers() {
+        synchronized (mFrameBufferLock) {
+            long freed = 0;
+            if (mOrientedFrame != null)
+                freed += mOrientedFrame.length;
+            if (mThumbnailFrame != null)
+                freed += mThumbnailFrame.length;
+            if (mMjpegFrame != null)
+                freed += mMjpegFrame.length;
+            if (mMjpegSource != null)
+                freed += mMjpegSource.length;
+            mFrameTransformer = null;
+            mOrientedFrame = null;
+            mThumbnailTransformer = null;
+            mThumbnailFrame = null;
+            mMjpegFrame = null;
+            mMjpegTransformer = null;
+            mMjpegSource = null;
+            mFrameBufferPool.release(freed);
+            return freed;
+        }
+    }
+
+    private void startMjpegServer() {
+        if (!mMjpegServerEnabled || mMjpegServer != null || !mCamera2ApiManager.hasOnImageAvailableListener())
+            return;
+
+        MjpegServer server = new MjpegServer();
+        server.setMemoryBudget(MemoryBudget.global());
+        try {
+            server.start(MJPEG_SERVER_PORT);
+        } catch (IOException e) {
+            Log.e(TAG, "MJPEG server failed to start", e);
+            return;
+        }
+        mMjpegThread = new HandlerThread("MJPEG Compression");
+        mMjpegThread.start();
+        mMjpegHandler = new Handler(mMjpegThread.getLooper());
+        mMjpegServer = server;
+        Log.w(TAG, "MJPEG preview open to the network on port " + server.getPort());
+    }
+
+    private void stopMjpegServer() {
+        MjpegServer server = mMjpegServer;
+        if (server == null)
+            return;
+
+        mMjpegServer = null;
+        mMjpegHandler = null;
+        mMjpegThread.quitSafely();
+        mMjpegThread = null;
+        for (MjpegServer.ClientStats stats : server.getClientStats())
+            Log.d(TAG, "MJPEG client " + stats);
+        server.stop();
+    }
+
     private void startRecording() {
         if (mCamera2ApiManager != null) {
             mCamera2ApiManager.startRecording();
@@ -194,9 +576,44 @@ public class MainActivity extends AppCompatActivity {
     private void stopRecording() {
         if (mCamera2ApiManager != null) {
             mCamera2ApiManager.stopRecording();
+            Log.d(TAG, mCamera2ApiManager.getEncoderPool().dumpStats());
+            Log.d(TAG, mCamera2ApiManager.getSceneChangeDetector().toString());
+            Log.d(TAG, mCamera2ApiManager.getVideoSnapshotStats().toString());
+            dumpTrace();
         }
     }
 
+    private void dumpTrace() {
+        final EventTracer tracer = EventTracer.global();
+        if (!tracer.isEnabled())
+            return;
+
+        final File file = new File(getExternalFilesDir(null), "trace-" + System.currentTimeMillis() + ".json");
+        Runnable dump = new Runnable() {
+            @Override
+            public void run() {
+                Writer writer = null;
+                try {
+                    writer = new FileWriter(file);
+                    tracer.writeChromeTrace(writer);
+                    Log.d(TAG, "Trace written to " + file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Trace dump failed", e);
+                } finally {
+                    if (writer != null) {
+                        try {
+                            writer.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            }
+        };
+        Handler ioHandler = mCamera2ApiManager.getScheduler().getHandler(PipelineScheduler.Stage.MUXER_IO);
+        if (ioHandler == null || !ioHandler.post(dump))
+            dump.run();
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
@@ -223,13 +640,35 @@ public class MainActivity extends AppCompatActivity {
         super.onResume();
 
         startCamera();
+        startMjpegServer();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
 
+        stopMjpegServer();
         if (mCamera2ApiManager != null)
             mCamera2ApiManager.stopCamera();
     }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        long freed = MemoryBudget.global().onTrimMemory(level);
+        Log.d(TAG, "Trim level " + level + " freed " + freed / 1024 + " KB\n" + MemoryBudget.global().dump());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        mMainHandler.removeCallbacks(fpsUpdater);
+        if (mCamera2ApiManager != null)
+            mCamera2ApiManager.release();
+        dropFrameBuffers();
+        mFrameBufferPool.unregister();
+        mTracePool.unregister();
+    }
 }
\ No newline at end of file
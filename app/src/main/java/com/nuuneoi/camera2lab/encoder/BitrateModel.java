@@ -0,0 +1,39 @@
+package com.nuuneoi.camera2lab.encoder;
+
+/**
+ * Target bitrate from bits per pixel per frame, scaled by codec efficiency. HEVC reaches the
+ * same quality as AVC at roughly 60% of the bits.
+ */
+public class BitrateModel {
+
+    // 3 Mbps at 1280x720@30, what recordings used before the model
+    public static final float DEFAULT_AVC_BITS_PER_PIXEL = 0.11f;
+    public static final float HEVC_EFFICIENCY = 0.6f;
+
+    public static final int MIN_BIT_RATE = 200 * 1000;
+    public static final int MAX_BIT_RATE = 100 * 1000 * 1000;
+
+    private final float mAvcBitsPerPixel;
+
+    public BitrateModel() {
+        this(DEFAULT_AVC_BITS_PER_PIXEL);
+    }
+
+    public BitrateModel(float avcBitsPerPixel) {
+        if (avcBitsPerPixel <= 0)
+            throw new IllegalArgumentException("Invalid bits per pixel " + avcBitsPerPixel);
+        mAvcBitsPerPixel = avcBitsPerPixel;
+    }
+
+    public float getBitsPerPixel(String mimeType) {
+        return CodecSelector.MIME_HEVC.equals(mimeType) ? mAvcBitsPerPixel * HEVC_EFFICIENCY : mAvcBitsPerPixel;
+    }
+
+    /**
+     * @param frameRate frames per second of the encoded stream, i.e. the playback rate
+     */
+    public int getBitRate(String mimeType, int width, int height, int frameRate) {
+        double bitRate = (double) getBitsPerPixel(mimeType) * width * height * frameRate;
+        return (int) Math.max(MIN_BIT_RATE, Math.min(MAX_BIT_RATE, Math.round(bitRate)));
+    }
+}
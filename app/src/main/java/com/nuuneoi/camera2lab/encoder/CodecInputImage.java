@@ -0,0 +1,97 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Input buffer of a codec configured for COLOR_FormatYUV420Flexible, described plane by plane
+ * (Y, U, V) the way MediaCodec.getInputImage() reports it. The codec picks the row stride, the
+ * slice height and whether chroma is planar or interleaved, so frames are written through the
+ * strides instead of assuming a tightly packed layout.
+ */
+public class CodecInputImage {
+
+    private int mWidth;
+    private int mHeight;
+    private int mSize;
+    private final ByteBuffer[] mPlanes = new ByteBuffer[3];
+    private final int[] mRowStrides = new int[3];
+    private final int[] mPixelStrides = new int[3];
+    // Deinterleaved chroma row, for planar layouts
+    private byte[] mRow = new byte[0];
+
+    /**
+     * @param size bytes to queue once written, the whole input buffer
+     */
+    public CodecInputImage set(int width, int height, int size) {
+        if ((width & 1) != 0 || (height & 1) != 0)
+            throw new IllegalArgumentException("YUV 4:2:0 needs an even size: " + width + "x" + height);
+        mWidth = width;
+        mHeight = height;
+        mSize = size;
+        return this;
+    }
+
+    public CodecInputImage setPlane(int plane, ByteBuffer buffer, int rowStride, int pixelStride) {
+        mPlanes[plane] = buffer;
+        mRowStrides[plane] = rowStride;
+        mPixelStrides[plane] = pixelStride;
+        return this;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Copies a tightly packed NV12 frame of the image size.
+     *
+     * @throws IllegalArgumentException when {@code size} is not a full frame
+     */
+    public void writeNv12(byte[] nv12, int size) {
+        int lumaSize = mWidth * mHeight;
+        if (size < lumaSize * 3 / 2 || nv12.length < size)
+            throw new IllegalArgumentException("Frame of " + size + " bytes is not " + mWidth + "x" + mHeight + " NV12");
+        if (mPixelStrides[0] != 1)
+            throw new IllegalStateException("Luma pixel stride " + mPixelStrides[0]);
+
+        ByteBuffer luma = mPlanes[0];
+        for (int y = 0; y < mHeight; y++) {
+            luma.position(y * mRowStrides[0]);
+            luma.put(nv12, y * mWidth, mWidth);
+        }
+
+        int chromaWidth = mWidth / 2;
+        int chromaHeight = mHeight / 2;
+        if (mRow.length < chromaWidth)
+            mRow = new byte[chromaWidth];
+        for (int plane = 1; plane <= 2; plane++) {
+            ByteBuffer chroma = mPlanes[plane];
+            int rowStride = mRowStrides[plane];
+            int pixelStride = mPixelStrides[plane];
+            // U first in NV12
+            int sourceOffset = lumaSize + plane - 1;
+            for (int y = 0; y < chromaHeight; y++) {
+                int source = sourceOffset + y * mWidth;
+                int row = y * rowStride;
+                if (pixelStride == 1) {
+                    for (int x = 0; x < chromaWidth; x++)
+                        mRow[x] = nv12[source + 2 * x];
+                    chroma.position(row);
+                    chroma.put(mRow, 0, chromaWidth);
+                } else {
+                    // Interleaved: the other plane's samples sit in between, write only ours
+                    for (int x = 0; x < chromaWidth; x++)
+                        chroma.put(row + x * pixelStride, nv12[source + 2 * x]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import java.util.List;
+
+/**
+ * Chooses the video codec for a recording. With {@link Preference#PREFER_HEVC} a hardware HEVC
+ * encoder is used when one supports the size and frame rate; otherwise, and with
+ * {@link Preference#AVC}, the recording falls back to AVC, hardware first.
+ *
+ * The codec list is abstracted so the rules can be checked without a device.
+ */
+public class CodecSelector {
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_HEVC = "video/hevc";
+
+    public enum Preference {
+        AVC,
+        PREFER_HEVC
+    }
+
+    public interface EncoderInfo {
+        String getName();
+
+        boolean isHardwareAccelerated();
+
+        boolean supports(int width, int height, double frameRate);
+
+        /**
+         * Takes YUV input buffers in COLOR_FormatYUV420Flexible.
+         */
+        boolean supportsFlexibleYuvInput();
+    }
+
+    public interface Catalog {
+        /**
+         * Encoders for {@code mimeType}, in the platform's order of preference.
+         */
+        List<EncoderInfo> getEncoders(String mimeType);
+    }
+
+    public static class Selection {
+        public final String mimeType;
+        // null when no listed encoder fits and the platform default is used
+        public final String codecName;
+        public final boolean hardware;
+        public final String reason;
+
+        Selection(String mimeType, String codecName, boolean hardware, String reason) {
+            this.mimeType = mimeType;
+            this.codecName = codecName;
+            this.hardware = hardware;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return mimeType + " (" + (codecName != null ? codecName : "default") + "): " + reason;
+        }
+    }
+
+    private final Catalog mCatalog;
+    private final Preference mPreference;
+
+    public CodecSelector(Catalog catalog, Preference preference) {
+        mCatalog = catalog;
+        mPreference = preference;
+    }
+
+    public Preference getPreference() {
+        return mPreference;
+    }
+
+    public Selection select(int width, int height, double frameRate) {
+        return select(width, height, frameRate, false);
+    }
+
+    /**
+     * @param bufferInput frames are queued as YUV buffers rather than rendered to a surface, so
+     *                    only encoders taking flexible YUV input qualify
+     */
+    public Selection select(int width, int height, double frameRate, boolean bufferInput) {
+        if (mPreference == Preference.PREFER_HEVC) {
+            EncoderInfo hevc = find(MIME_HEVC, width, height, frameRate, true, bufferInput);
+            if (hevc != null)
+                return new Selection(MIME_HEVC, hevc.getName(), true, "hardware HEVC");
+        }
+
+        String fallback = mPreference == Preference.PREFER_HEVC ? "no hardware HEVC for " + width + "x" + height + "@" + frameRate + ", " : "";
+        EncoderInfo avc = find(MIME_AVC, width, height, frameRate, true, bufferInput);
+        if (avc != null)
+            return new Selection(MIME_AVC, avc.getName(), true, fallback + "hardware AVC");
+        avc = find(MIME_AVC, width, height, frameRate, false, bufferInput);
+        if (avc != null)
+            return new Selection(MIME_AVC, avc.getName(), false, fallback + "software AVC");
+        return new Selection(MIME_AVC, null, false, fallback + "no listed AVC encoder supports the stream");
+    }
+
+    // Internal
+
+    private EncoderInfo find(String mimeType, int width, int height, double frameRate, boolean hardware,
+                             boolean bufferInput) {
+        List<EncoderInfo> encoders = mCatalog.getEncoders(mimeType);
+        if (encoders == null)
+            return null;
+        for (EncoderInfo encoder : encoders) {
+            if (encoder.isHardwareAccelerated() == hardware && encoder.supports(width, height, frameRate)
+                    && (!bufferInput || encoder.supportsFlexibleYuvInput()))
+                return encoder;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,63 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The slice of MediaCodec that {@link MediaEncoder} uses. The real implementation is
+ * {@link MediaCodecEncoderBackend}; tests and soak runs plug in a synthetic encoder.
+ * Status codes match MediaCodec.
+ */
+public interface EncoderBackend {
+
+    int INFO_TRY_AGAIN_LATER = -1;
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+
+    void configure(EncoderConfig config) throws IOException;
+
+    Surface createInputSurface();
+
+    void start();
+
+    /**
+     * Buffer input only, see {@link EncoderConfig#setBufferInput}.
+     *
+     * @return an input buffer index, or INFO_TRY_AGAIN_LATER
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    /**
+     * The YUV 4:2:0 planes of input buffer {@code index}, laid out as the codec wants them. The
+     * returned image may be reused by the next call.
+     *
+     * @return null when the codec offers no image view of its input
+     */
+    CodecInputImage getInputImage(int index);
+
+    /**
+     * @param flags SampleInfo flags; FLAG_END_OF_STREAM ends the input
+     */
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    void signalEndOfInputStream();
+
+    /**
+     * Asks for the next frame to be encoded as a key frame, while running.
+     */
+    void requestSyncFrame();
+
+    int dequeueOutputBuffer(SampleInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,135 @@
+package com.nuuneoi.camera2lab.encoder;
+
+/**
+ * Video encoder settings shared by every {@link EncoderBackend}.
+ */
+public class EncoderConfig {
+
+    private final String mMimeType;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBitRate;
+    private final int mFrameRate;
+    private final int mIFrameInterval;
+
+    // 0 leaves the codec defaults
+    private int mOperatingRate;
+    private int mCaptureRate;
+
+    // null lets the platform pick an encoder for the mime type
+    private String mCodecName;
+
+    private boolean mBufferInput;
+
+    public EncoderConfig(String mimeType, int width, int height, int bitRate, int frameRate, int iFrameInterval) {
+        mMimeType = mimeType;
+        mWidth = width;
+        mHeight = height;
+        mBitRate = bitRate;
+        mFrameRate = frameRate;
+        mIFrameInterval = iFrameInterval;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public int getIFrameInterval() {
+        return mIFrameInterval;
+    }
+
+    /**
+     * Rate at which frames actually reach the encoder, when it differs from the frame rate of
+     * the content (high speed / slow motion).
+     */
+    public void setOperatingRate(int operatingRate) {
+        mOperatingRate = operatingRate;
+    }
+
+    public int getOperatingRate() {
+        return mOperatingRate;
+    }
+
+    public void setCaptureRate(int captureRate) {
+        mCaptureRate = captureRate;
+    }
+
+    public int getCaptureRate() {
+        return mCaptureRate;
+    }
+
+    /**
+     * Exact codec to instantiate, as chosen by {@link CodecSelector}.
+     */
+    public void setCodecName(String codecName) {
+        mCodecName = codecName;
+    }
+
+    public String getCodecName() {
+        return mCodecName;
+    }
+
+    /**
+     * Frames are queued as NV12 input buffers instead of being rendered into an input surface.
+     */
+    public void setBufferInput(boolean bufferInput) {
+        mBufferInput = bufferInput;
+    }
+
+    public boolean isBufferInput() {
+        return mBufferInput;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof EncoderConfig)) return false;
+        EncoderConfig that = (EncoderConfig) o;
+        return mWidth == that.mWidth
+                && mHeight == that.mHeight
+                && mBitRate == that.mBitRate
+                && mFrameRate == that.mFrameRate
+                && mIFrameInterval == that.mIFrameInterval
+                && mOperatingRate == that.mOperatingRate
+                && mCaptureRate == that.mCaptureRate
+                && mBufferInput == that.mBufferInput
+                && mMimeType.equals(that.mMimeType)
+                && (mCodecName == null ? that.mCodecName == null : mCodecName.equals(that.mCodecName));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mMimeType.hashCode();
+        result = 31 * result + mWidth;
+        result = 31 * result + mHeight;
+        result = 31 * result + mBitRate;
+        result = 31 * result + mFrameRate;
+        result = 31 * result + mIFrameInterval;
+        result = 31 * result + mOperatingRate;
+        result = 31 * result + mCaptureRate;
+        result = 31 * result + (mBufferInput ? 1 : 0);
+        result = 31 * result + (mCodecName != null ? mCodecName.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return mMimeType + " " + mWidth + "x" + mHeight + " @" + mFrameRate + "fps " + mBitRate + "bps gop=" + mIFrameInterval + "s";
+    }
+}
@@ -0,0 +1,156 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.nuuneoi.camera2lab.pipeline.PipelineScheduler;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A fixed set of threads draining several encoders, instead of a worker thread per encoder.
+ * Each encoder is pinned to the least loaded thread, which steps its encoders in turn. After a
+ * pass where none of them had output, the next pass waits in the codecs, the wait split between
+ * them, so an idle thread never spins.
+ *
+ * The first thread reports as the ENCODER_DRAIN stage of the scheduler, when one is given.
+ */
+public class EncoderDrainPool {
+
+    private static final String TAG = "EncoderDrainPool";
+
+    // What a dedicated worker waits in dequeueOutputBuffer()
+    static final long IDLE_WAIT_US = 30000;
+
+    public static final int STEP_IDLE = 0;
+    public static final int STEP_BUSY = 1;
+    public static final int STEP_DONE = 2;
+
+    public interface Task {
+        /**
+         * Does the work that is ready, waiting at most {@code timeoutUs} for it. A task that
+         * fails cleans up after itself and returns STEP_DONE.
+         *
+         * @return STEP_IDLE, STEP_BUSY, or STEP_DONE once the task can be dropped
+         */
+        int step(long timeoutUs);
+    }
+
+    private class DrainThread extends Thread {
+        final List<Task> tasks = new CopyOnWriteArrayList<>();
+        final boolean reportToScheduler;
+
+        DrainThread(int index) {
+            super("Encoder Drain " + index);
+            reportToScheduler = index == 0 && mScheduler != null;
+        }
+
+        @Override
+        public void run() {
+            if (reportToScheduler)
+                mScheduler.attachCurrentThread(PipelineScheduler.Stage.ENCODER_DRAIN);
+            else
+                Process.setThreadPriority(Process.THREAD_PRIORITY_VIDEO);
+            try {
+                boolean idle = false;
+                while (awaitTasks()) {
+                    long timeoutUs = idle ? IDLE_WAIT_US / Math.max(1, tasks.size()) : 0;
+                    boolean busy = false;
+                    for (Task task : tasks) {
+                        int result;
+                        try {
+                            result = task.step(timeoutUs);
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Encoder task failed", e);
+                            result = STEP_DONE;
+                        }
+                        if (result == STEP_DONE)
+                            tasks.remove(task);
+                        if (result != STEP_IDLE)
+                            busy = true;
+                    }
+                    idle = !busy;
+                }
+            } finally {
+                if (reportToScheduler)
+                    mScheduler.detachCurrentThread(PipelineScheduler.Stage.ENCODER_DRAIN);
+            }
+        }
+
+        // Sleeps while there is nothing to drain; false once shut down with nothing left
+        private boolean awaitTasks() {
+            synchronized (EncoderDrainPool.this) {
+                while (tasks.isEmpty()) {
+                    if (!mRunning)
+                        return false;
+                    try {
+                        EncoderDrainPool.this.wait();
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    private final DrainThread[] mThreads;
+    private final PipelineScheduler mScheduler;
+    private boolean mRunning = true;
+
+    public EncoderDrainPool(int threadCount, PipelineScheduler scheduler) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("At least one drain thread is needed");
+
+        mScheduler = scheduler;
+        mThreads = new DrainThread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mThreads[i] = new DrainThread(i);
+            mThreads[i].start();
+        }
+    }
+
+    public int getThreadCount() {
+        return mThreads.length;
+    }
+
+    public synchronized int getTaskCount() {
+        int count = 0;
+        for (DrainThread thread : mThreads)
+            count += thread.tasks.size();
+        return count;
+    }
+
+    public synchronized void submit(Task task) {
+        if (!mRunning)
+            throw new IllegalStateException("Drain pool has been shut down");
+
+        DrainThread target = mThreads[0];
+        for (DrainThread thread : mThreads) {
+            if (thread.tasks.size() < target.tasks.size())
+                target = thread;
+        }
+        target.tasks.add(task);
+        notifyAll();
+    }
+
+    /**
+     * Lets the threads finish their tasks, then stops them. Encoders must already have been
+     * stopped; each task ends once its stream does.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            mRunning = false;
+            notifyAll();
+        }
+        for (DrainThread thread : mThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
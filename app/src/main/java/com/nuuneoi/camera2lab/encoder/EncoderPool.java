@@ -0,0 +1,395 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps stopped encoders around instead of releasing them, since instantiating a codec is one
+ * of the slowest steps of starting a session. A recycled encoder is configured again right
+ * away with the format it just ran, so the next session with the same format gets it ready to
+ * start; a different format of the same codec goes through stop() and configure() only.
+ *
+ * Every idle encoder is a live codec instance, and hardware encoders are limited, so keep
+ * {@code maxIdle} small. {@link #prewarm} does nothing while an encoder is handed out, and when
+ * trimming, spares it created go before recycled encoders: the codec a session just gave back
+ * is the one the next session gets. A session that is stopping announces its encoder with
+ * {@link #expectRecycle}, and an acquire that finds nothing idle waits a little for it rather
+ * than opening a second codec next to one that is about to be free.
+ *
+ * Creating, configuring and releasing codecs happens outside the pool lock, so a slow prewarm
+ * never holds up an acquire or recycle on another thread.
+ */
+public class EncoderPool {
+
+    private static final String TAG = "EncoderPool";
+
+    // Draining the tail of a stopping session's stream takes a few frames
+    private static final long RECYCLE_WAIT_MS = 500;
+
+    public interface Factory {
+        EncoderBackend create();
+    }
+
+    public static class Latency {
+        private long mCount;
+        private long mTotalNs;
+        private long mMinNs = Long.MAX_VALUE;
+        private long mMaxNs;
+
+        synchronized void add(long ns) {
+            mCount++;
+            mTotalNs += ns;
+            mMinNs = Math.min(mMinNs, ns);
+            mMaxNs = Math.max(mMaxNs, ns);
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getMeanNs() {
+            return mCount > 0 ? mTotalNs / mCount : 0;
+        }
+
+        public synchronized long getMinNs() {
+            return mCount > 0 ? mMinNs : 0;
+        }
+
+        public synchronized long getMaxNs() {
+            return mMaxNs;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "n=%d mean=%.2fms min=%.2fms max=%.2fms",
+                    mCount, getMeanNs() / 1e6, getMinNs() / 1e6, mMaxNs / 1e6);
+        }
+    }
+
+    private static class Entry {
+        final EncoderBackend backend;
+        final String mimeType;
+        final String codecName;
+        // What the idle encoder is configured for
+        EncoderConfig config;
+        // Created ahead of a session rather than given back by one
+        final boolean prewarmed;
+
+        Entry(EncoderBackend backend, EncoderConfig config, boolean prewarmed) {
+            this.backend = backend;
+            this.mimeType = config.getMimeType();
+            this.codecName = config.getCodecName();
+            this.config = config;
+            this.prewarmed = prewarmed;
+        }
+
+        // Same codec instance type, so stop() and configure() are enough
+        boolean canRun(EncoderConfig other) {
+            return mimeType.equals(other.getMimeType())
+                    && (codecName == null ? other.getCodecName() == null : codecName.equals(other.getCodecName()));
+        }
+    }
+
+    private final Factory mFactory;
+    private final int mMaxIdle;
+    // Oldest first
+    private final List<Entry> mIdle = new ArrayList<>();
+    private boolean mShutdown;
+    // Handed out and not recycled yet
+    private int mInUse;
+    // Encoders of stopping sessions, on their way back
+    private int mExpectedRecycles;
+
+    private long mHits;
+    private long mReconfigures;
+    private long mMisses;
+
+    // Create covers instantiation and the first configure
+    private final Latency mCreateLatency = new Latency();
+    private final Latency mConfigureLatency = new Latency();
+    private final Latency mAcquireLatency = new Latency();
+    private final Latency mFirstOutputLatency = new Latency();
+
+    public EncoderPool(Factory factory, int maxIdle) {
+        if (maxIdle < 1)
+            throw new IllegalArgumentException("At least one idle encoder must be kept");
+        mFactory = factory;
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * Returns an encoder configured with {@code config}, ready for createInputSurface() and
+     * start(). Give it back with {@link #recycle} rather than releasing it.
+     */
+    public EncoderBackend acquire(EncoderConfig config) throws IOException {
+        long startNs = System.nanoTime();
+        try {
+            Entry entry;
+            boolean exact;
+            synchronized (this) {
+                long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECYCLE_WAIT_MS);
+                for (; ; ) {
+                    entry = takeIdle(config, true);
+                    exact = entry != null;
+                    if (!exact)
+                        entry = takeIdle(config, false);
+                    long remainingNs = deadlineNs - System.nanoTime();
+                    if (entry != null || mExpectedRecycles == 0 || mShutdown || remainingNs <= 0)
+                        break;
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (exact)
+                    mHits++;
+                else if (entry != null)
+                    mReconfigures++;
+                else
+                    mMisses++;
+            }
+            if (!exact) {
+                if (entry != null) {
+                    try {
+                        reconfigure(entry, config);
+                    } catch (IOException | RuntimeException e) {
+                        entry.backend.release();
+                        throw e;
+                    }
+                } else {
+                    entry = create(config, false);
+                }
+            }
+            synchronized (this) {
+                mInUse++;
+            }
+            return entry.backend;
+        } finally {
+            mAcquireLatency.add(System.nanoTime() - startNs);
+        }
+    }
+
+    /**
+     * Takes back a stopped encoder that ran {@code config}, configuring it again so the next
+     * session with the same format can start immediately. The oldest idle encoder is released
+     * when more than maxIdle would be kept.
+     */
+    public void recycle(EncoderBackend backend, EncoderConfig config) {
+        synchronized (this) {
+            if (mInUse > 0)
+                mInUse--;
+        }
+        if (isShutdown()) {
+            backend.release();
+            return;
+        }
+
+        try {
+            long startNs = System.nanoTime();
+            backend.configure(config);
+            mConfigureLatency.add(System.nanoTime() - startNs);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Recycled encoder could not be configured, releasing it", e);
+            backend.release();
+            return;
+        }
+        add(new Entry(backend, config, false), false);
+    }
+
+    /**
+     * Releases an encoder handed out by {@link #acquire} that cannot be recycled, e.g. one that
+     * failed to start.
+     */
+    public void discard(EncoderBackend backend) {
+        synchronized (this) {
+            if (mInUse > 0)
+                mInUse--;
+        }
+        backend.release();
+    }
+
+    /**
+     * A session holding an encoder is stopping and will {@link #recycle} it. Until
+     * {@link #recycleSettled} is called, an acquire with nothing idle waits for it first.
+     */
+    public synchronized void expectRecycle() {
+        mExpectedRecycles++;
+    }
+
+    /**
+     * The session announced with {@link #expectRecycle} has given its encoder back, or never
+     * will.
+     */
+    public synchronized void recycleSettled() {
+        if (mExpectedRecycles > 0)
+            mExpectedRecycles--;
+        notifyAll();
+    }
+
+    /**
+     * Makes sure an encoder configured with {@code config} is idle in the pool, creating one
+     * when needed. Call it off the critical path, e.g. while the preview runs before recording.
+     * Does nothing while an encoder is handed out: the session will recycle it, and a spare
+     * would be a second codec running next to it.
+     */
+    public void prewarm(EncoderConfig config) throws IOException {
+        synchronized (this) {
+            if (mShutdown || mInUse > 0 || findIdle(config) != null)
+                return;
+        }
+        // A concurrent prewarm of the same config may finish first, add() drops the duplicate
+        add(create(config, true), true);
+    }
+
+    /**
+     * Time from start() to the first output buffer of an encoder handed out by this pool.
+     */
+    public void recordFirstOutput(long latencyNs) {
+        mFirstOutputLatency.add(latencyNs);
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    public synchronized int getInUseCount() {
+        return mInUse;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getReconfigures() {
+        return mReconfigures;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public Latency getCreateLatency() {
+        return mCreateLatency;
+    }
+
+    public Latency getConfigureLatency() {
+        return mConfigureLatency;
+    }
+
+    public Latency getAcquireLatency() {
+        return mAcquireLatency;
+    }
+
+    public Latency getFirstOutputLatency() {
+        return mFirstOutputLatency;
+    }
+
+    /**
+     * Releases the idle encoders. Encoders recycled later are released too.
+     */
+    public void shutdown() {
+        List<Entry> idle;
+        synchronized (this) {
+            mShutdown = true;
+            idle = new ArrayList<>(mIdle);
+            mIdle.clear();
+            notifyAll();
+        }
+        for (Entry entry : idle)
+            entry.backend.release();
+    }
+
+    public synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    public synchronized String dumpStats() {
+        return "Encoder pool: hits=" + mHits + " reconfigures=" + mReconfigures + " misses=" + mMisses
+                + " idle=" + mIdle.size() + " in use=" + mInUse
+                + "\n  create " + mCreateLatency
+                + "\n  configure " + mConfigureLatency
+                + "\n  acquire " + mAcquireLatency
+                + "\n  first output " + mFirstOutputLatency;
+    }
+
+    // Internal
+
+    private Entry findIdle(EncoderConfig config) {
+        for (Entry entry : mIdle) {
+            if (config.equals(entry.config))
+                return entry;
+        }
+        return null;
+    }
+
+    // Most recently recycled first, it is the one most likely to still be warm
+    private Entry takeIdle(EncoderConfig config, boolean exact) {
+        for (int i = mIdle.size() - 1; i >= 0; i--) {
+            Entry entry = mIdle.get(i);
+            if (exact ? config.equals(entry.config) : entry.canRun(config)) {
+                mIdle.remove(i);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // Inserts under the lock; whatever does not fit is released outside of it
+    private void add(Entry entry, boolean unlessIdle) {
+        List<Entry> released = new ArrayList<>(1);
+        synchronized (this) {
+            if (mShutdown || unlessIdle && findIdle(entry.config) != null) {
+                released.add(entry);
+            } else {
+                mIdle.add(entry);
+                trimIdle(released);
+            }
+            notifyAll();
+        }
+        for (Entry trimmed : released)
+            trimmed.backend.release();
+    }
+
+    private Entry create(EncoderConfig config, boolean prewarmed) throws IOException {
+        long startNs = System.nanoTime();
+        EncoderBackend backend = mFactory.create();
+        try {
+            backend.configure(config);
+        } catch (IOException | RuntimeException e) {
+            backend.release();
+            throw e;
+        }
+        mCreateLatency.add(System.nanoTime() - startNs);
+        return new Entry(backend, config, prewarmed);
+    }
+
+    private void reconfigure(Entry entry, EncoderConfig config) throws IOException {
+        long startNs = System.nanoTime();
+        // Back to the uninitialized state, keeping the codec instance
+        entry.backend.stop();
+        entry.backend.configure(config);
+        entry.config = config;
+        mConfigureLatency.add(System.nanoTime() - startNs);
+    }
+
+    // Oldest spare from prewarm() first, recycled encoders only when no spare is left
+    private void trimIdle(List<Entry> released) {
+        while (mIdle.size() > mMaxIdle) {
+            int victim = 0;
+            for (int i = 0; i < mIdle.size(); i++) {
+                if (mIdle.get(i).prewarmed) {
+                    victim = i;
+                    break;
+                }
+            }
+            released.add(mIdle.remove(victim));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import java.util.Locale;
+
+/**
+ * Presentation timestamps for high frame rate recording. Encoded samples leave the codec in
+ * bursts, so stamping them with the dequeue time (as regular recording does) would collapse a
+ * burst onto a few microseconds. Instead the capture timestamp carried through the input
+ * surface is rebased to zero and, for slow motion, stretched by captureFps / playbackFps.
+ *
+ * Also measures the rate that was actually captured against the target.
+ */
+public class HighSpeedTimestamper {
+
+    private final int mCaptureFps;
+    private final int mPlaybackFps;
+    private final long mFrameIntervalUs;
+
+    private long mFirstCaptureUs = -1;
+    private long mLastCaptureUs;
+    private long mLastPtsUs = -1;
+    private long mFrames;
+    private long mMissedFrames;
+
+    public HighSpeedTimestamper(int captureFps, int playbackFps) {
+        if (captureFps <= 0 || playbackFps <= 0 || playbackFps > captureFps)
+            throw new IllegalArgumentException("Invalid rates " + captureFps + "/" + playbackFps);
+
+        mCaptureFps = captureFps;
+        mPlaybackFps = playbackFps;
+        mFrameIntervalUs = 1000000L / captureFps;
+    }
+
+    public int getCaptureFps() {
+        return mCaptureFps;
+    }
+
+    public int getPlaybackFps() {
+        return mPlaybackFps;
+    }
+
+    /**
+     * @param captureUs capture timestamp of the sample in microseconds
+     * @return strictly increasing presentation timestamp starting at zero
+     */
+    public long toPresentationTimeUs(long captureUs) {
+        if (mFirstCaptureUs < 0) {
+            mFirstCaptureUs = captureUs;
+        } else if (captureUs > mLastCaptureUs) {
+            // Gaps of more than half an interval beyond the expected one are missed frames
+            long gap = captureUs - mLastCaptureUs;
+            mMissedFrames += Math.max(0, (gap + mFrameIntervalUs / 2) / mFrameIntervalUs - 1);
+        }
+        mLastCaptureUs = Math.max(mLastCaptureUs, captureUs);
+        mFrames++;
+
+        long ptsUs = (captureUs - mFirstCaptureUs) * mCaptureFps / mPlaybackFps;
+        if (ptsUs <= mLastPtsUs)
+            ptsUs = mLastPtsUs + 1;
+        mLastPtsUs = ptsUs;
+        return ptsUs;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getMissedFrames() {
+        return mMissedFrames;
+    }
+
+    public double getAchievedFps() {
+        if (mFrames < 2)
+            return 0;
+        return (mFrames - 1) * 1e6 / (mLastCaptureUs - mFirstCaptureUs);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "target=%dfps achieved=%.1ffps frames=%d missed=%d playback=%dfps",
+                mCaptureFps, getAchievedFps(), mFrames, mMissedFrames, mPlaybackFps);
+    }
+}
@@ -0,0 +1,122 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MediaCodecEncoderBackend implements EncoderBackend {
+
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private MediaCodec mCodec;
+    private final CodecInputImage mInputImage = new CodecInputImage();
+
+    @Override
+    public void configure(EncoderConfig config) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(config.getMimeType(), config.getWidth(), config.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, config.isBufferInput()
+                ? MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible
+                : MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.getFrameRate());
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.getIFrameInterval());
+        if (config.getOperatingRate() > 0)
+            format.setInteger(MediaFormat.KEY_OPERATING_RATE, config.getOperatingRate());
+        if (config.getCaptureRate() > 0)
+            format.setInteger(MediaFormat.KEY_CAPTURE_RATE, config.getCaptureRate());
+
+        if (mCodec == null) {
+            mCodec = config.getCodecName() != null
+                    ? MediaCodec.createByCodecName(config.getCodecName())
+                    : MediaCodec.createEncoderByType(config.getMimeType());
+        }
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public CodecInputImage getInputImage(int index) {
+        // Queued whole, whatever part of it the planes cover
+        ByteBuffer buffer = mCodec.getInputBuffer(index);
+        Image image = mCodec.getInputImage(index);
+        if (buffer == null || image == null)
+            return null;
+        Image.Plane[] planes = image.getPlanes();
+        mInputImage.set(image.getWidth(), image.getHeight(), buffer.capacity());
+        for (int i = 0; i < planes.length; i++)
+            mInputImage.setPlane(i, planes[i].getBuffer(), planes[i].getRowStride(), planes[i].getPixelStride());
+        return mInputImage;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        int status = mCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        if (status >= 0)
+            info.set(mBufferInfo.offset, mBufferInfo.size, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+        return status;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        if (mCodec != null) {
+            mCodec.release();
+            mCodec = null;
+        }
+    }
+}
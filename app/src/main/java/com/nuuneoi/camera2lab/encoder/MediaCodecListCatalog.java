@@ -0,0 +1,75 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@link CodecSelector.Catalog} over the device's MediaCodecList.
+ */
+public class MediaCodecListCatalog implements CodecSelector.Catalog {
+
+    private final MediaCodecInfo[] mCodecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+
+    @Override
+    public List<CodecSelector.EncoderInfo> getEncoders(String mimeType) {
+        List<CodecSelector.EncoderInfo> encoders = new ArrayList<>();
+        for (final MediaCodecInfo info : mCodecInfos) {
+            if (!info.isEncoder())
+                continue;
+
+            final MediaCodecInfo.CodecCapabilities capabilities;
+            try {
+                capabilities = info.getCapabilitiesForType(mimeType);
+            } catch (IllegalArgumentException e) {
+                // Type not supported by this codec
+                continue;
+            }
+            final MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+            if (video == null)
+                continue;
+
+            encoders.add(new CodecSelector.EncoderInfo() {
+                @Override
+                public String getName() {
+                    return info.getName();
+                }
+
+                @Override
+                public boolean isHardwareAccelerated() {
+                    return isHardware(info);
+                }
+
+                @Override
+                public boolean supports(int width, int height, double frameRate) {
+                    return video.areSizeAndRateSupported(width, height, frameRate);
+                }
+
+                @Override
+                public boolean supportsFlexibleYuvInput() {
+                    if (capabilities.colorFormats == null)
+                        return false;
+                    for (int colorFormat : capabilities.colorFormats) {
+                        if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible)
+                            return true;
+                    }
+                    return false;
+                }
+            });
+        }
+        return encoders;
+    }
+
+    // Before Q the only hint is the name: software codecs are Google's or explicitly marked
+    private static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            return info.isHardwareAccelerated();
+
+        String name = info.getName().toLowerCase(Locale.US);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.") && !name.contains(".sw.");
+    }
+}
@@ -1,20 +1,21 @@
 package com.nuuneoi.camera2lab.encoder;
 
-import android.graphics.Canvas;
-import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Environment;
+import android.os.Handler;
 import android.util.Log;
 import android.view.Surface;
 
+import com.nuuneoi.camera2lab.pipeline.PipelineScheduler;
+import com.nuuneoi.camera2lab.pipeline.SampleSink;
+import com.nuuneoi.camera2lab.trace.EventTracer;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.GregorianCalendar;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MediaEncoder {
 
@@ -25,19 +26,60 @@ public class MediaEncoder {
     private static final String TAG = "MediaEncoder";
     private static final String DIR_NAME = "CameraRecorder";
 
-    String VIDEO_FORMAT = "video/avc";
     int VIDEO_FRAME_PER_SECOND = 30;
-    int VIDEO_I_FRAME_INTERVAL = 10;
-    int VIDEO_BITRATE = 3000 * 1000;
+    static final int VIDEO_I_FRAME_INTERVAL = 10;
+
+    private static final long MAX_PLAUSIBLE_LATENCY_US = 5000 * 1000;
+
+    public static final long DEFAULT_THUMBNAIL_INTERVAL_MS = 1000;
+    private static final String INDEX_EXTENSION = ".idx";
+
+    private static final EventTracer sTracer = EventTracer.global();
+    private static final int EV_DEQUEUE = EventTracer.define("encoder.dequeue");
+    private static final int EV_SAMPLE = EventTracer.define("encoder.sample");
+    private static final int EV_MUX_WRITE = EventTracer.define("muxer.write");
 
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
     private Worker mWorker;
+    // Latest session, still readable once stopped; a worker draining the previous session
+    // only ever updates its own counters
+    private Worker mSession;
     private int mWidth = 1280;
     private int mHeight = 720;
 
     private OnFrameAvailableListener mOnFrameAvailableListener;
 
+    private final AtomicLong mMaxEncoderLatencyUs = new AtomicLong();
+
+    // High speed recording, 0 when off
+    private int mCaptureFps;
+    private int mPlaybackFps;
+
+    // Time-lapse recording, 0 when off
+    private long mTimeLapseIntervalMs;
+    private int mTimeLapsePlaybackFps;
+
+    private final AtomicLong mSyncFramesRequested = new AtomicLong();
+
+    // Index sidecar of recordings, thumbnail interval 0 for none and -1 for no index
+    private long mIndexThumbnailIntervalMs = DEFAULT_THUMBNAIL_INTERVAL_MS;
+
+    private volatile SampleSink mSampleSink;
+
+    private PipelineScheduler mScheduler;
+    private EncoderPool mEncoderPool;
+    private EncoderDrainPool mDrainPool;
+
+    // Frames come through queueFrame() instead of an input surface
+    private boolean mBufferInput;
+
+    private CodecSelector.Preference mCodecPreference = CodecSelector.Preference.AVC;
+    private BitrateModel mBitrateModel = new BitrateModel();
+    // Set from any thread, read by the worker when it configures the codec
+    private volatile int mKeyFrameIntervalSec = VIDEO_I_FRAME_INTERVAL;
+    private volatile CodecSelector.Selection mCodecSelection;
+
 
     public MediaEncoder(int width, int height) {
         mWidth = width;
@@ -48,6 +90,234 @@ public class MediaEncoder {
         mOnFrameAvailableListener = listener;
     }
 
+    /**
+     * Runs the drain loop at the ENCODER_DRAIN priority and moves muxer finalisation to the
+     * MUXER_IO thread. Without a scheduler everything stays on the worker thread.
+     */
+    public void setScheduler(PipelineScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Drains this encoder on a thread of {@code pool}, shared with other encoders, instead of
+     * a worker thread of its own. Takes effect on the next start.
+     */
+    public void setDrainPool(EncoderDrainPool pool) {
+        mDrainPool = pool;
+    }
+
+    /**
+     * Takes codecs from {@code pool} and gives them back stopped instead of releasing them, so
+     * the next session skips codec creation. The pool's factory replaces
+     * {@link #createEncoderBackend()}.
+     */
+    public void setEncoderPool(EncoderPool pool) {
+        mEncoderPool = pool;
+    }
+
+    /**
+     * Puts an encoder configured for the current settings into the pool ahead of the next
+     * session. Blocks for as long as creating a codec takes, so call it off the critical path.
+     * Does nothing while a session runs, its codec goes back to the pool when it stops.
+     */
+    public void prewarm() throws IOException {
+        EncoderPool pool = mEncoderPool;
+        synchronized (this) {
+            if (pool == null || mWorker != null)
+                return;
+        }
+        pool.prewarm(createEncoderConfig(selectCodec()));
+    }
+
+    /**
+     * Receives the output format and every encoded sample on the drain thread, whether or not
+     * a recording is running (live streaming). The sample buffer is only valid during the call
+     * and must not be modified.
+     */
+    public void setSampleSink(SampleSink sink) {
+        mSampleSink = sink;
+    }
+
+    /**
+     * Feeds the encoder NV12 frames through {@link #queueFrame} instead of an input surface, for
+     * frames processed on the CPU before encoding. {@link #onSurfaceCreated} then gets null.
+     */
+    public void setBufferInput(boolean bufferInput) {
+        mBufferInput = bufferInput;
+    }
+
+    public boolean isBufferInput() {
+        return mBufferInput;
+    }
+
+    /**
+     * Copies an NV12 frame into the next free input buffer, without waiting for one, following
+     * the codec's row strides and chroma layout.
+     *
+     * @param presentationTimeUs capture time, on the clock the camera stamps surface frames with
+     * @return false when the frame was dropped: no session, not in buffer input mode, or every
+     * input buffer still held by the codec
+     * @throws IllegalArgumentException when {@code size} is short of a full frame
+     */
+    public boolean queueFrame(byte[] data, int size, long presentationTimeUs) {
+        Worker worker;
+        synchronized (this) {
+            worker = mWorker;
+        }
+        return worker != null && worker.queueInput(data, size, presentationTimeUs);
+    }
+
+    /**
+     * Seconds between periodic key frames. With key frames requested on scene changes through
+     * {@link #requestSyncFrame()}, static scenes can afford a much longer interval.
+     */
+    public void setKeyFrameInterval(int seconds) {
+        if (seconds < 1)
+            throw new IllegalArgumentException("Key frame interval must be at least a second: " + seconds);
+        mKeyFrameIntervalSec = seconds;
+    }
+
+    public int getKeyFrameInterval() {
+        return mKeyFrameIntervalSec;
+    }
+
+    /**
+     * Makes the next encoded frame a key frame, e.g. on a scene change. May be called from any
+     * thread.
+     *
+     * @return false when no session is running
+     */
+    public boolean requestSyncFrame() {
+        Worker worker;
+        synchronized (this) {
+            worker = mWorker;
+        }
+        if (worker == null || !worker.requestSyncFrame())
+            return false;
+        mSyncFramesRequested.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Key frames requested through {@link #requestSyncFrame()} since this encoder was created.
+     */
+    public long getSyncFramesRequested() {
+        return mSyncFramesRequested.get();
+    }
+
+    /**
+     * With {@link CodecSelector.Preference#PREFER_HEVC} recordings use a hardware HEVC encoder
+     * when one supports the stream, and AVC otherwise.
+     */
+    public void setCodecPreference(CodecSelector.Preference preference) {
+        mCodecPreference = preference;
+    }
+
+    public void setBitrateModel(BitrateModel bitrateModel) {
+        mBitrateModel = bitrateModel;
+    }
+
+    /**
+     * Codec chosen for the current session, or null before it is prepared.
+     */
+    public CodecSelector.Selection getCodecSelection() {
+        return mCodecSelection;
+    }
+
+    /**
+     * Configures the encoder for frames arriving at {@code captureFps}. With a lower
+     * {@code playbackFps} the recording plays back in slow motion.
+     *
+     * @throws IllegalArgumentException unless 0 < playbackFps <= captureFps
+     */
+    public void setHighSpeed(int captureFps, int playbackFps) {
+        if (captureFps <= 0 || playbackFps <= 0 || playbackFps > captureFps)
+            throw new IllegalArgumentException("Invalid high speed rates " + captureFps + "/" + playbackFps);
+        mCaptureFps = captureFps;
+        mPlaybackFps = playbackFps;
+    }
+
+    /**
+     * Target and achieved capture rate of the current high speed session, or null.
+     */
+    public synchronized HighSpeedTimestamper getHighSpeedTimestamper() {
+        return mSession != null ? mSession.mHighSpeedTimestamper : null;
+    }
+
+    /**
+     * Configures the encoder for one frame every {@code intervalMs}, played back at
+     * {@code playbackFps}. The camera decides which frames reach the input surface; every frame
+     * that does becomes the next frame of the playback timeline.
+     */
+    public void setTimeLapse(long intervalMs, int playbackFps) {
+        mTimeLapseIntervalMs = intervalMs;
+        mTimeLapsePlaybackFps = playbackFps;
+    }
+
+    /**
+     * Requested and achieved interval of the current time-lapse recording, or null.
+     */
+    public synchronized TimeLapseTimestamper getTimeLapseTimestamper() {
+        return mSession != null ? mSession.mTimeLapseTimestamper : null;
+    }
+
+    /**
+     * Recordings write a sidecar next to the MP4 (same name plus {@value #INDEX_EXTENSION}) with
+     * every sample's time, size and flags, and thumbnails fed through {@link #addThumbnail}
+     * every {@code thumbnailIntervalMs} (0 for none). Read it with {@link RecordingIndexReader}.
+     */
+    public void setRecordingIndex(boolean enabled, long thumbnailIntervalMs) {
+        mIndexThumbnailIntervalMs = enabled ? Math.max(0, thumbnailIntervalMs) : -1;
+    }
+
+    /**
+     * True when the running recording wants its next thumbnail; check before scaling and
+     * compressing a frame for {@link #addThumbnail}.
+     */
+    public boolean wantsThumbnail() {
+        Worker worker;
+        synchronized (this) {
+            worker = mWorker;
+        }
+        return worker != null && worker.wantsThumbnail();
+    }
+
+    /**
+     * Adds a JPEG thumbnail to the recording index, stamped with the time of the last sample
+     * written. May be called from any thread; ignored when no thumbnail is due.
+     */
+    public void addThumbnail(byte[] jpeg, int offset, int length, int width, int height) {
+        Worker worker;
+        synchronized (this) {
+            worker = mWorker;
+        }
+        if (worker != null)
+            worker.addThumbnail(jpeg, offset, length, width, height);
+    }
+
+    /**
+     * MP4 file of the running recording, or null.
+     */
+    public synchronized File getRecordingFile() {
+        Worker worker = mWorker;
+        return worker != null && worker.mRecording && worker.mOutputPath != null ? new File(worker.mOutputPath) : null;
+    }
+
+    /**
+     * Encoded bytes handed to the muxer by the current or last recording.
+     */
+    public synchronized long getBytesWritten() {
+        return mSession != null ? mSession.mBytesWritten : 0;
+    }
+
+    /**
+     * Worst time between a frame's capture timestamp and its encoded output since the last
+     * call. Divided by the frame interval this approximates the encoder queue depth.
+     */
+    public long getAndResetMaxEncoderLatencyUs() {
+        return mMaxEncoderLatencyUs.getAndSet(0);
+    }
+
     protected void onSurfaceCreated(Surface surface) {
     }
 
@@ -55,24 +325,60 @@ public class MediaEncoder {
         Log.d(TAG, "onSurfaceDestroyed");
     }
 
-    protected void onEncodedSample(MediaCodec.BufferInfo info, ByteBuffer data) {
-        Log.d(TAG, "onEncodedSample");
+    // Called on the worker before the codec is created
+    protected void onCodecSelected(CodecSelector.Selection selection) {
+        Log.d(TAG, "Video codec " + selection);
+    }
+
+    protected void onEncodedSample(SampleInfo info, ByteBuffer data) {
+    }
+
+    protected EncoderBackend createEncoderBackend() {
+        return new MediaCodecEncoderBackend();
+    }
+
+    /**
+     * File a new recording goes to, called when the recording starts. Null when storage is not
+     * writable.
+     */
+    protected File createOutputFile() {
+        final File dir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES), DIR_NAME);
+        Log.d(TAG, "path=" + dir.toString());
+        dir.mkdirs();
+        if (dir.canWrite()) {
+            return new File(dir, getDateTimeString() + ".mp4");
+        }
+        return null;
+    }
+
+    protected MuxerBackend createMuxerBackend(File output) throws IOException {
+        return new MediaMuxerBackend(output);
+    }
+
+    private static String getDateTimeString() {
+        final GregorianCalendar now = new GregorianCalendar();
+        return mDateTimeFormat.format(now.getTime());
+    }
+
+    protected CodecSelector createCodecSelector(CodecSelector.Preference preference) {
+        return new CodecSelector(new MediaCodecListCatalog(), preference);
     }
 
     public synchronized void start() {
         stop();
         if (mWorker == null) {
             mWorker = new Worker();
+            mSession = mWorker;
             mWorker.setRecording(false);
             mWorker.setRunning(true);
-            mWorker.start();
+            launch(mWorker);
         }
     }
 
     public synchronized void stop() {
         if (mWorker != null) {
             mWorker.setRecording(false);
-            mWorker.setRunning(false);
+            mWorker.finish();
             mWorker = null;
         }
     }
@@ -81,40 +387,105 @@ public class MediaEncoder {
         stopRecording();
         if (mWorker == null) {
             mWorker = new Worker();
+            mSession = mWorker;
             mWorker.setRecording(true);
             mWorker.setRunning(true);
-            mWorker.start();
+            launch(mWorker);
         }
     }
 
+    // The worker keeps recording while it drains, so the tail of the stream is muxed and the
+    // file finalised
     public synchronized void stopRecording() {
         if (mWorker != null) {
-            mWorker.setRecording(false);
-            mWorker.setRunning(false);
+            mWorker.finish();
             mWorker = null;
         }
     }
 
+    private void launch(Worker worker) {
+        EncoderDrainPool pool = mDrainPool;
+        if (pool != null)
+            pool.submit(worker);
+        else
+            worker.start();
+    }
+
+    // The codec has to keep up with the rate frames arrive at
+    private CodecSelector.Selection selectCodec() {
+        int inputFps = mCaptureFps > 0 ? mCaptureFps : VIDEO_FRAME_PER_SECOND;
+        return createCodecSelector(mCodecPreference).select(mWidth, mHeight, inputFps, mBufferInput);
+    }
+
+    // Rate control follows the rate frames reach the codec at; time-lapse frames arrive
+    // sparsely and are budgeted at the rate they play back at
+    private EncoderConfig createEncoderConfig(CodecSelector.Selection selection) {
+        String mimeType = selection.mimeType;
+        int keyFrameIntervalSec = mKeyFrameIntervalSec;
+        EncoderConfig config;
+        if (mCaptureFps > 0) {
+            config = new EncoderConfig(mimeType, mWidth, mHeight,
+                    mBitrateModel.getBitRate(mimeType, mWidth, mHeight, mCaptureFps), mCaptureFps, keyFrameIntervalSec);
+            config.setOperatingRate(mCaptureFps);
+            config.setCaptureRate(mCaptureFps);
+        } else if (mTimeLapseIntervalMs > 0) {
+            config = new EncoderConfig(mimeType, mWidth, mHeight,
+                    mBitrateModel.getBitRate(mimeType, mWidth, mHeight, mTimeLapsePlaybackFps), mTimeLapsePlaybackFps, keyFrameIntervalSec);
+        } else {
+            config = new EncoderConfig(mimeType, mWidth, mHeight,
+                    mBitrateModel.getBitRate(mimeType, mWidth, mHeight, VIDEO_FRAME_PER_SECOND), VIDEO_FRAME_PER_SECOND, keyFrameIntervalSec);
+        }
+        config.setCodecName(selection.codecName);
+        config.setBufferInput(mBufferInput);
+        return config;
+    }
+
     // Internal Thread
 
-    class Worker extends Thread {
+    class Worker extends Thread implements EncoderDrainPool.Task {
 
-        MediaCodec.BufferInfo mBufferInfo;
-        MediaCodec mCodec;
+        SampleInfo mSampleInfo;
+        EncoderBackend mCodec;
         int mCodeTrackIndex;
-        MediaMuxer mMediaMuxer;
+        MuxerBackend mMediaMuxer;
         volatile boolean mRunning;
 
         volatile boolean mRecording;
         Surface mSurface;
         final long mTimeoutUsec;
+        EncoderConfig mConfig;
+        long mStartNs;
+        boolean mFirstOutput = true;
+
+        // queueFrame() and requestSyncFrame() run on other threads, guarded against the codec
+        // stopping under them
+        final Object mInputLock = new Object();
+        boolean mInputOpen;
+        // Guarded by mInputLock: the pool has been told this worker's codec is coming back
+        boolean mRecycleExpected;
+        boolean mExited;
+
+        boolean mPrepared;
+        // Pooled drain: the end of stream has been signalled, and when the wait for it runs out
+        boolean mEndSignalled;
+        long mEndDeadlineNs;
 
         private String mOutputPath;
 
+        // Per session, read from other threads through the encoder
+        volatile HighSpeedTimestamper mHighSpeedTimestamper;
+        volatile TimeLapseTimestamper mTimeLapseTimestamper;
+        volatile long mBytesWritten;
+
+        // Index sidecar of this recording; a stopped worker still draining keeps writing its own
+        volatile RecordingIndexWriter mIndexWriter;
+        volatile long mLastSamplePtsUs = -1;
+
         public Worker() {
-            mBufferInfo = new MediaCodec.BufferInfo();
+            mSampleInfo = new SampleInfo();
             mTimeoutUsec = 30000l;
-            mOutputPath = getCaptureFile(Environment.DIRECTORY_MOVIES, ".mp4").toString();
+            File output = createOutputFile();
+            mOutputPath = output != null ? output.getPath() : null;
         }
 
         public void setRunning(boolean running) {
@@ -125,70 +496,338 @@ public class MediaEncoder {
             mRecording = recording;
         }
 
+        // Lets the pool know the codec is on its way back before the drain starts, so the
+        // next session waits for it instead of creating a second one
+        void finish() {
+            if (mEncoderPool != null) {
+                synchronized (mInputLock) {
+                    if (!mExited && !mRecycleExpected) {
+                        mEncoderPool.expectRecycle();
+                        mRecycleExpected = true;
+                    }
+                }
+            }
+            setRunning(false);
+        }
+
         @Override
         public void run() {
-            prepare();
+            if (mScheduler != null)
+                mScheduler.attachCurrentThread(PipelineScheduler.Stage.ENCODER_DRAIN);
             try {
+                prepare();
+                mPrepared = true;
                 while (mRunning) {
                     encode();
                 }
                 encode();
             } finally {
-                release();
+                end();
+                if (mScheduler != null)
+                    mScheduler.detachCurrentThread(PipelineScheduler.Stage.ENCODER_DRAIN);
             }
         }
 
-        @SuppressWarnings("deprecation")
+        // Pooled drain: prepares on the first step, then drains what is ready. Once stopped,
+        // the stream is ended and drained over the following steps, so the end of stream never
+        // holds up the other encoders of the thread for longer than the pool asks
+        @Override
+        public int step(long timeoutUs) {
+            int result;
+            try {
+                result = drainStep(timeoutUs);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Encoder failed, ending the session", e);
+                result = EncoderDrainPool.STEP_DONE;
+            }
+            if (result == EncoderDrainPool.STEP_DONE)
+                end();
+            return result;
+        }
+
+        private int drainStep(long timeoutUs) {
+            if (!mPrepared) {
+                prepare();
+                mPrepared = true;
+                return EncoderDrainPool.STEP_BUSY;
+            }
+            if (!mRunning && !mEndSignalled) {
+                endStream();
+                mEndSignalled = true;
+                mEndDeadlineNs = System.nanoTime() + mTimeoutUsec * 1000L;
+            }
+
+            boolean busy = false;
+            for (; ; ) {
+                int status = dequeueOutput(busy ? 0 : timeoutUs);
+                if (status == EncoderBackend.INFO_TRY_AGAIN_LATER)
+                    break;
+                busy = true;
+                if (handleOutput(status) || mEndSignalled && status >= 0 && mSampleInfo.isEndOfStream())
+                    return EncoderDrainPool.STEP_DONE;
+            }
+            if (mEndSignalled) {
+                // Like the dedicated worker, give up on the end of stream once the codec stays
+                // quiet for a whole timeout
+                long now = System.nanoTime();
+                if (busy)
+                    mEndDeadlineNs = now + mTimeoutUsec * 1000L;
+                else if (now >= mEndDeadlineNs)
+                    return EncoderDrainPool.STEP_DONE;
+            }
+            return busy ? EncoderDrainPool.STEP_BUSY : EncoderDrainPool.STEP_IDLE;
+        }
+
         void encode() {
             if (!mRunning) {
                 // if not running anymore, complete stream
-                mCodec.signalEndOfInputStream();
+                endStream();
             }
 
             for (; ; ) {
-                int status = mCodec.dequeueOutputBuffer(mBufferInfo, mTimeoutUsec);
-                Log.d(TAG, "Encoding Status: " + status);
-                if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                int status = dequeueOutput(mTimeoutUsec);
+                if (status == EncoderBackend.INFO_TRY_AGAIN_LATER) {
                     if (!mRunning) break;
-                } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    if (mRecording) {
-                        mCodeTrackIndex = mMediaMuxer.addTrack(mCodec.getOutputFormat());
-                        mMediaMuxer.start();
-                    }
-                } else if (status >= 0) {
-                    if (mOnFrameAvailableListener != null)
-                        mOnFrameAvailableListener.onFrameAvailable();
-                    // encoded sample
-                    ByteBuffer data = mCodec.getOutputBuffer(status);
-                    if (!mRecording) {
-                        mCodec.releaseOutputBuffer(status, false);
-                        continue;
-                    }
-                    if (data != null) {
-                        final int endOfStream = mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM;
-                        // pass to whoever listens to
-                        if (endOfStream == 0) {
-                            mBufferInfo.presentationTimeUs = getPTSUs();
-                            Log.d(TAG, mBufferInfo.size + " : Size");
-                            onEncodedSample(mBufferInfo, data);
-                            mMediaMuxer.writeSampleData(mCodeTrackIndex, data, mBufferInfo);
-                            prevOutputPTSUs = mBufferInfo.presentationTimeUs;
-                        }
-                        // releasing buffer is important
-                        mCodec.releaseOutputBuffer(status, false);
-                        if (endOfStream == MediaCodec.BUFFER_FLAG_END_OF_STREAM) break;
+                } else if (handleOutput(status)) {
+                    break;
+                }
+            }
+        }
+
+        private void endStream() {
+            if (mConfig.isBufferInput())
+                endInput();
+            else
+                mCodec.signalEndOfInputStream();
+        }
+
+        private int dequeueOutput(long timeoutUs) {
+            sTracer.begin(EV_DEQUEUE);
+            int status = mCodec.dequeueOutputBuffer(mSampleInfo, timeoutUs);
+            sTracer.end(EV_DEQUEUE, status, 0);
+            return status;
+        }
+
+        // Returns true once the end of stream of a recording has been reached
+        private boolean handleOutput(int status) {
+            if (status == EncoderBackend.INFO_OUTPUT_FORMAT_CHANGED) {
+                SampleSink sink = mSampleSink;
+                if (sink != null)
+                    sink.onOutputFormatChanged(mCodec.getOutputFormat());
+                if (mRecording) {
+                    mCodeTrackIndex = mMediaMuxer.addTrack(mCodec.getOutputFormat());
+                    mMediaMuxer.start();
+                }
+            } else if (status >= 0) {
+                if (mFirstOutput) {
+                    mFirstOutput = false;
+                    if (mEncoderPool != null)
+                        mEncoderPool.recordFirstOutput(System.nanoTime() - mStartNs);
+                }
+                recordEncoderLatency(mSampleInfo.presentationTimeUs);
+                long synthesizedPtsUs = -1;
+                if (!mSampleInfo.isEndOfStream() && !mSampleInfo.isCodecConfig()) {
+                    if (mHighSpeedTimestamper != null)
+                        synthesizedPtsUs = mHighSpeedTimestamper.toPresentationTimeUs(mSampleInfo.presentationTimeUs);
+                    else if (mTimeLapseTimestamper != null)
+                        synthesizedPtsUs = mTimeLapseTimestamper.toPresentationTimeUs(mSampleInfo.presentationTimeUs);
+                }
+                // From here on the sample carries the presentation time it is written with, so
+                // the stream sink and the muxer agree on high-speed and time-lapse timing
+                if (!mSampleInfo.isEndOfStream()) {
+                    mSampleInfo.presentationTimeUs = synthesizedPtsUs >= 0 ? synthesizedPtsUs : getPTSUs();
+                    prevOutputPTSUs = mSampleInfo.presentationTimeUs;
+                }
+                if (mOnFrameAvailableListener != null)
+                    mOnFrameAvailableListener.onFrameAvailable();
+                // encoded sample
+                ByteBuffer data = mCodec.getOutputBuffer(status);
+                // The end of stream usually comes as an empty buffer, nothing to stream
+                SampleSink sink = mSampleSink;
+                if (sink != null && data != null && mSampleInfo.size > 0)
+                    sink.writeSample(data, mSampleInfo);
+                if (!mRecording) {
+                    mCodec.releaseOutputBuffer(status);
+                    return false;
+                }
+                if (data != null) {
+                    final boolean endOfStream = mSampleInfo.isEndOfStream();
+                    // pass to whoever listens to
+                    if (!endOfStream) {
+                        sTracer.instant(EV_SAMPLE, mSampleInfo.size, mSampleInfo.flags);
+                        onEncodedSample(mSampleInfo, data);
+                        sTracer.begin(EV_MUX_WRITE, mSampleInfo.presentationTimeUs, 0);
+                        mMediaMuxer.writeSampleData(mCodeTrackIndex, data, mSampleInfo);
+                        sTracer.end(EV_MUX_WRITE);
+                        mBytesWritten += mSampleInfo.size;
+                        indexSample(mSampleInfo);
                     }
+                    // releasing buffer is important
+                    mCodec.releaseOutputBuffer(status);
+                    return endOfStream;
                 }
             }
+            return false;
+        }
+
+        boolean queueInput(byte[] data, int size, long presentationTimeUs) {
+            synchronized (mInputLock) {
+                if (!mInputOpen || !mConfig.isBufferInput())
+                    return false;
+                if (size < mConfig.getWidth() * mConfig.getHeight() * 3 / 2)
+                    throw new IllegalArgumentException("Frame of " + size + " bytes is short of "
+                            + mConfig.getWidth() + "x" + mConfig.getHeight() + " NV12");
+                int index = mCodec.dequeueInputBuffer(0);
+                if (index < 0)
+                    return false;
+                CodecInputImage image = mCodec.getInputImage(index);
+                if (image == null) {
+                    // Layout unknown: hand the buffer back empty rather than guess
+                    Log.e(TAG, "Codec offers no YUV input image, dropping frame");
+                    mCodec.queueInputBuffer(index, 0, 0, presentationTimeUs, 0);
+                    return false;
+                }
+                image.writeNv12(data, size);
+                mCodec.queueInputBuffer(index, 0, image.getSize(), presentationTimeUs, 0);
+                return true;
+            }
+        }
+
+        boolean requestSyncFrame() {
+            synchronized (mInputLock) {
+                if (!mInputOpen)
+                    return false;
+                mCodec.requestSyncFrame();
+                return true;
+            }
+        }
+
+        // The end of stream is an empty input buffer; queued once, frames after it are dropped
+        private void endInput() {
+            synchronized (mInputLock) {
+                if (!mInputOpen)
+                    return;
+                mInputOpen = false;
+                int index = mCodec.dequeueInputBuffer(mTimeoutUsec);
+                if (index >= 0)
+                    mCodec.queueInputBuffer(index, 0, 0, 0, SampleInfo.FLAG_END_OF_STREAM);
+                else
+                    Log.w(TAG, "No input buffer for the end of stream");
+            }
+        }
+
+        // Surface input keeps the camera timestamp, which shares the System.nanoTime() clock
+        // unless the sensor reports a realtime source; ignore samples that are clearly off
+        private void recordEncoderLatency(long capturePtsUs) {
+            long latencyUs = System.nanoTime() / 1000L - capturePtsUs;
+            if (latencyUs < 0 || latencyUs > MAX_PLAUSIBLE_LATENCY_US)
+                return;
+            if (latencyUs > mMaxEncoderLatencyUs.get())
+                mMaxEncoderLatencyUs.set(latencyUs);
+        }
+
+        boolean wantsThumbnail() {
+            RecordingIndexWriter writer = mIndexWriter;
+            long ptsUs = mLastSamplePtsUs;
+            return writer != null && ptsUs >= 0 && writer.wantsThumbnail(ptsUs);
+        }
+
+        void addThumbnail(byte[] jpeg, int offset, int length, int width, int height) {
+            RecordingIndexWriter writer = mIndexWriter;
+            long ptsUs = mLastSamplePtsUs;
+            if (writer == null || ptsUs < 0)
+                return;
+            try {
+                writer.addThumbnail(ptsUs, jpeg, offset, length, width, height);
+            } catch (IOException e) {
+                Log.e(TAG, "Thumbnail write failed", e);
+            }
+        }
+
+        private void indexSample(SampleInfo info) {
+            RecordingIndexWriter writer = mIndexWriter;
+            if (writer == null)
+                return;
+            try {
+                writer.addSample(info.presentationTimeUs, info.size, info.flags);
+                mLastSamplePtsUs = info.presentationTimeUs;
+            } catch (IOException e) {
+                Log.e(TAG, "Index write failed, dropping the sidecar", e);
+                mIndexWriter = null;
+            }
+        }
+
+        // Whichever way the session ended, on the thread that drained it
+        void end() {
+            try {
+                if (mPrepared)
+                    release();
+                else
+                    abandon();
+            } finally {
+                synchronized (mInputLock) {
+                    mExited = true;
+                    if (mRecycleExpected)
+                        mEncoderPool.recycleSettled();
+                }
+            }
+        }
+
+        // prepare() failed part way: nothing to finalise, and a codec that may not have
+        // started is not trusted back into the pool
+        void abandon() {
+            synchronized (mInputLock) {
+                mInputOpen = false;
+            }
+            if (mMediaMuxer != null)
+                mMediaMuxer.release();
+            RecordingIndexWriter indexWriter = mIndexWriter;
+            mIndexWriter = null;
+            if (indexWriter != null) {
+                try {
+                    indexWriter.close();
+                } catch (IOException e) {
+                    // Nothing was recorded
+                }
+            }
+            if (mCodec != null) {
+                if (mEncoderPool != null)
+                    mEncoderPool.discard(mCodec);
+                else
+                    mCodec.release();
+            }
+            if (mSurface != null)
+                mSurface.release();
         }
 
         void release() {
             if (mRecording) {
-                try {
-                    mMediaMuxer.stop();
-                } catch (Exception e) {
+                // Writing the moov box can take a while on long recordings
+                final MuxerBackend muxer = mMediaMuxer;
+                final RecordingIndexWriter indexWriter = mIndexWriter;
+                mIndexWriter = null;
+                mLastSamplePtsUs = -1;
+                Handler ioHandler = mScheduler != null ? mScheduler.getHandler(PipelineScheduler.Stage.MUXER_IO) : null;
+                Runnable finish = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            muxer.stop();
+                        } catch (Exception e) {
 
-                }
+                        }
+                        muxer.release();
+                        if (indexWriter != null) {
+                            try {
+                                indexWriter.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "Index finalisation failed", e);
+                            }
+                        }
+                    }
+                };
+                if (ioHandler == null || !ioHandler.post(finish))
+                    finish.run();
             }
 
             // notify about destroying surface first before actually destroying it
@@ -196,58 +835,78 @@ public class MediaEncoder {
             // simultaneously
             onSurfaceDestroyed(mSurface);
 
+            synchronized (mInputLock) {
+                mInputOpen = false;
+            }
             mCodec.stop();
-            mCodec.release();
-            mSurface.release();
+            if (mEncoderPool != null)
+                mEncoderPool.recycle(mCodec, mConfig);
+            else
+                mCodec.release();
+            if (mSurface != null)
+                mSurface.release();
         }
 
         void prepare() {
-            // configure video output
-            MediaFormat format = MediaFormat.createVideoFormat(VIDEO_FORMAT, mWidth, mHeight);
-            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-            format.setInteger(MediaFormat.KEY_BIT_RATE, VIDEO_BITRATE);
-            format.setInteger(MediaFormat.KEY_FRAME_RATE, VIDEO_FRAME_PER_SECOND);
-            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VIDEO_I_FRAME_INTERVAL);
+            CodecSelector.Selection selection = selectCodec();
+            mCodecSelection = selection;
+            onCodecSelected(selection);
+
+            EncoderConfig config = createEncoderConfig(selection);
+            if (mCaptureFps > 0) {
+                mHighSpeedTimestamper = new HighSpeedTimestamper(mCaptureFps, mPlaybackFps);
+                mTimeLapseTimestamper = null;
+            } else if (mTimeLapseIntervalMs > 0) {
+                mHighSpeedTimestamper = null;
+                mTimeLapseTimestamper = new TimeLapseTimestamper(mTimeLapseIntervalMs * 1000, mTimeLapsePlaybackFps);
+            } else {
+                mHighSpeedTimestamper = null;
+                mTimeLapseTimestamper = null;
+            }
+            mConfig = config;
 
             try {
                 if (mRecording)
-                    mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                mCodec = MediaCodec.createEncoderByType(VIDEO_FORMAT);
+                    mMediaMuxer = createMuxerBackend(new File(mOutputPath));
+                if (mRecording && mIndexThumbnailIntervalMs >= 0)
+                    openIndex();
+                if (mEncoderPool != null) {
+                    mCodec = mEncoderPool.acquire(config);
+                } else {
+                    mCodec = createEncoderBackend();
+                    mCodec.configure(config);
+                }
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             // create surface associated with code
-            mSurface = mCodec.createInputSurface();
+            if (!config.isBufferInput())
+                mSurface = mCodec.createInputSurface();
             // notify codec to start watch surface and encode samples
+            mStartNs = System.nanoTime();
             mCodec.start();
+            synchronized (mInputLock) {
+                mInputOpen = true;
+            }
 
             onSurfaceCreated(mSurface);
         }
 
-        private final File getCaptureFile(final String type, final String ext) {
-            final File dir = new File(Environment.getExternalStoragePublicDirectory(type), DIR_NAME);
-            Log.d(TAG, "path=" + dir.toString());
-            dir.mkdirs();
-            if (dir.canWrite()) {
-                return new File(dir, getDateTimeString() + ext);
+        private void openIndex() {
+            try {
+                mIndexWriter = new RecordingIndexWriter(new File(mOutputPath + INDEX_EXTENSION), mIndexThumbnailIntervalMs * 1000);
+            } catch (IOException e) {
+                Log.e(TAG, "Recording index unavailable", e);
             }
-            return null;
-        }
-
-        private final String getDateTimeString() {
-            final GregorianCalendar now = new GregorianCalendar();
-            return mDateTimeFormat.format(now.getTime());
         }
 
         private long prevOutputPTSUs = 0;
         protected long getPTSUs() {
             long result = System.nanoTime() / 1000L;
-            // presentationTimeUs should be monotonic
+            // presentationTimeUs should be strictly increasing
             // otherwise muxer fail to write
-            if (result < prevOutputPTSUs)
-                result = (prevOutputPTSUs - result) + result;
+            if (result <= prevOutputPTSUs)
+                result = prevOutputPTSUs + 1;
             return result;
         }
     }
@@ -4,6 +4,7 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
 import android.view.Surface;
@@ -18,8 +19,9 @@ public class MediaMuxerRecorder {
 
     private static final String TAG = "MediaMuxerRecorder";
     private static final String DIR_NAME = "CameraRecorder";
-    private static final String MIME_TYPE = "video/avc";
     private static final int FRAME_RATE = 15;
+    private static final int DEFAULT_I_FRAME_INTERVAL = 10;
+    // AVC bits per pixel; HEVC gets the codec-scaled equivalent from the bitrate model
     private static final float BPP = 0.50f;
 
     private final int mWidth = 1280;
@@ -32,6 +34,9 @@ public class MediaMuxerRecorder {
     private final MediaMuxer mMediaMuxer;
     private MediaCodec mMediaCodec;
     private Surface mSurface;
+    private CodecSelector.Preference mCodecPreference = CodecSelector.Preference.AVC;
+    private final BitrateModel mBitrateModel = new BitrateModel(BPP);
+    private int mIFrameInterval = DEFAULT_I_FRAME_INTERVAL;
 
     MediaMuxerRecorder() throws IOException {
         mOutputPath = getCaptureFile(Environment.DIRECTORY_MOVIES, ".mp4").toString();
@@ -39,14 +44,42 @@ public class MediaMuxerRecorder {
     }
 
     // Public Functions
+    public void setCodecPreference(CodecSelector.Preference preference) {
+        mCodecPreference = preference;
+    }
+
+    /**
+     * Seconds between periodic key frames; takes effect on {@link #prepare()}.
+     */
+    public void setKeyFrameInterval(int seconds) {
+        mIFrameInterval = seconds;
+    }
+
+    /**
+     * Makes the next encoded frame a key frame, e.g. on a scene change.
+     */
+    public void requestSyncFrame() {
+        if (mMediaCodec == null)
+            return;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mMediaCodec.setParameters(params);
+    }
+
     public void prepare() throws IOException {
-        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+        final CodecSelector.Selection selection = new CodecSelector(new MediaCodecListCatalog(), mCodecPreference)
+                .select(mWidth, mHeight, FRAME_RATE);
+        Log.i(TAG, "codec=" + selection);
+
+        final MediaFormat format = MediaFormat.createVideoFormat(selection.mimeType, mWidth, mHeight);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
+        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate(selection.mimeType));
         format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
 
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        mMediaCodec = selection.codecName != null
+                ? MediaCodec.createByCodecName(selection.codecName)
+                : MediaCodec.createEncoderByType(selection.mimeType);
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mSurface = mMediaCodec.createInputSurface();
         mMediaCodec.start();
@@ -88,8 +121,8 @@ public class MediaMuxerRecorder {
 
     // Internal Functions
 
-    private int calcBitRate() {
-        final int bitrate = (int)(BPP * FRAME_RATE * mWidth * mHeight);
+    private int calcBitRate(String mimeType) {
+        final int bitrate = mBitrateModel.getBitRate(mimeType, mWidth, mHeight, FRAME_RATE);
         Log.i(TAG, String.format("bitrate=%5.2f[Mbps]", bitrate / 1024f / 1024f));
         return bitrate;
     }
@@ -0,0 +1,22 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The slice of MediaMuxer that {@link MediaEncoder} uses. The real implementation is
+ * {@link MediaMuxerBackend}; soak runs plug in a sink that only counts what gets written.
+ */
+public interface MuxerBackend {
+
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info);
+
+    void stop();
+
+    void release();
+}
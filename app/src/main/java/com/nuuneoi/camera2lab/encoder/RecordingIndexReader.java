@@ -0,0 +1,176 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.nuuneoi.camera2lab.encoder.RecordingIndexWriter.*;
+
+/**
+ * Memory-mapped view of a sidecar written by {@link RecordingIndexWriter}. Sample, key frame
+ * and thumbnail lookups are constant time: records are fixed size, key frames go through the
+ * per-bucket table and thumbnails sit on a fixed interval grid.
+ */
+public class RecordingIndexReader {
+
+    private final MappedByteBuffer mMap;
+
+    private final int mSampleCount;
+    private final int mKeyFrameCount;
+    private final int mBucketCount;
+    private final int mThumbnailCount;
+    private final long mFirstPtsUs;
+    private final long mBucketUs;
+    private final long mThumbnailIntervalUs;
+    private final int mKeyFramesOffset;
+    private final int mBucketsOffset;
+    private final int mThumbnailsOffset;
+
+    public RecordingIndexReader(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE)
+                throw new IOException("Not a recording index: " + file);
+            // The mapping stays valid after the channel is closed
+            mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+
+        if (mMap.getInt(H_MAGIC) != MAGIC || mMap.getInt(H_VERSION) != VERSION)
+            throw new IOException("Not a recording index: " + file);
+        if (mMap.getInt(H_FINISHED) == 0)
+            throw new IOException("Recording index was not finished: " + file);
+
+        mSampleCount = mMap.getInt(H_SAMPLE_COUNT);
+        mKeyFrameCount = mMap.getInt(H_KEY_FRAME_COUNT);
+        mBucketCount = mMap.getInt(H_BUCKET_COUNT);
+        mThumbnailCount = mMap.getInt(H_THUMBNAIL_COUNT);
+        mFirstPtsUs = mMap.getLong(H_FIRST_PTS);
+        mBucketUs = mMap.getLong(H_BUCKET_US);
+        mThumbnailIntervalUs = mMap.getLong(H_THUMBNAIL_INTERVAL_US);
+        mKeyFramesOffset = (int) mMap.getLong(H_KEY_FRAMES_OFFSET);
+        mBucketsOffset = (int) mMap.getLong(H_BUCKETS_OFFSET);
+        mThumbnailsOffset = (int) mMap.getLong(H_THUMBNAILS_OFFSET);
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public long getPresentationTimeUs(int sample) {
+        return mMap.getLong(sampleOffset(sample));
+    }
+
+    public int getSampleSize(int sample) {
+        return mMap.getInt(sampleOffset(sample) + 8);
+    }
+
+    public int getSampleFlags(int sample) {
+        return mMap.getInt(sampleOffset(sample) + 12);
+    }
+
+    public boolean isKeyFrame(int sample) {
+        return (getSampleFlags(sample) & SampleInfo.FLAG_KEY_FRAME) != 0;
+    }
+
+    public long getDurationUs() {
+        return mSampleCount > 0 ? getPresentationTimeUs(mSampleCount - 1) - mFirstPtsUs : 0;
+    }
+
+    public int getKeyFrameCount() {
+        return mKeyFrameCount;
+    }
+
+    /**
+     * Sample index of the {@code ordinal}-th key frame.
+     */
+    public int getKeyFrame(int ordinal) {
+        if (ordinal < 0 || ordinal >= mKeyFrameCount)
+            throw new IndexOutOfBoundsException("Key frame " + ordinal + " of " + mKeyFrameCount);
+        return mMap.getInt(mKeyFramesOffset + ordinal * 4);
+    }
+
+    /**
+     * Sample index of the last key frame at or before {@code timeUs}, where decoding has to
+     * start to show that time; -1 when there is none.
+     */
+    public int findKeyFrame(long timeUs) {
+        if (mBucketCount == 0 || timeUs < mFirstPtsUs)
+            return -1;
+
+        long bucket = Math.min((timeUs - mFirstPtsUs) / mBucketUs, mBucketCount - 1);
+        int ordinal = mMap.getInt(mBucketsOffset + (int) bucket * 4);
+        // At most the key frames that fall inside one bucket
+        while (ordinal + 1 < mKeyFrameCount && getPresentationTimeUs(getKeyFrame(ordinal + 1)) <= timeUs)
+            ordinal++;
+        return ordinal >= 0 ? getKeyFrame(ordinal) : -1;
+    }
+
+    public int getThumbnailCount() {
+        return mThumbnailCount;
+    }
+
+    public long getThumbnailTimeUs(int thumbnail) {
+        return mMap.getLong(thumbnailOffset(thumbnail));
+    }
+
+    public int getThumbnailWidth(int thumbnail) {
+        return mMap.getShort(thumbnailOffset(thumbnail) + 20) & 0xffff;
+    }
+
+    public int getThumbnailHeight(int thumbnail) {
+        return mMap.getShort(thumbnailOffset(thumbnail) + 22) & 0xffff;
+    }
+
+    /**
+     * The JPEG data of a thumbnail, as a read-only view of the mapping.
+     */
+    public ByteBuffer getThumbnail(int thumbnail) {
+        int record = thumbnailOffset(thumbnail);
+        int offset = (int) mMap.getLong(record + 8);
+        int length = mMap.getInt(record + 16);
+        ByteBuffer view = mMap.asReadOnlyBuffer();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    /**
+     * Index of the last thumbnail at or before {@code timeUs}, the first one before the strip
+     * starts, or -1 without thumbnails.
+     */
+    public int findThumbnail(long timeUs) {
+        if (mThumbnailCount == 0)
+            return -1;
+
+        long first = getThumbnailTimeUs(0);
+        int index = 0;
+        if (timeUs > first && mThumbnailIntervalUs > 0)
+            index = (int) Math.min((timeUs - first) / mThumbnailIntervalUs, mThumbnailCount - 1);
+        // Thumbnails missed while the analysis stream was busy shift the grid slightly
+        while (index > 0 && getThumbnailTimeUs(index) > timeUs)
+            index--;
+        while (index + 1 < mThumbnailCount && getThumbnailTimeUs(index + 1) <= timeUs)
+            index++;
+        return index;
+    }
+
+    // Internal
+
+    private int sampleOffset(int sample) {
+        if (sample < 0 || sample >= mSampleCount)
+            throw new IndexOutOfBoundsException("Sample " + sample + " of " + mSampleCount);
+        return HEADER_SIZE + sample * SAMPLE_RECORD_SIZE;
+    }
+
+    private int thumbnailOffset(int thumbnail) {
+        if (thumbnail < 0 || thumbnail >= mThumbnailCount)
+            throw new IndexOutOfBoundsException("Thumbnail " + thumbnail + " of " + mThumbnailCount);
+        return mThumbnailsOffset + thumbnail * THUMBNAIL_RECORD_SIZE;
+    }
+}
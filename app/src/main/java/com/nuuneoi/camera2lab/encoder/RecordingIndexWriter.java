@@ -0,0 +1,302 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import com.nuuneoi.camera2lab.memory.MemoryBudget;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes the index sidecar of a recording while it is muxed: one fixed size record per sample
+ * (presentation time, size, flags), the key frames with a per-second lookup table, and a strip
+ * of small JPEG thumbnails. {@link RecordingIndexReader} maps the result and answers seeks
+ * without touching the MP4.
+ *
+ * Layout, big endian:
+ * <pre>
+ * header       HEADER_SIZE bytes, rewritten by close()
+ * samples      sampleCount x (long ptsUs, int size, int flags)
+ * key frames   keyFrameCount x int sample index
+ * buckets      bucketCount x int key frame ordinal, -1 before the first key frame
+ * thumbnails   thumbnailCount x (long ptsUs, long offset, int length, short width, short height)
+ * jpeg data
+ * </pre>
+ *
+ * Sample records stream straight to the file. Thumbnails arrive from another thread and are
+ * spooled to a temporary file until close() appends them. The sample buffer is accounted in
+ * the global {@link MemoryBudget} while the writer is open.
+ */
+public class RecordingIndexWriter {
+
+    static final int MAGIC = 0x43324c49; // "C2LI"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 96;
+    static final int SAMPLE_RECORD_SIZE = 16;
+    static final int THUMBNAIL_RECORD_SIZE = 24;
+
+    // Header field offsets
+    static final int H_MAGIC = 0;
+    static final int H_VERSION = 4;
+    static final int H_FINISHED = 8;
+    static final int H_SAMPLE_COUNT = 12;
+    static final int H_KEY_FRAME_COUNT = 16;
+    static final int H_BUCKET_COUNT = 20;
+    static final int H_THUMBNAIL_COUNT = 24;
+    static final int H_FIRST_PTS = 32;
+    static final int H_BUCKET_US = 40;
+    static final int H_THUMBNAIL_INTERVAL_US = 48;
+    static final int H_KEY_FRAMES_OFFSET = 56;
+    static final int H_BUCKETS_OFFSET = 64;
+    static final int H_THUMBNAILS_OFFSET = 72;
+
+    public static final long DEFAULT_BUCKET_US = 1000000L;
+
+    private static final int SAMPLE_BUFFER_RECORDS = 4096;
+
+    private final File mFile;
+    private final File mThumbnailSpool;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final ByteBuffer mSampleBuffer = ByteBuffer.allocateDirect(SAMPLE_BUFFER_RECORDS * SAMPLE_RECORD_SIZE);
+    private final long mBucketUs;
+    private final long mThumbnailIntervalUs;
+    private final MemoryBudget.Pool mBufferPool;
+
+    private int mSampleCount;
+    private long mFirstPtsUs = -1;
+    private long mLastPtsUs;
+
+    private int[] mKeyFrameSamples = new int[64];
+    private long[] mKeyFramePtsUs = new long[64];
+    private int mKeyFrameCount;
+
+    // Thumbnail spool and table, guarded by mThumbnailLock
+    private final Object mThumbnailLock = new Object();
+    private RandomAccessFile mSpool;
+    private long mSpoolSize;
+    private long[] mThumbnailPtsUs = new long[64];
+    private long[] mThumbnailOffsets = new long[64];
+    private int[] mThumbnailLengths = new int[64];
+    private int[] mThumbnailSizes = new int[64];
+    private int mThumbnailCount;
+    private long mNextThumbnailUs = Long.MIN_VALUE;
+
+    private boolean mClosed;
+
+    private long mHeaderKeyFramesOffset;
+    private long mHeaderBucketsOffset;
+    private long mHeaderThumbnailsOffset;
+
+    /**
+     * @param thumbnailIntervalUs time between thumbnails, 0 for none
+     */
+    public RecordingIndexWriter(File file, long thumbnailIntervalUs) throws IOException {
+        this(file, thumbnailIntervalUs, DEFAULT_BUCKET_US);
+    }
+
+    public RecordingIndexWriter(File file, long thumbnailIntervalUs, long bucketUs) throws IOException {
+        if (bucketUs <= 0)
+            throw new IllegalArgumentException("Bucket must be positive: " + bucketUs);
+
+        mFile = file;
+        mThumbnailSpool = new File(file.getPath() + ".thumbs");
+        mThumbnailIntervalUs = thumbnailIntervalUs;
+        mBucketUs = bucketUs;
+        mRaf = new RandomAccessFile(file, "rw");
+        mRaf.setLength(0);
+        mChannel = mRaf.getChannel();
+        // An unfinished header until close(), so a crashed recording is not mistaken for a complete one
+        writeHeader(false, 0, 0, 0, 0);
+        mChannel.position(HEADER_SIZE);
+
+        mBufferPool = MemoryBudget.global().register("Recording index", MemoryBudget.Kind.DIRECT,
+                MemoryBudget.PRIORITY_REQUIRED, null);
+        mBufferPool.reserve(mSampleBuffer.capacity());
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public synchronized int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Appends one sample in muxing order. Codec config and end of stream buffers are skipped.
+     */
+    public synchronized void addSample(long presentationTimeUs, int size, int flags) throws IOException {
+        if (mClosed || (flags & (SampleInfo.FLAG_CODEC_CONFIG | SampleInfo.FLAG_END_OF_STREAM)) != 0)
+            return;
+
+        if (mFirstPtsUs < 0)
+            mFirstPtsUs = presentationTimeUs;
+        mLastPtsUs = presentationTimeUs;
+        if ((flags & SampleInfo.FLAG_KEY_FRAME) != 0) {
+            if (mKeyFrameCount == mKeyFrameSamples.length) {
+                mKeyFrameSamples = Arrays.copyOf(mKeyFrameSamples, mKeyFrameCount * 2);
+                mKeyFramePtsUs = Arrays.copyOf(mKeyFramePtsUs, mKeyFrameCount * 2);
+            }
+            mKeyFrameSamples[mKeyFrameCount] = mSampleCount;
+            mKeyFramePtsUs[mKeyFrameCount] = presentationTimeUs;
+            mKeyFrameCount++;
+        }
+
+        mSampleBuffer.putLong(presentationTimeUs).putInt(size).putInt(flags);
+        mSampleCount++;
+        if (!mSampleBuffer.hasRemaining())
+            flushSamples();
+    }
+
+    /**
+     * True when a thumbnail at {@code presentationTimeUs} is due. Lets the caller skip scaling
+     * and compressing frames that would be thrown away.
+     */
+    public boolean wantsThumbnail(long presentationTimeUs) {
+        synchronized (mThumbnailLock) {
+            return mThumbnailIntervalUs > 0 && !mClosed && presentationTimeUs >= mNextThumbnailUs;
+        }
+    }
+
+    /**
+     * Adds a JPEG thumbnail if one is due at {@code presentationTimeUs}; may be called from any
+     * thread. Returns whether it was kept.
+     */
+    public boolean addThumbnail(long presentationTimeUs, byte[] jpeg, int offset, int length, int width, int height) throws IOException {
+        synchronized (mThumbnailLock) {
+            if (!wantsThumbnail(presentationTimeUs))
+                return false;
+
+            if (mSpool == null) {
+                mSpool = new RandomAccessFile(mThumbnailSpool, "rw");
+                mSpool.setLength(0);
+            }
+            mSpool.write(jpeg, offset, length);
+
+            if (mThumbnailCount == mThumbnailPtsUs.length) {
+                int capacity = mThumbnailCount * 2;
+                mThumbnailPtsUs = Arrays.copyOf(mThumbnailPtsUs, capacity);
+                mThumbnailOffsets = Arrays.copyOf(mThumbnailOffsets, capacity);
+                mThumbnailLengths = Arrays.copyOf(mThumbnailLengths, capacity);
+                mThumbnailSizes = Arrays.copyOf(mThumbnailSizes, capacity);
+            }
+            mThumbnailPtsUs[mThumbnailCount] = presentationTimeUs;
+            mThumbnailOffsets[mThumbnailCount] = mSpoolSize;
+            mThumbnailLengths[mThumbnailCount] = length;
+            mThumbnailSizes[mThumbnailCount] = (width << 16) | (height & 0xffff);
+            mThumbnailCount++;
+            mSpoolSize += length;
+
+            // On the grid of the first thumbnail, skipping slots that were missed
+            if (mNextThumbnailUs == Long.MIN_VALUE)
+                mNextThumbnailUs = presentationTimeUs;
+            while (mNextThumbnailUs <= presentationTimeUs)
+                mNextThumbnailUs += mThumbnailIntervalUs;
+            return true;
+        }
+    }
+
+    /**
+     * Writes the tables and the final header. The file is only readable after this.
+     */
+    public synchronized void close() throws IOException {
+        synchronized (mThumbnailLock) {
+            if (mClosed)
+                return;
+            mClosed = true;
+        }
+
+        try {
+            flushSamples();
+
+            long keyFramesOffset = mChannel.position();
+            ByteBuffer table = ByteBuffer.allocate(mKeyFrameCount * 4);
+            for (int i = 0; i < mKeyFrameCount; i++)
+                table.putInt(mKeyFrameSamples[i]);
+            table.flip();
+            writeFully(table);
+
+            long bucketsOffset = mChannel.position();
+            int bucketCount = mSampleCount > 0 ? (int) ((mLastPtsUs - mFirstPtsUs) / mBucketUs) + 1 : 0;
+            table = ByteBuffer.allocate(bucketCount * 4);
+            int ordinal = -1;
+            for (int bucket = 0; bucket < bucketCount; bucket++) {
+                long bucketStartUs = mFirstPtsUs + bucket * mBucketUs;
+                while (ordinal + 1 < mKeyFrameCount && mKeyFramePtsUs[ordinal + 1] <= bucketStartUs)
+                    ordinal++;
+                table.putInt(ordinal);
+            }
+            table.flip();
+            writeFully(table);
+
+            long thumbnailsOffset = mChannel.position();
+            long dataOffset = thumbnailsOffset + (long) mThumbnailCount * THUMBNAIL_RECORD_SIZE;
+            table = ByteBuffer.allocate(mThumbnailCount * THUMBNAIL_RECORD_SIZE);
+            for (int i = 0; i < mThumbnailCount; i++) {
+                table.putLong(mThumbnailPtsUs[i]);
+                table.putLong(dataOffset + mThumbnailOffsets[i]);
+                table.putInt(mThumbnailLengths[i]);
+                table.putShort((short) (mThumbnailSizes[i] >>> 16));
+                table.putShort((short) mThumbnailSizes[i]);
+            }
+            table.flip();
+            writeFully(table);
+            if (mSpool != null) {
+                FileChannel spool = mSpool.getChannel();
+                long position = 0;
+                while (position < mSpoolSize)
+                    position += spool.transferTo(position, mSpoolSize - position, mChannel);
+                mChannel.position(dataOffset + mSpoolSize);
+            }
+
+            mHeaderKeyFramesOffset = keyFramesOffset;
+            mHeaderBucketsOffset = bucketsOffset;
+            mHeaderThumbnailsOffset = thumbnailsOffset;
+            writeHeader(true, mSampleCount, mKeyFrameCount, bucketCount, mThumbnailCount);
+            mChannel.force(false);
+        } finally {
+            mBufferPool.unregister();
+            mRaf.close();
+            if (mSpool != null) {
+                mSpool.close();
+                mThumbnailSpool.delete();
+            }
+        }
+    }
+
+    // Internal
+
+    private void flushSamples() throws IOException {
+        mSampleBuffer.flip();
+        writeFully(mSampleBuffer);
+        mSampleBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            mChannel.write(buffer);
+    }
+
+    private void writeHeader(boolean finished, int sampleCount, int keyFrameCount, int bucketCount, int thumbnailCount) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(H_MAGIC, MAGIC);
+        header.putInt(H_VERSION, VERSION);
+        header.putInt(H_FINISHED, finished ? 1 : 0);
+        header.putInt(H_SAMPLE_COUNT, sampleCount);
+        header.putInt(H_KEY_FRAME_COUNT, keyFrameCount);
+        header.putInt(H_BUCKET_COUNT, bucketCount);
+        header.putInt(H_THUMBNAIL_COUNT, thumbnailCount);
+        header.putLong(H_FIRST_PTS, mFirstPtsUs);
+        header.putLong(H_BUCKET_US, mBucketUs);
+        header.putLong(H_THUMBNAIL_INTERVAL_US, mThumbnailIntervalUs);
+        header.putLong(H_KEY_FRAMES_OFFSET, mHeaderKeyFramesOffset);
+        header.putLong(H_BUCKETS_OFFSET, mHeaderBucketsOffset);
+        header.putLong(H_THUMBNAILS_OFFSET, mHeaderThumbnailsOffset);
+        int written = 0;
+        while (written < HEADER_SIZE)
+            written += mChannel.write(header, written);
+    }
+}
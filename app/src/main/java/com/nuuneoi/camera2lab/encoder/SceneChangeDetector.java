@@ -0,0 +1,218 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Spots cuts and sudden lighting changes in a luma stream, so the encoder can be asked for a
+ * key frame exactly there instead of relying on a short fixed GOP.
+ *
+ * Every frame is reduced, on a subsampled pixel grid, to a luma histogram and a grid of block
+ * means, and compared with the previous frame. A scene change needs both: the histogram
+ * distance (half the L1 distance of the normalised histograms, 0 to 1) above the threshold,
+ * which pans and moving objects rarely reach, and the mean block difference above its own
+ * floor, which keeps noise and flicker out. Changes closer than the minimum spacing to the
+ * previous one are suppressed, so a flash or a strobe cannot flood the stream with key frames.
+ *
+ * Allocation free once constructed. Not thread safe: feed it from one thread.
+ */
+public class SceneChangeDetector {
+
+    public static final float DEFAULT_HISTOGRAM_THRESHOLD = 0.3f;
+    public static final float DEFAULT_MIN_BLOCK_DIFFERENCE = 0.05f;
+    public static final long DEFAULT_MIN_SPACING_US = 1000 * 1000;
+    public static final int DEFAULT_SUBSAMPLE = 4;
+
+    private static final int BINS = 32;
+    private static final int BIN_SHIFT = 3;
+    private static final int GRID = 8;
+
+    // Current and previous frame, swapped after each one
+    private int[] mHistogram = new int[BINS];
+    private int[] mPreviousHistogram = new int[BINS];
+    private long[] mBlockSums = new long[GRID * GRID];
+    private long[] mPreviousBlockSums = new long[GRID * GRID];
+    private int[] mBlockCounts = new int[GRID * GRID];
+    private int[] mPreviousBlockCounts = new int[GRID * GRID];
+    private int mSamples;
+    private int mPreviousSamples;
+    private boolean mHasPrevious;
+
+    private float mHistogramThreshold = DEFAULT_HISTOGRAM_THRESHOLD;
+    private float mMinBlockDifference = DEFAULT_MIN_BLOCK_DIFFERENCE;
+    private long mMinSpacingUs = DEFAULT_MIN_SPACING_US;
+    private int mSubsample = DEFAULT_SUBSAMPLE;
+
+    private long mLastChangeUs;
+    private boolean mHasChange;
+    private float mLastHistogramDistance;
+    private float mLastBlockDifference;
+
+    private long mFrameCount;
+    private long mChangeCount;
+    private long mSuppressedCount;
+
+    public SceneChangeDetector setHistogramThreshold(float threshold) {
+        mHistogramThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Mean absolute difference of the block means, as a fraction of the luma range, below
+     * which a frame is never a scene change.
+     */
+    public SceneChangeDetector setMinBlockDifference(float difference) {
+        mMinBlockDifference = difference;
+        return this;
+    }
+
+    public SceneChangeDetector setMinSpacingUs(long spacingUs) {
+        mMinSpacingUs = spacingUs;
+        return this;
+    }
+
+    /**
+     * Looks at every {@code step}-th pixel of every {@code step}-th row.
+     */
+    public SceneChangeDetector setSubsample(int step) {
+        if (step < 1)
+            throw new IllegalArgumentException("Subsample step must be positive: " + step);
+        mSubsample = step;
+        return this;
+    }
+
+    /**
+     * @param luma the Y plane, tightly packed or with {@code rowStride} bytes per row
+     * @return true when this frame starts a new scene and should be a key frame
+     */
+    public boolean process(byte[] luma, int offset, int width, int height, int rowStride, long timestampUs) {
+        beginFrame();
+        int step = mSubsample;
+        for (int y = 0; y < height; y += step) {
+            int row = offset + y * rowStride;
+            int blockRow = y * GRID / height * GRID;
+            for (int x = 0; x < width; x += step)
+                accumulate(luma[row + x] & 0xff, blockRow + x * GRID / width);
+        }
+        return endFrame(timestampUs);
+    }
+
+    /**
+     * Same as {@link #process(byte[], int, int, int, int, long)} for an Image plane, read with
+     * absolute gets so the buffer position is left alone.
+     */
+    public boolean process(ByteBuffer luma, int width, int height, int rowStride, int pixelStride, long timestampUs) {
+        beginFrame();
+        int step = mSubsample;
+        for (int y = 0; y < height; y += step) {
+            int row = y * rowStride;
+            int blockRow = y * GRID / height * GRID;
+            for (int x = 0; x < width; x += step)
+                accumulate(luma.get(row + x * pixelStride) & 0xff, blockRow + x * GRID / width);
+        }
+        return endFrame(timestampUs);
+    }
+
+    /**
+     * Forgets the previous frame and the last change, e.g. when the stream restarts.
+     */
+    public void reset() {
+        mHasPrevious = false;
+        mHasChange = false;
+    }
+
+    public float getLastHistogramDistance() {
+        return mLastHistogramDistance;
+    }
+
+    public float getLastBlockDifference() {
+        return mLastBlockDifference;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getChangeCount() {
+        return mChangeCount;
+    }
+
+    /**
+     * Changes dropped because they came within the minimum spacing of the previous one.
+     */
+    public long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "Scene changes: " + mChangeCount + " in " + mFrameCount + " frames, " + mSuppressedCount + " suppressed";
+    }
+
+    // Internal
+
+    private void beginFrame() {
+        int[] histogram = mPreviousHistogram;
+        mPreviousHistogram = mHistogram;
+        mHistogram = histogram;
+        long[] sums = mPreviousBlockSums;
+        mPreviousBlockSums = mBlockSums;
+        mBlockSums = sums;
+        int[] counts = mPreviousBlockCounts;
+        mPreviousBlockCounts = mBlockCounts;
+        mBlockCounts = counts;
+        mPreviousSamples = mSamples;
+
+        for (int i = 0; i < BINS; i++)
+            mHistogram[i] = 0;
+        for (int i = 0; i < GRID * GRID; i++) {
+            mBlockSums[i] = 0;
+            mBlockCounts[i] = 0;
+        }
+        mSamples = 0;
+    }
+
+    private void accumulate(int value, int block) {
+        mHistogram[value >> BIN_SHIFT]++;
+        mBlockSums[block] += value;
+        mBlockCounts[block]++;
+        mSamples++;
+    }
+
+    private boolean endFrame(long timestampUs) {
+        mFrameCount++;
+        if (!mHasPrevious || mSamples == 0 || mPreviousSamples == 0) {
+            mHasPrevious = mSamples > 0;
+            mLastHistogramDistance = 0;
+            mLastBlockDifference = 0;
+            return false;
+        }
+
+        // Normalised per frame so a different sample count does not count as a change
+        double distance = 0;
+        for (int i = 0; i < BINS; i++)
+            distance += Math.abs((double) mHistogram[i] / mSamples - (double) mPreviousHistogram[i] / mPreviousSamples);
+        mLastHistogramDistance = (float) (distance / 2);
+
+        double difference = 0;
+        int blocks = 0;
+        for (int i = 0; i < GRID * GRID; i++) {
+            if (mBlockCounts[i] == 0 || mPreviousBlockCounts[i] == 0)
+                continue;
+            difference += Math.abs((double) mBlockSums[i] / mBlockCounts[i]
+                    - (double) mPreviousBlockSums[i] / mPreviousBlockCounts[i]);
+            blocks++;
+        }
+        mLastBlockDifference = blocks > 0 ? (float) (difference / blocks / 255) : 0;
+
+        if (mLastHistogramDistance < mHistogramThreshold || mLastBlockDifference < mMinBlockDifference)
+            return false;
+        if (mHasChange && timestampUs - mLastChangeUs < mMinSpacingUs) {
+            mSuppressedCount++;
+            return false;
+        }
+        mHasChange = true;
+        mLastChangeUs = timestampUs;
+        mChangeCount++;
+        return true;
+    }
+}
@@ -0,0 +1,71 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import java.util.Locale;
+
+/**
+ * Presentation timestamps for time-lapse recording. Only one frame every capture interval
+ * reaches the encoder, so the capture timestamps are replaced by a synthetic timeline in which
+ * frame n plays at n / playbackFps seconds.
+ *
+ * Also measures the interval that was actually achieved, since single capture requests can be
+ * delayed by 3A or a busy capture thread.
+ */
+public class TimeLapseTimestamper {
+
+    private final long mCaptureIntervalUs;
+    private final int mPlaybackFps;
+
+    private long mFirstCaptureUs = -1;
+    private long mLastCaptureUs;
+    private long mFrames;
+
+    public TimeLapseTimestamper(long captureIntervalUs, int playbackFps) {
+        if (captureIntervalUs <= 0 || playbackFps <= 0)
+            throw new IllegalArgumentException("Invalid time-lapse " + captureIntervalUs + "us/" + playbackFps + "fps");
+
+        mCaptureIntervalUs = captureIntervalUs;
+        mPlaybackFps = playbackFps;
+    }
+
+    public long getCaptureIntervalUs() {
+        return mCaptureIntervalUs;
+    }
+
+    public int getPlaybackFps() {
+        return mPlaybackFps;
+    }
+
+    /**
+     * How many times faster than real time the recording plays back.
+     */
+    public double getSpeedup() {
+        return mCaptureIntervalUs * mPlaybackFps / 1e6;
+    }
+
+    /**
+     * @param captureUs capture timestamp of the sample in microseconds
+     * @return presentation timestamp of the next frame on the playback timeline
+     */
+    public long toPresentationTimeUs(long captureUs) {
+        if (mFirstCaptureUs < 0)
+            mFirstCaptureUs = captureUs;
+        mLastCaptureUs = Math.max(mLastCaptureUs, captureUs);
+        return mFrames++ * 1000000L / mPlaybackFps;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getAchievedIntervalUs() {
+        if (mFrames < 2)
+            return 0;
+        return (mLastCaptureUs - mFirstCaptureUs) / (mFrames - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "interval=%dms achieved=%dms frames=%d playback=%dfps speedup=%.0fx",
+                mCaptureIntervalUs / 1000, getAchievedIntervalUs() / 1000, mFrames, mPlaybackFps, getSpeedup());
+    }
+}
@@ -4,41 +4,82 @@ import android.Manifest;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
+import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.OutputConfiguration;
+import android.hardware.camera2.params.SessionConfiguration;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.Build;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.WindowManager;
-import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresPermission;
 
 import com.nuuneoi.camera2lab.MainActivity;
+import com.nuuneoi.camera2lab.encoder.CodecSelector;
+import com.nuuneoi.camera2lab.encoder.EncoderBackend;
+import com.nuuneoi.camera2lab.encoder.EncoderPool;
+import com.nuuneoi.camera2lab.encoder.HighSpeedTimestamper;
+import com.nuuneoi.camera2lab.encoder.MediaCodecEncoderBackend;
 import com.nuuneoi.camera2lab.encoder.MediaEncoder;
-
+import com.nuuneoi.camera2lab.encoder.SceneChangeDetector;
+import com.nuuneoi.camera2lab.encoder.TimeLapseTimestamper;
+import com.nuuneoi.camera2lab.memory.MemoryBudget;
+import com.nuuneoi.camera2lab.metadata.CaptureMetadataJournal;
+import com.nuuneoi.camera2lab.pipeline.PipelineScheduler;
+import com.nuuneoi.camera2lab.pipeline.SampleSink;
+import com.nuuneoi.camera2lab.trace.EventTracer;
+import com.nuuneoi.camera2lab.utils.BitmapUtils;
+import com.nuuneoi.camera2lab.utils.TemporalDenoiser;
+import com.nuuneoi.camera2lab.utils.YuvTransformer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener {
     private final String TAG = "Camera2ApiManager";
 
     private Context mContext;
 
+    private static final EventTracer sTracer = EventTracer.global();
+    private static final int EV_CAMERA_OPEN = EventTracer.define("camera.open");
+    private static final int EV_CAPTURE_COMPLETED = EventTracer.define("capture.completed");
+    private static final int EV_DENOISE = EventTracer.define("frame.denoise");
+
+    private static final String METADATA_EXTENSION = ".meta";
+
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
 
     static {
@@ -48,19 +89,42 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
         ORIENTATIONS.append(Surface.ROTATION_270, 180);
     }
 
-    private CameraManager mCameraManager;
+    private CameraBackend mCameraBackend;
     private TextureView mPreviewTextureView;
     private CameraDevice mCameraDevice;
     private CaptureRequest.Builder mCaptureRequestBuilder;
-    private CameraCaptureSession mCameraCaptureSessions;
+    private volatile CameraCaptureSession mCameraCaptureSessions;
     private ImageReader mImageReader;
 
+    private final PipelineScheduler mScheduler = new PipelineScheduler();
     private Handler mBackgroundHandler;
-    private HandlerThread mBackgroundThread;
+    private Handler mAnalysisHandler;
+    private Handler mFrameProcessingHandler;
 
-    private boolean isCameraStarted;
+    // The device, the session and mOpenRequested are only touched on the capture thread: opens
+    // and closes are posted there, so a close cannot land between onOpened's checks and the
+    // device being stored
+    private boolean mOpenRequested;
+    // Bumped on every open and close, so that a device opened for an older attempt is dropped
+    private final AtomicInteger mOpenGeneration = new AtomicInteger();
+
+    private final CameraStateMachine mStateMachine = new CameraStateMachine(new CameraStateMachine.Clock() {
+        @Override
+        public long nowMs() {
+            return SystemClock.elapsedRealtime();
+        }
+    });
 
     private final int FPS_TIMESTAMP_INTERVAL_MS = 1000;
+    private final int GOVERNOR_WINDOW_MS = 1000;
+    private static final int DENOISE_MAX_BANDS = 4;
+
+    private static final String OUTPUT_ENCODER = "encoder";
+    private static final String OUTPUT_PREVIEW = "preview";
+    private static final String OUTPUT_ANALYSIS = "analysis";
+    private static final String OUTPUT_SNAPSHOT = "snapshot";
+
+    private static final int SNAPSHOT_JPEG_QUALITY = 95;
 
     private ArrayList<Long> mFpsTimestampCounter = new ArrayList<>();
 
@@ -68,17 +132,109 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
     private int mPreviewHeight = 720;
     private int mImageReaderImageFormat = ImageFormat.YUV_420_888;
 
+    // Sizes actually configured, as negotiated against the selected camera
+    private int mStreamWidth = 1280;
+    private int mStreamHeight = 720;
+    private int mPreviewStreamWidth = 1280;
+    private int mPreviewStreamHeight = 720;
+    private int mAnalysisWidth = 1280;
+    private int mAnalysisHeight = 720;
+
+    private String mCameraId;
+    private CameraCharacteristics mCameraCharacteristics;
+    private StreamConfigNegotiator.Result mStreamConfig;
+
+    // Constrained high speed mode, 0 when off
+    private int mHighSpeedFps;
+    private int mHighSpeedPlaybackFps;
+    private boolean mHighSpeedActive;
+    private HighSpeedRequestBatcher<CaptureRequest> mHighSpeedBatcher;
+
+    // Time-lapse mode, 0 when off
+    private long mTimeLapseIntervalMs;
+    private int mTimeLapsePlaybackFps;
+    private boolean mTimeLapseActive;
+    private Range<Integer> mTimeLapseFpsRange;
+    private CaptureRequest mTimeLapseRequest;
+    private long mNextTimeLapseCaptureMs;
+    private volatile long mTimeLapseSkippedCaptures;
+
+    // Temporal denoise: the camera fills a YUV reader instead of the codec surface, frames are
+    // denoised on FRAME_PROCESSING plus helper threads and queued to a buffer-input encoder
+    private boolean mTemporalDenoise;
+    private boolean mDenoiseActive;
+    private ImageReader mRecordReader;
+    private volatile TemporalDenoiser mDenoiser;
+    private byte[] mDenoiseFrame;
+    private byte[] mDenoiseRow;
+    private ThreadPoolExecutor mDenoiseExecutor;
+    private final MemoryBudget.Pool mDenoisePool;
+    private volatile long mDenoiseDroppedFrames;
+
+    // Key frames on scene changes. The detector runs on the record frames when denoising and on
+    // the analysis frames otherwise, one thread at a time either way
+    private boolean mSceneChangeKeyFrames;
+    private int mSceneChangeKeyFrameIntervalSec;
+    private final SceneChangeDetector mSceneChangeDetector = new SceneChangeDetector();
+
+    // Video snapshots: a full-resolution still output captured on demand in between the
+    // repeating requests. Format 0 when the session has none
+    private boolean mVideoSnapshot;
+    private volatile int mSnapshotFormat;
+    private int mSnapshotWidth;
+    private int mSnapshotHeight;
+    private ImageReader mSnapshotReader;
+    private volatile CaptureRequest.Builder mSnapshotRequestBuilder;
+    private volatile File mSnapshotFile;
+    // Frame rate range of the repeating request as last submitted; the request builder itself
+    // belongs to the capture thread
+    private volatile Range<Integer> mRepeatingFpsRange;
+    private final Object mSnapshotTag = new Object();
+    private final VideoSnapshotMonitor mSnapshotMonitor = new VideoSnapshotMonitor();
+
     private ImageReader.OnImageAvailableListener mImageAvailableListener;
     private Surface mMediaCodecSurface;
 
-    private MediaEncoder mMediaEncoder;
+    private volatile MediaEncoder mMediaEncoder;
+
+    // Every frame's CaptureResult essentials, written next to recordings when persisting
+    private final CaptureMetadataJournal mMetadataJournal = new CaptureMetadataJournal(CaptureMetadataJournal.DEFAULT_CAPACITY);
+    private final MemoryBudget.Pool mMetadataPool;
+    private boolean mPersistCaptureMetadata;
+    // Keeps one codec across preview/recording switches: the stopped session's codec is the
+    // one the next session gets
+    private final EncoderPool mEncoderPool = new EncoderPool(new EncoderPool.Factory() {
+        @Override
+        public EncoderBackend create() {
+            return new MediaCodecEncoderBackend();
+        }
+    }, 1);
+    private CodecSelector.Preference mCodecPreference = CodecSelector.Preference.AVC;
+    private SampleSink mSampleSink;
+
+    private int mMaxFps = 30;
+    private FrameRateGovernor mFrameRateGovernor;
+    private volatile long mCapturedFrames;
+    private volatile long mEncodedFrames;
+    private long mGovernorCapturedFrames;
+    private long mGovernorEncodedFrames;
 
     public Camera2ApiManager(Context context) {
+        this(context, new SystemCameraBackend(context));
+    }
+
+    public Camera2ApiManager(Context context, CameraBackend cameraBackend) {
         mContext = context;
+        mCameraBackend = cameraBackend;
+        mMetadataPool = MemoryBudget.global().register("Capture metadata journal", MemoryBudget.Kind.HEAP,
+                MemoryBudget.PRIORITY_REQUIRED, null);
+        mMetadataPool.reserve(mMetadataJournal.getByteSize());
+        mDenoisePool = MemoryBudget.global().register("Temporal denoise", MemoryBudget.Kind.HEAP,
+                MemoryBudget.PRIORITY_REQUIRED, null);
     }
 
     public void setPreviewTextureView(TextureView textureView) {
-        if (isCameraStarted) {
+        if (mStateMachine.isStarted()) {
             throw new RuntimeException("Cannot set preview texture view once the camera has started");
         }
 
@@ -93,7 +249,7 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
     }
 
     public void setOnImageAvailableListener(ImageReader.OnImageAvailableListener listener) {
-        if (isCameraStarted) {
+        if (mStateMachine.isStarted()) {
             throw new RuntimeException("Cannot set Image Available Listner once the camera has started");
         }
 
@@ -101,7 +257,7 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
     }
 
     public void setMediaCodecSurface(Surface mediaCodecSurface) {
-        if (isCameraStarted) {
+        if (mStateMachine.isStarted()) {
             throw new RuntimeException("Cannot set MediaCodec Surface once the camera has started");
         }
 
@@ -113,7 +269,7 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
     }
 
     public void setPreviewDimension(int width, int height) {
-        if (isCameraStarted) {
+        if (mStateMachine.isStarted()) {
             throw new RuntimeException("Cannot set preview dimension once the camera has started");
         }
 
@@ -122,45 +278,376 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
     }
 
     public void setImageReaderImageFormat(int format) {
-        if (isCameraStarted) {
+        if (mStateMachine.isStarted()) {
             throw new RuntimeException("Cannot set preview image format once the camera has started");
         }
 
         mImageReaderImageFormat = format;
     }
 
+    public void setMaxFps(int maxFps) {
+        if (mStateMachine.isStarted()) {
+            throw new RuntimeException("Cannot set max fps once the camera has started");
+        }
+
+        mMaxFps = maxFps;
+    }
+
+    /**
+     * Records at {@code captureFps} (120, 240...) through a constrained high speed session.
+     * A {@code playbackFps} below the capture rate produces slow motion. Falls back to regular
+     * capture when the camera does not support the rate; the ImageReader output is not
+     * available in this mode.
+     *
+     * @throws IllegalArgumentException unless 0 < playbackFps <= captureFps
+     */
+    public void setHighSpeedMode(int captureFps, int playbackFps) {
+        if (mStateMachine.isStarted()) {
+            throw new RuntimeException("Cannot set high speed mode once the camera has started");
+        }
+        if (captureFps <= 0 || playbackFps <= 0 || playbackFps > captureFps)
+            throw new IllegalArgumentException("Invalid high speed rates " + captureFps + "/" + playbackFps);
+
+        mHighSpeedFps = captureFps;
+        mHighSpeedPlaybackFps = playbackFps;
+    }
+
+    /**
+     * Prefer hardware HEVC for recordings, falling back to AVC when no HEVC encoder supports
+     * the negotiated stream.
+     */
+    public void setVideoCodecPreference(CodecSelector.Preference preference) {
+        if (mStateMachine.isStarted()) {
+            throw new RuntimeException("Cannot set video codec once the camera has started");
+        }
+
+        mCodecPreference = preference;
+    }
+
+    /**
+     * Receives every encoded sample, e.g. an RtpStreamSink for live streaming. RTP streaming
+     * needs H.264, so leave the codec preference at AVC.
+     */
+    public void setEncodedSampleSink(SampleSink sink) {
+        if (mStateMachine.isStarted()) {
+            throw new RuntimeException("Cannot set sample sink once the camera has started");
+        }
+
+        mSampleSink = sink;
+    }
+
+    /**
+     * Codec actually used by the running encoder, or null.
+     */
+    public CodecSelector.Selection getVideoCodecSelection() {
+        MediaEncoder encoder = mMediaEncoder;
+        return encoder != null ? encoder.getCodecSelection() : null;
+    }
+
+    /**
+     * Records one frame every {@code intervalMs}, played back at {@code playbackFps}. The
+     * encoder surface is left out of the repeating request and fed by single capture requests
+     * on that schedule, while the repeating preview and analysis streams drop to the lowest
+     * supported AE frame rate. Ignored when high speed mode is active.
+     */
+    public void setTimeLapseMode(long intervalMs, int playbackFps) {
+        if (mStateMachine.isStarted()) {
+            throw new RuntimeException("Cannot set time-lapse mode once the camera has started");
+        }
+
+        mTimeLapseIntervalMs = intervalMs;
+        mTimeLapsePlaybackFps = playbackFps;
+    }
+
+    /**
+     * Runs recorded frames through a motion-adaptive temporal denoiser on the CPU before they
+     * are encoded, for low light. The camera then fills a YUV reader instead of the encoder
+     * surface, which costs a copy and CPU time per frame. Ignored in high speed and time-lapse
+     * modes.
+     */
+    public void setTemporalDenoise(boolean enabled) {
+        if (mStateMachine.isStarted()) {
+            throw new RuntimeException("Cannot set temporal denoise once the camera has started");
+        }
+
+        mTemporalDenoise = enabled;
+    }
+
+    public boolean isTemporalDenoiseActive() {
+        return mDenoiseActive;
+    }
+
+    /**
+     * Denoiser of the running session, for its per-frame cost, or null.
+     */
+    public TemporalDenoiser getTemporalDenoiser() {
+        return mDenoiser;
+    }
+
+    /**
+     * Denoised frames the encoder had no input buffer for.
+     */
+    public long getDenoiseDroppedFrames() {
+        return mDenoiseDroppedFrames;
+    }
+
+    /**
+     * Requests a key frame from the encoder whenever the luma stream shows a cut or a sudden
+     * lighting change, at most one per second, and stretches the periodic key frame interval to
+     * {@code keyFrameIntervalSec} since static scenes no longer need frequent ones. The analysis
+     * frames are watched (streamed for that purpose when no listener is set), or the record
+     * frames with temporal denoise. Ignored in high speed mode.
+     */
+    public void setSceneChangeKeyFrames(boolean enabled, int keyFrameIntervalSec) {
+        if (mStateMachine.isStarted()) {
+            throw new RuntimeException("Cannot set scene change key frames once the camera has started");
+        }
+
+        mSceneChangeKeyFrames = enabled;
+        mSceneChangeKeyFrameIntervalSec = keyFrameIntervalSec;
+    }
+
+    public SceneChangeDetector getSceneChangeDetector() {
+        return mSceneChangeDetector;
+    }
+
+    /**
+     * Feeds an analysis frame to the scene change detector. An OnImageAvailableListener should
+     * pass every image it acquires while scene change key frames are on; frames that are not
+     * YUV_420_888 are ignored.
+     */
+    public void detectSceneChange(Image image) {
+        if (!watchesAnalysisForSceneChanges() || image.getFormat() != ImageFormat.YUV_420_888)
+            return;
+        Image.Plane luma = image.getPlanes()[0];
+        if (mSceneChangeDetector.process(luma.getBuffer(), image.getWidth(), image.getHeight(),
+                luma.getRowStride(), luma.getPixelStride(), image.getTimestamp() / 1000))
+            requestSceneChangeKeyFrame();
+    }
+
+    /**
+     * Adds a full-resolution still output to the session, JPEG or else YUV, provided the device
+     * can capture it without stretching the frame it lands in beyond the frame budget, so that
+     * {@link #takeVideoSnapshot(File)} does not cost the recording a frame. The largest size in
+     * the aspect ratio of the video wins; when that is no larger than the video itself there is
+     * no snapshot output and {@link #isVideoSnapshotAvailable()} stays false. Ignored in high
+     * speed and time-lapse modes.
+     */
+    public void setVideoSnapshot(boolean enabled) {
+        if (mStateMachine.isStarted()) {
+            throw new RuntimeException("Cannot set video snapshot once the camera has started");
+        }
+
+        mVideoSnapshot = enabled;
+    }
+
+    /**
+     * True when the running session has a snapshot output. May be called from any thread.
+     */
+    public boolean isVideoSnapshotAvailable() {
+        return mSnapshotRequestBuilder != null && mCameraCaptureSessions != null;
+    }
+
+    /**
+     * Captures a single TEMPLATE_VIDEO_SNAPSHOT frame while the repeating request carries on and
+     * writes it to {@code file} as JPEG. The frame also goes to the encoder and every other
+     * repeating output, so it stays part of the recording. YUV snapshots are compressed here
+     * and keep the sensor orientation, see {@link #getFrameRotation()}.
+     *
+     * @return false when the session has no snapshot output or a snapshot is still in flight
+     */
+    public boolean takeVideoSnapshot(File file) {
+        CameraCaptureSession session = mCameraCaptureSessions;
+        CaptureRequest.Builder builder = mSnapshotRequestBuilder;
+        if (session == null || builder == null)
+            return false;
+        if (!mSnapshotMonitor.onSnapshotRequested(SystemClock.elapsedRealtimeNanos()))
+            return false;
+
+        mSnapshotFile = file;
+        builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+        // Same frame rate range as the repeating request, so the sensor keeps its cadence
+        Range<Integer> fpsRange = mRepeatingFpsRange;
+        if (fpsRange != null)
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+        if (mSnapshotFormat == ImageFormat.JPEG)
+            builder.set(CaptureRequest.JPEG_ORIENTATION, getFrameRotation());
+        builder.setTag(mSnapshotTag);
+        try {
+            session.capture(builder.build(), mCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Video snapshot capture failed", e);
+            mSnapshotFile = null;
+            mSnapshotMonitor.onSnapshotFailed();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Snapshot-to-file latency and the recording frame gaps around each snapshot.
+     */
+    public VideoSnapshotMonitor getVideoSnapshotStats() {
+        return mSnapshotMonitor;
+    }
+
+    /**
+     * Writes the capture metadata of every recorded frame next to the recording (same name plus
+     * {@value #METADATA_EXTENSION}); read it with CaptureMetadataReader.
+     */
+    public void setCaptureMetadataPersistence(boolean enabled) {
+        if (mStateMachine.isStarted()) {
+            throw new RuntimeException("Cannot set capture metadata persistence once the camera has started");
+        }
+
+        mPersistCaptureMetadata = enabled;
+    }
+
+    /**
+     * Metadata of recent frames, to be looked up by the sensor timestamp of an Image.
+     */
+    public CaptureMetadataJournal getMetadataJournal() {
+        return mMetadataJournal;
+    }
+
+    /**
+     * True when the running recording wants a thumbnail for its index sidecar.
+     */
+    public boolean wantsRecordingThumbnail() {
+        MediaEncoder encoder = mMediaEncoder;
+        return encoder != null && encoder.wantsThumbnail();
+    }
+
+    /**
+     * Adds a small JPEG, typically built from an analysis frame, to the recording index.
+     */
+    public void addRecordingThumbnail(byte[] jpeg, int offset, int length, int width, int height) {
+        MediaEncoder encoder = mMediaEncoder;
+        if (encoder != null)
+            encoder.addThumbnail(jpeg, offset, length, width, height);
+    }
+
+    public boolean isTimeLapseActive() {
+        return mTimeLapseActive;
+    }
+
+    /**
+     * Requested versus achieved interval of the running time-lapse recording, or null.
+     */
+    public TimeLapseTimestamper getTimeLapseStats() {
+        MediaEncoder encoder = mMediaEncoder;
+        return encoder != null ? encoder.getTimeLapseTimestamper() : null;
+    }
+
+    /**
+     * Time-lapse slots skipped because the capture thread fell more than an interval behind.
+     */
+    public long getTimeLapseSkippedCaptures() {
+        return mTimeLapseSkippedCaptures;
+    }
+
+    public boolean isHighSpeedActive() {
+        return mHighSpeedActive;
+    }
+
+    /**
+     * Target versus achieved rate of the running high speed session, or null.
+     */
+    public HighSpeedTimestamper getHighSpeedStats() {
+        MediaEncoder encoder = mMediaEncoder;
+        return encoder != null ? encoder.getHighSpeedTimestamper() : null;
+    }
+
+    public FrameRateGovernor.FpsRange getCurrentFpsRange() {
+        return mFrameRateGovernor != null ? mFrameRateGovernor.getCurrentRange() : null;
+    }
+
+    /**
+     * To be called by an OnImageAvailableListener that skipped a frame because it was still
+     * busy with the previous one. Feeds the frame rate governor.
+     */
+    public void reportAnalysisFrameDropped() {
+        FrameRateGovernor governor = mFrameRateGovernor;
+        if (governor != null)
+            governor.onFrameDropped();
+    }
+
+    public PipelineScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public CameraStateMachine getStateMachine() {
+        return mStateMachine;
+    }
+
     @RequiresPermission(Manifest.permission.CAMERA)
     public void startCamera(boolean recording) {
-        if (isCameraStarted)
+        if (mStateMachine.isStarted())
             return;
 
-        isCameraStarted = true;
+        mStateMachine.moveTo(CameraStateMachine.State.OPENING);
 
         startBackgroundThread();
+        selectCamera();
 
-        mMediaEncoder = new CustomMediaEncoder(mPreviewWidth, mPreviewHeight);
+        // Left over when recovery gave up
+        stopEncoder();
+        mMediaEncoder = new CustomMediaEncoder(mStreamWidth, mStreamHeight);
         mMediaEncoder.setOnFrameAvailable(Camera2ApiManager.this);
-        if (recording)
+        mMediaEncoder.setScheduler(mScheduler);
+        mMediaEncoder.setEncoderPool(mEncoderPool);
+        mMediaEncoder.setCodecPreference(mCodecPreference);
+        mMediaEncoder.setSampleSink(mSampleSink);
+        mMediaEncoder.setBufferInput(mDenoiseActive);
+        if (mSceneChangeKeyFrames && !mHighSpeedActive && mSceneChangeKeyFrameIntervalSec > 0)
+            mMediaEncoder.setKeyFrameInterval(mSceneChangeKeyFrameIntervalSec);
+        if (mHighSpeedActive)
+            mMediaEncoder.setHighSpeed(mHighSpeedFps, mHighSpeedPlaybackFps);
+        else if (mTimeLapseActive)
+            mMediaEncoder.setTimeLapse(mTimeLapseIntervalMs, mTimeLapsePlaybackFps);
+        if (recording) {
             mMediaEncoder.startRecording();
-        else
+            if (mPersistCaptureMetadata)
+                startPersistingMetadata(mMediaEncoder.getRecordingFile());
+        } else {
             mMediaEncoder.start();
+        }
     }
 
     public void stopCamera() {
-        if (mMediaEncoder != null) {
-            mMediaEncoder.stop();
-            mMediaEncoder = null;
-        }
+        stopEncoder();
+
+        if (mBackgroundHandler != null)
+            mBackgroundHandler.removeCallbacks(mReconnect);
+        // An onOpened queued ahead of the close drops its device, even if the camera is
+        // started again before it runs
+        mOpenGeneration.incrementAndGet();
+        mStateMachine.moveTo(CameraStateMachine.State.CLOSED);
+        runOnCaptureThread(mCloseCamera);
+    }
 
-        closeCamera();
+    /**
+     * Stops the camera and quits the background thread, which otherwise survives stop/start
+     * cycles such as switching between preview and recording.
+     */
+    public void release() {
+        stopCamera();
         stopBackgroundThread();
-
-        isCameraStarted = false;
+        mEncoderPool.shutdown();
+        mMetadataPool.unregister();
+        if (mDenoiseExecutor != null) {
+            mDenoiseExecutor.shutdown();
+            mDenoiseExecutor = null;
+        }
+        mDenoiser = null;
+        mDenoiseFrame = null;
+        mDenoiseRow = null;
+        mDenoisePool.unregister();
     }
 
     @SuppressLint("MissingPermission")
     public void startRecording() {
-        if (!isCameraStarted)
+        if (!mStateMachine.isStarted())
             return;
 
         stopCamera();
@@ -169,31 +656,82 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
 
     @SuppressLint("MissingPermission")
     public void stopRecording() {
-        if (!isCameraStarted)
+        if (!mStateMachine.isStarted())
             return;
 
         stopCamera();
         startCamera(false);
     }
 
+    public EncoderPool getEncoderPool() {
+        return mEncoderPool;
+    }
+
+    public StreamConfigNegotiator.Result getStreamConfiguration() {
+        return mStreamConfig;
+    }
+
+    /**
+     * Clockwise rotation, in degrees, that turns a sensor-oriented frame upright for the current
+     * display rotation. 0 until a camera has been selected.
+     */
+    public int getFrameRotation() {
+        if (mCameraCharacteristics == null)
+            return 0;
+
+        Integer sensorOrientation = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        WindowManager windowManager = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
+        int rotation = windowManager.getDefaultDisplay().getRotation();
+        return (ORIENTATIONS.get(rotation) + (sensorOrientation != null ? sensorOrientation : 0) + 270) % 360;
+    }
+
     // Internal
-    @RequiresPermission(Manifest.permission.CAMERA)
-    private void openCamera() {
-        if (!isCameraStarted)
+    private void stopEncoder() {
+        MediaEncoder encoder = mMediaEncoder;
+        mMediaEncoder = null;
+        if (encoder != null)
+            encoder.stop();
+        try {
+            mMetadataJournal.stopPersisting();
+        } catch (IOException e) {
+            Log.e(TAG, "Capture metadata finalisation failed", e);
+        }
+    }
+
+    private void startPersistingMetadata(File recordingFile) {
+        if (recordingFile == null)
             return;
+        try {
+            mMetadataJournal.startPersisting(new File(recordingFile.getPath() + METADATA_EXTENSION));
+        } catch (IOException e) {
+            Log.e(TAG, "Capture metadata file unavailable", e);
+        }
+    }
+
+    private void selectCamera() {
+        mStreamWidth = mAnalysisWidth = mPreviewStreamWidth = mPreviewWidth;
+        mStreamHeight = mAnalysisHeight = mPreviewStreamHeight = mPreviewHeight;
 
         try {
-            mCameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-            String[] cameraIds = mCameraManager.getCameraIdList();
+            String[] cameraIds = mCameraBackend.getCameraIdList();
             for (String id : cameraIds) {
-                CameraCharacteristics cameraCharacteristics = mCameraManager.getCameraCharacteristics(id);
+                CameraCharacteristics cameraCharacteristics = mCameraBackend.getCameraCharacteristics(id);
                 if (cameraCharacteristics.get(CameraCharacteristics.LENS_FACING) == CameraCharacteristics.LENS_FACING_FRONT)
                     continue;
 
-                Size[] previewSize = cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP).getOutputSizes(ImageFormat.JPEG);
-                Log.d(TAG, Arrays.toString(previewSize));
-
-                mCameraManager.openCamera(id, stateCallback, mBackgroundHandler);
+                mCameraId = id;
+                mCameraCharacteristics = cameraCharacteristics;
+                mFrameRateGovernor = createFrameRateGovernor(cameraCharacteristics);
+                // Decided before negotiation since it changes the format of the encoder stream
+                mDenoiseActive = mTemporalDenoise && mHighSpeedFps <= 0 && mTimeLapseIntervalMs <= 0;
+                negotiateStreams(cameraCharacteristics);
+                mHighSpeedActive = mHighSpeedFps > 0 && selectHighSpeedSize(cameraCharacteristics);
+                mTimeLapseActive = !mHighSpeedActive && mTimeLapseIntervalMs > 0;
+                if (mTimeLapseActive)
+                    mTimeLapseFpsRange = selectLowestFpsRange(cameraCharacteristics);
+                // Both modes pin the frame rate themselves
+                if (mHighSpeedActive || mTimeLapseActive)
+                    mFrameRateGovernor = null;
                 break;
             }
         } catch (CameraAccessException e) {
@@ -201,19 +739,429 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
         }
     }
 
+    private void negotiateStreams(CameraCharacteristics characteristics) {
+        mSnapshotFormat = 0;
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null)
+            return;
+
+        // The encoder goes first: its aspect ratio is the one every other output should follow
+        List<StreamConfigNegotiator.OutputRequest> requests = new ArrayList<>(3);
+        int encoderFormat = mDenoiseActive ? ImageFormat.YUV_420_888 : ImageFormat.PRIVATE;
+        requests.add(new StreamConfigNegotiator.OutputRequest(OUTPUT_ENCODER, encoderFormat, mPreviewWidth, mPreviewHeight, true));
+        if (mPreviewTextureView != null)
+            requests.add(new StreamConfigNegotiator.OutputRequest(OUTPUT_PREVIEW, ImageFormat.PRIVATE, mPreviewWidth, mPreviewHeight, true));
+        if (mImageAvailableListener != null || mSceneChangeKeyFrames && !mDenoiseActive)
+            requests.add(new StreamConfigNegotiator.OutputRequest(OUTPUT_ANALYSIS, mImageReaderImageFormat, mPreviewWidth, mPreviewHeight, true));
+
+        StreamConfigNegotiator negotiator = new StreamConfigNegotiator(new StreamConfigurationMapCapabilities(map));
+        mStreamConfig = null;
+        if (mVideoSnapshot && mHighSpeedFps <= 0 && mTimeLapseIntervalMs <= 0)
+            mStreamConfig = negotiateWithSnapshot(negotiator, requests, map);
+        if (mStreamConfig == null)
+            mStreamConfig = negotiator.negotiate(requests, mMaxFps);
+        Log.d(TAG, "Stream configuration (satisfied=" + mStreamConfig.satisfied + ")\n" + mStreamConfig.explain());
+
+        StreamConfigNegotiator.Choice encoder = mStreamConfig.get(OUTPUT_ENCODER);
+        if (encoder != null) {
+            mStreamWidth = encoder.size.getWidth();
+            mStreamHeight = encoder.size.getHeight();
+        }
+        StreamConfigNegotiator.Choice preview = mStreamConfig.get(OUTPUT_PREVIEW);
+        if (preview != null) {
+            mPreviewStreamWidth = preview.size.getWidth();
+            mPreviewStreamHeight = preview.size.getHeight();
+        }
+        StreamConfigNegotiator.Choice analysis = mStreamConfig.get(OUTPUT_ANALYSIS);
+        if (analysis != null) {
+            mAnalysisWidth = analysis.size.getWidth();
+            mAnalysisHeight = analysis.size.getHeight();
+        }
+        StreamConfigNegotiator.Choice snapshot = mStreamConfig.get(OUTPUT_SNAPSHOT);
+        if (snapshot != null) {
+            mSnapshotFormat = snapshot.request.format;
+            mSnapshotWidth = snapshot.size.getWidth();
+            mSnapshotHeight = snapshot.size.getHeight();
+        }
+    }
+
+    // JPEG first, YUV when the JPEG stall does not fit the frame budget; null when neither can be
+    // captured without delaying the next frame at more than the video's own resolution
+    private StreamConfigNegotiator.Result negotiateWithSnapshot(StreamConfigNegotiator negotiator,
+                                                                List<StreamConfigNegotiator.OutputRequest> requests,
+                                                                StreamConfigurationMap map) {
+        long budgetNs = 1000000000L / mMaxFps;
+        for (int format : new int[]{ImageFormat.JPEG, ImageFormat.YUV_420_888}) {
+            Size largest = null;
+            Size[] sizes = map.getOutputSizes(format);
+            if (sizes != null) {
+                for (Size size : sizes) {
+                    if (largest == null || (long) size.getWidth() * size.getHeight() > (long) largest.getWidth() * largest.getHeight())
+                        largest = size;
+                }
+            }
+            if (largest == null)
+                continue;
+
+            List<StreamConfigNegotiator.OutputRequest> withSnapshot = new ArrayList<>(requests);
+            withSnapshot.add(new StreamConfigNegotiator.OutputRequest(OUTPUT_SNAPSHOT, format, largest.getWidth(), largest.getHeight(), false));
+            StreamConfigNegotiator.Result result = negotiator.negotiate(withSnapshot, mMaxFps);
+            String name = format == ImageFormat.JPEG ? "JPEG" : "YUV";
+            if (!result.satisfied || result.stillFrameDurationNs > budgetNs) {
+                Log.d(TAG, "No gap-free " + name + " video snapshot\n" + result.explain());
+                continue;
+            }
+            // Keeping the frame budget may have cost the snapshot its resolution; a still no
+            // larger than a video frame is not worth the extra stream
+            StreamConfigNegotiator.Choice snapshot = result.get(OUTPUT_SNAPSHOT);
+            StreamConfigNegotiator.Choice encoder = result.get(OUTPUT_ENCODER);
+            if (snapshot != null && encoder != null && (long) snapshot.size.getWidth() * snapshot.size.getHeight()
+                    <= (long) encoder.size.getWidth() * encoder.size.getHeight()) {
+                Log.d(TAG, "Gap-free " + name + " video snapshot only at " + snapshot.size
+                        + ", no larger than the " + encoder.size + " video\n" + result.explain());
+                continue;
+            }
+            return result;
+        }
+        Log.w(TAG, "Video snapshots unavailable at " + mMaxFps + "fps");
+        return null;
+    }
+
+    private boolean selectHighSpeedSize(CameraCharacteristics characteristics) {
+        int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        boolean supported = false;
+        if (capabilities != null) {
+            for (int capability : capabilities) {
+                if (capability == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO)
+                    supported = true;
+            }
+        }
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (!supported || map == null) {
+            Log.w(TAG, "Constrained high speed video not supported, recording at regular rate");
+            return false;
+        }
+
+        // Same preference as regular streams: requested aspect first, then the largest size not above the request
+        float aspect = mPreviewWidth / (float) mPreviewHeight;
+        long requestedArea = (long) mPreviewWidth * mPreviewHeight;
+        Size best = null;
+        for (Size size : map.getHighSpeedVideoSizes()) {
+            if (!supportsFixedRange(map.getHighSpeedVideoFpsRangesFor(size), mHighSpeedFps))
+                continue;
+            if (best == null || isBetterHighSpeedSize(size, best, aspect, requestedArea))
+                best = size;
+        }
+        if (best == null) {
+            Log.w(TAG, "No high speed size supports " + mHighSpeedFps + "fps, recording at regular rate");
+            return false;
+        }
+
+        Log.d(TAG, "High speed " + mHighSpeedFps + "fps at " + best);
+        // A constrained high speed session runs every output at the same size
+        mStreamWidth = mPreviewStreamWidth = best.getWidth();
+        mStreamHeight = mPreviewStreamHeight = best.getHeight();
+        return true;
+    }
+
+    private static boolean supportsFixedRange(Range<Integer>[] ranges, int fps) {
+        for (Range<Integer> range : ranges) {
+            if (range.getLower() == fps && range.getUpper() == fps)
+                return true;
+        }
+        return false;
+    }
+
+    // Slowest sensor rate for the repeating streams, which only keep preview and 3A alive
+    private static Range<Integer> selectLowestFpsRange(CameraCharacteristics characteristics) {
+        Range<Integer>[] ranges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (ranges == null)
+            return null;
+
+        Range<Integer> lowest = null;
+        for (Range<Integer> range : ranges) {
+            if (lowest == null || range.getUpper() < lowest.getUpper()
+                    || (range.getUpper().equals(lowest.getUpper()) && range.getLower() < lowest.getLower()))
+                lowest = range;
+        }
+        return lowest;
+    }
+
+    private static boolean isBetterHighSpeedSize(Size candidate, Size best, float aspect, long requestedArea) {
+        boolean candidateMatches = Math.abs(candidate.getWidth() / (float) candidate.getHeight() - aspect) < 0.01f;
+        boolean bestMatches = Math.abs(best.getWidth() / (float) best.getHeight() - aspect) < 0.01f;
+        if (candidateMatches != bestMatches)
+            return candidateMatches;
+
+        long candidateArea = (long) candidate.getWidth() * candidate.getHeight();
+        long bestArea = (long) best.getWidth() * best.getHeight();
+        boolean candidateFits = candidateArea <= requestedArea;
+        boolean bestFits = bestArea <= requestedArea;
+        if (candidateFits != bestFits)
+            return candidateFits;
+        return candidateFits ? candidateArea > bestArea : candidateArea < bestArea;
+    }
+
+    @RequiresPermission(Manifest.permission.CAMERA)
+    private void openCamera() {
+        runOnCaptureThread(mOpenCamera);
+    }
+
+    private final Runnable mOpenCamera = new Runnable() {
+        @SuppressLint("MissingPermission")
+        @Override
+        public void run() {
+            openCameraOnCaptureThread();
+        }
+    };
+
+    private final Runnable mCloseCamera = new Runnable() {
+        @Override
+        public void run() {
+            closeCamera();
+        }
+    };
+
+    // Runs inline when already there, or when the capture thread is not running
+    private void runOnCaptureThread(Runnable task) {
+        Handler handler = mBackgroundHandler;
+        if (handler == null || handler.getLooper() == Looper.myLooper() || !handler.post(task))
+            task.run();
+    }
+
+    @RequiresPermission(Manifest.permission.CAMERA)
+    private void openCameraOnCaptureThread() {
+        // Both the preview texture and the encoder surface trigger an open; only the first counts
+        if (mStateMachine.getState() != CameraStateMachine.State.OPENING || mCameraId == null || mOpenRequested)
+            return;
+
+        DeviceStateCallback callback = new DeviceStateCallback(mOpenGeneration.incrementAndGet());
+        try {
+            mOpenRequested = true;
+            mCameraBackend.openCamera(mCameraId, callback, mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "openCamera failed", e);
+            callback.traceOpen(false);
+            recover();
+        } catch (SecurityException e) {
+            Log.e(TAG, "openCamera not permitted", e);
+            callback.traceOpen(false);
+            mStateMachine.moveTo(CameraStateMachine.State.CLOSED);
+        }
+    }
+
+    /**
+     * Tears down the device and session, keeping the encoder, and schedules a reopen with
+     * exponential backoff. Gives up once the recovery budget of the state machine is spent, and
+     * then stops the encoder too so that the recording is finalised.
+     */
+    private void recover() {
+        closeCamera();
+
+        long delayMs = mStateMachine.onFailure();
+        if (delayMs == CameraStateMachine.GAVE_UP) {
+            Log.e(TAG, "Camera recovery abandoned: " + mStateMachine.dumpMetrics());
+            stopEncoder();
+            return;
+        }
+        Log.w(TAG, "Reopening camera in " + delayMs + "ms");
+        if (mBackgroundHandler != null) {
+            mBackgroundHandler.removeCallbacks(mReconnect);
+            mBackgroundHandler.postDelayed(mReconnect, delayMs);
+        }
+    }
+
+    private final Runnable mReconnect = new Runnable() {
+        @SuppressLint("MissingPermission")
+        @Override
+        public void run() {
+            if (mStateMachine.moveTo(CameraStateMachine.State.OPENING))
+                openCameraOnCaptureThread();
+        }
+    };
+
     private void updatePreview() {
-        if (null == mCameraDevice) {
+        if (null == mCameraDevice || null == mCameraCaptureSessions) {
             Log.e(TAG, "updatePreview error, return");
+            return;
         }
         mCaptureRequestBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+        if (mFrameRateGovernor != null) {
+            FrameRateGovernor.FpsRange fpsRange = mFrameRateGovernor.getCurrentRange();
+            mCaptureRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, Range.create(fpsRange.lower, fpsRange.upper));
+        } else if (mTimeLapseActive && mTimeLapseFpsRange != null) {
+            mCaptureRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mTimeLapseFpsRange);
+        }
+        mRepeatingFpsRange = mCaptureRequestBuilder.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
         try {
-            mCameraCaptureSessions.setRepeatingRequest(mCaptureRequestBuilder.build(), null, mBackgroundHandler);
-        } catch (CameraAccessException e) {
+            mCameraCaptureSessions.setRepeatingRequest(mCaptureRequestBuilder.build(), mCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "setRepeatingRequest failed", e);
+            recover();
+            return;
+        }
+        mStateMachine.moveTo(CameraStateMachine.State.STREAMING);
+        scheduleGovernorTick();
+        startTimeLapseCaptures();
+        prewarmEncoder();
+    }
+
+    // The next preview/recording switch then finds a configured codec instead of creating one.
+    // A no-op while the encoder runs, its own codec is recycled for the switch
+    private void prewarmEncoder() {
+        final MediaEncoder encoder = mMediaEncoder;
+        Handler ioHandler = mScheduler.getHandler(PipelineScheduler.Stage.MUXER_IO);
+        if (encoder == null || ioHandler == null)
+            return;
+
+        ioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    encoder.prewarm();
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Encoder prewarm failed", e);
+                }
+            }
+        });
+    }
 
+    private void startTimeLapseCaptures() {
+        if (mTimeLapseRequest == null || mBackgroundHandler == null)
+            return;
+
+        mBackgroundHandler.removeCallbacks(mTimeLapseCapture);
+        mNextTimeLapseCaptureMs = SystemClock.uptimeMillis();
+        mBackgroundHandler.postAtTime(mTimeLapseCapture, mNextTimeLapseCaptureMs);
+    }
+
+    // Slots are anchored to the first capture so that the interval does not drift; slots the
+    // capture thread could not make in time are skipped rather than fired back to back
+    private final Runnable mTimeLapseCapture = new Runnable() {
+        @Override
+        public void run() {
+            CameraCaptureSession session = mCameraCaptureSessions;
+            if (session == null || mTimeLapseRequest == null)
+                return;
+
+            try {
+                session.capture(mTimeLapseRequest, mCaptureCallback, mBackgroundHandler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                Log.e(TAG, "Time-lapse capture failed", e);
+                recover();
+                return;
+            }
+
+            long now = SystemClock.uptimeMillis();
+            mNextTimeLapseCaptureMs += mTimeLapseIntervalMs;
+            while (mNextTimeLapseCaptureMs <= now) {
+                mNextTimeLapseCaptureMs += mTimeLapseIntervalMs;
+                mTimeLapseSkippedCaptures++;
+            }
+            mBackgroundHandler.postAtTime(this, mNextTimeLapseCaptureMs);
+        }
+    };
+
+    private FrameRateGovernor createFrameRateGovernor(CameraCharacteristics characteristics) {
+        Range<Integer>[] ranges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (ranges == null)
+            return null;
+
+        List<FrameRateGovernor.FpsRange> supported = new ArrayList<>(ranges.length);
+        for (Range<Integer> range : ranges)
+            supported.add(new FrameRateGovernor.FpsRange(range.getLower(), range.getUpper()));
+        try {
+            return new FrameRateGovernor(supported, mMaxFps);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Frame rate governor disabled: " + e.getMessage());
+            return null;
         }
     }
 
+    private void scheduleGovernorTick() {
+        if (mBackgroundHandler == null || mFrameRateGovernor == null)
+            return;
+
+        mBackgroundHandler.removeCallbacks(mGovernorTick);
+        mBackgroundHandler.postDelayed(mGovernorTick, GOVERNOR_WINDOW_MS);
+    }
+
+    private final Runnable mGovernorTick = new Runnable() {
+        @Override
+        public void run() {
+            FrameRateGovernor governor = mFrameRateGovernor;
+            if (governor == null || mCameraCaptureSessions == null)
+                return;
+
+            long captured = mCapturedFrames;
+            long encoded = mEncodedFrames;
+            if (mMediaCodecSurface != null || mRecordReader != null) {
+                // Frames the camera produced but the encoder never emitted were dropped on the way
+                long missing = (captured - mGovernorCapturedFrames) - (encoded - mGovernorEncodedFrames);
+                if (missing > 0)
+                    governor.onFramesDropped((int) missing);
+            }
+            mGovernorCapturedFrames = captured;
+            mGovernorEncodedFrames = encoded;
+
+            MediaEncoder encoder = mMediaEncoder;
+            if (encoder != null) {
+                long frameIntervalUs = 1000000L / governor.getCurrentRange().upper;
+                governor.onEncoderQueueDepth((int) (encoder.getAndResetMaxEncoderLatencyUs() / frameIntervalUs));
+            }
+
+            if (governor.evaluate()) {
+                Log.d(TAG, "Target FPS range -> " + governor.getCurrentRange());
+                updatePreview();
+            } else {
+                scheduleGovernorTick();
+            }
+        }
+    };
+
+    private final CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            mCapturedFrames++;
+            Long sensorTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (sTracer.isEnabled())
+                sTracer.instant(EV_CAPTURE_COMPLETED, result.getFrameNumber(), sensorTimestamp != null ? sensorTimestamp : 0);
+            if (sensorTimestamp != null && mSnapshotFormat != 0)
+                mSnapshotMonitor.onFrameCaptured(sensorTimestamp, request.getTag() == mSnapshotTag);
+            if (sensorTimestamp != null) {
+                Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                Long frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+                Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+                Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+                mMetadataJournal.record(sensorTimestamp, result.getFrameNumber(),
+                        exposureTime != null ? exposureTime : CaptureMetadataJournal.UNKNOWN,
+                        frameDuration != null ? frameDuration : CaptureMetadataJournal.UNKNOWN,
+                        sensitivity != null ? sensitivity : CaptureMetadataJournal.UNKNOWN,
+                        afState != null ? afState : CaptureMetadataJournal.UNKNOWN);
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+            if (request.getTag() != mSnapshotTag)
+                return;
+            Log.w(TAG, "Video snapshot capture failed, reason " + failure.getReason());
+            mSnapshotFile = null;
+            mSnapshotMonitor.onSnapshotFailed();
+        }
+    };
+
+    // Capture thread only, see mOpenRequested
     private void closeCamera() {
+        mOpenRequested = false;
+        mOpenGeneration.incrementAndGet();
+        mHighSpeedBatcher = null;
+        mTimeLapseRequest = null;
+        mCameraCaptureSessions = null;
+        if (mBackgroundHandler != null) {
+            mBackgroundHandler.removeCallbacks(mGovernorTick);
+            mBackgroundHandler.removeCallbacks(mTimeLapseCapture);
+        }
         if (null != mCameraDevice) {
             mCameraDevice.close();
             mCameraDevice = null;
@@ -222,6 +1170,18 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
             mImageReader.close();
             mImageReader = null;
         }
+        if (null != mRecordReader) {
+            mRecordReader.close();
+            mRecordReader = null;
+        }
+        if (null != mSnapshotReader) {
+            mSnapshotReader.close();
+            mSnapshotReader = null;
+        }
+        mSnapshotRequestBuilder = null;
+        mSnapshotFile = null;
+        mRepeatingFpsRange = null;
+        mSnapshotMonitor.reset();
     }
 
     private void createCameraPreview() {
@@ -230,30 +1190,87 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
                 mImageReader.close();
                 mImageReader = null;
             }
+            if (null != mRecordReader) {
+                mRecordReader.close();
+                mRecordReader = null;
+            }
+            if (null != mSnapshotReader) {
+                mSnapshotReader.close();
+                mSnapshotReader = null;
+            }
+            mSnapshotRequestBuilder = null;
 
-            mImageReader = ImageReader.newInstance(mPreviewWidth, mPreviewHeight, mImageReaderImageFormat, 2);
+            mImageReader = ImageReader.newInstance(mAnalysisWidth, mAnalysisHeight, mImageReaderImageFormat, 2);
             List<Surface> outputSurfaces = new ArrayList<Surface>(3);
-            if (mImageAvailableListener != null)
+            // Constrained high speed sessions only take preview and video surfaces. In time-lapse
+            // mode the reader always streams so that 3A keeps converging between single captures
+            boolean analysisWanted = mImageAvailableListener != null
+                    || (watchesAnalysisForSceneChanges() && mImageReaderImageFormat == ImageFormat.YUV_420_888);
+            boolean streamImageReader = (analysisWanted && !mHighSpeedActive) || mTimeLapseActive;
+            if (streamImageReader)
                 outputSurfaces.add(mImageReader.getSurface());
 
             if (mMediaCodecSurface != null)
                 outputSurfaces.add(mMediaCodecSurface);
+            if (mDenoiseActive) {
+                prepareDenoiser();
+                // One frame being denoised, one arriving, one spare
+                mRecordReader = ImageReader.newInstance(mStreamWidth, mStreamHeight, ImageFormat.YUV_420_888, 3);
+                mRecordReader.setOnImageAvailableListener(mRecordFrameListener, mFrameProcessingHandler);
+                outputSurfaces.add(mRecordReader.getSurface());
+            }
 
             Surface previewSurface = null;
             if (mPreviewTextureView != null) {
                 SurfaceTexture texture = mPreviewTextureView.getSurfaceTexture();
-                texture.setDefaultBufferSize(mPreviewWidth, mPreviewHeight);
+                texture.setDefaultBufferSize(mPreviewStreamWidth, mPreviewStreamHeight);
                 previewSurface = new Surface(texture);
                 outputSurfaces.add(previewSurface);
             }
 
+            if (mSnapshotFormat != 0) {
+                mSnapshotReader = ImageReader.newInstance(mSnapshotWidth, mSnapshotHeight, mSnapshotFormat, 2);
+                outputSurfaces.add(mSnapshotReader.getSurface());
+                if (isSessionSupported(outputSurfaces)) {
+                    mSnapshotReader.setOnImageAvailableListener(mSnapshotListener, mScheduler.getHandler(PipelineScheduler.Stage.MUXER_IO));
+                } else {
+                    Log.w(TAG, "Stream combination rejected with the video snapshot output, leaving it out");
+                    outputSurfaces.remove(mSnapshotReader.getSurface());
+                    mSnapshotReader.close();
+                    mSnapshotReader = null;
+                }
+            }
+
             mCaptureRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
             if (mPreviewTextureView != null && previewSurface != null)
                 mCaptureRequestBuilder.addTarget(previewSurface);
-            if (mImageAvailableListener != null)
+            if (streamImageReader)
                 mCaptureRequestBuilder.addTarget(mImageReader.getSurface());
-            if (mMediaCodecSurface != null)
-                mCaptureRequestBuilder.addTarget(mMediaCodecSurface);
+            if (mRecordReader != null)
+                mCaptureRequestBuilder.addTarget(mRecordReader.getSurface());
+            if (mMediaCodecSurface != null) {
+                if (mTimeLapseActive) {
+                    CaptureRequest.Builder timeLapseBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+                    timeLapseBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+                    timeLapseBuilder.addTarget(mMediaCodecSurface);
+                    mTimeLapseRequest = timeLapseBuilder.build();
+                } else {
+                    mCaptureRequestBuilder.addTarget(mMediaCodecSurface);
+                }
+            }
+            if (mSnapshotReader != null) {
+                // Every repeating target as well, so the snapshot frame is still recorded and shown
+                mSnapshotRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_VIDEO_SNAPSHOT);
+                mSnapshotRequestBuilder.addTarget(mSnapshotReader.getSurface());
+                if (previewSurface != null)
+                    mSnapshotRequestBuilder.addTarget(previewSurface);
+                if (streamImageReader)
+                    mSnapshotRequestBuilder.addTarget(mImageReader.getSurface());
+                if (mRecordReader != null)
+                    mSnapshotRequestBuilder.addTarget(mRecordReader.getSurface());
+                if (mMediaCodecSurface != null)
+                    mSnapshotRequestBuilder.addTarget(mMediaCodecSurface);
+            }
 
             if (mPreviewTextureView != null) {
                 WindowManager windowManager = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
@@ -267,7 +1284,11 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
                 public void onImageAvailable(ImageReader imageReader) {
                     // Call the ImageAvailableListener if set
                     if (mImageAvailableListener != null) {
+                        long startNs = SystemClock.elapsedRealtimeNanos();
                         mImageAvailableListener.onImageAvailable(imageReader);
+                        FrameRateGovernor governor = mFrameRateGovernor;
+                        if (governor != null)
+                            governor.onFrameDelivered(SystemClock.elapsedRealtimeNanos() - startNs);
                         return;
                     }
 
@@ -275,6 +1296,8 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
                     Image image = null;
                     try {
                         image = mImageReader.acquireLatestImage();
+                        if (image != null)
+                            detectSceneChange(image);
                     } finally {
                         if (image != null) {
                             image.close();
@@ -282,9 +1305,14 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
                     }
                 }
             };
-            mImageReader.setOnImageAvailableListener(readerListener, mBackgroundHandler);
+            mImageReader.setOnImageAvailableListener(readerListener, mAnalysisHandler);
 
-            mCameraDevice.createCaptureSession(outputSurfaces, new CameraCaptureSession.StateCallback() {
+            if (mHighSpeedActive) {
+                createHighSpeedSession(outputSurfaces);
+                return;
+            }
+
+            createSession(false, outputSurfaces, new CameraCaptureSession.StateCallback() {
                 @Override
                 public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
                     //The camera is already closed
@@ -298,11 +1326,236 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
 
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
-                    Toast.makeText(mContext, "Configuration change", Toast.LENGTH_SHORT).show();
+                    Log.e(TAG, "Capture session configuration failed");
+                    recover();
                 }
-            }, null);
-        } catch (CameraAccessException e) {
+            });
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "createCameraPreview failed", e);
+            recover();
+        }
+    }
+
+    // The denoiser and its buffers survive sessions of the same size
+    private void prepareDenoiser() {
+        TemporalDenoiser denoiser = mDenoiser;
+        if (denoiser != null && denoiser.getWidth() == mStreamWidth && denoiser.getHeight() == mStreamHeight) {
+            denoiser.reset();
+            return;
+        }
+
+        if (mDenoiseExecutor == null) {
+            // The FRAME_PROCESSING thread takes one band itself
+            int helpers = Math.max(1, Math.min(DENOISE_MAX_BANDS, Runtime.getRuntime().availableProcessors()) - 1);
+            mDenoiseExecutor = new ThreadPoolExecutor(helpers, helpers, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    return new Thread(runnable, "Frame Processing " + mCount.getAndIncrement());
+                }
+            });
+        }
+
+        mDenoisePool.release(mDenoisePool.getUsedBytes());
+        denoiser = new TemporalDenoiser(YuvTransformer.Format.NV12, mStreamWidth, mStreamHeight)
+                .setParallelism(mDenoiseExecutor, mDenoiseExecutor.getMaximumPoolSize() + 1);
+        mDenoiseFrame = new byte[denoiser.getFrameSize()];
+        mDenoiseRow = new byte[BitmapUtils.getNv12RowScratchSize(mStreamWidth)];
+        // History plus the working frame
+        mDenoisePool.reserve(2L * denoiser.getFrameSize());
+        mDenoiser = denoiser;
+    }
+
+    private final ImageReader.OnImageAvailableListener mRecordFrameListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (image == null)
+                return;
+            try {
+                TemporalDenoiser denoiser = mDenoiser;
+                MediaEncoder encoder = mMediaEncoder;
+                if (denoiser == null || encoder == null)
+                    return;
+
+                byte[] frame = mDenoiseFrame;
+                long ptsUs = image.getTimestamp() / 1000;
+                BitmapUtils.copyToNv12(image, frame, mDenoiseRow);
+                sTracer.begin(EV_DENOISE);
+                denoiser.denoise(frame, frame);
+                sTracer.end(EV_DENOISE, denoiser.getLastCostNs() / 1000, denoiser.getLastMovingTiles());
+                // Requested before queueing, so this very frame becomes the key frame
+                if (mSceneChangeKeyFrames && mSceneChangeDetector.process(frame, 0, denoiser.getWidth(),
+                        denoiser.getHeight(), denoiser.getWidth(), ptsUs))
+                    requestSceneChangeKeyFrame();
+                if (!encoder.queueFrame(frame, denoiser.getFrameSize(), ptsUs))
+                    mDenoiseDroppedFrames++;
+            } finally {
+                image.close();
+            }
+        }
+    };
 
+    private final ImageReader.OnImageAvailableListener mSnapshotListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null)
+                return;
+            File file = mSnapshotFile;
+            mSnapshotFile = null;
+            try {
+                if (file == null)
+                    return;
+                writeSnapshot(image, file);
+                mSnapshotMonitor.onSnapshotWritten(SystemClock.elapsedRealtimeNanos());
+                Log.d(TAG, "Video snapshot " + image.getWidth() + "x" + image.getHeight() + " written to " + file
+                        + " in " + mSnapshotMonitor.getLastLatencyNs() / 1000000 + "ms");
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Video snapshot write failed", e);
+                mSnapshotMonitor.onSnapshotFailed();
+            } finally {
+                image.close();
+            }
+        }
+    };
+
+    private static void writeSnapshot(Image image, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            if (image.getFormat() == ImageFormat.JPEG) {
+                // Straight from the plane, no copy
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                FileChannel channel = out.getChannel();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            } else {
+                YuvImage yuvImage = BitmapUtils.toYuvImage(image);
+                if (!yuvImage.compressToJpeg(new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), SNAPSHOT_JPEG_QUALITY, out))
+                    throw new IOException("JPEG compression failed");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Asks the device whether it takes this stream combination, where it can be asked (API 29+)
+    private boolean isSessionSupported(List<Surface> outputSurfaces) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q)
+            return true;
+
+        List<OutputConfiguration> outputs = new ArrayList<>(outputSurfaces.size());
+        for (Surface surface : outputSurfaces)
+            outputs.add(new OutputConfiguration(surface));
+        SessionConfiguration configuration = new SessionConfiguration(SessionConfiguration.SESSION_REGULAR,
+                outputs, mScheduler.getExecutor(PipelineScheduler.Stage.CAPTURE), new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+            }
+
+            @Override
+            public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+            }
+        });
+        try {
+            return mCameraDevice.isSessionConfigurationSupported(configuration);
+        } catch (IllegalArgumentException e) {
+            return false;
+        } catch (CameraAccessException | UnsupportedOperationException e) {
+            // No answer, session creation will tell
+            return true;
+        }
+    }
+
+    private boolean watchesAnalysisForSceneChanges() {
+        return mSceneChangeKeyFrames && !mDenoiseActive && !mHighSpeedActive;
+    }
+
+    private void requestSceneChangeKeyFrame() {
+        MediaEncoder encoder = mMediaEncoder;
+        if (encoder != null && encoder.requestSyncFrame())
+            Log.d(TAG, "Scene change, key frame requested (histogram " + mSceneChangeDetector.getLastHistogramDistance() + ")");
+    }
+
+    private void createHighSpeedSession(List<Surface> outputSurfaces) throws CameraAccessException {
+        createSession(true, outputSurfaces, new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                if (null == mCameraDevice) {
+                    return;
+                }
+                mCameraCaptureSessions = cameraCaptureSession;
+                startHighSpeedRepeating((CameraConstrainedHighSpeedCaptureSession) cameraCaptureSession);
+            }
+
+            @Override
+            public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+                Log.e(TAG, "High speed session configuration failed");
+                recover();
+            }
+        });
+    }
+
+    // Session callbacks always land on the capture thread, through an Executor where supported
+    private void createSession(boolean highSpeed, List<Surface> outputSurfaces, CameraCaptureSession.StateCallback callback) throws CameraAccessException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            List<OutputConfiguration> outputs = new ArrayList<>(outputSurfaces.size());
+            for (Surface surface : outputSurfaces)
+                outputs.add(new OutputConfiguration(surface));
+            SessionConfiguration configuration = new SessionConfiguration(
+                    highSpeed ? SessionConfiguration.SESSION_HIGH_SPEED : SessionConfiguration.SESSION_REGULAR,
+                    outputs, mScheduler.getExecutor(PipelineScheduler.Stage.CAPTURE), callback);
+            mCameraDevice.createCaptureSession(configuration);
+        } else if (highSpeed) {
+            mCameraDevice.createConstrainedHighSpeedCaptureSession(outputSurfaces, callback, mBackgroundHandler);
+        } else {
+            mCameraDevice.createCaptureSession(outputSurfaces, callback, mBackgroundHandler);
+        }
+    }
+
+    private void startHighSpeedRepeating(final CameraConstrainedHighSpeedCaptureSession session) {
+        mCaptureRequestBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+        mCaptureRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, Range.create(mHighSpeedFps, mHighSpeedFps));
+        mRepeatingFpsRange = mCaptureRequestBuilder.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
+
+        mHighSpeedBatcher = new HighSpeedRequestBatcher<>(new HighSpeedRequestBatcher.Session<CaptureRequest>() {
+            @Override
+            public List<CaptureRequest> createHighSpeedRequestList(CaptureRequest request) {
+                try {
+                    return session.createHighSpeedRequestList(request);
+                } catch (CameraAccessException e) {
+                    Log.e(TAG, "createHighSpeedRequestList failed", e);
+                    return null;
+                }
+            }
+
+            @Override
+            public void setRepeatingBurst(List<CaptureRequest> requests) {
+                try {
+                    session.setRepeatingBurst(requests, mCaptureCallback, mBackgroundHandler);
+                } catch (CameraAccessException e) {
+                    Log.e(TAG, "setRepeatingBurst failed", e);
+                }
+            }
+
+            @Override
+            public void stopRepeating() {
+                try {
+                    session.stopRepeating();
+                } catch (CameraAccessException e) {
+                    Log.e(TAG, "stopRepeating failed", e);
+                }
+            }
+        }, mHighSpeedFps);
+
+        try {
+            mHighSpeedBatcher.start(mCaptureRequestBuilder.build());
+            mStateMachine.moveTo(CameraStateMachine.State.STREAMING);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "High speed burst rejected", e);
+            recover();
         }
     }
 
@@ -320,23 +1573,17 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
     }
 
     protected void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("Camera Background");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        mScheduler.start();
+        mBackgroundHandler = mScheduler.getHandler(PipelineScheduler.Stage.CAPTURE);
+        mAnalysisHandler = mScheduler.getHandler(PipelineScheduler.Stage.ANALYSIS);
+        mFrameProcessingHandler = mScheduler.getHandler(PipelineScheduler.Stage.FRAME_PROCESSING);
     }
 
     protected void stopBackgroundThread() {
-        if (mBackgroundThread == null || mBackgroundHandler == null)
-            return;
-
-        mBackgroundThread.quitSafely();
-        try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        mScheduler.quit();
+        mBackgroundHandler = null;
+        mAnalysisHandler = null;
+        mFrameProcessingHandler = null;
     }
 
     // Listener
@@ -363,29 +1610,68 @@ public class Camera2ApiManager implements MediaEncoder.OnFrameAvailableListener
         }
     };
 
-    private final CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
+    private class DeviceStateCallback extends CameraDevice.StateCallback {
+
+        private final int mGeneration;
+        // The open is requested on the caller's thread and answered on the camera thread, so
+        // it is traced as one complete span once the outcome is known
+        private final long mOpenStartNs = System.nanoTime();
+        private boolean mOpenTraced;
+
+        DeviceStateCallback(int generation) {
+            mGeneration = generation;
+        }
+
+        synchronized void traceOpen(boolean opened) {
+            if (mOpenTraced)
+                return;
+            mOpenTraced = true;
+            sTracer.complete(EV_CAMERA_OPEN, mOpenStartNs, opened ? 1 : 0);
+        }
+
         @Override
         public void onOpened(CameraDevice camera) {
             // This is called when the camera is open
-            Log.d(TAG, "onOpened");
+            traceOpen(true);
+            // Stopped, restarted or given up while the open was in flight
+            if (mGeneration != mOpenGeneration.get() || !mStateMachine.moveTo(CameraStateMachine.State.CONFIGURING)) {
+                camera.close();
+                return;
+            }
             mCameraDevice = camera;
             createCameraPreview();
         }
 
         @Override
         public void onDisconnected(CameraDevice camera) {
-            mCameraDevice.close();
+            Log.w(TAG, "onDisconnected");
+            onCameraLost(camera);
         }
 
         @Override
         public void onError(CameraDevice camera, int error) {
-            mCameraDevice.close();
-            mCameraDevice = null;
+            Log.e(TAG, "onError " + error);
+            onCameraLost(camera);
         }
-    };
+
+        // Eviction or device error: reopen unless the callback is about a device we already dropped
+        private void onCameraLost(CameraDevice camera) {
+            // Failed to open in the first place
+            traceOpen(false);
+            boolean current = camera == mCameraDevice
+                    || (mCameraDevice == null && mGeneration == mOpenGeneration.get()
+                    && mStateMachine.getState() == CameraStateMachine.State.OPENING);
+            camera.close();
+            if (camera == mCameraDevice)
+                mCameraDevice = null;
+            if (current)
+                recover();
+        }
+    }
 
     @Override
     public void onFrameAvailable() {
+        mEncodedFrames++;
         // Add Timestamp to FPS Calculator
         addFpsCurrentTimestamp();
     }
@@ -0,0 +1,27 @@
+package com.nuuneoi.camera2lab.manager;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.os.Handler;
+
+import java.util.Set;
+
+/**
+ * The slice of CameraManager that {@link Camera2ApiManager} uses, so that a fake camera
+ * service can be injected in instrumented tests.
+ */
+public interface CameraBackend {
+
+    String[] getCameraIdList() throws CameraAccessException;
+
+    CameraCharacteristics getCameraCharacteristics(String cameraId) throws CameraAccessException;
+
+    /**
+     * Camera id combinations that can stream at the same time; empty when the platform does
+     * not report any (before Android 11).
+     */
+    Set<Set<String>> getConcurrentCameraIds() throws CameraAccessException;
+
+    void openCamera(String cameraId, CameraDevice.StateCallback callback, Handler handler) throws CameraAccessException;
+}
@@ -0,0 +1,210 @@
+package com.nuuneoi.camera2lab.manager;
+
+/**
+ * Lifecycle of the camera pipeline with bounded exponential-backoff recovery.
+ *
+ * <pre>
+ * CLOSED -> OPENING -> CONFIGURING -> STREAMING
+ *              |            |             |
+ *              +------> RECOVERING <------+
+ *                           |
+ *                           +--> OPENING (after backoff) or CLOSED (gave up)
+ * </pre>
+ *
+ * Time spent in every state is accumulated so that the cost of evictions and reconnects can
+ * be read back.
+ */
+public class CameraStateMachine {
+
+    public enum State {
+        CLOSED,
+        OPENING,
+        CONFIGURING,
+        STREAMING,
+        RECOVERING
+    }
+
+    public interface Clock {
+        long nowMs();
+    }
+
+    public interface Listener {
+        void onStateChanged(State from, State to);
+    }
+
+    public static final long GAVE_UP = -1;
+
+    private final Clock mClock;
+
+    private long mInitialBackoffMs = 100;
+    private long mMaxBackoffMs = 2000;
+    private long mMaxRecoveryMs = 10000;
+
+    private State mState = State.CLOSED;
+    private long mStateEnteredMs;
+    private final long[] mTimeInStateMs = new long[State.values().length];
+
+    private int mAttempt;
+    private long mRecoveryStartedMs = -1;
+    private int mRecoveries;
+    private int mFailedRecoveries;
+    private long mLastRecoveryMs;
+
+    private Listener mListener;
+
+    public CameraStateMachine(Clock clock) {
+        mClock = clock;
+        mStateEnteredMs = clock.nowMs();
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param initialBackoffMs delay before the first reopen
+     * @param maxBackoffMs     upper bound of a single delay
+     * @param maxRecoveryMs    time after which recovery is abandoned and the machine closes
+     */
+    public synchronized void setBackoff(long initialBackoffMs, long maxBackoffMs, long maxRecoveryMs) {
+        mInitialBackoffMs = initialBackoffMs;
+        mMaxBackoffMs = maxBackoffMs;
+        mMaxRecoveryMs = maxRecoveryMs;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    public synchronized boolean isStarted() {
+        return mState != State.CLOSED;
+    }
+
+    /**
+     * @return false if the transition is not allowed from the current state; the state is left
+     * untouched in that case
+     */
+    public boolean moveTo(State state) {
+        State from;
+        synchronized (this) {
+            if (!isAllowed(mState, state))
+                return false;
+
+            from = mState;
+            enter(state);
+            if (state == State.STREAMING && mRecoveryStartedMs >= 0) {
+                mRecoveries++;
+                mLastRecoveryMs = mClock.nowMs() - mRecoveryStartedMs;
+                mRecoveryStartedMs = -1;
+                mAttempt = 0;
+            } else if (state == State.CLOSED) {
+                mRecoveryStartedMs = -1;
+                mAttempt = 0;
+            }
+        }
+        notifyListener(from, state);
+        return true;
+    }
+
+    /**
+     * Records a failure (eviction, device error, session failure) and enters RECOVERING.
+     *
+     * @return delay before the next reopen attempt, or {@link #GAVE_UP} once the recovery budget
+     * is spent, in which case the machine is CLOSED
+     */
+    public long onFailure() {
+        State from;
+        State to;
+        long delay;
+        synchronized (this) {
+            if (mState == State.CLOSED)
+                return GAVE_UP;
+
+            long now = mClock.nowMs();
+            if (mRecoveryStartedMs < 0)
+                mRecoveryStartedMs = now;
+
+            from = mState;
+            long elapsed = now - mRecoveryStartedMs;
+            delay = Math.min(mMaxBackoffMs, mInitialBackoffMs << Math.min(mAttempt, 20));
+            if (elapsed + delay > mMaxRecoveryMs) {
+                mFailedRecoveries++;
+                mRecoveryStartedMs = -1;
+                mAttempt = 0;
+                to = State.CLOSED;
+                delay = GAVE_UP;
+            } else {
+                mAttempt++;
+                to = State.RECOVERING;
+            }
+            enter(to);
+        }
+        if (from != to)
+            notifyListener(from, to);
+        return delay;
+    }
+
+    public synchronized long getTimeInStateMs(State state) {
+        long time = mTimeInStateMs[state.ordinal()];
+        if (state == mState)
+            time += mClock.nowMs() - mStateEnteredMs;
+        return time;
+    }
+
+    public synchronized int getRecoveryCount() {
+        return mRecoveries;
+    }
+
+    public synchronized int getFailedRecoveryCount() {
+        return mFailedRecoveries;
+    }
+
+    public synchronized long getLastRecoveryMs() {
+        return mLastRecoveryMs;
+    }
+
+    public synchronized String dumpMetrics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("state=").append(mState);
+        for (State state : State.values())
+            sb.append(' ').append(state.name().toLowerCase()).append('=').append(getTimeInStateMs(state)).append("ms");
+        sb.append(" recoveries=").append(mRecoveries)
+                .append(" failedRecoveries=").append(mFailedRecoveries)
+                .append(" lastRecovery=").append(mLastRecoveryMs).append("ms");
+        return sb.toString();
+    }
+
+    // Internal
+
+    private void enter(State state) {
+        long now = mClock.nowMs();
+        mTimeInStateMs[mState.ordinal()] += now - mStateEnteredMs;
+        mStateEnteredMs = now;
+        mState = state;
+    }
+
+    private void notifyListener(State from, State to) {
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onStateChanged(from, to);
+    }
+
+    private static boolean isAllowed(State from, State to) {
+        if (to == State.CLOSED)
+            return true;
+        switch (from) {
+            case CLOSED:
+                return to == State.OPENING;
+            case OPENING:
+                return to == State.CONFIGURING || to == State.RECOVERING;
+            case CONFIGURING:
+                return to == State.STREAMING || to == State.RECOVERING;
+            case STREAMING:
+                return to == State.CONFIGURING || to == State.RECOVERING;
+            case RECOVERING:
+                return to == State.OPENING;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.nuuneoi.camera2lab.manager;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame counters of one camera in {@link MultiCameraManager}, bumped from the capture, analysis,
+ * dispatch and encoder threads, and turned into rates by {@link #sample(long)}.
+ */
+public class CameraStreamStats {
+
+    public static class Snapshot {
+        public final String cameraId;
+        public final boolean streaming;
+        public final float captureFps;
+        public final float analysisFps;
+        public final float encodedFps;
+        public final long droppedFrames;
+        public final long totalDroppedFrames;
+
+        Snapshot(String cameraId, boolean streaming, float captureFps, float analysisFps, float encodedFps,
+                 long droppedFrames, long totalDroppedFrames) {
+            this.cameraId = cameraId;
+            this.streaming = streaming;
+            this.captureFps = captureFps;
+            this.analysisFps = analysisFps;
+            this.encodedFps = encodedFps;
+            this.droppedFrames = droppedFrames;
+            this.totalDroppedFrames = totalDroppedFrames;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "camera %s%s capture=%.1ffps analysis=%.1ffps encoded=%.1ffps dropped=%d (total %d)",
+                    cameraId, streaming ? "" : " (down)", captureFps, analysisFps, encodedFps, droppedFrames, totalDroppedFrames);
+        }
+    }
+
+    private final String mCameraId;
+    private final AtomicLong mCaptured = new AtomicLong();
+    private final AtomicLong mAnalyzed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mEncoded = new AtomicLong();
+    private volatile boolean mStreaming;
+
+    private long mLastSampleMs;
+    private long mLastCaptured;
+    private long mLastAnalyzed;
+    private long mLastDropped;
+    private long mLastEncoded;
+
+    public CameraStreamStats(String cameraId, long nowMs) {
+        mCameraId = cameraId;
+        mLastSampleMs = nowMs;
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    public void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
+    public void onCaptured() {
+        mCaptured.incrementAndGet();
+    }
+
+    public void onAnalyzed() {
+        mAnalyzed.incrementAndGet();
+    }
+
+    public void onDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    public void onEncoded() {
+        mEncoded.incrementAndGet();
+    }
+
+    /**
+     * Rates and drops since the previous call (or since creation).
+     */
+    public synchronized Snapshot sample(long nowMs) {
+        long elapsedMs = Math.max(1, nowMs - mLastSampleMs);
+        long captured = mCaptured.get();
+        long analyzed = mAnalyzed.get();
+        long dropped = mDropped.get();
+        long encoded = mEncoded.get();
+        Snapshot snapshot = new Snapshot(mCameraId, mStreaming,
+                (captured - mLastCaptured) * 1000f / elapsedMs,
+                (analyzed - mLastAnalyzed) * 1000f / elapsedMs,
+                (encoded - mLastEncoded) * 1000f / elapsedMs,
+                dropped - mLastDropped, dropped);
+        mLastSampleMs = nowMs;
+        mLastCaptured = captured;
+        mLastAnalyzed = analyzed;
+        mLastDropped = dropped;
+        mLastEncoded = encoded;
+        return snapshot;
+    }
+}
@@ -0,0 +1,63 @@
+package com.nuuneoi.camera2lab.manager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Picks which cameras to open together, within the combinations the platform reports as
+ * concurrent. Without any reported combination only a single camera is opened.
+ */
+public class ConcurrentCameraSelector {
+
+    private ConcurrentCameraSelector() {
+    }
+
+    /**
+     * @param combinations camera id sets that may stream at the same time
+     * @param available    every camera id, in platform order
+     * @param requested    ids the caller wants, in priority order; empty for as many as allowed
+     * @param maxCameras   upper bound on the result size
+     * @return ids to open, in requested order (or platform order); empty when nothing fits
+     */
+    public static List<String> select(Collection<Set<String>> combinations, List<String> available,
+                                      List<String> requested, int maxCameras) {
+        if (maxCameras < 1 || available.isEmpty())
+            return Collections.emptyList();
+
+        List<String> wanted = new ArrayList<>();
+        for (String id : requested.isEmpty() ? available : requested) {
+            if (available.contains(id) && !wanted.contains(id))
+                wanted.add(id);
+        }
+        if (wanted.isEmpty())
+            return Collections.emptyList();
+
+        // The combination covering most of the wanted ids, earlier ids breaking ties
+        List<String> best = Collections.singletonList(wanted.get(0));
+        long bestRank = rank(best, wanted);
+        for (Set<String> combination : combinations) {
+            List<String> covered = new ArrayList<>();
+            for (String id : wanted) {
+                if (combination.contains(id) && covered.size() < maxCameras)
+                    covered.add(id);
+            }
+            long rank = rank(covered, wanted);
+            if (covered.size() > best.size() || (covered.size() == best.size() && rank > bestRank)) {
+                best = covered;
+                bestRank = rank;
+            }
+        }
+        return best;
+    }
+
+    // Higher is better: one bit per wanted position, the earliest position being the highest bit
+    private static long rank(List<String> ids, List<String> wanted) {
+        long rank = 0;
+        for (String id : ids)
+            rank |= 1L << (62 - Math.min(62, wanted.indexOf(id)));
+        return rank;
+    }
+}
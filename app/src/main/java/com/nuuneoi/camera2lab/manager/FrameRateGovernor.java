@@ -0,0 +1,184 @@
+package com.nuuneoi.camera2lab.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Picks the AE target FPS range from the ranges the device supports, based on how well the
+ * consumers keep up. Load is sampled per window (typically one second): consumer lag, the
+ * share of frames dropped and the encoder queue depth. The governor steps down one rung
+ * after {@link #setStepDownWindows(int)} consecutive overloaded windows and back up after
+ * {@link #setStepUpWindows(int)} consecutive idle ones; windows in between reset both counters
+ * so it does not oscillate around a threshold.
+ */
+public class FrameRateGovernor {
+
+    public static class FpsRange {
+        public final int lower;
+        public final int upper;
+
+        public FpsRange(int lower, int upper) {
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + lower + ", " + upper + "]";
+        }
+    }
+
+    private static final float OVERLOAD_DROP_RATE = 0.10f;
+    private static final float IDLE_DROP_RATE = 0.02f;
+    private static final float OVERLOAD_LAG_FRAMES = 1.5f;
+    private static final float IDLE_LAG_FRAMES = 0.5f;
+    private static final int OVERLOAD_QUEUE_DEPTH = 3;
+    private static final int IDLE_QUEUE_DEPTH = 1;
+
+    private final List<FpsRange> mLadder;
+    private int mLevel;
+
+    private int mStepDownWindows = 2;
+    private int mStepUpWindows = 5;
+    private int mCooldownWindows = 2;
+
+    private int mOverloadedStreak;
+    private int mIdleStreak;
+    private int mCooldown;
+
+    // Current window
+    private int mDelivered;
+    private int mDropped;
+    private long mMaxLagNs;
+    private int mMaxQueueDepth;
+
+    /**
+     * @param supported ranges from CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES
+     * @param maxFps    highest upper bound the pipeline should ever ask for
+     */
+    public FrameRateGovernor(List<FpsRange> supported, int maxFps) {
+        mLadder = buildLadder(supported, maxFps);
+        if (mLadder.isEmpty())
+            throw new IllegalArgumentException("No usable FPS range at or below " + maxFps);
+        mLevel = mLadder.size() - 1;
+    }
+
+    public void setStepDownWindows(int windows) {
+        mStepDownWindows = windows;
+    }
+
+    public void setStepUpWindows(int windows) {
+        mStepUpWindows = windows;
+    }
+
+    public void setCooldownWindows(int windows) {
+        mCooldownWindows = windows;
+    }
+
+    public synchronized FpsRange getCurrentRange() {
+        return mLadder.get(mLevel);
+    }
+
+    public List<FpsRange> getLadder() {
+        return Collections.unmodifiableList(mLadder);
+    }
+
+    public synchronized void onFrameDelivered(long lagNs) {
+        mDelivered++;
+        if (lagNs > mMaxLagNs)
+            mMaxLagNs = lagNs;
+    }
+
+    public synchronized void onFrameDropped() {
+        mDropped++;
+    }
+
+    public synchronized void onFramesDropped(int count) {
+        mDropped += count;
+    }
+
+    public synchronized void onEncoderQueueDepth(int depth) {
+        if (depth > mMaxQueueDepth)
+            mMaxQueueDepth = depth;
+    }
+
+    /**
+     * Closes the current window and decides whether to move along the ladder.
+     *
+     * @return true when {@link #getCurrentRange()} changed and the repeating request has to be
+     * re-issued
+     */
+    public synchronized boolean evaluate() {
+        int total = mDelivered + mDropped;
+        float dropRate = total == 0 ? 0 : mDropped / (float) total;
+        float frameIntervalNs = 1e9f / getCurrentRange().upper;
+        float lagFrames = mMaxLagNs / frameIntervalNs;
+        int queueDepth = mMaxQueueDepth;
+
+        mDelivered = 0;
+        mDropped = 0;
+        mMaxLagNs = 0;
+        mMaxQueueDepth = 0;
+
+        if (mCooldown > 0) {
+            mCooldown--;
+            return false;
+        }
+
+        boolean overloaded = dropRate > OVERLOAD_DROP_RATE
+                || lagFrames > OVERLOAD_LAG_FRAMES
+                || queueDepth >= OVERLOAD_QUEUE_DEPTH;
+        boolean idle = dropRate < IDLE_DROP_RATE
+                && lagFrames < IDLE_LAG_FRAMES
+                && queueDepth <= IDLE_QUEUE_DEPTH;
+
+        if (overloaded) {
+            mIdleStreak = 0;
+            mOverloadedStreak++;
+            if (mOverloadedStreak >= mStepDownWindows && mLevel > 0)
+                return step(-1);
+        } else if (idle) {
+            mOverloadedStreak = 0;
+            mIdleStreak++;
+            if (mIdleStreak >= mStepUpWindows && mLevel < mLadder.size() - 1)
+                return step(1);
+        } else {
+            mOverloadedStreak = 0;
+            mIdleStreak = 0;
+        }
+        return false;
+    }
+
+    private boolean step(int direction) {
+        mLevel += direction;
+        mOverloadedStreak = 0;
+        mIdleStreak = 0;
+        mCooldown = mCooldownWindows;
+        return true;
+    }
+
+    // One rung per distinct upper bound, keeping the tightest range (highest lower bound)
+    private static List<FpsRange> buildLadder(List<FpsRange> supported, int maxFps) {
+        List<FpsRange> sorted = new ArrayList<>(supported);
+        Collections.sort(sorted, new Comparator<FpsRange>() {
+            @Override
+            public int compare(FpsRange a, FpsRange b) {
+                if (a.upper != b.upper)
+                    return a.upper - b.upper;
+                return b.lower - a.lower;
+            }
+        });
+
+        List<FpsRange> ladder = new ArrayList<>();
+        for (FpsRange range : sorted) {
+            if (range.upper > maxFps)
+                continue;
+            if (!ladder.isEmpty() && ladder.get(ladder.size() - 1).upper == range.upper)
+                continue;
+            ladder.add(range);
+        }
+        return ladder;
+    }
+}
@@ -0,0 +1,73 @@
+package com.nuuneoi.camera2lab.manager;
+
+import java.util.List;
+
+/**
+ * Submits the request bursts of a constrained high-speed session. The framework turns one
+ * request into a list of {@code captureFps / previewFps} requests (only one of which renders
+ * to the preview) that must be submitted together with setRepeatingBurst; anything else fails
+ * or silently falls back to a lower rate.
+ *
+ * The session is abstracted so the batching rules can be checked without a camera.
+ */
+public class HighSpeedRequestBatcher<R> {
+
+    public interface Session<R> {
+        List<R> createHighSpeedRequestList(R request);
+
+        void setRepeatingBurst(List<R> requests);
+
+        void stopRepeating();
+    }
+
+    public static final int PREVIEW_FPS = 30;
+
+    private final Session<R> mSession;
+    private final int mCaptureFps;
+
+    private List<R> mBurst;
+
+    public HighSpeedRequestBatcher(Session<R> session, int captureFps) {
+        if (captureFps < PREVIEW_FPS || captureFps % PREVIEW_FPS != 0)
+            throw new IllegalArgumentException("High speed rate must be a multiple of " + PREVIEW_FPS + ": " + captureFps);
+
+        mSession = session;
+        mCaptureFps = captureFps;
+    }
+
+    public int getCaptureFps() {
+        return mCaptureFps;
+    }
+
+    public int getBatchSize() {
+        return mCaptureFps / PREVIEW_FPS;
+    }
+
+    public List<R> getBurst() {
+        return mBurst;
+    }
+
+    /**
+     * Expands {@code request} into a high-speed burst and starts repeating it.
+     *
+     * @throws IllegalStateException if the session returned a burst of unexpected length, which
+     *                               means the request's FPS range does not match the capture rate
+     */
+    public void start(R request) {
+        List<R> burst = mSession.createHighSpeedRequestList(request);
+        if (burst == null || burst.size() != getBatchSize()) {
+            throw new IllegalStateException("Expected a burst of " + getBatchSize() + " requests for "
+                    + mCaptureFps + "fps, got " + (burst == null ? 0 : burst.size()));
+        }
+        mBurst = burst;
+        mSession.setRepeatingBurst(burst);
+    }
+
+    public void stop() {
+        if (mBurst == null)
+            return;
+
+        mSession.stopRepeating();
+        mBurst = null;
+    }
+}
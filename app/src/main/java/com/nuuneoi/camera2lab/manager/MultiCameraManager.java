@@ -0,0 +1,661 @@
+package com.nuuneoi.camera2lab.manager;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.OutputConfiguration;
+import android.hardware.camera2.params.SessionConfiguration;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresPermission;
+
+import com.nuuneoi.camera2lab.encoder.EncoderBackend;
+import com.nuuneoi.camera2lab.encoder.EncoderDrainPool;
+import com.nuuneoi.camera2lab.encoder.EncoderPool;
+import com.nuuneoi.camera2lab.encoder.MediaCodecEncoderBackend;
+import com.nuuneoi.camera2lab.encoder.MediaEncoder;
+import com.nuuneoi.camera2lab.pipeline.FrameAnalysisPool;
+import com.nuuneoi.camera2lab.pipeline.PipelineScheduler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams several cameras at once, limited to the combinations the platform reports through
+ * getConcurrentCameraIds() (Android 11+; a single camera otherwise). Each camera gets its own
+ * device, capture session, analysis ImageReader and, when recording, its own encoder.
+ *
+ * Threads are shared rather than multiplied per camera: the capture thread runs every device
+ * and session call and callback, the analysis thread dispatches ImageReader callbacks, and
+ * frames go to a bounded {@link FrameAnalysisPool} and encoders to a bounded
+ * {@link EncoderDrainPool}. A camera has at most one frame in analysis; frames that find it (or
+ * the whole pool) busy are dropped and counted against that camera.
+ *
+ * Starting or stopping a recording keeps the cameras open: only the capture sessions are
+ * recreated, with or without the encoder surfaces.
+ *
+ * Concurrent operation only guarantees streams up to 1440p per camera, so keep the stream
+ * size modest.
+ */
+public class MultiCameraManager {
+
+    private static final String TAG = "MultiCameraManager";
+
+    public static final int DEFAULT_MAX_CAMERAS = 2;
+
+    // One image held by analysis, one latest and one for acquireLatestImage to look ahead with
+    private static final int ANALYSIS_READER_IMAGES = 3;
+
+    private static final String OUTPUT_ENCODER = "encoder";
+    private static final String OUTPUT_ANALYSIS = "analysis";
+
+    public interface OnFrameListener {
+        /**
+         * Called on a shared analysis thread. The image is closed once this returns.
+         */
+        void onFrame(String cameraId, Image image);
+    }
+
+    private final CameraBackend mCameraBackend;
+    private final PipelineScheduler mScheduler = new PipelineScheduler();
+    private Handler mBackgroundHandler;
+    private Handler mAnalysisHandler;
+    private FrameAnalysisPool mAnalysisPool;
+    private EncoderDrainPool mDrainPool;
+    private EncoderPool mEncoderPool;
+
+    private boolean mStarted;
+    private boolean mRecording;
+
+    private List<String> mRequestedCameraIds = Collections.emptyList();
+    private int mMaxCameras = DEFAULT_MAX_CAMERAS;
+    private int mStreamWidth = 1280;
+    private int mStreamHeight = 720;
+    private int mMaxFps = 30;
+    private int mAnalysisThreads = 2;
+    private int mDrainThreads = 1;
+    private OnFrameListener mFrameListener;
+
+    // Changed by the caller, read from any thread; each stream's camera state belongs to the
+    // capture thread
+    private final List<CameraStream> mStreams = new CopyOnWriteArrayList<>();
+
+    public MultiCameraManager(Context context) {
+        this(new SystemCameraBackend(context));
+    }
+
+    public MultiCameraManager(CameraBackend cameraBackend) {
+        mCameraBackend = cameraBackend;
+    }
+
+    /**
+     * Cameras to open, in priority order. Ids outside the best concurrent combination are left
+     * out. By default as many cameras as a combination allows, up to {@link #setMaxCameras(int)}.
+     */
+    public void setCameraIds(String... cameraIds) {
+        if (mStarted) {
+            throw new RuntimeException("Cannot set camera ids once the camera has started");
+        }
+
+        mRequestedCameraIds = Arrays.asList(cameraIds);
+    }
+
+    public void setMaxCameras(int maxCameras) {
+        if (mStarted) {
+            throw new RuntimeException("Cannot set max cameras once the camera has started");
+        }
+
+        mMaxCameras = maxCameras;
+    }
+
+    public void setStreamDimension(int width, int height) {
+        if (mStarted) {
+            throw new RuntimeException("Cannot set stream dimension once the camera has started");
+        }
+
+        mStreamWidth = width;
+        mStreamHeight = height;
+    }
+
+    public void setMaxFps(int maxFps) {
+        if (mStarted) {
+            throw new RuntimeException("Cannot set max fps once the camera has started");
+        }
+
+        mMaxFps = maxFps;
+    }
+
+    /**
+     * Size of the shared pools. Takes effect the next time the pools are created, after
+     * {@link #release()}.
+     */
+    public void setThreadCounts(int analysisThreads, int drainThreads) {
+        if (mStarted) {
+            throw new RuntimeException("Cannot set thread counts once the camera has started");
+        }
+
+        mAnalysisThreads = Math.max(1, analysisThreads);
+        mDrainThreads = Math.max(1, drainThreads);
+    }
+
+    public void setOnFrameListener(OnFrameListener listener) {
+        if (mStarted) {
+            throw new RuntimeException("Cannot set frame listener once the camera has started");
+        }
+
+        mFrameListener = listener;
+    }
+
+    public PipelineScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Ids of the cameras opened by the last {@link #startCamera(boolean)}.
+     */
+    public List<String> getActiveCameraIds() {
+        List<String> ids = new ArrayList<>(mStreams.size());
+        for (CameraStream stream : mStreams)
+            ids.add(stream.cameraId);
+        return ids;
+    }
+
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public void startCamera(final boolean recording) {
+        if (mStarted)
+            return;
+
+        startThreads();
+        List<String> cameraIds = selectCameras();
+        if (cameraIds.isEmpty()) {
+            Log.e(TAG, "No camera to open");
+            return;
+        }
+        mStarted = true;
+        mRecording = recording;
+
+        long now = SystemClock.elapsedRealtime();
+        for (String id : cameraIds) {
+            try {
+                final CameraStream stream = new CameraStream(id, mCameraBackend.getCameraCharacteristics(id), now);
+                mStreams.add(stream);
+                mBackgroundHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        stream.start(recording);
+                    }
+                });
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Camera " + id + " unavailable", e);
+            }
+        }
+    }
+
+    public void stopCamera() {
+        if (!mStarted)
+            return;
+
+        final List<CameraStream> streams = new ArrayList<>(mStreams);
+        mStreams.clear();
+        mStarted = false;
+        mRecording = false;
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (CameraStream stream : streams)
+                    stream.stop();
+            }
+        });
+    }
+
+    /**
+     * Stops the cameras and the shared threads, which otherwise survive stop/start cycles.
+     */
+    public void release() {
+        stopCamera();
+        // Runs the stops queued above first, so every encoder has been told to finish
+        mScheduler.quit();
+        mBackgroundHandler = null;
+        mAnalysisHandler = null;
+        if (mDrainPool != null) {
+            mDrainPool.shutdown();
+            mDrainPool = null;
+        }
+        if (mAnalysisPool != null) {
+            mAnalysisPool.shutdown();
+            mAnalysisPool = null;
+        }
+        if (mEncoderPool != null) {
+            mEncoderPool.shutdown();
+            mEncoderPool = null;
+        }
+    }
+
+    public void startRecording() {
+        if (!mStarted || mRecording)
+            return;
+
+        mRecording = true;
+        final List<CameraStream> streams = new ArrayList<>(mStreams);
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (CameraStream stream : streams)
+                    stream.startEncoder();
+            }
+        });
+    }
+
+    public void stopRecording() {
+        if (!mStarted || !mRecording)
+            return;
+
+        mRecording = false;
+        final List<CameraStream> streams = new ArrayList<>(mStreams);
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (CameraStream stream : streams)
+                    stream.stopEncoder();
+            }
+        });
+    }
+
+    /**
+     * Per camera rates since the previous call, in the order the cameras were opened.
+     */
+    public List<CameraStreamStats.Snapshot> sampleStats() {
+        long now = SystemClock.elapsedRealtime();
+        List<CameraStreamStats.Snapshot> stats = new ArrayList<>(mStreams.size());
+        for (CameraStream stream : mStreams)
+            stats.add(stream.stats.sample(now));
+        return stats;
+    }
+
+    public String dumpStats() {
+        StringBuilder sb = new StringBuilder();
+        for (CameraStreamStats.Snapshot stats : sampleStats()) {
+            if (sb.length() > 0)
+                sb.append('\n');
+            sb.append(stats);
+        }
+        return sb.toString();
+    }
+
+    // Internal
+
+    private void startThreads() {
+        mScheduler.start();
+        mBackgroundHandler = mScheduler.getHandler(PipelineScheduler.Stage.CAPTURE);
+        mAnalysisHandler = mScheduler.getHandler(PipelineScheduler.Stage.ANALYSIS);
+
+        if (mAnalysisPool == null)
+            mAnalysisPool = new FrameAnalysisPool(mAnalysisThreads);
+        if (mDrainPool == null)
+            mDrainPool = new EncoderDrainPool(mDrainThreads, mScheduler);
+        if (mEncoderPool == null) {
+            // Each camera gets its codec back when the next recording starts
+            mEncoderPool = new EncoderPool(new EncoderPool.Factory() {
+                @Override
+                public EncoderBackend create() {
+                    return new MediaCodecEncoderBackend();
+                }
+            }, Math.max(1, mMaxCameras));
+        }
+    }
+
+    private List<String> selectCameras() {
+        try {
+            List<String> available = Arrays.asList(mCameraBackend.getCameraIdList());
+            List<String> selected = ConcurrentCameraSelector.select(mCameraBackend.getConcurrentCameraIds(),
+                    available, mRequestedCameraIds, mMaxCameras);
+            Log.d(TAG, "Cameras " + selected + " out of " + available);
+            return selected;
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Camera list unavailable", e);
+            return Collections.emptyList();
+        }
+    }
+
+    // One camera's recording, drained by the shared pool. The file is named after the camera,
+    // so recordings started in the same second do not collide
+    private class StreamEncoder extends MediaEncoder {
+        private final CameraStream mStream;
+        private final Handler mCaptureHandler;
+
+        StreamEncoder(CameraStream stream, Handler captureHandler) {
+            super(stream.encoderWidth, stream.encoderHeight);
+            mStream = stream;
+            mCaptureHandler = captureHandler;
+        }
+
+        // On a drain thread: the session is rebuilt around the surface on the capture thread
+        @Override
+        protected void onSurfaceCreated(final Surface surface) {
+            super.onSurfaceCreated(surface);
+            mCaptureHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mStream.attachEncoder(StreamEncoder.this, surface);
+                }
+            });
+        }
+
+        @Override
+        protected File createOutputFile() {
+            File file = super.createOutputFile();
+            if (file == null)
+                return null;
+            String name = file.getName();
+            int extension = name.lastIndexOf('.');
+            return new File(file.getParentFile(), name.substring(0, extension) + "-camera" + mStream.cameraId + name.substring(extension));
+        }
+    }
+
+    private class CameraStream {
+        final String cameraId;
+        final CameraCharacteristics characteristics;
+        final CameraStreamStats stats;
+        final FrameAnalysisPool.Lane<Image> lane;
+
+        int encoderWidth;
+        int encoderHeight;
+        int analysisWidth;
+        int analysisHeight;
+
+        // Capture thread only
+        CameraDevice device;
+        ImageReader reader;
+        MediaEncoder encoder;
+        Surface encoderSurface;
+        int sessionGeneration;
+        boolean stopped;
+        // Taken out of the session, stopped once the session without their surface is up
+        final List<MediaEncoder> detachedEncoders = new ArrayList<>();
+
+        // The dispatch thread acquires images under it, so the reader never closes mid-acquire
+        final Object readerLock = new Object();
+        boolean readerClosed;
+
+        CameraStream(String cameraId, CameraCharacteristics characteristics, long nowMs) {
+            this.cameraId = cameraId;
+            this.characteristics = characteristics;
+            stats = new CameraStreamStats(cameraId, nowMs);
+            lane = mAnalysisPool.newLane(mAnalysis);
+            encoderWidth = analysisWidth = mStreamWidth;
+            encoderHeight = analysisHeight = mStreamHeight;
+            negotiateStreams();
+        }
+
+        private void negotiateStreams() {
+            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (map == null)
+                return;
+
+            List<StreamConfigNegotiator.OutputRequest> requests = new ArrayList<>(2);
+            requests.add(new StreamConfigNegotiator.OutputRequest(OUTPUT_ENCODER, ImageFormat.PRIVATE, mStreamWidth, mStreamHeight, true));
+            requests.add(new StreamConfigNegotiator.OutputRequest(OUTPUT_ANALYSIS, ImageFormat.YUV_420_888, mStreamWidth, mStreamHeight, true));
+            StreamConfigNegotiator.Result result = new StreamConfigNegotiator(new StreamConfigurationMapCapabilities(map))
+                    .negotiate(requests, mMaxFps);
+            Log.d(TAG, "Camera " + cameraId + " stream configuration (satisfied=" + result.satisfied + ")\n" + result.explain());
+
+            StreamConfigNegotiator.Choice encoderChoice = result.get(OUTPUT_ENCODER);
+            if (encoderChoice != null) {
+                encoderWidth = encoderChoice.size.getWidth();
+                encoderHeight = encoderChoice.size.getHeight();
+            }
+            StreamConfigNegotiator.Choice analysisChoice = result.get(OUTPUT_ANALYSIS);
+            if (analysisChoice != null) {
+                analysisWidth = analysisChoice.size.getWidth();
+                analysisHeight = analysisChoice.size.getHeight();
+            }
+        }
+
+        @SuppressLint("MissingPermission")
+        void start(boolean recording) {
+            reader = ImageReader.newInstance(analysisWidth, analysisHeight, ImageFormat.YUV_420_888, ANALYSIS_READER_IMAGES);
+            reader.setOnImageAvailableListener(mReaderListener, mAnalysisHandler);
+            if (recording)
+                startEncoder();
+
+            try {
+                mCameraBackend.openCamera(cameraId, mStateCallback, mBackgroundHandler);
+            } catch (CameraAccessException | SecurityException e) {
+                Log.e(TAG, "Camera " + cameraId + " failed to open", e);
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            stats.setStreaming(false);
+            if (device != null) {
+                device.close();
+                device = null;
+            }
+            // The camera no longer draws into any encoder surface
+            if (encoder != null) {
+                encoder.stopRecording();
+                encoder = null;
+            }
+            encoderSurface = null;
+            finishDetachedEncoders();
+
+            if (reader != null) {
+                reader.setOnImageAvailableListener(null, null);
+                final ImageReader closing = reader;
+                reader = null;
+                // Closing the reader invalidates the image analysis may still hold
+                lane.close(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (readerLock) {
+                            readerClosed = true;
+                            closing.close();
+                        }
+                    }
+                });
+            }
+        }
+
+        // The session is recreated once the encoder surface exists
+        void startEncoder() {
+            if (stopped || encoder != null)
+                return;
+
+            encoder = new StreamEncoder(this, mBackgroundHandler);
+            encoder.setOnFrameAvailable(new MediaEncoder.OnFrameAvailableListener() {
+                @Override
+                public void onFrameAvailable() {
+                    stats.onEncoded();
+                }
+            });
+            encoder.setScheduler(mScheduler);
+            encoder.setEncoderPool(mEncoderPool);
+            encoder.setDrainPool(mDrainPool);
+            encoder.startRecording();
+        }
+
+        void attachEncoder(MediaEncoder attached, Surface surface) {
+            if (stopped || attached != encoder)
+                return;
+
+            encoderSurface = surface;
+            if (device != null)
+                createSession();
+        }
+
+        void stopEncoder() {
+            if (encoder == null)
+                return;
+
+            MediaEncoder stopping = encoder;
+            boolean inSession = encoderSurface != null && device != null;
+            encoder = null;
+            encoderSurface = null;
+            if (inSession) {
+                detachedEncoders.add(stopping);
+                createSession();
+            } else {
+                stopping.stopRecording();
+            }
+        }
+
+        private void finishDetachedEncoders() {
+            for (MediaEncoder detached : detachedEncoders)
+                detached.stopRecording();
+            detachedEncoders.clear();
+        }
+
+        // Replaces the current session, which the device closes; callbacks of a session that
+        // was replaced before it came up are ignored
+        private void createSession() {
+            final int generation = ++sessionGeneration;
+            List<Surface> outputSurfaces = new ArrayList<>(2);
+            outputSurfaces.add(reader.getSurface());
+            if (encoderSurface != null)
+                outputSurfaces.add(encoderSurface);
+
+            try {
+                final CaptureRequest.Builder builder = device.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+                builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+                for (Surface output : outputSurfaces)
+                    builder.addTarget(output);
+
+                CameraCaptureSession.StateCallback callback = new CameraCaptureSession.StateCallback() {
+                    @Override
+                    public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                        if (generation != sessionGeneration || device == null)
+                            return;
+                        try {
+                            cameraCaptureSession.setRepeatingRequest(builder.build(), mCaptureCallback, mBackgroundHandler);
+                            stats.setStreaming(true);
+                        } catch (CameraAccessException | IllegalStateException e) {
+                            Log.e(TAG, "Camera " + cameraId + " setRepeatingRequest failed", e);
+                        }
+                        finishDetachedEncoders();
+                    }
+
+                    @Override
+                    public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+                        Log.e(TAG, "Camera " + cameraId + " session configuration failed");
+                        if (generation != sessionGeneration)
+                            return;
+                        stats.setStreaming(false);
+                        finishDetachedEncoders();
+                    }
+                };
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                    List<OutputConfiguration> outputs = new ArrayList<>(outputSurfaces.size());
+                    for (Surface output : outputSurfaces)
+                        outputs.add(new OutputConfiguration(output));
+                    device.createCaptureSession(new SessionConfiguration(SessionConfiguration.SESSION_REGULAR,
+                            outputs, mScheduler.getExecutor(PipelineScheduler.Stage.CAPTURE), callback));
+                } else {
+                    device.createCaptureSession(outputSurfaces, callback, mBackgroundHandler);
+                }
+            } catch (CameraAccessException | IllegalStateException e) {
+                Log.e(TAG, "Camera " + cameraId + " session creation failed", e);
+                finishDetachedEncoders();
+            }
+        }
+
+        private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(@NonNull CameraDevice camera) {
+                if (stopped) {
+                    camera.close();
+                    return;
+                }
+                device = camera;
+                // A recording camera waits for the encoder surface, attachEncoder() then
+                // creates the session
+                if (encoder == null || encoderSurface != null)
+                    createSession();
+            }
+
+            @Override
+            public void onDisconnected(@NonNull CameraDevice camera) {
+                Log.w(TAG, "Camera " + cameraId + " disconnected");
+                onCameraLost(camera);
+            }
+
+            @Override
+            public void onError(@NonNull CameraDevice camera, int error) {
+                Log.e(TAG, "Camera " + cameraId + " error " + error);
+                onCameraLost(camera);
+            }
+
+            // The other cameras keep streaming; this one is reported as down
+            private void onCameraLost(CameraDevice camera) {
+                camera.close();
+                if (camera == device) {
+                    device = null;
+                    stats.setStreaming(false);
+                    finishDetachedEncoders();
+                }
+            }
+        };
+
+        private final CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+            @Override
+            public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+                stats.onCaptured();
+            }
+        };
+
+        // Runs on the dispatch thread: hands the latest frame to the pool or drops it
+        private final ImageReader.OnImageAvailableListener mReaderListener = new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader imageReader) {
+                Image image;
+                synchronized (readerLock) {
+                    if (readerClosed)
+                        return;
+                    image = imageReader.acquireLatestImage();
+                }
+                if (image == null)
+                    return;
+
+                if (mFrameListener == null) {
+                    image.close();
+                } else if (!lane.offer(image)) {
+                    image.close();
+                    stats.onDropped();
+                }
+            }
+        };
+
+        private final FrameAnalysisPool.Processor<Image> mAnalysis = new FrameAnalysisPool.Processor<Image>() {
+            @Override
+            public void process(Image image) {
+                try {
+                    mFrameListener.onFrame(cameraId, image);
+                    stats.onAnalyzed();
+                } finally {
+                    image.close();
+                }
+            }
+        };
+    }
+}
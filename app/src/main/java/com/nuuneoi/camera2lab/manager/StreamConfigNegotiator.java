@@ -0,0 +1,291 @@
+package com.nuuneoi.camera2lab.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Chooses output sizes for a set of camera streams so the session can sustain a target frame
+ * rate. A request's frame duration is bounded below by the largest min frame duration of the
+ * streams it targets, plus the stall duration of any stalling stream (JPEG, RAW) it contains.
+ * Streams captured every frame ("repeating") therefore have to fit the frame budget together;
+ * occasional stills only report the stall they will cause, and the duration of the frame they
+ * are captured in.
+ *
+ * Sizes sharing the aspect ratio of the first requested output are preferred, then the size
+ * closest to the requested one without exceeding it.
+ */
+public class StreamConfigNegotiator {
+
+    public interface CapabilityTable {
+        StreamSize[] getOutputSizes(int format);
+
+        long getOutputMinFrameDuration(int format, StreamSize size);
+
+        long getOutputStallDuration(int format, StreamSize size);
+    }
+
+    public static class OutputRequest {
+        public final String name;
+        public final int format;
+        public final StreamSize desiredSize;
+        public final boolean repeating;
+
+        public OutputRequest(String name, int format, int width, int height, boolean repeating) {
+            this.name = name;
+            this.format = format;
+            this.desiredSize = new StreamSize(width, height);
+            this.repeating = repeating;
+        }
+    }
+
+    public static class Choice {
+        public final OutputRequest request;
+        public final StreamSize size;
+        public final long minFrameDurationNs;
+        public final long stallDurationNs;
+        public final String reason;
+
+        Choice(OutputRequest request, StreamSize size, long minFrameDurationNs, long stallDurationNs, String reason) {
+            this.request = request;
+            this.size = size;
+            this.minFrameDurationNs = minFrameDurationNs;
+            this.stallDurationNs = stallDurationNs;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return request.name + " -> " + size + ": " + reason;
+        }
+    }
+
+    public static class Result {
+        public final boolean satisfied;
+        public final long frameDurationNs;
+        // Duration of a frame that also captures every occasional still
+        public final long stillFrameDurationNs;
+        public final List<Choice> choices;
+        public final List<String> notes;
+
+        Result(boolean satisfied, long frameDurationNs, long stillFrameDurationNs, List<Choice> choices, List<String> notes) {
+            this.satisfied = satisfied;
+            this.frameDurationNs = frameDurationNs;
+            this.stillFrameDurationNs = stillFrameDurationNs;
+            this.choices = choices;
+            this.notes = notes;
+        }
+
+        public Choice get(String name) {
+            for (Choice choice : choices) {
+                if (choice.request.name.equals(name))
+                    return choice;
+            }
+            return null;
+        }
+
+        public String explain() {
+            StringBuilder sb = new StringBuilder();
+            for (Choice choice : choices)
+                sb.append(choice).append('\n');
+            for (String note : notes)
+                sb.append(note).append('\n');
+            return sb.toString();
+        }
+    }
+
+    private static final float ASPECT_TOLERANCE = 0.01f;
+
+    private final CapabilityTable mCapabilities;
+
+    public StreamConfigNegotiator(CapabilityTable capabilities) {
+        mCapabilities = capabilities;
+    }
+
+    public Result negotiate(List<OutputRequest> requests, int targetFps) {
+        if (requests.isEmpty())
+            throw new IllegalArgumentException("No outputs requested");
+
+        final long budgetNs = 1000000000L / targetFps;
+        final float referenceAspect = requests.get(0).desiredSize.getAspectRatio();
+        List<String> notes = new ArrayList<>();
+
+        // Ranked candidates per output; only sizes that can run at the target rate on their own
+        List<List<StreamSize>> candidates = new ArrayList<>(requests.size());
+        for (OutputRequest request : requests) {
+            List<StreamSize> ranked = rankCandidates(request, referenceAspect, budgetNs);
+            if (ranked.isEmpty()) {
+                notes.add(request.name + ": no size of format 0x" + Integer.toHexString(request.format)
+                        + " reaches " + targetFps + "fps");
+                return new Result(false, 0, 0, Collections.<Choice>emptyList(), notes);
+            }
+            candidates.add(ranked);
+        }
+
+        int[] picks = new int[requests.size()];
+        for (; ; ) {
+            long frameDurationNs = combinedFrameDuration(requests, candidates, picks, false);
+            if (frameDurationNs <= budgetNs) {
+                notes.add(String.format(Locale.US, "combined frame duration %.1fms fits the %.1fms budget of %dfps",
+                        frameDurationNs / 1e6, budgetNs / 1e6, targetFps));
+                long stillFrameDurationNs = combinedFrameDuration(requests, candidates, picks, true);
+                if (stillFrameDurationNs != frameDurationNs) {
+                    notes.add(String.format(Locale.US, "a frame capturing the stills takes %.1fms%s",
+                            stillFrameDurationNs / 1e6, stillFrameDurationNs > budgetNs ? ", over budget" : ""));
+                }
+                return new Result(true, frameDurationNs, stillFrameDurationNs,
+                        buildChoices(requests, candidates, picks, referenceAspect, budgetNs), notes);
+            }
+
+            int heaviest = heaviestDowngradable(requests, candidates, picks);
+            if (heaviest < 0) {
+                notes.add(String.format(Locale.US, "combined frame duration %.1fms exceeds the %.1fms budget of %dfps " +
+                                "even at the smallest sizes",
+                        frameDurationNs / 1e6, budgetNs / 1e6, targetFps));
+                return new Result(false, frameDurationNs, combinedFrameDuration(requests, candidates, picks, true),
+                        buildChoices(requests, candidates, picks, referenceAspect, budgetNs), notes);
+            }
+            OutputRequest request = requests.get(heaviest);
+            StreamSize from = candidates.get(heaviest).get(picks[heaviest]);
+            picks[heaviest]++;
+            notes.add(request.name + ": stepped down from " + from + " to keep the combined frame duration within budget");
+        }
+    }
+
+    // Internal
+
+    private List<StreamSize> rankCandidates(final OutputRequest request, final float referenceAspect, long budgetNs) {
+        List<StreamSize> sizes = new ArrayList<>();
+        for (StreamSize size : mCapabilities.getOutputSizes(request.format)) {
+            if (mCapabilities.getOutputMinFrameDuration(request.format, size) <= budgetNs)
+                sizes.add(size);
+        }
+
+        final long desiredArea = request.desiredSize.getArea();
+        Collections.sort(sizes, new Comparator<StreamSize>() {
+            @Override
+            public int compare(StreamSize a, StreamSize b) {
+                boolean aMatches = matchesAspect(a, referenceAspect);
+                boolean bMatches = matchesAspect(b, referenceAspect);
+                if (aMatches != bMatches)
+                    return aMatches ? -1 : 1;
+
+                boolean aFits = a.getArea() <= desiredArea;
+                boolean bFits = b.getArea() <= desiredArea;
+                if (aFits != bFits)
+                    return aFits ? -1 : 1;
+                // Among sizes that fit take the largest, otherwise the smallest oversize
+                if (aFits)
+                    return Long.compare(b.getArea(), a.getArea());
+                return Long.compare(a.getArea(), b.getArea());
+            }
+        });
+
+        if (sizes.isEmpty())
+            return sizes;
+
+        // Step-down ladder: the preferred size, then only strictly smaller sizes in the same order
+        StreamSize preferred = sizes.get(0);
+        List<StreamSize> ladder = new ArrayList<>(sizes.size());
+        ladder.add(preferred);
+        List<StreamSize> smaller = new ArrayList<>();
+        for (StreamSize size : sizes) {
+            if (size.getArea() < preferred.getArea())
+                smaller.add(size);
+        }
+        Collections.sort(smaller, new Comparator<StreamSize>() {
+            @Override
+            public int compare(StreamSize a, StreamSize b) {
+                boolean aMatches = matchesAspect(a, referenceAspect);
+                boolean bMatches = matchesAspect(b, referenceAspect);
+                if (aMatches != bMatches)
+                    return aMatches ? -1 : 1;
+                return Long.compare(b.getArea(), a.getArea());
+            }
+        });
+        ladder.addAll(smaller);
+        return ladder;
+    }
+
+    private long combinedFrameDuration(List<OutputRequest> requests, List<List<StreamSize>> candidates, int[] picks,
+                                       boolean withStills) {
+        long maxMinFrameDuration = 0;
+        long stall = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            OutputRequest request = requests.get(i);
+            if (!request.repeating && !withStills)
+                continue;
+            StreamSize size = candidates.get(i).get(picks[i]);
+            maxMinFrameDuration = Math.max(maxMinFrameDuration, mCapabilities.getOutputMinFrameDuration(request.format, size));
+            stall += mCapabilities.getOutputStallDuration(request.format, size);
+        }
+        return maxMinFrameDuration + stall;
+    }
+
+    private int heaviestDowngradable(List<OutputRequest> requests, List<List<StreamSize>> candidates, int[] picks) {
+        int heaviest = -1;
+        long heaviestCost = -1;
+        for (int i = 0; i < requests.size(); i++) {
+            OutputRequest request = requests.get(i);
+            if (!request.repeating || picks[i] + 1 >= candidates.get(i).size())
+                continue;
+            StreamSize size = candidates.get(i).get(picks[i]);
+            long cost = mCapabilities.getOutputMinFrameDuration(request.format, size)
+                    + mCapabilities.getOutputStallDuration(request.format, size);
+            if (cost > heaviestCost) {
+                heaviestCost = cost;
+                heaviest = i;
+            }
+        }
+        return heaviest;
+    }
+
+    private List<Choice> buildChoices(List<OutputRequest> requests, List<List<StreamSize>> candidates, int[] picks,
+                                      float referenceAspect, long budgetNs) {
+        List<Choice> choices = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            OutputRequest request = requests.get(i);
+            StreamSize size = candidates.get(i).get(picks[i]);
+            long minFrameDuration = mCapabilities.getOutputMinFrameDuration(request.format, size);
+            long stall = mCapabilities.getOutputStallDuration(request.format, size);
+
+            List<String> reasons = new ArrayList<>();
+            if (size.equals(request.desiredSize))
+                reasons.add("requested size");
+            else if (size.getArea() < request.desiredSize.getArea())
+                reasons.add("largest size below requested " + request.desiredSize);
+            else
+                reasons.add("smallest size above requested " + request.desiredSize);
+            reasons.add(matchesAspect(size, referenceAspect)
+                    ? String.format(Locale.US, "matches %.2f aspect", referenceAspect)
+                    : "no size with matching aspect");
+            reasons.add(String.format(Locale.US, "min frame duration %.1fms of %.1fms budget", minFrameDuration / 1e6, budgetNs / 1e6));
+            if (stall > 0) {
+                reasons.add(String.format(Locale.US, request.repeating
+                        ? "stalls every frame by %.1fms"
+                        : "stalls the frame it is captured in by %.1fms", stall / 1e6));
+            }
+            if (picks[i] > 0)
+                reasons.add("stepped down " + picks[i] + " size(s) to fit the combined budget");
+
+            choices.add(new Choice(request, size, minFrameDuration, stall, join(reasons)));
+        }
+        return choices;
+    }
+
+    private static boolean matchesAspect(StreamSize size, float aspect) {
+        return Math.abs(size.getAspectRatio() - aspect) < ASPECT_TOLERANCE;
+    }
+
+    private static String join(List<String> parts) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+}
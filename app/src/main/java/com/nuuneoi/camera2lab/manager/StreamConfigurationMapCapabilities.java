@@ -0,0 +1,35 @@
+package com.nuuneoi.camera2lab.manager;
+
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Size;
+
+public class StreamConfigurationMapCapabilities implements StreamConfigNegotiator.CapabilityTable {
+
+    private final StreamConfigurationMap mMap;
+
+    public StreamConfigurationMapCapabilities(StreamConfigurationMap map) {
+        mMap = map;
+    }
+
+    @Override
+    public StreamSize[] getOutputSizes(int format) {
+        Size[] sizes = mMap.getOutputSizes(format);
+        if (sizes == null)
+            return new StreamSize[0];
+
+        StreamSize[] result = new StreamSize[sizes.length];
+        for (int i = 0; i < sizes.length; i++)
+            result[i] = new StreamSize(sizes[i].getWidth(), sizes[i].getHeight());
+        return result;
+    }
+
+    @Override
+    public long getOutputMinFrameDuration(int format, StreamSize size) {
+        return mMap.getOutputMinFrameDuration(format, new Size(size.getWidth(), size.getHeight()));
+    }
+
+    @Override
+    public long getOutputStallDuration(int format, StreamSize size) {
+        return mMap.getOutputStallDuration(format, new Size(size.getWidth(), size.getHeight()));
+    }
+}
@@ -0,0 +1,50 @@
+package com.nuuneoi.camera2lab.manager;
+
+/**
+ * Plain width x height pair, used instead of android.util.Size so that stream selection can
+ * be exercised on the JVM.
+ */
+public class StreamSize {
+
+    private final int mWidth;
+    private final int mHeight;
+
+    public StreamSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getArea() {
+        return (long) mWidth * mHeight;
+    }
+
+    public float getAspectRatio() {
+        return mWidth / (float) mHeight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof StreamSize)) return false;
+        StreamSize that = (StreamSize) o;
+        return mWidth == that.mWidth && mHeight == that.mHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mWidth + mHeight;
+    }
+
+    @Override
+    public String toString() {
+        return mWidth + "x" + mHeight;
+    }
+}
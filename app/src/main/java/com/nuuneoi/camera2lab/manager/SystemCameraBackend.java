@@ -0,0 +1,51 @@
+package com.nuuneoi.camera2lab.manager;
+
+import android.Manifest;
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+import android.os.Handler;
+
+import androidx.annotation.RequiresPermission;
+
+import java.util.Collections;
+import java.util.Set;
+
+public class SystemCameraBackend implements CameraBackend {
+
+    private final CameraManager mCameraManager;
+
+    public SystemCameraBackend(Context context) {
+        mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    }
+
+    public CameraManager getCameraManager() {
+        return mCameraManager;
+    }
+
+    @Override
+    public String[] getCameraIdList() throws CameraAccessException {
+        return mCameraManager.getCameraIdList();
+    }
+
+    @Override
+    public CameraCharacteristics getCameraCharacteristics(String cameraId) throws CameraAccessException {
+        return mCameraManager.getCameraCharacteristics(cameraId);
+    }
+
+    @Override
+    public Set<Set<String>> getConcurrentCameraIds() throws CameraAccessException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R)
+            return Collections.emptySet();
+        return mCameraManager.getConcurrentCameraIds();
+    }
+
+    @RequiresPermission(Manifest.permission.CAMERA)
+    @Override
+    public void openCamera(String cameraId, CameraDevice.StateCallback callback, Handler handler) throws CameraAccessException {
+        mCameraManager.openCamera(cameraId, callback, handler);
+    }
+}
@@ -0,0 +1,188 @@
+package com.nuuneoi.camera2lab.manager;
+
+import java.util.Locale;
+
+/**
+ * Measures what a video snapshot costs: the latency from the request to the file being written,
+ * and the gaps in the recorded frame stream while the snapshot is in flight.
+ *
+ * Every captured frame reports its sensor timestamp. Outside snapshots the intervals feed a
+ * running baseline; from the request until the file is written and a few frames have followed
+ * the snapshot frame, the largest interval is kept and each interval worth more than one and a
+ * half baseline frames counts the frames that did not make it.
+ *
+ * Called from the capture and file writing threads.
+ */
+public class VideoSnapshotMonitor {
+
+    // Frames after the snapshot frame that still belong to its window, for a stall felt late
+    public static final int TRAILING_FRAMES = 3;
+
+    // Weight of a new interval in the baseline, 1/8
+    private static final int BASELINE_SHIFT = 3;
+
+    private long mLastFrameNs = -1;
+    private long mBaselineIntervalNs;
+
+    // Current snapshot
+    private boolean mPending;
+    private long mRequestedNs;
+    private boolean mCaptured;
+    private boolean mWritten;
+    private int mTrailingFrames;
+    private long mWindowMaxGapNs;
+    private int mWindowMissedFrames;
+
+    private long mSnapshotCount;
+    private long mFailedCount;
+    private long mLastLatencyNs;
+    private long mTotalLatencyNs;
+    private long mMaxLatencyNs;
+    private long mLastMaxGapNs;
+    private long mMaxGapNs;
+    private int mLastMissedFrames;
+    private long mTotalMissedFrames;
+
+    /**
+     * @return false when a snapshot is already in flight
+     */
+    public synchronized boolean onSnapshotRequested(long nowNs) {
+        if (mPending)
+            return false;
+        mPending = true;
+        mRequestedNs = nowNs;
+        mCaptured = false;
+        mWritten = false;
+        mTrailingFrames = 0;
+        mWindowMaxGapNs = 0;
+        mWindowMissedFrames = 0;
+        return true;
+    }
+
+    /**
+     * @param snapshot true for the frame the snapshot request captured
+     */
+    public synchronized void onFrameCaptured(long sensorTimestampNs, boolean snapshot) {
+        long previousNs = mLastFrameNs;
+        mLastFrameNs = sensorTimestampNs;
+        if (previousNs < 0 || sensorTimestampNs <= previousNs)
+            return;
+
+        long intervalNs = sensorTimestampNs - previousNs;
+        if (!mPending) {
+            mBaselineIntervalNs = mBaselineIntervalNs == 0 ? intervalNs
+                    : mBaselineIntervalNs + ((intervalNs - mBaselineIntervalNs) >> BASELINE_SHIFT);
+            return;
+        }
+
+        mWindowMaxGapNs = Math.max(mWindowMaxGapNs, intervalNs);
+        if (mBaselineIntervalNs > 0) {
+            // Rounded, so that sensor jitter does not count as a lost frame
+            long frames = (intervalNs + mBaselineIntervalNs / 2) / mBaselineIntervalNs;
+            if (frames > 1)
+                mWindowMissedFrames += (int) (frames - 1);
+        }
+        if (snapshot)
+            mCaptured = true;
+        else if (mCaptured)
+            mTrailingFrames++;
+        maybeFinish();
+    }
+
+    public synchronized void onSnapshotWritten(long nowNs) {
+        if (!mPending || mWritten)
+            return;
+        mWritten = true;
+        mLastLatencyNs = nowNs - mRequestedNs;
+        mTotalLatencyNs += mLastLatencyNs;
+        mMaxLatencyNs = Math.max(mMaxLatencyNs, mLastLatencyNs);
+        mSnapshotCount++;
+        maybeFinish();
+    }
+
+    /**
+     * The capture or the write failed; the window closes without a latency sample.
+     */
+    public synchronized void onSnapshotFailed() {
+        if (!mPending)
+            return;
+        mFailedCount++;
+        mPending = false;
+    }
+
+    public synchronized void reset() {
+        mLastFrameNs = -1;
+        mBaselineIntervalNs = 0;
+        mPending = false;
+    }
+
+    public synchronized boolean isPending() {
+        return mPending;
+    }
+
+    public synchronized long getSnapshotCount() {
+        return mSnapshotCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    public synchronized long getLastLatencyNs() {
+        return mLastLatencyNs;
+    }
+
+    public synchronized long getAverageLatencyNs() {
+        return mSnapshotCount > 0 ? mTotalLatencyNs / mSnapshotCount : 0;
+    }
+
+    public synchronized long getMaxLatencyNs() {
+        return mMaxLatencyNs;
+    }
+
+    public synchronized long getBaselineIntervalNs() {
+        return mBaselineIntervalNs;
+    }
+
+    /**
+     * Largest frame interval seen during the last completed snapshot.
+     */
+    public synchronized long getLastMaxGapNs() {
+        return mLastMaxGapNs;
+    }
+
+    public synchronized long getMaxGapNs() {
+        return mMaxGapNs;
+    }
+
+    /**
+     * Recorded frames estimated lost during the last completed snapshot.
+     */
+    public synchronized int getLastMissedFrames() {
+        return mLastMissedFrames;
+    }
+
+    public synchronized long getTotalMissedFrames() {
+        return mTotalMissedFrames;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "Video snapshots: %d (%d failed), latency %.1fms avg, %.1fms max, " +
+                        "frame gap %.1fms max against %.1fms, %d frames missed",
+                mSnapshotCount, mFailedCount, getAverageLatencyNs() / 1e6, mMaxLatencyNs / 1e6,
+                mMaxGapNs / 1e6, mBaselineIntervalNs / 1e6, mTotalMissedFrames);
+    }
+
+    // Internal
+
+    private void maybeFinish() {
+        if (!mWritten || !mCaptured || mTrailingFrames < TRAILING_FRAMES)
+            return;
+        mPending = false;
+        mLastMaxGapNs = mWindowMaxGapNs;
+        mMaxGapNs = Math.max(mMaxGapNs, mWindowMaxGapNs);
+        mLastMissedFrames = mWindowMissedFrames;
+        mTotalMissedFrames += mWindowMissedFrames;
+    }
+}
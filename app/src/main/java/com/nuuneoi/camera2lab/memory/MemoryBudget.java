@@ -0,0 +1,364 @@
+package com.nuuneoi.camera2lab.memory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Process-wide accounting of the buffers the pipeline keeps around. Every pool registers with
+ * its kind of memory, a priority and a way to give memory back, then reserves bytes before it
+ * allocates and releases them when it lets go.
+ *
+ * Heap and direct bytes count against the same cap, since both make the process a target for
+ * the low memory killer. A reservation that would cross the cap first reclaims from pools of
+ * lower priority, lowest first, and fails when that is not enough. {@link #onTrimMemory(int)}
+ * reclaims down to a fraction of the cap when the system asks.
+ *
+ * Nothing here touches Android, so pressure can be simulated in tests.
+ */
+public class MemoryBudget {
+
+    public enum Kind {
+        HEAP,
+        DIRECT
+    }
+
+    // Rebuilt on demand, reclaimed first
+    public static final int PRIORITY_CACHE = 0;
+    public static final int PRIORITY_NORMAL = 50;
+    // Never asked to reclaim, the pipeline cannot run without it
+    public static final int PRIORITY_REQUIRED = 100;
+
+    // Values of the ComponentCallbacks2 trim levels
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+    public static final int TRIM_MEMORY_MODERATE = 60;
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    public static final long DEFAULT_CAP_BYTES = 64L * 1024 * 1024;
+
+    private static final MemoryBudget sGlobal = new MemoryBudget(DEFAULT_CAP_BYTES);
+
+    public interface Reclaimer {
+        /**
+         * Frees up to {@code bytes}, and releases what was freed from its pool. Called without
+         * the budget lock held, on whichever thread hit the pressure.
+         *
+         * @return the number of bytes freed
+         */
+        long reclaim(long bytes);
+    }
+
+    public final class Pool {
+        private final String mName;
+        private final Kind mKind;
+        private final int mPriority;
+        private final Reclaimer mReclaimer;
+
+        // Guarded by the budget
+        private long mUsedBytes;
+        private long mPeakBytes;
+        private long mReclaimedBytes;
+        private int mDeniedCount;
+        private boolean mRegistered = true;
+
+        private Pool(String name, Kind kind, int priority, Reclaimer reclaimer) {
+            mName = name;
+            mKind = kind;
+            mPriority = priority;
+            mReclaimer = reclaimer;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public Kind getKind() {
+            return mKind;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public long getUsedBytes() {
+            synchronized (MemoryBudget.this) {
+                return mUsedBytes;
+            }
+        }
+
+        /**
+         * Accounts for {@code bytes} the pool is about to allocate, reclaiming from lower
+         * priority pools when the cap would be crossed.
+         *
+         * @return false when the bytes do not fit; the pool should then go without them
+         */
+        public boolean tryReserve(long bytes) {
+            return MemoryBudget.this.reserve(this, bytes, false);
+        }
+
+        /**
+         * Accounts for an allocation that cannot be skipped. Lower priority pools are still
+         * reclaimed from, but the cap may end up crossed.
+         */
+        public void reserve(long bytes) {
+            MemoryBudget.this.reserve(this, bytes, true);
+        }
+
+        public void release(long bytes) {
+            synchronized (MemoryBudget.this) {
+                bytes = Math.min(bytes, mUsedBytes);
+                mUsedBytes -= bytes;
+                mTotalBytes -= bytes;
+            }
+        }
+
+        /**
+         * Releases whatever the pool still holds and stops it from being reclaimed from. Later
+         * reservations fail.
+         */
+        public void unregister() {
+            synchronized (MemoryBudget.this) {
+                if (!mRegistered)
+                    return;
+                mRegistered = false;
+                mTotalBytes -= mUsedBytes;
+                mUsedBytes = 0;
+                mPools.remove(this);
+            }
+        }
+    }
+
+    public static class Usage {
+        public final String name;
+        public final Kind kind;
+        public final int priority;
+        public final long usedBytes;
+        public final long peakBytes;
+        public final long reclaimedBytes;
+        public final int deniedCount;
+
+        Usage(Pool pool) {
+            name = pool.mName;
+            kind = pool.mKind;
+            priority = pool.mPriority;
+            usedBytes = pool.mUsedBytes;
+            peakBytes = pool.mPeakBytes;
+            reclaimedBytes = pool.mReclaimedBytes;
+            deniedCount = pool.mDeniedCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s [%s, priority %d]: %d KB (peak %d KB, reclaimed %d KB, denied %d)",
+                    name, kind, priority, usedBytes / 1024, peakBytes / 1024, reclaimedBytes / 1024, deniedCount);
+        }
+    }
+
+    // Reclaim order: lowest priority first, then the largest pool
+    private static final Comparator<Pool> RECLAIM_ORDER = new Comparator<Pool>() {
+        @Override
+        public int compare(Pool a, Pool b) {
+            if (a.mPriority != b.mPriority)
+                return a.mPriority < b.mPriority ? -1 : 1;
+            return Long.compare(b.mUsedBytes, a.mUsedBytes);
+        }
+    };
+
+    private final List<Pool> mPools = new ArrayList<>();
+    private long mCapBytes;
+    private long mTotalBytes;
+    private long mPeakTotalBytes;
+
+    public MemoryBudget(long capBytes) {
+        if (capBytes <= 0)
+            throw new IllegalArgumentException("Cap must be positive: " + capBytes);
+        mCapBytes = capBytes;
+    }
+
+    public static MemoryBudget global() {
+        return sGlobal;
+    }
+
+    /**
+     * @param reclaimer how the pool gives memory back; null when it cannot
+     */
+    public synchronized Pool register(String name, Kind kind, int priority, Reclaimer reclaimer) {
+        Pool pool = new Pool(name, kind, priority, reclaimer);
+        mPools.add(pool);
+        return pool;
+    }
+
+    public synchronized long getCapBytes() {
+        return mCapBytes;
+    }
+
+    /**
+     * Changes the cap, reclaiming down to it when it shrinks.
+     */
+    public void setCapBytes(long capBytes) {
+        if (capBytes <= 0)
+            throw new IllegalArgumentException("Cap must be positive: " + capBytes);
+        synchronized (this) {
+            mCapBytes = capBytes;
+        }
+        trimTo(capBytes, PRIORITY_REQUIRED);
+    }
+
+    public synchronized long getUsedBytes() {
+        return mTotalBytes;
+    }
+
+    public synchronized long getUsedBytes(Kind kind) {
+        long used = 0;
+        for (Pool pool : mPools) {
+            if (pool.mKind == kind)
+                used += pool.mUsedBytes;
+        }
+        return used;
+    }
+
+    public synchronized long getPeakUsedBytes() {
+        return mPeakTotalBytes;
+    }
+
+    /**
+     * Handles a ComponentCallbacks2 trim level. Light pressure while running only costs the
+     * caches; from RUNNING_CRITICAL on, every pool that can give memory back does.
+     *
+     * @return the number of bytes freed
+     */
+    public long onTrimMemory(int level) {
+        double fraction;
+        int belowPriority = PRIORITY_REQUIRED;
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            fraction = 0;
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            fraction = 0.1;
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            fraction = 0.25;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            fraction = 0.5;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            fraction = 0.25;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            fraction = 0.5;
+            belowPriority = PRIORITY_NORMAL;
+        } else {
+            fraction = 0.75;
+            belowPriority = PRIORITY_NORMAL;
+        }
+        return trimTo((long) (getCapBytes() * fraction), belowPriority);
+    }
+
+    /**
+     * Reclaims from pools with a priority below {@code belowPriority}, lowest first, until at
+     * most {@code targetBytes} are in use or nothing more can be freed.
+     *
+     * @return the number of bytes freed
+     */
+    public long trimTo(long targetBytes, int belowPriority) {
+        long freed = 0;
+        List<Pool> tried = new ArrayList<>();
+        while (true) {
+            Pool victim;
+            long excess;
+            synchronized (this) {
+                excess = mTotalBytes - targetBytes;
+                if (excess <= 0)
+                    return freed;
+                victim = nextVictim(belowPriority, tried);
+            }
+            if (victim == null)
+                return freed;
+            freed += reclaimFrom(victim, excess, tried);
+        }
+    }
+
+    public synchronized List<Usage> getBreakdown() {
+        List<Pool> pools = new ArrayList<>(mPools);
+        Collections.sort(pools, RECLAIM_ORDER);
+        List<Usage> usages = new ArrayList<>(pools.size());
+        for (Pool pool : pools)
+            usages.add(new Usage(pool));
+        return usages;
+    }
+
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            sb.append(String.format(Locale.US, "Memory budget: %d KB of %d KB (heap %d KB, direct %d KB, peak %d KB)",
+                    mTotalBytes / 1024, mCapBytes / 1024, getUsedBytes(Kind.HEAP) / 1024,
+                    getUsedBytes(Kind.DIRECT) / 1024, mPeakTotalBytes / 1024));
+        }
+        for (Usage usage : getBreakdown())
+            sb.append("\n  ").append(usage);
+        return sb.toString();
+    }
+
+    // Internal
+
+    private boolean reserve(Pool pool, long bytes, boolean force) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Negative reservation: " + bytes);
+
+        List<Pool> tried = null;
+        while (true) {
+            Pool victim;
+            long excess;
+            synchronized (this) {
+                // A pool racing its own unregister gets nothing accounted
+                if (!pool.mRegistered)
+                    return false;
+                excess = mTotalBytes + bytes - mCapBytes;
+                if (excess > 0) {
+                    if (tried == null)
+                        tried = new ArrayList<>();
+                    victim = nextVictim(pool.mPriority, tried);
+                } else {
+                    victim = null;
+                }
+                if (victim == null) {
+                    if (excess > 0 && !force) {
+                        pool.mDeniedCount++;
+                        return false;
+                    }
+                    pool.mUsedBytes += bytes;
+                    pool.mPeakBytes = Math.max(pool.mPeakBytes, pool.mUsedBytes);
+                    mTotalBytes += bytes;
+                    mPeakTotalBytes = Math.max(mPeakTotalBytes, mTotalBytes);
+                    return true;
+                }
+            }
+            reclaimFrom(victim, excess, tried);
+        }
+    }
+
+    // Called with the lock held
+    private Pool nextVictim(int belowPriority, List<Pool> tried) {
+        Pool victim = null;
+        for (Pool pool : mPools) {
+            if (pool.mReclaimer == null || pool.mPriority >= belowPriority || pool.mPriority >= PRIORITY_REQUIRED
+                    || pool.mUsedBytes == 0 || tried.contains(pool))
+                continue;
+            if (victim == null || RECLAIM_ORDER.compare(pool, victim) < 0)
+                victim = pool;
+        }
+        return victim;
+    }
+
+    // Called without the lock; each pool is asked once per pass, so a pass always ends
+    private long reclaimFrom(Pool victim, long bytes, List<Pool> tried) {
+        long freed = Math.max(0, victim.mReclaimer.reclaim(bytes));
+        synchronized (this) {
+            victim.mReclaimedBytes += freed;
+            tried.add(victim);
+        }
+        return freed;
+    }
+}
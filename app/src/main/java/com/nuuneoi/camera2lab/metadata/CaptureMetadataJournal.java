@@ -0,0 +1,200 @@
+package com.nuuneoi.camera2lab.metadata;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Per-frame capture metadata (sensor timestamp, frame number, exposure time, frame duration,
+ * sensitivity and AF state) kept in a fixed ring of primitive columns. Recording a frame is a
+ * handful of array stores; nothing is boxed and no CaptureResult is retained.
+ *
+ * There is a single writer, the capture callback thread. Any thread may look frames up by
+ * sensor timestamp, which is how an Image from an ImageReader is matched to its result;
+ * lookups binary search the ring, since sensor timestamps only grow. A lookup that raced the
+ * writer overwriting its slot reports the frame as missing.
+ *
+ * While persisting, every frame is also appended to a {@link CaptureMetadataWriter} file.
+ */
+public class CaptureMetadataJournal {
+
+    private static final String TAG = "CaptureMetadataJournal";
+
+    public static final int UNKNOWN = -1;
+    public static final int DEFAULT_CAPACITY = 1 << 10;
+
+    /**
+     * Filled in by lookups, so that analyzers can reuse one instance per thread.
+     */
+    public static class Entry {
+        public long sensorTimestampNs;
+        public long frameNumber;
+        public long exposureTimeNs;
+        public long frameDurationNs;
+        public int sensitivity;
+        public int afState;
+
+        @Override
+        public String toString() {
+            return "frame " + frameNumber + " @" + sensorTimestampNs + "ns exposure=" + exposureTimeNs
+                    + "ns duration=" + frameDurationNs + "ns iso=" + sensitivity + " af=" + afState;
+        }
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+
+    private final long[] mSensorTimestampNs;
+    private final long[] mFrameNumber;
+    private final long[] mExposureTimeNs;
+    private final long[] mFrameDurationNs;
+    private final int[] mSensitivity;
+    private final byte[] mAfState;
+
+    // Published after the columns of a frame are written
+    private volatile long mCount;
+
+    private volatile CaptureMetadataWriter mWriter;
+
+    public CaptureMetadataJournal(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mSensorTimestampNs = new long[capacity];
+        mFrameNumber = new long[capacity];
+        mExposureTimeNs = new long[capacity];
+        mFrameDurationNs = new long[capacity];
+        mSensitivity = new int[capacity];
+        mAfState = new byte[capacity];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public long getRecordedCount() {
+        return mCount;
+    }
+
+    public long getByteSize() {
+        return (long) mCapacity * (8 * 4 + 4 + 1);
+    }
+
+    /**
+     * Records one frame; unknown values are {@link #UNKNOWN}. Only one thread may call this.
+     */
+    public void record(long sensorTimestampNs, long frameNumber, long exposureTimeNs, long frameDurationNs,
+                       int sensitivity, int afState) {
+        long count = mCount;
+        int slot = (int) count & mMask;
+        mSensorTimestampNs[slot] = sensorTimestampNs;
+        mFrameNumber[slot] = frameNumber;
+        mExposureTimeNs[slot] = exposureTimeNs;
+        mFrameDurationNs[slot] = frameDurationNs;
+        mSensitivity[slot] = sensitivity;
+        mAfState[slot] = (byte) afState;
+        mCount = count + 1;
+
+        CaptureMetadataWriter writer = mWriter;
+        if (writer != null) {
+            try {
+                writer.append(sensorTimestampNs, frameNumber, exposureTimeNs, frameDurationNs, sensitivity, afState);
+            } catch (IOException e) {
+                Log.e(TAG, "Metadata write failed, dropping the file", e);
+                mWriter = null;
+                closeQuietly(writer);
+            }
+        }
+    }
+
+    /**
+     * Looks up the frame with exactly this sensor timestamp.
+     */
+    public boolean find(long sensorTimestampNs, Entry out) {
+        return findNearest(sensorTimestampNs, 0, out);
+    }
+
+    /**
+     * Looks up the frame whose sensor timestamp is closest to {@code sensorTimestampNs}, within
+     * {@code toleranceNs}.
+     */
+    public boolean findNearest(long sensorTimestampNs, long toleranceNs, Entry out) {
+        long count = mCount;
+        long first = Math.max(0, count - mCapacity + 1);
+        if (count == 0)
+            return false;
+
+        // Last frame at or before the timestamp
+        long low = first;
+        long high = count - 1;
+        while (low < high) {
+            long mid = (low + high + 1) >>> 1;
+            if (mSensorTimestampNs[(int) mid & mMask] <= sensorTimestampNs)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        long best = low;
+        if (best + 1 < count && distance(best + 1, sensorTimestampNs) < distance(best, sensorTimestampNs))
+            best++;
+        if (distance(best, sensorTimestampNs) > toleranceNs)
+            return false;
+        return read(best, out);
+    }
+
+    /**
+     * The most recent frame, if any.
+     */
+    public boolean getLatest(Entry out) {
+        long count = mCount;
+        return count > 0 && read(count - 1, out);
+    }
+
+    /**
+     * Appends every following frame to {@code file}, replacing the file being written, if any.
+     */
+    public void startPersisting(File file) throws IOException {
+        CaptureMetadataWriter previous = mWriter;
+        mWriter = new CaptureMetadataWriter(file);
+        if (previous != null)
+            previous.close();
+    }
+
+    public void stopPersisting() throws IOException {
+        CaptureMetadataWriter writer = mWriter;
+        mWriter = null;
+        if (writer != null)
+            writer.close();
+    }
+
+    public boolean isPersisting() {
+        return mWriter != null;
+    }
+
+    // Internal
+
+    private long distance(long index, long sensorTimestampNs) {
+        return Math.abs(mSensorTimestampNs[(int) index & mMask] - sensorTimestampNs);
+    }
+
+    private boolean read(long index, Entry out) {
+        int slot = (int) index & mMask;
+        out.sensorTimestampNs = mSensorTimestampNs[slot];
+        out.frameNumber = mFrameNumber[slot];
+        out.exposureTimeNs = mExposureTimeNs[slot];
+        out.frameDurationNs = mFrameDurationNs[slot];
+        out.sensitivity = mSensitivity[slot];
+        out.afState = mAfState[slot];
+        // The writer fills slot index + capacity just before publishing it
+        return index > mCount - mCapacity;
+    }
+
+    private static void closeQuietly(CaptureMetadataWriter writer) {
+        try {
+            writer.close();
+        } catch (IOException e) {
+        }
+    }
+}
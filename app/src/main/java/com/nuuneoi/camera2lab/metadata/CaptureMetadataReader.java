@@ -0,0 +1,95 @@
+package com.nuuneoi.camera2lab.metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.nuuneoi.camera2lab.metadata.CaptureMetadataWriter.*;
+
+/**
+ * Memory-mapped view of a file written by {@link CaptureMetadataWriter}.
+ */
+public class CaptureMetadataReader {
+
+    private final MappedByteBuffer mMap;
+    private final int mCount;
+
+    public CaptureMetadataReader(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE)
+                throw new IOException("Not a capture metadata file: " + file);
+            // The mapping stays valid after the channel is closed
+            mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+
+        if (mMap.getInt(H_MAGIC) != MAGIC || mMap.getInt(H_VERSION) != VERSION || mMap.getInt(H_RECORD_SIZE) != RECORD_SIZE)
+            throw new IOException("Not a capture metadata file: " + file);
+        if (mMap.getInt(H_FINISHED) == 0)
+            throw new IOException("Capture metadata file was not finished: " + file);
+        long count = mMap.getLong(H_COUNT);
+        if (HEADER_SIZE + count * RECORD_SIZE > mMap.capacity())
+            throw new IOException("Capture metadata file is truncated: " + file);
+        mCount = (int) count;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getSensorTimestampNs(int record) {
+        return mMap.getLong(offset(record));
+    }
+
+    public long getFrameNumber(int record) {
+        return mMap.getLong(offset(record) + 8);
+    }
+
+    public long getExposureTimeNs(int record) {
+        return mMap.getLong(offset(record) + 16);
+    }
+
+    public long getFrameDurationNs(int record) {
+        return mMap.getLong(offset(record) + 24);
+    }
+
+    public int getSensitivity(int record) {
+        return mMap.getInt(offset(record) + 32);
+    }
+
+    public int getAfState(int record) {
+        return mMap.get(offset(record) + 36);
+    }
+
+    /**
+     * Index of the record with exactly this sensor timestamp, or -1.
+     */
+    public int find(long sensorTimestampNs) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long timestampNs = getSensorTimestampNs(mid);
+            if (timestampNs < sensorTimestampNs)
+                low = mid + 1;
+            else if (timestampNs > sensorTimestampNs)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    // Internal
+
+    private int offset(int record) {
+        if (record < 0 || record >= mCount)
+            throw new IndexOutOfBoundsException("Record " + record + " of " + mCount);
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+}
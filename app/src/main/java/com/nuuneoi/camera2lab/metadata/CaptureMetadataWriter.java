@@ -0,0 +1,122 @@
+package com.nuuneoi.camera2lab.metadata;
+
+import com.nuuneoi.camera2lab.memory.MemoryBudget;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams capture metadata to a file next to a recording, in fixed size records that
+ * {@link CaptureMetadataReader} maps and binary searches by sensor timestamp.
+ *
+ * Layout, big endian:
+ * <pre>
+ * header    HEADER_SIZE bytes, rewritten by close()
+ * records   count x (long sensorTimestampNs, long frameNumber, long exposureTimeNs,
+ *                    long frameDurationNs, int sensitivity, byte afState, 3 bytes padding)
+ * </pre>
+ *
+ * Records go through a small direct buffer, accounted in the global {@link MemoryBudget}
+ * while the writer is open.
+ */
+public class CaptureMetadataWriter {
+
+    static final int MAGIC = 0x43324c4d; // "C2LM"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 40;
+
+    // Header field offsets
+    static final int H_MAGIC = 0;
+    static final int H_VERSION = 4;
+    static final int H_FINISHED = 8;
+    static final int H_RECORD_SIZE = 12;
+    static final int H_COUNT = 16;
+
+    private static final int BUFFER_RECORDS = 1024;
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE);
+    private final MemoryBudget.Pool mBufferPool;
+
+    private long mCount;
+    private boolean mClosed;
+
+    public CaptureMetadataWriter(File file) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "rw");
+        mRaf.setLength(0);
+        mChannel = mRaf.getChannel();
+        // An unfinished header until close(), so a crashed recording is not mistaken for a complete one
+        writeHeader(false);
+        mChannel.position(HEADER_SIZE);
+
+        mBufferPool = MemoryBudget.global().register("Capture metadata", MemoryBudget.Kind.DIRECT,
+                MemoryBudget.PRIORITY_REQUIRED, null);
+        mBufferPool.reserve(mBuffer.capacity());
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized void append(long sensorTimestampNs, long frameNumber, long exposureTimeNs, long frameDurationNs,
+                                    int sensitivity, int afState) throws IOException {
+        if (mClosed)
+            return;
+
+        mBuffer.putLong(sensorTimestampNs).putLong(frameNumber).putLong(exposureTimeNs).putLong(frameDurationNs)
+                .putInt(sensitivity).put((byte) afState).put((byte) 0).putShort((short) 0);
+        mCount++;
+        if (!mBuffer.hasRemaining())
+            flush();
+    }
+
+    /**
+     * Writes what is buffered and the final header. The file is only readable after this.
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed)
+            return;
+        mClosed = true;
+
+        try {
+            flush();
+            writeHeader(true);
+            mChannel.force(false);
+        } finally {
+            mBufferPool.unregister();
+            mRaf.close();
+        }
+    }
+
+    // Internal
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining())
+            mChannel.write(mBuffer);
+        mBuffer.clear();
+    }
+
+    private void writeHeader(boolean finished) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(H_MAGIC, MAGIC);
+        header.putInt(H_VERSION, VERSION);
+        header.putInt(H_FINISHED, finished ? 1 : 0);
+        header.putInt(H_RECORD_SIZE, RECORD_SIZE);
+        header.putLong(H_COUNT, mCount);
+        int written = 0;
+        while (written < HEADER_SIZE)
+            written += mChannel.write(header, written);
+    }
+}
@@ -0,0 +1,308 @@
+package com.nuuneoi.camera2lab.pipeline;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import com.nuuneoi.camera2lab.encoder.CodecInputImage;
+import com.nuuneoi.camera2lab.encoder.EncoderBackend;
+import com.nuuneoi.camera2lab.encoder.EncoderConfig;
+import com.nuuneoi.camera2lab.encoder.SampleInfo;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic encoder that behaves like a surface-input MediaCodec: frames are queued with
+ * {@link #queueFrame(long)} (what the camera does when it renders into the input surface),
+ * and the drain side sees INFO_OUTPUT_FORMAT_CHANGED followed by samples whose sizes follow
+ * the configured bitrate, with I-frames several times larger than P-frames.
+ *
+ * Buffer input works too: a queued input buffer counts as a queued frame.
+ *
+ * It has no input surface and no output format, so it runs on a plain JVM.
+ */
+public class FakeEncoderBackend implements EncoderBackend {
+
+    private static final int INPUT_SLOTS = 8;
+    private static final int OUTPUT_BUFFERS = 4;
+    private static final int KEY_FRAME_WEIGHT = 6;
+    private static final float SIZE_JITTER = 0.2f;
+
+    private final Random mRandom;
+
+    private final long[] mPendingPts = new long[INPUT_SLOTS];
+    private int mPendingHead;
+    private int mPendingCount;
+
+    // Allocated on first use, surface input never needs them. Laid out as NV12
+    private ByteBuffer[] mInputBuffers;
+    private int mInputWidth;
+    private int mInputHeight;
+    private final CodecInputImage mInputImage = new CodecInputImage();
+
+    private ByteBuffer[] mOutputBuffers;
+    private final boolean[] mOutputInUse = new boolean[OUTPUT_BUFFERS];
+
+    private int mPFrameBytes;
+    private int mKeyFrameBytes;
+    private int mGopFrames;
+    private long mEncodeDelayUs;
+
+    private boolean mStarted;
+    private boolean mFormatReported;
+    private boolean mEndOfStreamSignalled;
+    private boolean mEndOfStreamSent;
+    private long mFramesEncoded;
+    private long mFramesDropped;
+    // Frames since the last key frame, and whether the next one is forced
+    private long mGopPosition;
+    private boolean mSyncFrameRequested;
+    private long mKeyFramesEncoded;
+
+    public FakeEncoderBackend(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Time the fake spends "encoding" each frame, to emulate an encoder that cannot keep up.
+     */
+    public void setEncodeDelayUs(long delayUs) {
+        mEncodeDelayUs = delayUs;
+    }
+
+    @Override
+    public synchronized void configure(EncoderConfig config) {
+        int frameRate = Math.max(1, config.getFrameRate());
+        long bytesPerGop = (long) config.getBitRate() / 8 * config.getIFrameInterval();
+        mGopFrames = Math.max(1, frameRate * config.getIFrameInterval());
+        // One key frame weighs KEY_FRAME_WEIGHT P-frames
+        mPFrameBytes = (int) Math.max(64, bytesPerGop / (mGopFrames - 1 + KEY_FRAME_WEIGHT));
+        mKeyFrameBytes = mPFrameBytes * KEY_FRAME_WEIGHT;
+        mInputWidth = config.getWidth();
+        mInputHeight = config.getHeight();
+        mInputBuffers = null;
+
+        int capacity = (int) (mKeyFrameBytes * (1 + SIZE_JITTER)) + 1;
+        mOutputBuffers = new ByteBuffer[OUTPUT_BUFFERS];
+        for (int i = 0; i < OUTPUT_BUFFERS; i++)
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(capacity);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return null;
+    }
+
+    @Override
+    public synchronized void start() {
+        mStarted = true;
+        mFormatReported = false;
+        mEndOfStreamSignalled = false;
+        mEndOfStreamSent = false;
+        mPendingCount = 0;
+        mGopPosition = 0;
+        mSyncFrameRequested = false;
+    }
+
+    /**
+     * @return false when every input slot is taken, i.e. the frame was dropped
+     */
+    public synchronized boolean queueFrame(long presentationTimeUs) {
+        if (!mStarted || mEndOfStreamSignalled)
+            return false;
+        if (mPendingCount == INPUT_SLOTS) {
+            mFramesDropped++;
+            return false;
+        }
+        mPendingPts[(mPendingHead + mPendingCount) % INPUT_SLOTS] = presentationTimeUs;
+        mPendingCount++;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        if (!mStarted || mEndOfStreamSignalled || mPendingCount == INPUT_SLOTS)
+            return INFO_TRY_AGAIN_LATER;
+        return (mPendingHead + mPendingCount) % INPUT_SLOTS;
+    }
+
+    @Override
+    public synchronized CodecInputImage getInputImage(int index) {
+        int lumaSize = mInputWidth * mInputHeight;
+        if (mInputBuffers == null)
+            mInputBuffers = new ByteBuffer[INPUT_SLOTS];
+        if (mInputBuffers[index] == null)
+            mInputBuffers[index] = ByteBuffer.allocate(lumaSize * 3 / 2);
+        ByteBuffer buffer = mInputBuffers[index];
+        return mInputImage.set(mInputWidth, mInputHeight, buffer.capacity())
+                .setPlane(0, slice(buffer, 0, lumaSize), mInputWidth, 1)
+                .setPlane(1, slice(buffer, lumaSize, lumaSize / 2), mInputWidth, 2)
+                .setPlane(2, slice(buffer, lumaSize + 1, lumaSize / 2 - 1), mInputWidth, 2);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if ((flags & SampleInfo.FLAG_END_OF_STREAM) != 0)
+            signalEndOfInputStream();
+        else
+            queueFrame(presentationTimeUs);
+    }
+
+    public synchronized int getQueueDepth() {
+        return mPendingCount;
+    }
+
+    public synchronized long getFramesEncoded() {
+        return mFramesEncoded;
+    }
+
+    public synchronized long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    public synchronized long getKeyFramesEncoded() {
+        return mKeyFramesEncoded;
+    }
+
+    @Override
+    public synchronized void requestSyncFrame() {
+        mSyncFrameRequested = true;
+    }
+
+    @Override
+    public synchronized void signalEndOfInputStream() {
+        mEndOfStreamSignalled = true;
+        notifyAll();
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        long deadlineNs = System.nanoTime() + timeoutUs * 1000L;
+        long pts;
+        synchronized (this) {
+            if (!mFormatReported) {
+                mFormatReported = true;
+                return INFO_OUTPUT_FORMAT_CHANGED;
+            }
+
+            while (mPendingCount == 0 && !mEndOfStreamSignalled) {
+                long remainingNs = deadlineNs - System.nanoTime();
+                if (remainingNs <= 0)
+                    return INFO_TRY_AGAIN_LATER;
+                try {
+                    wait(remainingNs / 1000000L, (int) (remainingNs % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+
+            if (mPendingCount == 0) {
+                if (mEndOfStreamSent)
+                    return INFO_TRY_AGAIN_LATER;
+                int index = claimOutputBuffer(deadlineNs);
+                if (index < 0)
+                    return INFO_TRY_AGAIN_LATER;
+                mEndOfStreamSent = true;
+                info.set(0, 0, 0, SampleInfo.FLAG_END_OF_STREAM);
+                return index;
+            }
+
+            pts = mPendingPts[mPendingHead];
+        }
+
+        if (mEncodeDelayUs > 0) {
+            try {
+                Thread.sleep(mEncodeDelayUs / 1000L, (int) (mEncodeDelayUs % 1000L) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            int index = claimOutputBuffer(deadlineNs);
+            if (index < 0)
+                return INFO_TRY_AGAIN_LATER;
+
+            mPendingHead = (mPendingHead + 1) % INPUT_SLOTS;
+            mPendingCount--;
+
+            // A requested key frame restarts the GOP, as real encoders do
+            boolean keyFrame = mSyncFrameRequested || mGopPosition % mGopFrames == 0;
+            if (keyFrame) {
+                mSyncFrameRequested = false;
+                mGopPosition = 0;
+                mKeyFramesEncoded++;
+            }
+            mGopPosition++;
+            int baseSize = keyFrame ? mKeyFrameBytes : mPFrameBytes;
+            int size = (int) (baseSize * (1 + SIZE_JITTER * (2 * mRandom.nextFloat() - 1)));
+            ByteBuffer buffer = mOutputBuffers[index];
+            buffer.clear();
+            buffer.limit(size);
+            mFramesEncoded++;
+
+            info.set(0, size, pts, keyFrame ? SampleInfo.FLAG_KEY_FRAME : 0);
+            return index;
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index) {
+        mOutputInUse[index] = false;
+        notifyAll();
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return null;
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStarted = false;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void release() {
+        mStarted = false;
+        mInputBuffers = null;
+        mOutputBuffers = null;
+    }
+
+    // Waits like a real codec for the drain side to hand a buffer back, so a drain loop that
+    // holds on to its buffers blocks for its timeout instead of spinning
+    private int claimOutputBuffer(long deadlineNs) {
+        for (; ; ) {
+            for (int i = 0; i < OUTPUT_BUFFERS; i++) {
+                if (!mOutputInUse[i]) {
+                    mOutputInUse[i] = true;
+                    return i;
+                }
+            }
+            long remainingNs = deadlineNs - System.nanoTime();
+            if (remainingNs <= 0)
+                return -1;
+            try {
+                wait(remainingNs / 1000000L, (int) (remainingNs % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.nuuneoi.camera2lab.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV_420 frame laid out like android.media.Image: three planes with their own row and
+ * pixel strides. Frames are owned by their {@link FrameSource} and must be closed once
+ * the consumer is done with them so the buffer can be handed out again.
+ */
+public class Frame {
+
+    public interface Owner {
+        void onFrameClosed(Frame frame);
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final ByteBuffer[] mPlanes;
+    private final int[] mRowStrides;
+    private final int[] mPixelStrides;
+    private final Owner mOwner;
+
+    private long mTimestampNs;
+    private long mFrameNumber;
+
+    public Frame(int width, int height, ByteBuffer[] planes, int[] rowStrides, int[] pixelStrides, Owner owner) {
+        mWidth = width;
+        mHeight = height;
+        mPlanes = planes;
+        mRowStrides = rowStrides;
+        mPixelStrides = pixelStrides;
+        mOwner = owner;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getPlaneCount() {
+        return mPlanes.length;
+    }
+
+    public ByteBuffer getPlane(int index) {
+        return mPlanes[index];
+    }
+
+    public int getRowStride(int index) {
+        return mRowStrides[index];
+    }
+
+    public int getPixelStride(int index) {
+        return mPixelStrides[index];
+    }
+
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    public long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    public void set(long frameNumber, long timestampNs) {
+        mFrameNumber = frameNumber;
+        mTimestampNs = timestampNs;
+    }
+
+    public void close() {
+        if (mOwner != null)
+            mOwner.onFrameClosed(this);
+    }
+}
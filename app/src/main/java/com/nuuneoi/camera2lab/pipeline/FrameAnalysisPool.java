@@ -0,0 +1,161 @@
+package com.nuuneoi.camera2lab.pipeline;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of analysis threads shared by several frame sources. Nothing waits for a
+ * thread: a frame is taken when its {@link Lane} is idle and a thread is free, otherwise the
+ * caller drops it. Each source has a lane of its own, with at most one frame in flight, so a
+ * slow source holds one thread at most.
+ */
+public class FrameAnalysisPool {
+
+    private static final String TAG = "FrameAnalysisPool";
+
+    public interface Processor<T> {
+        /**
+         * Called on a pool thread; owns the item from here on.
+         */
+        void process(T item);
+    }
+
+    public class Lane<T> {
+        private final Processor<T> mProcessor;
+        private boolean mBusy;
+        private boolean mClosed;
+        private T mPending;
+        private Runnable mOnIdle;
+
+        private final Runnable mTask = new Runnable() {
+            @Override
+            public void run() {
+                T item;
+                synchronized (Lane.this) {
+                    item = mPending;
+                    mPending = null;
+                }
+                try {
+                    mProcessor.process(item);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Frame analysis failed", e);
+                } finally {
+                    mPermits.release();
+                    idle();
+                }
+            }
+        };
+
+        Lane(Processor<T> processor) {
+            mProcessor = processor;
+        }
+
+        /**
+         * Hands {@code item} to a pool thread.
+         *
+         * @return false when the lane is busy or closed, or every thread is; the caller keeps
+         * the item
+         */
+        public boolean offer(T item) {
+            synchronized (this) {
+                if (mBusy || mClosed)
+                    return false;
+                mBusy = true;
+                mPending = item;
+            }
+            if (mPermits.tryAcquire()) {
+                try {
+                    mExecutor.execute(mTask);
+                    return true;
+                } catch (RejectedExecutionException e) {
+                    mPermits.release();
+                }
+            }
+            synchronized (this) {
+                mPending = null;
+            }
+            idle();
+            return false;
+        }
+
+        public synchronized boolean isBusy() {
+            return mBusy;
+        }
+
+        /**
+         * Takes no more items. {@code onIdle} runs once the item in flight, if any, has been
+         * processed: right away on the calling thread, or on the pool thread that finishes it.
+         */
+        public void close(Runnable onIdle) {
+            synchronized (this) {
+                mClosed = true;
+                if (mBusy) {
+                    mOnIdle = onIdle;
+                    return;
+                }
+            }
+            onIdle.run();
+        }
+
+        private void idle() {
+            Runnable onIdle;
+            synchronized (this) {
+                mBusy = false;
+                onIdle = mOnIdle;
+                mOnIdle = null;
+            }
+            if (onIdle != null)
+                onIdle.run();
+        }
+    }
+
+    private final int mThreadCount;
+    private final Semaphore mPermits;
+    private final ExecutorService mExecutor;
+
+    public FrameAnalysisPool(int threadCount) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("At least one analysis thread is needed");
+
+        mThreadCount = threadCount;
+        // The permits bound the frames in flight, so the executor queue never holds more than
+        // the threads can start on right away
+        mPermits = new Semaphore(threadCount);
+        mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "Frame Analysis " + mCount.getAndIncrement());
+            }
+        });
+    }
+
+    public <T> Lane<T> newLane(Processor<T> processor) {
+        return new Lane<>(processor);
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Frames being processed right now, across every lane.
+     */
+    public int getBusyCount() {
+        return mThreadCount - mPermits.availablePermits();
+    }
+
+    /**
+     * Lets the frames in flight finish; offers fail from here on.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,18 @@
+package com.nuuneoi.camera2lab.pipeline;
+
+/**
+ * Producer side of the capture pipeline. The camera and the synthetic source both push
+ * frames through {@link Listener}; the listener must close every frame it receives.
+ */
+public interface FrameSource {
+
+    interface Listener {
+        void onFrame(Frame frame);
+
+        void onFrameDropped(long frameNumber);
+    }
+
+    void start(Listener listener);
+
+    void stop();
+}
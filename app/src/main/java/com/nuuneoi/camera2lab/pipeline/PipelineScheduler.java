@@ -0,0 +1,234 @@
+package com.nuuneoi.camera2lab.pipeline;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Owns the pipeline threads, one per stage, each with an explicit priority:
+ *
+ * <ul>
+ * <li>CAPTURE: camera device, session and capture result callbacks</li>
+ * <li>ANALYSIS: ImageReader callbacks and CPU frame processing</li>
+ * <li>FRAME_PROCESSING: CPU work on frames headed for the encoder (temporal denoise)</li>
+ * <li>ENCODER_DRAIN: the MediaEncoder worker, or the first EncoderDrainPool thread, which attaches itself</li>
+ * <li>MUXER_IO: file work that must not stall the drain loop (muxer finalisation, sidecars)</li>
+ * </ul>
+ *
+ * Busy time is read per thread from /proc/self/task/&lt;tid&gt;/stat, so it covers framework
+ * callbacks as well as our own code and costs nothing on the hot path.
+ */
+public class PipelineScheduler {
+
+    private static final String TAG = "PipelineScheduler";
+
+    public enum Stage {
+        CAPTURE("Camera Capture", Process.THREAD_PRIORITY_DISPLAY),
+        ANALYSIS("Frame Analysis", Process.THREAD_PRIORITY_DEFAULT),
+        FRAME_PROCESSING("Frame Processing", Process.THREAD_PRIORITY_VIDEO),
+        ENCODER_DRAIN("Encoder Drain", Process.THREAD_PRIORITY_VIDEO),
+        MUXER_IO("Muxer IO", Process.THREAD_PRIORITY_BACKGROUND);
+
+        final String threadName;
+        final int defaultPriority;
+
+        Stage(String threadName, int defaultPriority) {
+            this.threadName = threadName;
+            this.defaultPriority = defaultPriority;
+        }
+    }
+
+    private static final Stage[] LOOPER_STAGES = {Stage.CAPTURE, Stage.ANALYSIS, Stage.FRAME_PROCESSING, Stage.MUXER_IO};
+
+    private final int[] mPriorities = new int[Stage.values().length];
+    private final HandlerThread[] mThreads = new HandlerThread[Stage.values().length];
+    private final Handler[] mHandlers = new Handler[Stage.values().length];
+    private final Executor[] mExecutors = new Executor[Stage.values().length];
+
+    // Thread ids and CPU time bookkeeping, -1 when the stage has no thread
+    private final int[] mTids = new int[Stage.values().length];
+    private final long[] mLastCpuMs = new long[Stage.values().length];
+    private final long[] mLastSampleMs = new long[Stage.values().length];
+    private final float[] mBusyRatio = new float[Stage.values().length];
+
+    private final long mMsPerTick;
+
+    public PipelineScheduler() {
+        for (Stage stage : Stage.values()) {
+            mPriorities[stage.ordinal()] = stage.defaultPriority;
+            mTids[stage.ordinal()] = -1;
+        }
+        long ticksPerSecond = Os.sysconf(OsConstants._SC_CLK_TCK);
+        mMsPerTick = ticksPerSecond > 0 ? 1000L / ticksPerSecond : 10L;
+    }
+
+    /**
+     * Overrides a stage priority (android.os.Process.THREAD_PRIORITY_*). Takes effect on the
+     * next {@link #start()} or {@link #attachCurrentThread(Stage)}.
+     */
+    public synchronized void setPriority(Stage stage, int priority) {
+        mPriorities[stage.ordinal()] = priority;
+    }
+
+    public synchronized void start() {
+        for (Stage stage : LOOPER_STAGES) {
+            int index = stage.ordinal();
+            if (mThreads[index] != null)
+                continue;
+
+            final HandlerThread thread = new HandlerThread(stage.threadName, mPriorities[index]);
+            thread.start();
+            final Handler handler = new Handler(thread.getLooper());
+            mThreads[index] = thread;
+            mHandlers[index] = handler;
+            mExecutors[index] = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    if (!handler.post(command))
+                        Log.w(TAG, "Dropped task, " + thread.getName() + " has quit");
+                }
+            };
+            mTids[index] = thread.getThreadId();
+            resetSample(index);
+        }
+    }
+
+    public void quit() {
+        HandlerThread[] threads = new HandlerThread[mThreads.length];
+        synchronized (this) {
+            for (Stage stage : LOOPER_STAGES) {
+                int index = stage.ordinal();
+                threads[index] = mThreads[index];
+                mThreads[index] = null;
+                mHandlers[index] = null;
+                mExecutors[index] = null;
+                mTids[index] = -1;
+            }
+        }
+        for (HandlerThread thread : threads) {
+            if (thread == null)
+                continue;
+            thread.quitSafely();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized Handler getHandler(Stage stage) {
+        return mHandlers[stage.ordinal()];
+    }
+
+    /**
+     * Executor backed by the stage looper, for APIs such as SessionConfiguration.
+     */
+    public synchronized Executor getExecutor(Stage stage) {
+        return mExecutors[stage.ordinal()];
+    }
+
+    /**
+     * For stages that run on a thread we do not create (the encoder worker): applies the stage
+     * priority to the calling thread and includes it in busy time reports.
+     */
+    public synchronized void attachCurrentThread(Stage stage) {
+        int index = stage.ordinal();
+        Process.setThreadPriority(mPriorities[index]);
+        mTids[index] = Process.myTid();
+        resetSample(index);
+    }
+
+    public synchronized void detachCurrentThread(Stage stage) {
+        if (mTids[stage.ordinal()] == Process.myTid())
+            mTids[stage.ordinal()] = -1;
+    }
+
+    /**
+     * Updates and returns the share of wall time each stage thread spent on CPU since the
+     * previous call, indexed by {@link Stage#ordinal()}. A stage close to 1.0 is saturated.
+     */
+    public synchronized float[] sampleBusyRatio() {
+        long now = SystemClock.elapsedRealtime();
+        for (Stage stage : Stage.values()) {
+            int index = stage.ordinal();
+            if (mTids[index] < 0) {
+                mBusyRatio[index] = 0;
+                continue;
+            }
+            long cpuMs = readThreadCpuMs(mTids[index]);
+            long wallMs = now - mLastSampleMs[index];
+            if (cpuMs >= 0 && wallMs > 0)
+                mBusyRatio[index] = Math.min(1f, (cpuMs - mLastCpuMs[index]) / (float) wallMs);
+            mLastCpuMs[index] = cpuMs;
+            mLastSampleMs[index] = now;
+        }
+        return mBusyRatio.clone();
+    }
+
+    public String dumpBusyRatio() {
+        float[] busy = sampleBusyRatio();
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append(stage.name().toLowerCase(Locale.US)).append('=')
+                    .append(String.format(Locale.US, "%.0f%%", busy[stage.ordinal()] * 100));
+        }
+        return sb.toString();
+    }
+
+    // Internal
+
+    private void resetSample(int index) {
+        mLastCpuMs[index] = readThreadCpuMs(mTids[index]);
+        mLastSampleMs[index] = SystemClock.elapsedRealtime();
+        mBusyRatio[index] = 0;
+    }
+
+    // utime + stime are fields 14 and 15 of the stat line, counted after the "(comm)" field
+    private long readThreadCpuMs(int tid) {
+        byte[] buffer = new byte[512];
+        int length;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream("/proc/self/task/" + tid + "/stat");
+            length = in.read(buffer);
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (length <= 0)
+            return -1;
+
+        String stat = new String(buffer, 0, length);
+        int commEnd = stat.lastIndexOf(')');
+        if (commEnd < 0)
+            return -1;
+        String[] fields = stat.substring(commEnd + 2).split(" ");
+        // fields[0] is field 3 (state)
+        if (fields.length < 13)
+            return -1;
+        try {
+            long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            return ticks * mMsPerTick;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
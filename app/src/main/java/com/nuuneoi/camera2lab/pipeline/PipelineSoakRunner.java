@@ -0,0 +1,275 @@
+package com.nuuneoi.camera2lab.pipeline;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import com.nuuneoi.camera2lab.encoder.CodecSelector;
+import com.nuuneoi.camera2lab.encoder.EncoderBackend;
+import com.nuuneoi.camera2lab.encoder.MediaEncoder;
+import com.nuuneoi.camera2lab.encoder.MuxerBackend;
+import com.nuuneoi.camera2lab.encoder.SampleInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives capture -> analysis -> encode -> mux with the synthetic stand-ins, using the same
+ * thread layout as the app: frames arrive on a capture thread, a single analysis thread
+ * consumes the latest frame and feeds the encoder, and {@link MediaEncoder}'s own worker
+ * drains encoded samples to the sink and a muxer that only counts them.
+ */
+public class PipelineSoakRunner {
+
+    public interface FrameAnalyzer {
+        void analyze(Frame frame);
+    }
+
+    public static class Report {
+        public long framesProduced;
+        public long framesAnalyzed;
+        public long framesEncoded;
+        public long sourceDrops;
+        public long analysisDrops;
+        public long encoderDrops;
+        public long bytesWritten;
+        public long elapsedNs;
+        public long heapGrowthBytes;
+
+        public double getSustainedFps() {
+            return elapsedNs == 0 ? 0 : framesEncoded * 1e9 / elapsedNs;
+        }
+
+        public long getTotalDrops() {
+            return sourceDrops + analysisDrops + encoderDrops;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("produced=%d analyzed=%d encoded=%d drops(source=%d analysis=%d encoder=%d) " +
+                            "bytes=%d elapsed=%.1fms sustained=%.1ffps heapGrowth=%dKB",
+                    framesProduced, framesAnalyzed, framesEncoded, sourceDrops, analysisDrops, encoderDrops,
+                    bytesWritten, elapsedNs / 1e6, getSustainedFps(), heapGrowthBytes / 1024);
+        }
+    }
+
+    private static final long FINISH_TIMEOUT_MS = 10000L;
+
+    private final SyntheticFrameSource mSource;
+    private final FakeEncoderBackend mEncoder;
+    private final SoakEncoder mMediaEncoder;
+
+    private FrameAnalyzer mAnalyzer;
+    private boolean mRealtime;
+
+    private final ArrayBlockingQueue<Frame> mAnalysisQueue = new ArrayBlockingQueue<>(1);
+    private final Report mReport = new Report();
+
+    private final CountDownLatch mStarted = new CountDownLatch(1);
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+
+    /**
+     * Encodes at the source's size and frame rate with the encoder's default settings; adjust
+     * them through {@link #getMediaEncoder()} before running.
+     */
+    public PipelineSoakRunner(SyntheticFrameSource source, FakeEncoderBackend encoder, SampleSink sink) {
+        mSource = source;
+        mEncoder = encoder;
+        mMediaEncoder = new SoakEncoder(source.getWidth(), source.getHeight());
+        mMediaEncoder.setSampleSink(sink);
+        mMediaEncoder.setRecordingIndex(false, 0);
+    }
+
+    public MediaEncoder getMediaEncoder() {
+        return mMediaEncoder;
+    }
+
+    public void setAnalyzer(FrameAnalyzer analyzer) {
+        mAnalyzer = analyzer;
+    }
+
+    /**
+     * Paces the source at its nominal frame rate instead of emitting frames back to back.
+     */
+    public void setRealtime(boolean realtime) {
+        mRealtime = realtime;
+    }
+
+    public Report run(int frameCount) throws IOException, InterruptedException {
+        long heapBefore = usedHeap();
+
+        mMediaEncoder.startRecording();
+        if (!mStarted.await(FINISH_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            throw new IOException("Encoder did not start");
+
+        AnalysisThread analysisThread = new AnalysisThread();
+        analysisThread.start();
+
+        FrameSource.Listener listener = new FrameSource.Listener() {
+            @Override
+            public void onFrame(Frame frame) {
+                mReport.framesProduced++;
+                // Keep only the latest frame, like acquireLatestImage()
+                Frame stale = mAnalysisQueue.poll();
+                if (stale != null) {
+                    stale.close();
+                    mReport.analysisDrops++;
+                }
+                mAnalysisQueue.offer(frame);
+            }
+
+            @Override
+            public void onFrameDropped(long frameNumber) {
+                mReport.framesProduced++;
+                mReport.sourceDrops++;
+            }
+        };
+
+        long startNs = System.nanoTime();
+        long intervalNs = mSource.getFrameIntervalNs();
+        for (int i = 0; i < frameCount; i++) {
+            if (mRealtime) {
+                long sleepNs = startNs + i * intervalNs - System.nanoTime();
+                if (sleepNs > 0)
+                    TimeUnit.NANOSECONDS.sleep(sleepNs);
+            }
+            mSource.pump(listener, 1);
+        }
+
+        analysisThread.finish();
+        // The worker signals the end of stream, drains and finalises the muxer
+        mMediaEncoder.stopRecording();
+        if (!mFinished.await(FINISH_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            throw new IOException("Encoder did not finish draining");
+        mReport.elapsedNs = System.nanoTime() - startNs;
+
+        mReport.encoderDrops = mEncoder.getFramesDropped();
+        mReport.heapGrowthBytes = usedHeap() - heapBefore;
+        return mReport;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // The real encoder with its codec, codec list and muxer swapped for the stand-ins, so the
+    // soak runs on a plain JVM without any Android method being called
+    private class SoakEncoder extends MediaEncoder {
+
+        SoakEncoder(int width, int height) {
+            super(width, height);
+        }
+
+        @Override
+        protected EncoderBackend createEncoderBackend() {
+            return mEncoder;
+        }
+
+        @Override
+        protected CodecSelector createCodecSelector(CodecSelector.Preference preference) {
+            return new CodecSelector(new CodecSelector.Catalog() {
+                @Override
+                public List<CodecSelector.EncoderInfo> getEncoders(String mimeType) {
+                    return null;
+                }
+            }, preference);
+        }
+
+        @Override
+        protected File createOutputFile() {
+            return new File("soak.mp4");
+        }
+
+        @Override
+        protected MuxerBackend createMuxerBackend(File output) {
+            return new CountingMuxer();
+        }
+
+        @Override
+        protected void onSurfaceCreated(Surface surface) {
+            mStarted.countDown();
+        }
+
+        // The hooks below log by default; the soak stays clear of android.util
+        @Override
+        protected void onSurfaceDestroyed(Surface surface) {
+        }
+
+        @Override
+        protected void onCodecSelected(CodecSelector.Selection selection) {
+        }
+    }
+
+    // Runs on the encoder's worker; the latch publishes the counts to run()
+    private class CountingMuxer implements MuxerBackend {
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+            mReport.framesEncoded++;
+            mReport.bytesWritten += info.size;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+            mFinished.countDown();
+        }
+    }
+
+    class AnalysisThread extends Thread {
+
+        private volatile boolean mFinishing;
+
+        AnalysisThread() {
+            super("Soak Analysis");
+        }
+
+        void finish() throws InterruptedException {
+            mFinishing = true;
+            join();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Frame frame = mAnalysisQueue.poll(1, TimeUnit.MILLISECONDS);
+                    if (frame == null) {
+                        if (mFinishing)
+                            break;
+                        continue;
+                    }
+                    try {
+                        if (mAnalyzer != null)
+                            mAnalyzer.analyze(frame);
+                        mReport.framesAnalyzed++;
+                        // What the camera does when it renders into the input surface
+                        mEncoder.queueFrame(frame.getTimestampNs() / 1000L);
+                    } finally {
+                        frame.close();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.nuuneoi.camera2lab.pipeline;
+
+import android.media.MediaFormat;
+
+import com.nuuneoi.camera2lab.encoder.SampleInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Consumer of encoded samples: the muxer on device, a counter in soak runs.
+ */
+public interface SampleSink {
+
+    void onOutputFormatChanged(MediaFormat format);
+
+    void writeSample(ByteBuffer data, SampleInfo info);
+}
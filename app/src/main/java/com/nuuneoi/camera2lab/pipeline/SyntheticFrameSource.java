@@ -0,0 +1,203 @@
+package com.nuuneoi.camera2lab.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Stand-in for the camera + ImageReader pair. Frames come from a fixed pool of
+ * {@code maxImages} buffers exactly like ImageReader: when every buffer is still held by a
+ * consumer the next frame is dropped.
+ *
+ * The source can run in real time on its own thread ({@link #start(Listener)}) or be pumped
+ * in virtual time from the caller ({@link #pump(Listener, int)}) for soak runs that must not
+ * depend on wall clock.
+ */
+public class SyntheticFrameSource implements FrameSource, Frame.Owner {
+
+    private static final String THREAD_NAME = "Synthetic Camera";
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFps;
+    private final int mYRowStride;
+    private final int mUvRowStride;
+    private final int mUvPixelStride;
+    private final long mJitterNs;
+    private final Random mRandom;
+
+    private final ArrayBlockingQueue<Frame> mFreeFrames;
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    private long mFrameNumber;
+    private long mNextTimestampNs;
+
+    public SyntheticFrameSource(int width, int height, int fps) {
+        this(width, height, fps, width, width, 2, 0, 2, 0);
+    }
+
+    public SyntheticFrameSource(int width, int height, int fps,
+                                int yRowStride, int uvRowStride, int uvPixelStride,
+                                long jitterNs, int maxImages, long seed) {
+        if (yRowStride < width || uvRowStride < (width / 2) * uvPixelStride)
+            throw new IllegalArgumentException("Row stride smaller than plane width");
+        if (uvPixelStride != 1 && uvPixelStride != 2)
+            throw new IllegalArgumentException("Unsupported chroma pixel stride " + uvPixelStride);
+
+        mWidth = width;
+        mHeight = height;
+        mFps = fps;
+        mYRowStride = yRowStride;
+        mUvRowStride = uvRowStride;
+        mUvPixelStride = uvPixelStride;
+        mJitterNs = jitterNs;
+        mRandom = new Random(seed);
+
+        mFreeFrames = new ArrayBlockingQueue<>(maxImages);
+        for (int i = 0; i < maxImages; i++)
+            mFreeFrames.add(allocateFrame());
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFps() {
+        return mFps;
+    }
+
+    public long getFrameIntervalNs() {
+        return 1000000000L / mFps;
+    }
+
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (mThread != null)
+            return;
+
+        mRunning = true;
+        mThread = new Thread(THREAD_NAME) {
+            @Override
+            public void run() {
+                long startNs = System.nanoTime();
+                while (mRunning) {
+                    long dueNs = nextTimestamp(startNs);
+                    long sleepNs = dueNs - System.nanoTime();
+                    if (sleepNs > 0) {
+                        try {
+                            Thread.sleep(sleepNs / 1000000L, (int) (sleepNs % 1000000L));
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                    emit(listener, dueNs);
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread == null)
+            return;
+
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Emits {@code count} frames back to back on the calling thread. Timestamps still advance
+     * by one frame interval (plus jitter) per frame, so consumers see a realistic sensor clock.
+     */
+    public void pump(Listener listener, int count) {
+        for (int i = 0; i < count; i++)
+            emit(listener, nextTimestamp(0));
+    }
+
+    @Override
+    public void onFrameClosed(Frame frame) {
+        mFreeFrames.offer(frame);
+    }
+
+    // Internal
+
+    private long nextTimestamp(long baseNs) {
+        long timestamp = baseNs + mNextTimestampNs;
+        if (mJitterNs > 0)
+            timestamp += (long) (mRandom.nextGaussian() * mJitterNs);
+        mNextTimestampNs += getFrameIntervalNs();
+        return timestamp;
+    }
+
+    private void emit(Listener listener, long timestampNs) {
+        long frameNumber = mFrameNumber++;
+        Frame frame = mFreeFrames.poll();
+        if (frame == null) {
+            listener.onFrameDropped(frameNumber);
+            return;
+        }
+        frame.set(frameNumber, timestampNs);
+        paint(frame);
+        listener.onFrame(frame);
+    }
+
+    // Moving band so that consecutive frames differ the way a real scene does
+    private void paint(Frame frame) {
+        ByteBuffer y = frame.getPlane(0);
+        int bandHeight = Math.min(16, mHeight);
+        int top = (int) ((frame.getFrameNumber() * 4) % (mHeight - bandHeight + 1));
+        byte value = (byte) frame.getFrameNumber();
+        for (int row = top; row < top + bandHeight; row++) {
+            int offset = row * mYRowStride;
+            for (int x = 0; x < mWidth; x++)
+                y.put(offset + x, value);
+        }
+    }
+
+    private Frame allocateFrame() {
+        int chromaHeight = mHeight / 2;
+        ByteBuffer y = ByteBuffer.allocateDirect(mYRowStride * mHeight);
+        for (int i = 0; i < y.capacity(); i++)
+            y.put(i, (byte) (i % mYRowStride));
+
+        ByteBuffer u;
+        ByteBuffer v;
+        if (mUvPixelStride == 2) {
+            // Semi-planar: U and V are interleaved views over one buffer, as on most devices
+            ByteBuffer uv = ByteBuffer.allocateDirect(mUvRowStride * chromaHeight);
+            for (int i = 0; i < uv.capacity(); i++)
+                uv.put(i, (byte) 128);
+            uv.limit(uv.capacity() - 1);
+            u = uv.slice();
+            uv.clear();
+            uv.position(1);
+            v = uv.slice();
+        } else {
+            u = ByteBuffer.allocateDirect(mUvRowStride * chromaHeight);
+            v = ByteBuffer.allocateDirect(mUvRowStride * chromaHeight);
+            for (int i = 0; i < u.capacity(); i++) {
+                u.put(i, (byte) 128);
+                v.put(i, (byte) 128);
+            }
+        }
+
+        return new Frame(mWidth, mHeight,
+                new ByteBuffer[]{y, u, v},
+                new int[]{mYRowStride, mUvRowStride, mUvRowStride},
+                new int[]{1, mUvPixelStride, mUvPixelStride},
+                this);
+    }
+}
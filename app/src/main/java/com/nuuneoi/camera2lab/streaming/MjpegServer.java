@@ -0,0 +1,544 @@
+package com.nuuneoi.camera2lab.streaming;
+
+import com.nuuneoi.camera2lab.memory.MemoryBudget;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Serves the latest JPEG frame to any number of HTTP clients as a
+ * {@code multipart/x-mixed-replace} stream, from a single non-blocking selector thread.
+ *
+ * A published frame is built once, with its multipart header, and shared read-only by every
+ * client. Each client holds at most the frame it is currently sending: when it finishes, it
+ * moves on to the newest frame and the ones published meanwhile are skipped for that client
+ * only. Frame buffers nobody sends any more are reused for the next frames, so publishing
+ * does not allocate once the frame size settles. Producers should check {@link #wantsFrame()}
+ * before encoding, so nothing is encoded while no client could take a frame.
+ *
+ * With a {@link MemoryBudget}, the latest frame is accounted as a cache: it is dropped under
+ * pressure, and a frame that does not fit is not published.
+ */
+public class MjpegServer {
+
+    public static final String BOUNDARY = "camera2labframe";
+    public static final int DEFAULT_MAX_CLIENTS = 4;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_REQUEST_SIZE = 4096;
+
+    private static final byte[] RESPONSE_HEADER = ("HTTP/1.0 200 OK\r\n"
+            + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n"
+            + "Cache-Control: no-cache, no-store\r\n"
+            + "Pragma: no-cache\r\n"
+            + "Connection: close\r\n\r\n").getBytes(ASCII);
+    private static final byte[] BUSY_RESPONSE = ("HTTP/1.0 503 Service Unavailable\r\n"
+            + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(ASCII);
+    private static final byte[] PART_HEADER_START = ("--" + BOUNDARY + "\r\n"
+            + "Content-Type: image/jpeg\r\n"
+            + "Content-Length: ").getBytes(ASCII);
+    private static final byte[] PART_HEADER_END = "\r\n\r\n".getBytes(ASCII);
+    // Longest Content-Length value, and room for JPEG sizes to vary without reallocating
+    private static final int MAX_LENGTH_DIGITS = 10;
+    private static final int FRAME_HEADROOM_DIVISOR = 4;
+
+    public static class ClientStats {
+        public final SocketAddress address;
+        public final long framesSent;
+        public final long framesSkipped;
+        public final long bytesSent;
+        public final long connectedMs;
+
+        ClientStats(SocketAddress address, long framesSent, long framesSkipped, long bytesSent, long connectedMs) {
+            this.address = address;
+            this.framesSent = framesSent;
+            this.framesSkipped = framesSkipped;
+            this.bytesSent = bytesSent;
+            this.connectedMs = connectedMs;
+        }
+
+        public double getBytesPerSecond() {
+            return connectedMs > 0 ? bytesSent * 1000.0 / connectedMs : 0;
+        }
+
+        public double getFramesPerSecond() {
+            return connectedMs > 0 ? framesSent * 1000.0 / connectedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s sent=%d skipped=%d %.1ffps %.0fkB/s",
+                    address, framesSent, framesSkipped, getFramesPerSecond(), getBytesPerSecond() / 1024);
+        }
+    }
+
+    private static class Frame {
+        final ByteBuffer buffer;
+        // Read-only view of the part, handed to clients
+        final ByteBuffer data;
+        long sequence;
+
+        // Guarded by the server: clients sending it, whether a newer frame replaced it and
+        // whether it was given up under memory pressure
+        int users;
+        boolean retired;
+        boolean dropped;
+
+        Frame(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+            data = buffer.asReadOnlyBuffer();
+        }
+    }
+
+    private class Client {
+        final SocketChannel channel;
+        final SocketAddress address;
+        final long connectedAtMs = System.currentTimeMillis();
+        SelectionKey key;
+
+        ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        boolean streaming;
+        // What is being written now: the response header or a view of frame
+        ByteBuffer pending;
+        Frame frame;
+        long lastSequence;
+
+        volatile long framesSent;
+        volatile long framesSkipped;
+        volatile long bytesSent;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+            this.address = channel.socket().getRemoteSocketAddress();
+        }
+
+        ClientStats snapshot() {
+            return new ClientStats(address, framesSent, framesSkipped, bytesSent,
+                    System.currentTimeMillis() - connectedAtMs);
+        }
+    }
+
+    private final int mMaxClients;
+
+    private ServerSocketChannel mServerChannel;
+    private volatile Selector mSelector;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    private final List<Client> mClients = new CopyOnWriteArrayList<>();
+    private volatile int mIdleClients;
+    private volatile long mRejectedClients;
+
+    private volatile Frame mLatestFrame;
+    // Buffer for the next frame, guarded by this
+    private Frame mSpareFrame;
+    private long mNextSequence;
+    private volatile long mFramesPublished;
+
+    private MemoryBudget mMemoryBudget;
+    private volatile MemoryBudget.Pool mFramePool;
+
+    public MjpegServer() {
+        this(DEFAULT_MAX_CLIENTS);
+    }
+
+    public MjpegServer(int maxClients) {
+        mMaxClients = maxClients;
+    }
+
+    public synchronized void setMemoryBudget(MemoryBudget budget) {
+        if (mRunning)
+            throw new RuntimeException("Cannot set the memory budget once the server has started");
+        mMemoryBudget = budget;
+    }
+
+    /**
+     * Binds to {@code port} on all interfaces (0 picks a free port) and starts serving.
+     */
+    public synchronized void start(int port) throws IOException {
+        start(new InetSocketAddress(port));
+    }
+
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (mRunning)
+            return;
+
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(address);
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+
+        if (mMemoryBudget != null) {
+            mFramePool = mMemoryBudget.register("MJPEG frame", MemoryBudget.Kind.HEAP, MemoryBudget.PRIORITY_CACHE,
+                    new MemoryBudget.Reclaimer() {
+                        @Override
+                        public long reclaim(long bytes) {
+                            return dropLatestFrame();
+                        }
+                    });
+        }
+
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "MJPEG Server");
+        mThread.start();
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!mRunning)
+                return;
+
+            mRunning = false;
+            mSelector.wakeup();
+            thread = mThread;
+            mThread = null;
+        }
+        // Outside the lock, the server thread takes it to hand out frames
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mSelector = null;
+
+        dropLatestFrame();
+        if (mFramePool != null) {
+            mFramePool.unregister();
+            mFramePool = null;
+        }
+    }
+
+    public int getPort() {
+        ServerSocketChannel channel = mServerChannel;
+        return channel != null ? channel.socket().getLocalPort() : -1;
+    }
+
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    public long getRejectedClients() {
+        return mRejectedClients;
+    }
+
+    public long getFramesPublished() {
+        return mFramesPublished;
+    }
+
+    /**
+     * True when at least one connected client is ready to start on a new frame. When false,
+     * the frame would not be sent to anybody and encoding it is wasted work.
+     */
+    public boolean wantsFrame() {
+        return mIdleClients > 0;
+    }
+
+    /**
+     * Publishes a JPEG image. The data is copied once into a frame shared by all clients, so
+     * the caller may reuse {@code jpeg} right away.
+     *
+     * @return false when the memory budget had no room for the frame
+     */
+    public boolean publishJpeg(byte[] jpeg, int offset, int length) {
+        int size = PART_HEADER_START.length + MAX_LENGTH_DIGITS + PART_HEADER_END.length + length + 2;
+        MemoryBudget.Pool pool = mFramePool;
+        Frame frame;
+        synchronized (this) {
+            frame = mSpareFrame;
+            mSpareFrame = null;
+        }
+        if (frame == null || frame.buffer.capacity() < size) {
+            if (frame != null && pool != null)
+                pool.release(frame.buffer.capacity());
+            int capacity = size + size / FRAME_HEADROOM_DIVISOR;
+            if (pool != null && !pool.tryReserve(capacity))
+                return false;
+            frame = new Frame(capacity);
+        }
+
+        // The frame is not visible to the selector thread until it is published below
+        ByteBuffer buffer = frame.buffer;
+        buffer.clear();
+        buffer.put(PART_HEADER_START);
+        putDecimal(buffer, length);
+        buffer.put(PART_HEADER_END);
+        buffer.put(jpeg, offset, length);
+        buffer.put((byte) '\r').put((byte) '\n');
+        frame.data.limit(buffer.position()).position(0);
+
+        long released;
+        synchronized (this) {
+            Frame previous = mLatestFrame;
+            frame.sequence = mNextSequence++;
+            mLatestFrame = frame;
+            mFramesPublished++;
+            // Clients still sending the previous frame keep it until they finish
+            released = previous != null ? retire(previous) : 0;
+        }
+        if (pool != null && released > 0)
+            pool.release(released);
+        Selector selector = mSelector;
+        if (selector != null)
+            selector.wakeup();
+        return true;
+    }
+
+    public List<ClientStats> getClientStats() {
+        List<ClientStats> stats = new ArrayList<>(mClients.size());
+        for (Client client : mClients)
+            stats.add(client.snapshot());
+        return stats;
+    }
+
+    // Internal
+
+    private void loop() {
+        try {
+            while (mRunning) {
+                mSelector.select();
+                if (!mRunning)
+                    break;
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            read(client);
+                        if (key.isValid() && key.isWritable())
+                            write(client);
+                    } catch (IOException e) {
+                        disconnect(client);
+                    }
+                }
+                dispatchLatestFrame();
+            }
+        } catch (IOException e) {
+            // Selector failure, shut everything down below
+        } finally {
+            for (Client client : mClients)
+                disconnect(client);
+            try {
+                mServerChannel.close();
+                mSelector.close();
+            } catch (IOException e) {
+            }
+            mIdleClients = 0;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        if (mClients.size() >= mMaxClients) {
+            // Best effort: a fresh socket buffer always takes this small response
+            mRejectedClients++;
+            channel.write(ByteBuffer.wrap(BUSY_RESPONSE));
+            channel.close();
+            return;
+        }
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel);
+        client.key = channel.register(mSelector, SelectionKey.OP_READ, client);
+        mClients.add(client);
+    }
+
+    private void read(Client client) throws IOException {
+        if (client.streaming) {
+            // Nothing more is expected from a viewer; drain and watch for the close
+            ByteBuffer scratch = client.request;
+            scratch.clear();
+            if (client.channel.read(scratch) < 0)
+                disconnect(client);
+            return;
+        }
+
+        if (client.channel.read(client.request) < 0) {
+            disconnect(client);
+            return;
+        }
+        if (!hasCompleteRequest(client.request) && client.request.hasRemaining())
+            return;
+
+        // Any request path gets the stream
+        client.streaming = true;
+        Frame latest = mLatestFrame;
+        client.lastSequence = latest != null ? latest.sequence - 1 : -1;
+        client.pending = ByteBuffer.wrap(RESPONSE_HEADER);
+        client.frame = null;
+        client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void write(Client client) throws IOException {
+        ByteBuffer pending = client.pending;
+        if (pending == null) {
+            client.key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+
+        client.bytesSent += client.channel.write(pending);
+        if (pending.hasRemaining())
+            return;
+
+        if (client.frame != null) {
+            client.framesSent++;
+            releaseFrame(client);
+        }
+        client.pending = null;
+        if (!takeLatestFrame(client))
+            client.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Hands the newest frame to every idle viewer and republishes how many stay idle
+    private void dispatchLatestFrame() {
+        int idle = 0;
+        for (Client client : mClients) {
+            if (!client.streaming || client.pending != null || !client.key.isValid())
+                continue;
+            if (takeLatestFrame(client))
+                client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            else
+                idle++;
+        }
+        mIdleClients = idle;
+    }
+
+    private boolean takeLatestFrame(Client client) {
+        Frame frame;
+        synchronized (this) {
+            frame = mLatestFrame;
+            if (frame == null || frame.sequence <= client.lastSequence)
+                return false;
+            frame.users++;
+        }
+
+        if (client.lastSequence >= 0)
+            client.framesSkipped += frame.sequence - client.lastSequence - 1;
+        client.lastSequence = frame.sequence;
+        client.pending = frame.data.duplicate();
+        client.frame = frame;
+        return true;
+    }
+
+    private void releaseFrame(Client client) {
+        Frame frame = client.frame;
+        client.frame = null;
+        long released;
+        synchronized (this) {
+            released = --frame.users == 0 && frame.retired ? recycle(frame) : 0;
+        }
+        MemoryBudget.Pool pool = mFramePool;
+        if (pool != null && released > 0)
+            pool.release(released);
+    }
+
+    // Called with the lock held when a newer frame replaces this one. Returns the bytes to give
+    // back to the budget, which must not be called under the lock
+    private long retire(Frame frame) {
+        frame.retired = true;
+        return frame.users == 0 ? recycle(frame) : 0;
+    }
+
+    // Called with the lock held once nobody sends the frame any more; the larger buffer stays
+    // as the spare
+    private long recycle(Frame frame) {
+        if (frame.dropped)
+            return 0;
+        frame.retired = false;
+        Frame spare = mSpareFrame;
+        if (spare == null) {
+            mSpareFrame = frame;
+            return 0;
+        }
+        if (spare.buffer.capacity() < frame.buffer.capacity()) {
+            mSpareFrame = frame;
+            return spare.buffer.capacity();
+        }
+        return frame.buffer.capacity();
+    }
+
+    private long dropLatestFrame() {
+        Frame latest;
+        Frame spare;
+        synchronized (this) {
+            latest = mLatestFrame;
+            mLatestFrame = null;
+            spare = mSpareFrame;
+            mSpareFrame = null;
+            // Clients still sending it finish, then it is left to the GC
+            if (latest != null) {
+                latest.retired = true;
+                latest.dropped = true;
+            }
+        }
+        long freed = 0;
+        if (latest != null)
+            freed += latest.buffer.capacity();
+        if (spare != null)
+            freed += spare.buffer.capacity();
+        MemoryBudget.Pool pool = mFramePool;
+        if (pool != null && freed > 0)
+            pool.release(freed);
+        return freed;
+    }
+
+    private void disconnect(Client client) {
+        if (client.frame != null)
+            releaseFrame(client);
+        mClients.remove(client);
+        if (client.key != null)
+            client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static void putDecimal(ByteBuffer buffer, int value) {
+        int divisor = 1;
+        while (divisor <= value / 10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            buffer.put((byte) ('0' + value / divisor % 10));
+    }
+
+    private static boolean hasCompleteRequest(ByteBuffer request) {
+        int end = request.position();
+        for (int i = 3; i < end; i++) {
+            if (request.get(i - 3) == '\r' && request.get(i - 2) == '\n' && request.get(i - 1) == '\r' && request.get(i) == '\n')
+                return true;
+        }
+        return false;
+    }
+}
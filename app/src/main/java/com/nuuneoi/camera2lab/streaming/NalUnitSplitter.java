@@ -0,0 +1,74 @@
+package com.nuuneoi.camera2lab.streaming;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the NAL units of an Annex-B sample (00 00 01 or 00 00 00 01 start codes) in place.
+ * Units are reported as offset and length into the original buffer; nothing is copied and the
+ * buffer position is left untouched.
+ */
+public class NalUnitSplitter {
+
+    public interface Handler {
+        /**
+         * @param last true for the final unit of the sample
+         */
+        void onNalUnit(ByteBuffer data, int offset, int length, boolean last);
+    }
+
+    private NalUnitSplitter() {
+    }
+
+    /**
+     * Reports every NAL unit between {@code offset} and {@code offset + length}. Data without
+     * any start code is reported as a single unit.
+     *
+     * @return number of units found
+     */
+    public static int split(ByteBuffer data, int offset, int length, Handler handler) {
+        int end = offset + length;
+        int start = findStartCode(data, offset, end);
+        if (start < 0) {
+            if (length > 0)
+                handler.onNalUnit(data, offset, length, true);
+            return length > 0 ? 1 : 0;
+        }
+
+        int count = 0;
+        int unitStart = start + 3;
+        while (unitStart < end) {
+            int next = findStartCode(data, unitStart, end);
+            int unitEnd = next < 0 ? end : next;
+            // A four byte start code leaves a trailing zero on the previous unit
+            while (unitEnd > unitStart && next >= 0 && data.get(unitEnd - 1) == 0)
+                unitEnd--;
+            if (unitEnd > unitStart) {
+                handler.onNalUnit(data, unitStart, unitEnd - unitStart, next < 0);
+                count++;
+            }
+            if (next < 0)
+                break;
+            unitStart = next + 3;
+        }
+        return count;
+    }
+
+    public static int getNalType(ByteBuffer data, int offset) {
+        return data.get(offset) & 0x1f;
+    }
+
+    // Internal
+
+    // Index of the first byte of the next 00 00 01 sequence, or -1
+    private static int findStartCode(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((data.get(i + 2) & 0xff) > 1) {
+                // No start code can begin at i, i + 1 or i + 2
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
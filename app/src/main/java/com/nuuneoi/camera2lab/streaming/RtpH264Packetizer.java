@@ -0,0 +1,143 @@
+package com.nuuneoi.camera2lab.streaming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * RFC 6184 packetization of H.264 NAL units: units that fit the payload size go out as single
+ * NAL unit packets, larger ones are fragmented with FU-A. Packets are handed to the writer as
+ * a reusable RTP header plus a view onto the caller's buffer, so payload bytes are never copied.
+ *
+ * Not thread safe; meant to be driven from the encoder drain thread.
+ */
+public class RtpH264Packetizer {
+
+    public interface PacketWriter {
+        /**
+         * Sends one packet made of {@code parts[0..count)}. Buffers are only valid during the call.
+         */
+        void writePacket(ByteBuffer[] parts, int count) throws IOException;
+    }
+
+    public static final int DEFAULT_MAX_PAYLOAD = 1400;
+    public static final int DEFAULT_PAYLOAD_TYPE = 96;
+    public static final int RTP_HEADER_SIZE = 12;
+    public static final int NAL_TYPE_FU_A = 28;
+
+    private static final int FU_START = 0x80;
+    private static final int FU_END = 0x40;
+
+    private final PacketWriter mWriter;
+    private final int mMaxPayload;
+    private final int mPayloadType;
+    private final int mSsrc;
+    private int mSequence;
+
+    private final ByteBuffer mHeader = ByteBuffer.allocate(RTP_HEADER_SIZE + 2);
+    private final ByteBuffer[] mParts = new ByteBuffer[2];
+    private ByteBuffer mViewSource;
+    private ByteBuffer mView;
+
+    private long mPackets;
+    private long mBytes;
+
+    public RtpH264Packetizer(PacketWriter writer) {
+        this(writer, DEFAULT_MAX_PAYLOAD, DEFAULT_PAYLOAD_TYPE, new Random().nextInt());
+    }
+
+    public RtpH264Packetizer(PacketWriter writer, int maxPayload, int payloadType, int ssrc) {
+        if (maxPayload < 3)
+            throw new IllegalArgumentException("Payload too small: " + maxPayload);
+        mWriter = writer;
+        mMaxPayload = maxPayload;
+        mPayloadType = payloadType;
+        mSsrc = ssrc;
+        mSequence = ssrc >>> 16;
+    }
+
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    public long getPacketCount() {
+        return mPackets;
+    }
+
+    public long getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * Packetizes one NAL unit (without start code) located at {@code offset} in {@code data}.
+     *
+     * @param timestampUs     presentation time, converted to the 90kHz RTP clock
+     * @param endOfAccessUnit sets the marker bit on the last packet of the unit
+     */
+    public void packetize(ByteBuffer data, int offset, int length, long timestampUs, boolean endOfAccessUnit) throws IOException {
+        if (length <= 0)
+            return;
+
+        int rtpTimestamp = (int) (timestampUs * 90 / 1000);
+        ByteBuffer view = viewOf(data);
+
+        if (length <= mMaxPayload) {
+            writeHeader(rtpTimestamp, endOfAccessUnit);
+            send(view, offset, offset + length, RTP_HEADER_SIZE);
+            return;
+        }
+
+        // FU-A: the NAL header is replaced by the FU indicator and header in every fragment
+        int nalHeader = data.get(offset) & 0xff;
+        int fuIndicator = (nalHeader & 0xe0) | NAL_TYPE_FU_A;
+        int position = offset + 1;
+        int end = offset + length;
+        int fragmentSize = mMaxPayload - 2;
+        while (position < end) {
+            int fragmentEnd = Math.min(end, position + fragmentSize);
+            boolean first = position == offset + 1;
+            boolean last = fragmentEnd == end;
+            int fuHeader = (nalHeader & 0x1f) | (first ? FU_START : 0) | (last ? FU_END : 0);
+
+            writeHeader(rtpTimestamp, last && endOfAccessUnit);
+            mHeader.put(RTP_HEADER_SIZE, (byte) fuIndicator);
+            mHeader.put(RTP_HEADER_SIZE + 1, (byte) fuHeader);
+            send(view, position, fragmentEnd, RTP_HEADER_SIZE + 2);
+            position = fragmentEnd;
+        }
+    }
+
+    // Internal
+
+    // One duplicate per codec buffer, reused while the codec hands out the same buffer
+    private ByteBuffer viewOf(ByteBuffer data) {
+        if (mViewSource != data) {
+            mViewSource = data;
+            mView = data.duplicate();
+        }
+        return mView;
+    }
+
+    private void writeHeader(int rtpTimestamp, boolean marker) {
+        ByteBuffer header = mHeader;
+        header.clear();
+        header.put(0, (byte) 0x80);
+        header.put(1, (byte) ((marker ? 0x80 : 0) | (mPayloadType & 0x7f)));
+        header.putShort(2, (short) mSequence);
+        header.putInt(4, rtpTimestamp);
+        header.putInt(8, mSsrc);
+        mSequence = (mSequence + 1) & 0xffff;
+    }
+
+    private void send(ByteBuffer view, int start, int end, int headerSize) throws IOException {
+        mHeader.limit(headerSize);
+        view.clear();
+        view.position(start);
+        view.limit(end);
+        mParts[0] = mHeader;
+        mParts[1] = view;
+        mWriter.writePacket(mParts, 2);
+        mPackets++;
+        mBytes += headerSize + end - start;
+    }
+}
@@ -0,0 +1,190 @@
+package com.nuuneoi.camera2lab.streaming;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.nuuneoi.camera2lab.encoder.SampleInfo;
+import com.nuuneoi.camera2lab.pipeline.SampleSink;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+/**
+ * Streams H.264 samples as RTP over UDP to a single receiver. Samples are split into NAL units
+ * in place and sent with gathering writes straight from the codec buffer.
+ *
+ * SPS and PPS are cached by NAL type from the output format or from codec config samples, which
+ * may carry them together or one at a time, and sent ahead of every key frame, so a receiver
+ * that joins late can start decoding at the next key frame. Delta frames before the first key
+ * frame are skipped.
+ */
+public class RtpStreamSink implements SampleSink {
+
+    private static final String TAG = "RtpStreamSink";
+
+    private static final String MIME_AVC = "video/avc";
+
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final DatagramChannel mChannel;
+    private final RtpH264Packetizer mPacketizer;
+
+    private byte[] mSps;
+    private byte[] mPps;
+    private ByteBuffer mParameterSets;
+    private boolean mStarted;
+    private boolean mUnsupported;
+
+    private long mTimestampUs;
+    private boolean mSendingParameterSets;
+    private boolean mHadError;
+    private long mSendErrors;
+    private long mSkippedSamples;
+
+    private final NalUnitSplitter.Handler mParameterSetHandler = new NalUnitSplitter.Handler() {
+        @Override
+        public void onNalUnit(ByteBuffer data, int offset, int length, boolean last) {
+            if (length <= 0)
+                return;
+            int type = data.get(offset) & 0x1f;
+            if (type != NAL_TYPE_SPS && type != NAL_TYPE_PPS)
+                return;
+            byte[] unit = new byte[length];
+            ByteBuffer source = data.duplicate();
+            source.position(offset);
+            source.get(unit);
+            if (type == NAL_TYPE_SPS)
+                mSps = unit;
+            else
+                mPps = unit;
+        }
+    };
+
+    private final NalUnitSplitter.Handler mNalHandler = new NalUnitSplitter.Handler() {
+        @Override
+        public void onNalUnit(ByteBuffer data, int offset, int length, boolean last) {
+            if (mHadError)
+                return;
+            try {
+                mPacketizer.packetize(data, offset, length, mTimestampUs, last && !mSendingParameterSets);
+            } catch (IOException e) {
+                // Typically ICMP port unreachable while nobody listens; the next sample retries
+                mHadError = true;
+                mSendErrors++;
+            }
+        }
+    };
+
+    public RtpStreamSink(SocketAddress target) throws IOException {
+        this(target, RtpH264Packetizer.DEFAULT_MAX_PAYLOAD);
+    }
+
+    public RtpStreamSink(SocketAddress target, int maxPayload) throws IOException {
+        mChannel = DatagramChannel.open();
+        mChannel.connect(target);
+        mPacketizer = new RtpH264Packetizer(new RtpH264Packetizer.PacketWriter() {
+            @Override
+            public void writePacket(ByteBuffer[] parts, int count) throws IOException {
+                mChannel.write(parts, 0, count);
+            }
+        }, maxPayload, RtpH264Packetizer.DEFAULT_PAYLOAD_TYPE, new Random().nextInt());
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!MIME_AVC.equals(mime)) {
+            Log.w(TAG, "RTP streaming needs H.264, encoder produces " + mime);
+            mUnsupported = true;
+            return;
+        }
+        mUnsupported = false;
+        setParameterSets(format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+    }
+
+    /**
+     * Caches Annex-B SPS and PPS (csd-0 and csd-1). Either may be null, which keeps the one
+     * cached before.
+     */
+    public void setParameterSets(ByteBuffer sps, ByteBuffer pps) {
+        if (sps != null)
+            cacheParameterSets(sps, sps.position(), sps.remaining());
+        if (pps != null)
+            cacheParameterSets(pps, pps.position(), pps.remaining());
+    }
+
+    @Override
+    public void writeSample(ByteBuffer data, SampleInfo info) {
+        if (mUnsupported || info.size <= 0)
+            return;
+
+        if (info.isCodecConfig()) {
+            cacheParameterSets(data, info.offset, info.size);
+            return;
+        }
+
+        if (info.isKeyFrame()) {
+            mStarted = true;
+        } else if (!mStarted) {
+            mSkippedSamples++;
+            return;
+        }
+
+        mTimestampUs = info.presentationTimeUs;
+        mHadError = false;
+        if (info.isKeyFrame() && mParameterSets != null) {
+            mSendingParameterSets = true;
+            NalUnitSplitter.split(mParameterSets, 0, mParameterSets.limit(), mNalHandler);
+            mSendingParameterSets = false;
+        }
+        NalUnitSplitter.split(data, info.offset, info.size, mNalHandler);
+    }
+
+    public long getPacketsSent() {
+        return mPacketizer.getPacketCount();
+    }
+
+    public long getBytesSent() {
+        return mPacketizer.getByteCount();
+    }
+
+    public long getSendErrors() {
+        return mSendErrors;
+    }
+
+    public long getSkippedSamples() {
+        return mSkippedSamples;
+    }
+
+    public void close() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    // Internal
+
+    // Picks SPS and PPS units out of the data by type and rebuilds what goes ahead of key frames
+    private void cacheParameterSets(ByteBuffer data, int offset, int length) {
+        if (NalUnitSplitter.split(data, offset, length, mParameterSetHandler) == 0)
+            return;
+
+        int size = (mSps != null ? START_CODE.length + mSps.length : 0)
+                + (mPps != null ? START_CODE.length + mPps.length : 0);
+        if (size == 0)
+            return;
+        ByteBuffer parameterSets = ByteBuffer.allocateDirect(size);
+        if (mSps != null)
+            parameterSets.put(START_CODE).put(mSps);
+        if (mPps != null)
+            parameterSets.put(START_CODE).put(mPps);
+        parameterSets.flip();
+        mParameterSets = parameterSets;
+    }
+}
@@ -0,0 +1,306 @@
+package com.nuuneoi.camera2lab.trace;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process tracer for per-frame events. Events go into a preallocated ring of fixed-size
+ * records (header, thread id, nanoTime, two long arguments) with one atomic increment and six
+ * ordered array stores; nothing is allocated or formatted on the hot path, and a disabled tracer
+ * costs a single volatile read.
+ *
+ * Begin and end of a span must be recorded on the same thread, as Chrome pairs them per thread.
+ * A span that starts on one thread and finishes on another, or may never finish, is recorded
+ * once at the end with {@link #complete(int, long, long)}.
+ *
+ * The ring can be dumped as Chrome trace JSON, which both chrome://tracing and the Perfetto UI
+ * open, to see capture, encode and mux spans per thread on a timeline.
+ *
+ * Event ids come from {@link #define(String)}, typically into static final fields.
+ */
+public class EventTracer {
+
+    public static final int PHASE_BEGIN = 0;
+    public static final int PHASE_END = 1;
+    public static final int PHASE_INSTANT = 2;
+    public static final int PHASE_COUNTER = 3;
+    // timeNs is the start, arg0 the duration in ns
+    public static final int PHASE_COMPLETE = 4;
+
+    public interface RecordVisitor {
+        void onRecord(int eventId, int phase, long threadId, long timeNs, long arg0, long arg1);
+    }
+
+    private static final int RECORD_LONGS = 5;
+    private static final int MAX_EVENTS = 1 << 12;
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+
+    // header = seq << 16 | eventId << 3 | phase; a slot whose seq does not match is torn or stale
+    private static final int SEQ_SHIFT = 16;
+    private static final int EVENT_SHIFT = 3;
+    private static final int PHASE_MASK = 7;
+    // Header of a slot being rewritten, matches no seq
+    private static final long WRITING = -1L;
+
+    private static final String[] sEventNames = new String[MAX_EVENTS];
+    private static int sEventCount;
+
+    private static final EventTracer sGlobal = new EventTracer(DEFAULT_CAPACITY);
+
+    private final AtomicLongArray mRing;
+    private final int mCapacity;
+    private final AtomicLong mNext = new AtomicLong();
+    private volatile boolean mEnabled;
+
+    public EventTracer(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        mCapacity = capacity;
+        mRing = new AtomicLongArray(capacity * RECORD_LONGS);
+    }
+
+    public static EventTracer global() {
+        return sGlobal;
+    }
+
+    /**
+     * Registers an event name and returns its id. Defining the same name twice returns the same id.
+     */
+    public static synchronized int define(String name) {
+        for (int i = 0; i < sEventCount; i++) {
+            if (sEventNames[i].equals(name))
+                return i;
+        }
+        if (sEventCount == MAX_EVENTS)
+            throw new IllegalStateException("Too many trace events");
+        sEventNames[sEventCount] = name;
+        return sEventCount++;
+    }
+
+    public static synchronized String getEventName(int eventId) {
+        return eventId < sEventCount ? sEventNames[eventId] : "event-" + eventId;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public long getRecordedCount() {
+        return mNext.get();
+    }
+
+    public long getByteSize() {
+        return (long) mRing.length() * 8;
+    }
+
+    public void clear() {
+        mNext.set(0);
+    }
+
+    public void begin(int eventId) {
+        if (mEnabled)
+            record(eventId, PHASE_BEGIN, 0, 0);
+    }
+
+    public void begin(int eventId, long arg0, long arg1) {
+        if (mEnabled)
+            record(eventId, PHASE_BEGIN, arg0, arg1);
+    }
+
+    public void end(int eventId) {
+        if (mEnabled)
+            record(eventId, PHASE_END, 0, 0);
+    }
+
+    public void end(int eventId, long arg0, long arg1) {
+        if (mEnabled)
+            record(eventId, PHASE_END, arg0, arg1);
+    }
+
+    public void instant(int eventId, long arg0, long arg1) {
+        if (mEnabled)
+            record(eventId, PHASE_INSTANT, arg0, arg1);
+    }
+
+    public void counter(int eventId, long value) {
+        if (mEnabled)
+            record(eventId, PHASE_COUNTER, value, 0);
+    }
+
+    /**
+     * Records a span that started at {@code startNs} ({@link System#nanoTime()}) and ends now.
+     */
+    public void complete(int eventId, long startNs, long arg) {
+        if (mEnabled)
+            record(eventId, PHASE_COMPLETE, startNs, System.nanoTime() - startNs, arg);
+    }
+
+    private void record(int eventId, int phase, long arg0, long arg1) {
+        record(eventId, phase, System.nanoTime(), arg0, arg1);
+    }
+
+    // Seqlock style: the header is invalidated before and published after the payload, all with
+    // release stores, so a reader that sees the same valid header on both sides of its payload
+    // reads saw a whole record
+    private void record(int eventId, int phase, long timeNs, long arg0, long arg1) {
+        long seq = mNext.getAndIncrement();
+        int base = (int) (seq & (mCapacity - 1)) * RECORD_LONGS;
+        AtomicLongArray ring = mRing;
+        ring.lazySet(base, WRITING);
+        ring.lazySet(base + 1, Thread.currentThread().getId());
+        ring.lazySet(base + 2, timeNs);
+        ring.lazySet(base + 3, arg0);
+        ring.lazySet(base + 4, arg1);
+        ring.lazySet(base, seq << SEQ_SHIFT | (long) eventId << EVENT_SHIFT | phase);
+    }
+
+    /**
+     * Visits the retained records oldest first. Records overwritten while visiting are skipped;
+     * disable the tracer first for an exact snapshot.
+     *
+     * @return number of records visited
+     */
+    public int forEachRecord(RecordVisitor visitor) {
+        long end = mNext.get();
+        long start = Math.max(0, end - mCapacity);
+        int visited = 0;
+        for (long seq = start; seq < end; seq++) {
+            int base = (int) (seq & (mCapacity - 1)) * RECORD_LONGS;
+            // Volatile reads, paired with the release stores in record()
+            long header = mRing.get(base);
+            long threadId = mRing.get(base + 1);
+            long timeNs = mRing.get(base + 2);
+            long arg0 = mRing.get(base + 3);
+            long arg1 = mRing.get(base + 4);
+            if (header >>> SEQ_SHIFT != seq || mRing.get(base) != header)
+                continue;
+            int eventId = (int) (header >>> EVENT_SHIFT) & (MAX_EVENTS - 1);
+            visitor.onRecord(eventId, (int) (header & PHASE_MASK), threadId, timeNs, arg0, arg1);
+            visited++;
+        }
+        return visited;
+    }
+
+    /**
+     * Writes the retained records as Chrome trace JSON ("traceEvents" array). Timestamps are in
+     * microseconds relative to the oldest record.
+     */
+    public void writeChromeTrace(final Writer writer) throws IOException {
+        final Map<Long, String> threadNames = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            threadNames.put(thread.getId(), thread.getName());
+
+        final long[] firstTimeNs = {-1};
+        forEachRecord(new RecordVisitor() {
+            @Override
+            public void onRecord(int eventId, int phase, long threadId, long timeNs, long arg0, long arg1) {
+                if (firstTimeNs[0] < 0 || timeNs < firstTimeNs[0])
+                    firstTimeNs[0] = timeNs;
+            }
+        });
+
+        final IOException[] failure = new IOException[1];
+        final boolean[] first = {true};
+        final Map<Long, Boolean> seenThreads = new HashMap<>();
+        writer.write("{\"traceEvents\":[");
+        forEachRecord(new RecordVisitor() {
+            @Override
+            public void onRecord(int eventId, int phase, long threadId, long timeNs, long arg0, long arg1) {
+                if (failure[0] != null)
+                    return;
+                try {
+                    if (!seenThreads.containsKey(threadId)) {
+                        seenThreads.put(threadId, Boolean.TRUE);
+                        String name = threadNames.get(threadId);
+                        writeSeparator(writer, first);
+                        writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + threadId
+                                + ",\"args\":{\"name\":\"" + escape(name != null ? name : "thread-" + threadId) + "\"}}");
+                    }
+                    writeSeparator(writer, first);
+                    writeEvent(writer, eventId, phase, threadId, timeNs - firstTimeNs[0], arg0, arg1);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        if (failure[0] != null)
+            throw failure[0];
+        writer.write("],\"displayTimeUnit\":\"ns\"}");
+        writer.flush();
+    }
+
+    // Internal
+
+    private static void writeSeparator(Writer writer, boolean[] first) throws IOException {
+        if (!first[0])
+            writer.write(',');
+        first[0] = false;
+    }
+
+    private static void writeEvent(Writer writer, int eventId, int phase, long threadId, long relativeNs,
+                                   long arg0, long arg1) throws IOException {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("{\"name\":\"").append(escape(getEventName(eventId))).append("\",\"ph\":\"");
+        switch (phase) {
+            case PHASE_BEGIN:
+                sb.append('B');
+                break;
+            case PHASE_END:
+                sb.append('E');
+                break;
+            case PHASE_COUNTER:
+                sb.append('C');
+                break;
+            case PHASE_COMPLETE:
+                sb.append('X');
+                break;
+            default:
+                sb.append('i');
+                break;
+        }
+        sb.append("\",\"pid\":1,\"tid\":").append(threadId)
+                .append(",\"ts\":");
+        appendMicros(sb, relativeNs);
+        if (phase == PHASE_INSTANT)
+            sb.append(",\"s\":\"t\"");
+        if (phase == PHASE_COMPLETE)
+            appendMicros(sb.append(",\"dur\":"), arg0)
+                    .append(",\"args\":{\"a0\":").append(arg1).append('}');
+        else if (phase == PHASE_COUNTER)
+            sb.append(",\"args\":{\"value\":").append(arg0).append('}');
+        else
+            sb.append(",\"args\":{\"a0\":").append(arg0).append(",\"a1\":").append(arg1).append('}');
+        sb.append('}');
+        writer.write(sb.toString());
+    }
+
+    private static StringBuilder appendMicros(StringBuilder sb, long ns) {
+        return sb.append(ns / 1000).append('.').append(String.format(java.util.Locale.US, "%03d", ns % 1000));
+    }
+
+    private static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format(java.util.Locale.US, "\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,93 @@
+package com.nuuneoi.camera2lab.utils;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Fans a pass out over a fixed number of bands: band 0 runs on the calling thread, the others
+ * on the executor, and {@link #run()} returns once all of them are done. A failure in any band
+ * is rethrown on the calling thread. Band tasks are created once; running does not allocate.
+ *
+ * Not thread safe: one pass at a time per instance.
+ */
+public class BandRunner {
+
+    public interface Bands {
+        void runBand(int band);
+    }
+
+    private final Executor mExecutor;
+    private final Bands mBands;
+    private final Task[] mTasks;
+    private final Object mLock = new Object();
+    private int mPending;
+    private volatile RuntimeException mFailure;
+
+    private class Task implements Runnable {
+        final int index;
+
+        Task(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mBands.runBand(index);
+            } catch (RuntimeException e) {
+                mFailure = e;
+            } finally {
+                synchronized (mLock) {
+                    if (--mPending == 0)
+                        mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    public BandRunner(Executor executor, int bands, Bands callback) {
+        if (executor == null || bands < 2)
+            throw new IllegalArgumentException("Needs an executor and at least two bands: " + bands);
+
+        mExecutor = executor;
+        mBands = callback;
+        mTasks = new Task[bands];
+        for (int i = 0; i < bands; i++)
+            mTasks[i] = new Task(i);
+    }
+
+    public int getBandCount() {
+        return mTasks.length;
+    }
+
+    public void run() {
+        mFailure = null;
+        synchronized (mLock) {
+            mPending = mTasks.length - 1;
+        }
+        for (int i = 1; i < mTasks.length; i++)
+            mExecutor.execute(mTasks[i]);
+        RuntimeException failure = null;
+        try {
+            mBands.runBand(0);
+        } catch (RuntimeException e) {
+            // Still wait, the other bands are using the caller's buffers
+            failure = e;
+        }
+        synchronized (mLock) {
+            boolean interrupted = false;
+            while (mPending > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        if (failure == null)
+            failure = mFailure;
+        if (failure != null)
+            throw failure;
+    }
+}
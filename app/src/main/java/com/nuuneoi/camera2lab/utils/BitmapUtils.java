@@ -67,4 +67,93 @@ public class BitmapUtils {
                 nv21, ImageFormat.NV21, width, height, /* strides= */ null);
     }
 
+    /**
+     * Copies a YUV_420_888 image into {@code nv12} as tightly packed NV12 (Y plane, then
+     * interleaved UV), the layout buffer-input encoders take. Allocation free: chroma rows are
+     * read in bulk into {@code row}, which must hold at least one U row and one V row as they
+     * sit in their planes, see {@link #getNv12RowScratchSize}.
+     */
+    public static void copyToNv12(Image image, byte[] nv12, byte[] row) {
+        copyToSemiPlanar(image, nv12, row, false);
+    }
+
+    /**
+     * Same as {@link #copyToNv12} with V before U, the layout YuvImage compresses from.
+     */
+    public static void copyToNv21(Image image, byte[] nv21, byte[] row) {
+        copyToSemiPlanar(image, nv21, row, true);
+    }
+
+    private static void copyToSemiPlanar(Image image, byte[] out, byte[] row, boolean vFirst) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Invalid image format");
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (out.length < width * height * 3 / 2) {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+
+        Image.Plane yPlane = image.getPlanes()[0];
+        Image.Plane uPlane = image.getPlanes()[1];
+        Image.Plane vPlane = image.getPlanes()[2];
+
+        ByteBuffer yBuffer = yPlane.getBuffer();
+        ByteBuffer uBuffer = uPlane.getBuffer();
+        ByteBuffer vBuffer = vPlane.getBuffer();
+
+        // Y rows in bulk when pixels are contiguous, which they always are in practice
+        int yRowStride = yPlane.getRowStride();
+        int yPixelStride = yPlane.getPixelStride();
+        int index = 0;
+        if (yPixelStride == 1) {
+            for (int y = 0; y < height; ++y) {
+                yBuffer.position(y * yRowStride);
+                yBuffer.get(out, index, width);
+                index += width;
+            }
+            yBuffer.rewind();
+        } else {
+            for (int y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    out[index++] = yBuffer.get(y * yRowStride + x * yPixelStride);
+                }
+            }
+        }
+
+        // Chroma pairs in the requested order; U/V planes share row and pixel strides. Each row is read in bulk, the last
+        // one of a plane may end right after its last sample
+        int uvRowStride = uPlane.getRowStride();
+        int uvPixelStride = uPlane.getPixelStride();
+        int uvWidth = width / 2;
+        int uvHeight = height / 2;
+        int uvRowLength = (uvWidth - 1) * uvPixelStride + 1;
+        if (row.length < 2 * uvRowLength) {
+            throw new IllegalArgumentException("Row scratch too small");
+        }
+        int firstOffset = vFirst ? uvRowLength : 0;
+        int secondOffset = vFirst ? 0 : uvRowLength;
+        for (int y = 0; y < uvHeight; ++y) {
+            uBuffer.position(y * uvRowStride);
+            uBuffer.get(row, firstOffset, uvRowLength);
+            vBuffer.position(y * uvRowStride);
+            vBuffer.get(row, secondOffset, uvRowLength);
+            for (int x = 0, s = 0; x < uvWidth; ++x, s += uvPixelStride) {
+                out[index++] = row[s];
+                out[index++] = row[uvRowLength + s];
+            }
+        }
+        uBuffer.rewind();
+        vBuffer.rewind();
+    }
+
+    /**
+     * Row scratch {@link #copyToNv12} needs for frames of {@code width} pixels, whatever the
+     * chroma pixel stride.
+     */
+    public static int getNv12RowScratchSize(int width) {
+        // Interleaved chroma, pixel stride 2, is the widest YUV_420_888 gets
+        return 2 * width;
+    }
 }
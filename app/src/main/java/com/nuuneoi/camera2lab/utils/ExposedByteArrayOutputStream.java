@@ -0,0 +1,22 @@
+package com.nuuneoi.camera2lab.utils;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * ByteArrayOutputStream whose buffer can be read in place, so consumers that copy the data
+ * anyway do not pay for toByteArray(). Valid up to {@link #size()}, until the next write.
+ */
+public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public ExposedByteArrayOutputStream() {
+        super();
+    }
+
+    public ExposedByteArrayOutputStream(int size) {
+        super(size);
+    }
+
+    public byte[] getBuffer() {
+        return buf;
+    }
+}
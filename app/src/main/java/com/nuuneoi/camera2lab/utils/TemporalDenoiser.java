@@ -0,0 +1,313 @@
+package com.nuuneoi.camera2lab.utils;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Recursive temporal noise reduction for 4:2:0 frames (NV21, NV12 or I420) on the CPU.
+ *
+ * Each output pixel moves from the previous output towards the new input by a weight that
+ * depends on their difference: small differences are treated as noise and averaged away,
+ * large ones as content and let through. The weights live in lookup tables indexed by the
+ * signed difference, so a pixel costs one table read and an add. On top of that the frame is
+ * cut into square tiles and a tile whose mean luma difference is above the motion threshold
+ * is passed through untouched, which resets its history instead of leaving trails behind
+ * moving objects.
+ *
+ * Tiles are independent, so the result is bit-exact whatever the number of bands. The history
+ * frame is allocated once; {@link #denoise(byte[], byte[])} does not allocate. Not thread safe:
+ * one frame at a time per instance.
+ */
+public class TemporalDenoiser {
+
+    public static final float DEFAULT_STRENGTH = 0.75f;
+    public static final int DEFAULT_LUMA_NOISE = 6;
+    public static final int DEFAULT_CHROMA_NOISE = 4;
+    public static final int DEFAULT_MOTION_THRESHOLD = 12;
+
+    private static final int TILE = 32;
+    // Weight of the new frame, out of 256, at full strength
+    private static final int MIN_NEW_WEIGHT = 32;
+
+    private final YuvTransformer.Format mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameSize;
+    private final int mTilesX;
+    private final int mTilesY;
+
+    private final byte[] mHistory;
+    private boolean mHasHistory;
+
+    // Output minus previous output, indexed by input minus previous output plus 255
+    private final int[] mLumaLut = new int[511];
+    private final int[] mChromaLut = new int[511];
+    private float mStrength = DEFAULT_STRENGTH;
+    private int mLumaNoise = DEFAULT_LUMA_NOISE;
+    private int mChromaNoise = DEFAULT_CHROMA_NOISE;
+    private int mMotionThreshold = DEFAULT_MOTION_THRESHOLD;
+    private boolean mLutDirty = true;
+
+    // Parallel execution
+    private BandRunner mBands;
+    private int[] mBandMovingTiles = new int[1];
+
+    private byte[] mSrc;
+    private byte[] mDst;
+
+    // Cost
+    private long mFrameCount;
+    private long mLastCostNs;
+    private long mTotalCostNs;
+    private int mLastMovingTiles;
+
+    public TemporalDenoiser(YuvTransformer.Format format, int width, int height) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0)
+            throw new IllegalArgumentException("Frame size must be positive and even: " + width + "x" + height);
+
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mFrameSize = YuvTransformer.getFrameSize(width, height);
+        mTilesX = (width + TILE - 1) / TILE;
+        mTilesY = (height + TILE - 1) / TILE;
+        mHistory = new byte[mFrameSize];
+    }
+
+    /**
+     * How much of the previous output survives in static areas, from 0 (off) to 1.
+     */
+    public TemporalDenoiser setStrength(float strength) {
+        if (strength < 0 || strength > 1)
+            throw new IllegalArgumentException("Strength must be within [0, 1]: " + strength);
+
+        mStrength = strength;
+        mLutDirty = true;
+        return this;
+    }
+
+    /**
+     * Differences up to these levels are fully filtered; from three times the level on, the
+     * input goes through unchanged.
+     */
+    public TemporalDenoiser setNoiseLevel(int luma, int chroma) {
+        if (luma < 1 || chroma < 1)
+            throw new IllegalArgumentException("Noise levels must be positive");
+
+        mLumaNoise = luma;
+        mChromaNoise = chroma;
+        mLutDirty = true;
+        return this;
+    }
+
+    /**
+     * Mean absolute luma difference above which a tile counts as moving and is not filtered.
+     */
+    public TemporalDenoiser setMotionThreshold(int threshold) {
+        mMotionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Splits each frame into {@code bands} bands of tile rows, all but one of them run on
+     * {@code executor}. A null executor or a single band runs everything on the calling thread.
+     */
+    public TemporalDenoiser setParallelism(Executor executor, int bands) {
+        if (executor == null || bands <= 1) {
+            mBands = null;
+            mBandMovingTiles = new int[1];
+            return this;
+        }
+        mBands = new BandRunner(executor, bands, new BandRunner.Bands() {
+            @Override
+            public void runBand(int band) {
+                TemporalDenoiser.this.runBand(band);
+            }
+        });
+        mBandMovingTiles = new int[bands];
+        return this;
+    }
+
+    public YuvTransformer.Format getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    public int getTileCount() {
+        return mTilesX * mTilesY;
+    }
+
+    /**
+     * Forgets the previous frames; the next frame goes through unchanged.
+     */
+    public void reset() {
+        mHasHistory = false;
+    }
+
+    /**
+     * @param src a full frame, {@code width x height} without row padding
+     * @param dst receives the filtered frame; may be {@code src}
+     */
+    public void denoise(byte[] src, byte[] dst) {
+        if (src.length < mFrameSize || dst.length < mFrameSize)
+            throw new IllegalArgumentException("Buffer too small");
+
+        long startNs = System.nanoTime();
+        if (mLutDirty) {
+            buildLut(mLumaLut, mLumaNoise);
+            buildLut(mChromaLut, mChromaNoise);
+            mLutDirty = false;
+        }
+
+        if (!mHasHistory) {
+            System.arraycopy(src, 0, mHistory, 0, mFrameSize);
+            if (dst != src)
+                System.arraycopy(src, 0, dst, 0, mFrameSize);
+            mHasHistory = true;
+            mLastMovingTiles = 0;
+        } else {
+            mSrc = src;
+            mDst = dst;
+            runBands();
+            mSrc = null;
+            mDst = null;
+            int moving = 0;
+            for (int count : mBandMovingTiles)
+                moving += count;
+            mLastMovingTiles = moving;
+        }
+
+        mLastCostNs = System.nanoTime() - startNs;
+        mTotalCostNs += mLastCostNs;
+        mFrameCount++;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Wall time of the last {@link #denoise} call.
+     */
+    public long getLastCostNs() {
+        return mLastCostNs;
+    }
+
+    public long getAverageCostNs() {
+        return mFrameCount > 0 ? mTotalCostNs / mFrameCount : 0;
+    }
+
+    /**
+     * Tiles of the last frame that were passed through as moving.
+     */
+    public int getLastMovingTiles() {
+        return mLastMovingTiles;
+    }
+
+    // Internal
+
+    private void buildLut(int[] lut, int noise) {
+        int minWeight = Math.round(256 - mStrength * (256 - MIN_NEW_WEIGHT));
+        for (int diff = -255; diff <= 255; diff++) {
+            int magnitude = Math.abs(diff);
+            int weight;
+            if (magnitude <= noise)
+                weight = minWeight;
+            else if (magnitude >= 3 * noise)
+                weight = 256;
+            else
+                weight = minWeight + (256 - minWeight) * (magnitude - noise) / (2 * noise);
+            // Rounds to nearest, symmetrically around zero
+            int scaled = diff * weight;
+            lut[diff + 255] = scaled >= 0 ? (scaled + 128) >> 8 : -((-scaled + 128) >> 8);
+        }
+    }
+
+    private void runBands() {
+        if (mBands == null) {
+            runBand(-1);
+            return;
+        }
+        mBands.run();
+    }
+
+    // Band -1 is the whole frame
+    private void runBand(int band) {
+        int bands = mBands != null ? mBands.getBandCount() : 1;
+        int tileRowStart = band < 0 ? 0 : mTilesY * band / bands;
+        int tileRowEnd = band < 0 ? mTilesY : mTilesY * (band + 1) / bands;
+        int moving = 0;
+        for (int ty = tileRowStart; ty < tileRowEnd; ty++) {
+            for (int tx = 0; tx < mTilesX; tx++) {
+                if (filterTile(tx, ty))
+                    moving++;
+            }
+        }
+        mBandMovingTiles[Math.max(band, 0)] = moving;
+    }
+
+    // Returns whether the tile was moving
+    private boolean filterTile(int tx, int ty) {
+        byte[] src = mSrc;
+        byte[] history = mHistory;
+        int x0 = tx * TILE;
+        int y0 = ty * TILE;
+        int x1 = Math.min(x0 + TILE, mWidth);
+        int y1 = Math.min(y0 + TILE, mHeight);
+
+        long sad = 0;
+        for (int y = y0; y < y1; y++) {
+            int i = y * mWidth + x0;
+            int end = i + (x1 - x0);
+            for (; i < end; i++)
+                sad += Math.abs((src[i] & 0xff) - (history[i] & 0xff));
+        }
+        boolean moving = sad > (long) mMotionThreshold * (x1 - x0) * (y1 - y0);
+
+        // Luma, then the chroma rows under the tile
+        filterRect(0, mWidth, x0, y0, x1, y1, mLumaLut, moving);
+        int lumaSize = mWidth * mHeight;
+        if (mFormat == YuvTransformer.Format.I420) {
+            int chromaWidth = mWidth / 2;
+            int chromaPlane = lumaSize / 4;
+            filterRect(lumaSize, chromaWidth, x0 / 2, y0 / 2, x1 / 2, y1 / 2, mChromaLut, moving);
+            filterRect(lumaSize + chromaPlane, chromaWidth, x0 / 2, y0 / 2, x1 / 2, y1 / 2, mChromaLut, moving);
+        } else {
+            // Interleaved pairs: one chroma row per two luma rows, as many bytes as luma pixels
+            filterRect(lumaSize, mWidth, x0, y0 / 2, x1, y1 / 2, mChromaLut, moving);
+        }
+        return moving;
+    }
+
+    private void filterRect(int offset, int stride, int x0, int y0, int x1, int y1, int[] lut, boolean passThrough) {
+        byte[] src = mSrc;
+        byte[] dst = mDst;
+        byte[] history = mHistory;
+        for (int y = y0; y < y1; y++) {
+            int i = offset + y * stride + x0;
+            int end = i + (x1 - x0);
+            if (passThrough) {
+                System.arraycopy(src, i, history, i, end - i);
+                if (dst != src)
+                    System.arraycopy(src, i, dst, i, end - i);
+                continue;
+            }
+            for (; i < end; i++) {
+                int previous = history[i] & 0xff;
+                byte out = (byte) (previous + lut[(src[i] & 0xff) - previous + 255]);
+                history[i] = out;
+                dst[i] = out;
+            }
+        }
+    }
+}
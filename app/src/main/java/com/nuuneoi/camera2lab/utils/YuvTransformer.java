@@ -0,0 +1,420 @@
+package com.nuuneoi.camera2lab.utils;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Crops, scales (nearest neighbour), rotates and mirrors 4:2:0 frames on the CPU. The output
+ * keeps the input layout (NV21, NV12 or I420).
+ *
+ * Operations are applied in the order crop, scale, rotate (clockwise), mirror (horizontal, on
+ * the rotated image). Rotation walks the destination in square tiles so that the column-wise
+ * reads of a transposition stay within a few cache lines. Everything is sized when the geometry
+ * changes; {@link #transform(byte[], byte[])} itself does not allocate.
+ *
+ * With an executor the work is split into bands of destination rows, one of which runs on the
+ * calling thread. Not thread safe: one transform at a time per instance.
+ */
+public class YuvTransformer {
+
+    public enum Format {
+        NV21,
+        NV12,
+        I420
+    }
+
+    private static final int TILE = 32;
+
+    private final Format mFormat;
+    private final int mSrcWidth;
+    private final int mSrcHeight;
+
+    private int mCropX;
+    private int mCropY;
+    private int mCropWidth;
+    private int mCropHeight;
+    private int mScaledWidth;
+    private int mScaledHeight;
+    private int mRotation;
+    private boolean mMirror;
+
+    private boolean mDirty = true;
+
+    // Derived geometry
+    private int mPlanes;
+    private boolean mScale;
+    private boolean mRotate;
+    private int mOutWidth;
+    private int mOutHeight;
+    private byte[] mScratch;
+    private int[][] mScaleColumns;
+    private int[][] mScaleRows;
+
+    // Per plane, for the rotate pass: input origin and steps, output offset and size, element size
+    private final int[] mRotOrigin = new int[3];
+    private final int[] mRotColStep = new int[3];
+    private final int[] mRotRowStep = new int[3];
+    private final int[] mOutOffset = new int[3];
+    private final int[] mOutPlaneWidth = new int[3];
+    private final int[] mOutPlaneHeight = new int[3];
+    private final int[] mScaledOffset = new int[3];
+    private final int[] mScaledPlaneWidth = new int[3];
+    private final int[] mScaledPlaneHeight = new int[3];
+    private final int[] mElementSize = new int[3];
+
+    // Parallel execution
+    private BandRunner mBands;
+
+    private static final int STAGE_SCALE = 0;
+    private static final int STAGE_ROTATE = 1;
+
+    private byte[] mStageSrc;
+    private byte[] mStageDst;
+    private int mStage;
+
+    public YuvTransformer(Format format, int srcWidth, int srcHeight) {
+        if (srcWidth <= 0 || srcHeight <= 0 || (srcWidth & 1) != 0 || (srcHeight & 1) != 0)
+            throw new IllegalArgumentException("Frame size must be positive and even: " + srcWidth + "x" + srcHeight);
+
+        mFormat = format;
+        mSrcWidth = srcWidth;
+        mSrcHeight = srcHeight;
+        mCropWidth = mScaledWidth = srcWidth;
+        mCropHeight = mScaledHeight = srcHeight;
+    }
+
+    public static int getFrameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Region of the source to keep. Coordinates and size must be even.
+     */
+    public YuvTransformer setCrop(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > mSrcWidth || y + height > mSrcHeight
+                || ((x | y | width | height) & 1) != 0)
+            throw new IllegalArgumentException("Invalid crop " + x + "," + y + " " + width + "x" + height);
+
+        mCropX = x;
+        mCropY = y;
+        mCropWidth = width;
+        mCropHeight = height;
+        mDirty = true;
+        return this;
+    }
+
+    /**
+     * Size of the cropped region after scaling, before rotation. Must be even.
+     */
+    public YuvTransformer setScale(int width, int height) {
+        if (width <= 0 || height <= 0 || ((width | height) & 1) != 0)
+            throw new IllegalArgumentException("Invalid scale " + width + "x" + height);
+
+        mScaledWidth = width;
+        mScaledHeight = height;
+        mDirty = true;
+        return this;
+    }
+
+    /**
+     * Clockwise rotation: 0, 90, 180 or 270.
+     */
+    public YuvTransformer setRotation(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270)
+            throw new IllegalArgumentException("Invalid rotation " + degrees);
+
+        mRotation = degrees;
+        mDirty = true;
+        return this;
+    }
+
+    public YuvTransformer setMirror(boolean mirror) {
+        mMirror = mirror;
+        mDirty = true;
+        return this;
+    }
+
+    /**
+     * Splits each pass into {@code bands} row bands, all but one of them run on {@code executor}.
+     * A null executor or a single band runs everything on the calling thread.
+     */
+    public YuvTransformer setParallelism(Executor executor, int bands) {
+        if (executor == null || bands <= 1) {
+            mBands = null;
+            return this;
+        }
+        mBands = new BandRunner(executor, bands, new BandRunner.Bands() {
+            @Override
+            public void runBand(int band) {
+                YuvTransformer.this.runBand(band);
+            }
+        });
+        return this;
+    }
+
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    public int getSourceWidth() {
+        return mSrcWidth;
+    }
+
+    public int getSourceHeight() {
+        return mSrcHeight;
+    }
+
+    public int getRotation() {
+        return mRotation;
+    }
+
+    public int getOutputWidth() {
+        configure();
+        return mOutWidth;
+    }
+
+    public int getOutputHeight() {
+        configure();
+        return mOutHeight;
+    }
+
+    public int getOutputSize() {
+        configure();
+        return getFrameSize(mOutWidth, mOutHeight);
+    }
+
+    /**
+     * @param src a full source frame, {@code srcWidth x srcHeight} without row padding
+     * @param dst at least {@link #getOutputSize()} bytes; must not be {@code src}
+     */
+    public void transform(byte[] src, byte[] dst) {
+        configure();
+        if (src.length < getFrameSize(mSrcWidth, mSrcHeight) || dst.length < getFrameSize(mOutWidth, mOutHeight))
+            throw new IllegalArgumentException("Buffer too small");
+        if (src == dst)
+            throw new IllegalArgumentException("In-place transform is not supported");
+
+        if (mScale && mRotate) {
+            runStage(STAGE_SCALE, src, mScratch);
+            runStage(STAGE_ROTATE, mScratch, dst);
+        } else if (mScale) {
+            runStage(STAGE_SCALE, src, dst);
+        } else {
+            runStage(STAGE_ROTATE, src, dst);
+        }
+    }
+
+    // Internal
+
+    private void runStage(int stage, byte[] src, byte[] dst) {
+        mStage = stage;
+        mStageSrc = src;
+        mStageDst = dst;
+        if (mBands == null) {
+            runBand(-1);
+            return;
+        }
+        mBands.run();
+    }
+
+    // Band -1 is the whole frame
+    private void runBand(int band) {
+        int bands = mBands != null ? mBands.getBandCount() : 1;
+        for (int p = 0; p < mPlanes; p++) {
+            int rows = mStage == STAGE_SCALE ? mScaledPlaneHeight[p] : mOutPlaneHeight[p];
+            int rowStart = band < 0 ? 0 : rows * band / bands;
+            int rowEnd = band < 0 ? rows : rows * (band + 1) / bands;
+            if (mStage == STAGE_SCALE)
+                scaleRows(p, rowStart, rowEnd);
+            else
+                rotateRows(p, rowStart, rowEnd);
+        }
+    }
+
+    private void scaleRows(int plane, int rowStart, int rowEnd) {
+        byte[] src = mStageSrc;
+        byte[] dst = mStageDst;
+        int[] columns = mScaleColumns[plane];
+        int[] rows = mScaleRows[plane];
+        int width = mScaledPlaneWidth[plane];
+        int element = mElementSize[plane];
+        int dstStride = width * element;
+        int dstOffset = mScaledOffset[plane];
+        for (int y = rowStart; y < rowEnd; y++) {
+            int rowBase = rows[y];
+            int d = dstOffset + y * dstStride;
+            if (element == 1) {
+                for (int x = 0; x < width; x++)
+                    dst[d++] = src[rowBase + columns[x]];
+            } else {
+                for (int x = 0; x < width; x++) {
+                    int s = rowBase + columns[x];
+                    dst[d++] = src[s];
+                    dst[d++] = src[s + 1];
+                }
+            }
+        }
+    }
+
+    private void rotateRows(int plane, int rowStart, int rowEnd) {
+        byte[] src = mStageSrc;
+        byte[] dst = mStageDst;
+        int width = mOutPlaneWidth[plane];
+        int element = mElementSize[plane];
+        int dstStride = width * element;
+        int dstOffset = mOutOffset[plane];
+        int origin = mRotOrigin[plane];
+        int colStep = mRotColStep[plane];
+        int rowStep = mRotRowStep[plane];
+
+        // Plain crop: whole rows at once
+        if (colStep == element) {
+            for (int y = rowStart; y < rowEnd; y++)
+                System.arraycopy(src, origin + y * rowStep, dst, dstOffset + y * dstStride, dstStride);
+            return;
+        }
+
+        for (int tileY = rowStart; tileY < rowEnd; tileY += TILE) {
+            int tileYEnd = Math.min(rowEnd, tileY + TILE);
+            for (int tileX = 0; tileX < width; tileX += TILE) {
+                int tileXEnd = Math.min(width, tileX + TILE);
+                for (int y = tileY; y < tileYEnd; y++) {
+                    int s = origin + y * rowStep + tileX * colStep;
+                    int d = dstOffset + y * dstStride + tileX * element;
+                    if (element == 1) {
+                        for (int x = tileX; x < tileXEnd; x++) {
+                            dst[d++] = src[s];
+                            s += colStep;
+                        }
+                    } else {
+                        for (int x = tileX; x < tileXEnd; x++) {
+                            dst[d++] = src[s];
+                            dst[d++] = src[s + 1];
+                            s += colStep;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void configure() {
+        if (!mDirty)
+            return;
+        mDirty = false;
+
+        mPlanes = mFormat == Format.I420 ? 3 : 2;
+        mScale = mScaledWidth != mCropWidth || mScaledHeight != mCropHeight;
+        mRotate = mRotation != 0 || mMirror;
+        boolean swap = mRotation == 90 || mRotation == 270;
+        mOutWidth = swap ? mScaledHeight : mScaledWidth;
+        mOutHeight = swap ? mScaledWidth : mScaledHeight;
+
+        for (int p = 0; p < mPlanes; p++) {
+            int divisor = p == 0 ? 1 : 2;
+            mElementSize[p] = p > 0 && mFormat != Format.I420 ? 2 : 1;
+            mOutOffset[p] = planeOffset(p, mOutWidth, mOutHeight);
+            mOutPlaneWidth[p] = mOutWidth / divisor;
+            mOutPlaneHeight[p] = mOutHeight / divisor;
+            mScaledPlaneWidth[p] = mScaledWidth / divisor;
+            mScaledPlaneHeight[p] = mScaledHeight / divisor;
+            // Same layout whether the scale pass writes the scratch frame or the output
+            mScaledOffset[p] = planeOffset(p, mScaledWidth, mScaledHeight);
+        }
+
+        if (mScale) {
+            mScaleColumns = new int[mPlanes][];
+            mScaleRows = new int[mPlanes][];
+            for (int p = 0; p < mPlanes; p++) {
+                int divisor = p == 0 ? 1 : 2;
+                int element = mElementSize[p];
+                int srcStride = planeStride(p, mSrcWidth);
+                int srcOffset = planeOffset(p, mSrcWidth, mSrcHeight);
+                int cropX = mCropX / divisor;
+                int cropY = mCropY / divisor;
+                int cropWidth = mCropWidth / divisor;
+                int cropHeight = mCropHeight / divisor;
+                int width = mScaledPlaneWidth[p];
+                int height = mScaledPlaneHeight[p];
+
+                // Nearest source sample to the centre of each destination sample
+                int[] columns = new int[width];
+                for (int x = 0; x < width; x++)
+                    columns[x] = (cropX + (int) ((2L * x + 1) * cropWidth / (2L * width))) * element;
+                int[] rows = new int[height];
+                for (int y = 0; y < height; y++)
+                    rows[y] = srcOffset + (cropY + (int) ((2L * y + 1) * cropHeight / (2L * height))) * srcStride;
+                mScaleColumns[p] = columns;
+                mScaleRows[p] = rows;
+            }
+        } else {
+            mScaleColumns = null;
+            mScaleRows = null;
+        }
+        mScratch = mScale && mRotate ? new byte[getFrameSize(mScaledWidth, mScaledHeight)] : null;
+
+        // The rotate pass reads either the scaled scratch frame or the crop window of the source
+        for (int p = 0; p < mPlanes; p++) {
+            int divisor = p == 0 ? 1 : 2;
+            int element = mElementSize[p];
+            int inWidth = mScaledPlaneWidth[p];
+            int inHeight = mScaledPlaneHeight[p];
+            int inStride;
+            int inOffset;
+            if (mScale) {
+                inStride = inWidth * element;
+                inOffset = planeOffset(p, mScaledWidth, mScaledHeight);
+            } else {
+                inStride = planeStride(p, mSrcWidth);
+                inOffset = planeOffset(p, mSrcWidth, mSrcHeight)
+                        + (mCropY / divisor) * inStride + (mCropX / divisor) * element;
+            }
+
+            int origin;
+            int colStep;
+            int rowStep;
+            switch (mRotation) {
+                case 90:
+                    origin = (inHeight - 1) * inStride;
+                    colStep = -inStride;
+                    rowStep = element;
+                    break;
+                case 180:
+                    origin = (inHeight - 1) * inStride + (inWidth - 1) * element;
+                    colStep = -element;
+                    rowStep = -inStride;
+                    break;
+                case 270:
+                    origin = (inWidth - 1) * element;
+                    colStep = inStride;
+                    rowStep = -element;
+                    break;
+                default:
+                    origin = 0;
+                    colStep = element;
+                    rowStep = inStride;
+                    break;
+            }
+            if (mMirror) {
+                origin += (mOutPlaneWidth[p] - 1) * colStep;
+                colStep = -colStep;
+            }
+            mRotOrigin[p] = inOffset + origin;
+            mRotColStep[p] = colStep;
+            mRotRowStep[p] = rowStep;
+        }
+    }
+
+    private int planeOffset(int plane, int width, int height) {
+        if (plane == 0)
+            return 0;
+        if (plane == 1 || mFormat != Format.I420)
+            return width * height;
+        return width * height + (width / 2) * (height / 2);
+    }
+
+    private int planeStride(int plane, int width) {
+        if (plane == 0 || mFormat != Format.I420)
+            return width;
+        return width / 2;
+    }
+}
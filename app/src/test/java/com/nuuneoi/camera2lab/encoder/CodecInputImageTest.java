@@ -0,0 +1,101 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class CodecInputImageTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 36;
+    // Padded the way hardware codecs align, e.g. 1920x1080 in a 1920x1088 buffer
+    private static final int STRIDE = 80;
+    private static final int SLICE_HEIGHT = 40;
+
+    @Test
+    public void writesPaddedSemiPlanar() {
+        ByteBuffer buffer = ByteBuffer.allocate(STRIDE * SLICE_HEIGHT * 3 / 2);
+        int chroma = STRIDE * SLICE_HEIGHT;
+        CodecInputImage image = new CodecInputImage().set(WIDTH, HEIGHT, buffer.capacity())
+                .setPlane(0, slice(buffer, 0), STRIDE, 1)
+                .setPlane(1, slice(buffer, chroma), STRIDE, 2)
+                .setPlane(2, slice(buffer, chroma + 1), STRIDE, 2);
+        byte[] frame = frame();
+        image.writeNv12(frame, frame.length);
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++)
+                assertEquals(frame[y * WIDTH + x], buffer.get(y * STRIDE + x));
+        }
+        // Chroma starts after the slice height, not after the visible rows
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH; x++)
+                assertEquals(frame[WIDTH * HEIGHT + y * WIDTH + x], buffer.get(chroma + y * STRIDE + x));
+        }
+        assertEquals(buffer.capacity(), image.getSize());
+    }
+
+    @Test
+    public void writesPlanar() {
+        int chromaStride = STRIDE / 2;
+        ByteBuffer y = ByteBuffer.allocate(STRIDE * HEIGHT);
+        ByteBuffer u = ByteBuffer.allocate(chromaStride * HEIGHT / 2);
+        ByteBuffer v = ByteBuffer.allocate(chromaStride * HEIGHT / 2);
+        CodecInputImage image = new CodecInputImage().set(WIDTH, HEIGHT, 0)
+                .setPlane(0, y, STRIDE, 1)
+                .setPlane(1, u, chromaStride, 1)
+                .setPlane(2, v, chromaStride, 1);
+        byte[] frame = frame();
+        image.writeNv12(frame, frame.length);
+
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                int source = WIDTH * HEIGHT + row * WIDTH + 2 * x;
+                assertEquals(frame[source], u.get(row * chromaStride + x));
+                assertEquals(frame[source + 1], v.get(row * chromaStride + x));
+            }
+        }
+    }
+
+    @Test
+    public void writesCrCbOrder() {
+        ByteBuffer buffer = ByteBuffer.allocate(WIDTH * HEIGHT * 3 / 2);
+        int chroma = WIDTH * HEIGHT;
+        CodecInputImage image = new CodecInputImage().set(WIDTH, HEIGHT, buffer.capacity())
+                .setPlane(0, slice(buffer, 0), WIDTH, 1)
+                .setPlane(1, slice(buffer, chroma + 1), WIDTH, 2)
+                .setPlane(2, slice(buffer, chroma), WIDTH, 2);
+        byte[] frame = frame();
+        image.writeNv12(frame, frame.length);
+
+        for (int i = 0; i < chroma / 4; i++) {
+            assertEquals(frame[chroma + 2 * i + 1], buffer.get(chroma + 2 * i));
+            assertEquals(frame[chroma + 2 * i], buffer.get(chroma + 2 * i + 1));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortFrame() {
+        ByteBuffer buffer = ByteBuffer.allocate(WIDTH * HEIGHT * 3 / 2);
+        CodecInputImage image = new CodecInputImage().set(WIDTH, HEIGHT, buffer.capacity())
+                .setPlane(0, slice(buffer, 0), WIDTH, 1)
+                .setPlane(1, slice(buffer, WIDTH * HEIGHT), WIDTH, 2)
+                .setPlane(2, slice(buffer, WIDTH * HEIGHT + 1), WIDTH, 2);
+        image.writeNv12(frame(), WIDTH * HEIGHT);
+    }
+
+    private static byte[] frame() {
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < frame.length; i++)
+            frame[i] = (byte) (i * 7 + i / WIDTH);
+        return frame;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        return view.slice();
+    }
+}
@@ -0,0 +1,144 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CodecSelectorTest {
+
+    private static class FakeEncoder implements CodecSelector.EncoderInfo {
+        final String name;
+        final boolean hardware;
+        final int maxWidth;
+        final int maxHeight;
+        final double maxFps;
+        final boolean flexibleYuvInput;
+
+        FakeEncoder(String name, boolean hardware, int maxWidth, int maxHeight, double maxFps) {
+            this(name, hardware, maxWidth, maxHeight, maxFps, true);
+        }
+
+        FakeEncoder(String name, boolean hardware, int maxWidth, int maxHeight, double maxFps, boolean flexibleYuvInput) {
+            this.name = name;
+            this.hardware = hardware;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.maxFps = maxFps;
+            this.flexibleYuvInput = flexibleYuvInput;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isHardwareAccelerated() {
+            return hardware;
+        }
+
+        @Override
+        public boolean supports(int width, int height, double frameRate) {
+            return width <= maxWidth && height <= maxHeight && frameRate <= maxFps;
+        }
+
+        @Override
+        public boolean supportsFlexibleYuvInput() {
+            return flexibleYuvInput;
+        }
+    }
+
+    private static class FakeCatalog implements CodecSelector.Catalog {
+        final Map<String, List<CodecSelector.EncoderInfo>> encoders = new HashMap<>();
+
+        FakeCatalog add(String mimeType, FakeEncoder encoder) {
+            if (!encoders.containsKey(mimeType))
+                encoders.put(mimeType, new ArrayList<CodecSelector.EncoderInfo>());
+            encoders.get(mimeType).add(encoder);
+            return this;
+        }
+
+        @Override
+        public List<CodecSelector.EncoderInfo> getEncoders(String mimeType) {
+            return encoders.get(mimeType);
+        }
+    }
+
+    private final FakeCatalog mCatalog = new FakeCatalog()
+            .add(CodecSelector.MIME_AVC, new FakeEncoder("c2.android.avc.encoder", false, 4096, 2160, 60))
+            .add(CodecSelector.MIME_AVC, new FakeEncoder("c2.vendor.avc.encoder", true, 3840, 2160, 240))
+            .add(CodecSelector.MIME_HEVC, new FakeEncoder("c2.vendor.hevc.encoder", true, 1920, 1080, 60));
+
+    @Test
+    public void prefersHardwareHevcWhenItFits() {
+        CodecSelector.Selection selection = new CodecSelector(mCatalog, CodecSelector.Preference.PREFER_HEVC).select(1920, 1080, 30);
+
+        assertEquals(CodecSelector.MIME_HEVC, selection.mimeType);
+        assertEquals("c2.vendor.hevc.encoder", selection.codecName);
+        assertTrue(selection.hardware);
+    }
+
+    @Test
+    public void fallsBackToHardwareAvcWhenHevcCannotKeepUp() {
+        CodecSelector.Selection tooLarge = new CodecSelector(mCatalog, CodecSelector.Preference.PREFER_HEVC).select(3840, 2160, 30);
+        CodecSelector.Selection tooFast = new CodecSelector(mCatalog, CodecSelector.Preference.PREFER_HEVC).select(1280, 720, 240);
+
+        assertEquals(CodecSelector.MIME_AVC, tooLarge.mimeType);
+        assertEquals("c2.vendor.avc.encoder", tooLarge.codecName);
+        assertEquals(CodecSelector.MIME_AVC, tooFast.mimeType);
+    }
+
+    @Test
+    public void keepsAvcWithoutPreference() {
+        CodecSelector.Selection selection = new CodecSelector(mCatalog, CodecSelector.Preference.AVC).select(1280, 720, 30);
+
+        assertEquals(CodecSelector.MIME_AVC, selection.mimeType);
+        assertEquals("c2.vendor.avc.encoder", selection.codecName);
+    }
+
+    @Test
+    public void usesSoftwareAvcThenPlatformDefault() {
+        FakeCatalog softwareOnly = new FakeCatalog()
+                .add(CodecSelector.MIME_AVC, new FakeEncoder("c2.android.avc.encoder", false, 1920, 1080, 60));
+        CodecSelector selector = new CodecSelector(softwareOnly, CodecSelector.Preference.PREFER_HEVC);
+
+        CodecSelector.Selection software = selector.select(1280, 720, 30);
+        assertEquals("c2.android.avc.encoder", software.codecName);
+        assertFalse(software.hardware);
+
+        CodecSelector.Selection none = selector.select(3840, 2160, 30);
+        assertEquals(CodecSelector.MIME_AVC, none.mimeType);
+        assertNull(none.codecName);
+    }
+
+    @Test
+    public void bufferInputNeedsFlexibleYuv() {
+        FakeCatalog catalog = new FakeCatalog()
+                .add(CodecSelector.MIME_HEVC, new FakeEncoder("c2.vendor.hevc.encoder", true, 1920, 1080, 60, false))
+                .add(CodecSelector.MIME_AVC, new FakeEncoder("c2.vendor.avc.encoder", true, 1920, 1080, 60, false))
+                .add(CodecSelector.MIME_AVC, new FakeEncoder("c2.android.avc.encoder", false, 1920, 1080, 60));
+        CodecSelector selector = new CodecSelector(catalog, CodecSelector.Preference.PREFER_HEVC);
+
+        assertEquals("c2.vendor.hevc.encoder", selector.select(1280, 720, 30, false).codecName);
+        CodecSelector.Selection buffer = selector.select(1280, 720, 30, true);
+        assertEquals(CodecSelector.MIME_AVC, buffer.mimeType);
+        assertEquals("c2.android.avc.encoder", buffer.codecName);
+    }
+
+    @Test
+    public void scalesBitrateWithPixelsRateAndCodec() {
+        BitrateModel model = new BitrateModel();
+        int avc720 = model.getBitRate(CodecSelector.MIME_AVC, 1280, 720, 30);
+        int hevc720 = model.getBitRate(CodecSelector.MIME_HEVC, 1280, 720, 30);
+
+        assertEquals(3041280, avc720);
+        assertEquals(avc720 * BitrateModel.HEVC_EFFICIENCY, hevc720, 1);
+        assertEquals(avc720 * 2, model.getBitRate(CodecSelector.MIME_AVC, 1280, 720, 60), 1);
+        assertEquals(BitrateModel.MIN_BIT_RATE, model.getBitRate(CodecSelector.MIME_AVC, 160, 120, 1));
+    }
+}
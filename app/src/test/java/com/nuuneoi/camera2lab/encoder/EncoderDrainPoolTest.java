@@ -0,0 +1,122 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EncoderDrainPoolTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    // Busy for a few steps, then idle until told to finish
+    private static class CountingTask implements EncoderDrainPool.Task {
+        final List<Long> timeouts = new ArrayList<>();
+        final CountDownLatch idle = new CountDownLatch(3);
+        volatile boolean finish;
+        volatile String thread;
+        int busySteps;
+
+        CountingTask(int busySteps) {
+            this.busySteps = busySteps;
+        }
+
+        @Override
+        public int step(long timeoutUs) {
+            thread = Thread.currentThread().getName();
+            synchronized (timeouts) {
+                timeouts.add(timeoutUs);
+            }
+            if (finish)
+                return EncoderDrainPool.STEP_DONE;
+            if (busySteps > 0) {
+                busySteps--;
+                return EncoderDrainPool.STEP_BUSY;
+            }
+            idle.countDown();
+            return EncoderDrainPool.STEP_IDLE;
+        }
+
+        long lastTimeout() {
+            synchronized (timeouts) {
+                return timeouts.get(timeouts.size() - 1);
+            }
+        }
+    }
+
+    @Test
+    public void idleThreadWaitsInItsTasks() throws InterruptedException {
+        EncoderDrainPool pool = new EncoderDrainPool(1, null);
+        CountingTask first = new CountingTask(3);
+        CountingTask second = new CountingTask(0);
+        pool.submit(first);
+        pool.submit(second);
+
+        assertTrue(first.idle.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(second.idle.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // Busy passes poll, idle ones split the wait between the tasks
+        synchronized (first.timeouts) {
+            assertEquals(Long.valueOf(0), first.timeouts.get(0));
+        }
+        assertEquals(EncoderDrainPool.IDLE_WAIT_US / 2, first.lastTimeout());
+        assertEquals(first.thread, second.thread);
+
+        first.finish = true;
+        second.finish = true;
+        pool.shutdown();
+        assertEquals(0, pool.getTaskCount());
+    }
+
+    @Test
+    public void spreadsTasksOverThreads() throws InterruptedException {
+        EncoderDrainPool pool = new EncoderDrainPool(2, null);
+        CountingTask first = new CountingTask(0);
+        CountingTask second = new CountingTask(0);
+        pool.submit(first);
+        pool.submit(second);
+
+        assertTrue(first.idle.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(second.idle.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNotEquals(first.thread, second.thread);
+        assertEquals(2, pool.getTaskCount());
+
+        first.finish = true;
+        second.finish = true;
+        pool.shutdown();
+    }
+
+    @Test
+    public void shutdownWaitsForTasksToFinish() throws InterruptedException {
+        EncoderDrainPool pool = new EncoderDrainPool(1, null);
+        final CountingTask task = new CountingTask(0);
+        pool.submit(task);
+        assertTrue(task.idle.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        Thread finisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                task.finish = true;
+            }
+        });
+        finisher.start();
+        pool.shutdown();
+        finisher.join();
+        assertEquals(0, pool.getTaskCount());
+
+        try {
+            pool.submit(new CountingTask(0));
+            fail("Accepted a task after shutdown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
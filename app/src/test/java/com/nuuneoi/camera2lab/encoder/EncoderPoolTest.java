@@ -0,0 +1,355 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EncoderPoolTest {
+
+    private static final long CREATE_DELAY_MS = 20;
+
+    // Follows the MediaCodec state machine closely enough to catch a configure out of order
+    private static class StateBackend implements EncoderBackend {
+        static final int UNINITIALIZED = 0;
+        static final int CONFIGURED = 1;
+        static final int EXECUTING = 2;
+        static final int RELEASED = 3;
+
+        int state = UNINITIALIZED;
+        int configureCount;
+        EncoderConfig config;
+
+        @Override
+        public void configure(EncoderConfig config) throws IOException {
+            if (state != UNINITIALIZED)
+                throw new IllegalStateException("configure in state " + state);
+            state = CONFIGURED;
+            configureCount++;
+            this.config = config;
+        }
+
+        @Override
+        public Surface createInputSurface() {
+            return null;
+        }
+
+        @Override
+        public void start() {
+            if (state != CONFIGURED)
+                throw new IllegalStateException("start in state " + state);
+            state = EXECUTING;
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+
+        @Override
+        public CodecInputImage getInputImage(int index) {
+            return null;
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+        }
+
+        @Override
+        public void requestSyncFrame() {
+        }
+
+        @Override
+        public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return null;
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return null;
+        }
+
+        @Override
+        public void stop() {
+            if (state == RELEASED)
+                throw new IllegalStateException("stop after release");
+            state = UNINITIALIZED;
+        }
+
+        @Override
+        public void release() {
+            state = RELEASED;
+        }
+    }
+
+    private final List<StateBackend> mCreated = new ArrayList<>();
+
+    private final EncoderPool.Factory mFactory = new EncoderPool.Factory() {
+        @Override
+        public EncoderBackend create() {
+            try {
+                Thread.sleep(CREATE_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            StateBackend backend = new StateBackend();
+            mCreated.add(backend);
+            return backend;
+        }
+    };
+
+    private static EncoderConfig config(String codecName, int width, int height) {
+        EncoderConfig config = new EncoderConfig("video/avc", width, height, 4000000, 30, 10);
+        config.setCodecName(codecName);
+        return config;
+    }
+
+    // What MediaEncoder does with an encoder between acquire and recycle
+    private static void runSession(EncoderPool pool, EncoderBackend backend, EncoderConfig config) {
+        backend.createInputSurface();
+        backend.start();
+        backend.stop();
+        pool.recycle(backend, config);
+    }
+
+    @Test
+    public void reusesEncoderForSameFormat() throws IOException {
+        EncoderPool pool = new EncoderPool(mFactory, 1);
+        EncoderConfig config = config("c2.hw.avc", 1280, 720);
+
+        EncoderBackend first = pool.acquire(config);
+        runSession(pool, first, config);
+        assertEquals(1, pool.getIdleCount());
+
+        EncoderBackend second = pool.acquire(config);
+        assertSame(first, second);
+        assertEquals(StateBackend.CONFIGURED, ((StateBackend) second).state);
+        second.start();
+
+        assertEquals(1, mCreated.size());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        // The hit never waited for a codec to be created
+        assertTrue(pool.getAcquireLatency().getMinNs() < pool.getCreateLatency().getMinNs());
+        assertTrue(pool.getCreateLatency().getMinNs() >= CREATE_DELAY_MS * 1000000L);
+    }
+
+    @Test
+    public void reconfiguresSameCodecForNewFormat() throws IOException {
+        EncoderPool pool = new EncoderPool(mFactory, 1);
+        EncoderConfig hd = config("c2.hw.avc", 1280, 720);
+        EncoderConfig fullHd = config("c2.hw.avc", 1920, 1080);
+
+        EncoderBackend first = pool.acquire(hd);
+        runSession(pool, first, hd);
+
+        StateBackend second = (StateBackend) pool.acquire(fullHd);
+        assertSame(first, second);
+        assertEquals(fullHd, second.config);
+        assertEquals(StateBackend.CONFIGURED, second.state);
+        assertEquals(1, mCreated.size());
+        assertEquals(1, pool.getReconfigures());
+    }
+
+    @Test
+    public void differentCodecIsCreated() throws IOException {
+        EncoderPool pool = new EncoderPool(mFactory, 1);
+        EncoderConfig avc = config("c2.hw.avc", 1280, 720);
+        EncoderConfig other = config("c2.sw.avc", 1280, 720);
+
+        EncoderBackend first = pool.acquire(avc);
+        runSession(pool, first, avc);
+        EncoderBackend second = pool.acquire(other);
+        assertNotSame(first, second);
+        assertEquals(2, pool.getMisses());
+
+        // Only one idle encoder is kept: the older one goes
+        runSession(pool, second, other);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(StateBackend.RELEASED, ((StateBackend) first).state);
+        assertEquals(StateBackend.RELEASED, mCreated.get(0).state);
+    }
+
+    @Test
+    public void prewarmHandsOutReadyEncoder() throws IOException {
+        EncoderPool pool = new EncoderPool(mFactory, 2);
+        EncoderConfig config = config(null, 1280, 720);
+
+        pool.prewarm(config);
+        pool.prewarm(config);
+        assertEquals(1, mCreated.size());
+
+        EncoderBackend backend = pool.acquire(config);
+        assertSame(mCreated.get(0), backend);
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getMisses());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void keepsRecycledEncoderOverPrewarmedSpare() throws IOException {
+        EncoderPool pool = new EncoderPool(mFactory, 1);
+        EncoderConfig spare = config("c2.sw.avc", 1280, 720);
+        EncoderConfig running = config("c2.hw.avc", 1280, 720);
+
+        pool.prewarm(spare);
+        EncoderBackend backend = pool.acquire(running);
+        // Only one idle encoder fits: the codec the session gives back stays
+        runSession(pool, backend, running);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(StateBackend.RELEASED, mCreated.get(0).state);
+
+        assertSame(backend, pool.acquire(running));
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    public void prewarmSkipsWhileEncoderIsHandedOut() throws IOException {
+        EncoderPool pool = new EncoderPool(mFactory, 2);
+        EncoderConfig config = config("c2.hw.avc", 1280, 720);
+
+        EncoderBackend backend = pool.acquire(config);
+        pool.prewarm(config);
+        assertEquals(1, mCreated.size());
+        assertEquals(1, pool.getInUseCount());
+
+        runSession(pool, backend, config);
+        assertEquals(0, pool.getInUseCount());
+        pool.prewarm(config);
+        assertEquals(1, mCreated.size());
+    }
+
+    @Test
+    public void acquireWaitsForStoppingSession() throws Exception {
+        final EncoderPool pool = new EncoderPool(mFactory, 1);
+        final EncoderConfig config = config("c2.hw.avc", 1280, 720);
+        final EncoderBackend running = pool.acquire(config);
+
+        pool.expectRecycle();
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                runSession(pool, running, config);
+                pool.recycleSettled();
+            }
+        });
+        drain.start();
+
+        // Nothing idle yet: the acquire waits for the codec instead of creating another
+        assertSame(running, pool.acquire(config));
+        drain.join();
+        assertEquals(1, mCreated.size());
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    public void acquireCreatesWhenStoppingSessionGivesUp() throws IOException {
+        EncoderPool pool = new EncoderPool(mFactory, 1);
+        EncoderConfig config = config("c2.hw.avc", 1280, 720);
+
+        pool.expectRecycle();
+        pool.recycleSettled();
+        pool.acquire(config);
+        assertEquals(1, pool.getMisses());
+        assertTrue(pool.getAcquireLatency().getMaxNs() < 400000000L);
+    }
+
+    @Test
+    public void prewarmDoesNotBlockAcquire() throws Exception {
+        final CountDownLatch creating = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final EncoderPool pool = new EncoderPool(new EncoderPool.Factory() {
+            @Override
+            public EncoderBackend create() {
+                creating.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new StateBackend();
+            }
+        }, 2);
+        EncoderConfig config = config("c2.hw.avc", 1280, 720);
+        StateBackend idle = new StateBackend();
+        pool.recycle(idle, config);
+
+        final EncoderConfig other = config("c2.sw.avc", 1280, 720);
+        Thread prewarm = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pool.prewarm(other);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        prewarm.start();
+        assertTrue(creating.await(2, TimeUnit.SECONDS));
+
+        // Codec creation is still in flight on the other thread
+        assertSame(idle, pool.acquire(config));
+        proceed.countDown();
+        prewarm.join();
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void shutdownReleasesIdleAndRecycled() throws IOException {
+        EncoderPool pool = new EncoderPool(mFactory, 2);
+        EncoderConfig config = config("c2.hw.avc", 1280, 720);
+
+        pool.prewarm(config);
+        EncoderBackend running = pool.acquire(config("c2.sw.avc", 1280, 720));
+        pool.shutdown();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(StateBackend.RELEASED, mCreated.get(0).state);
+
+        running.start();
+        running.stop();
+        pool.recycle(running, config);
+        assertEquals(StateBackend.RELEASED, ((StateBackend) running).state);
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void recordsFirstOutputLatency() {
+        EncoderPool pool = new EncoderPool(mFactory, 1);
+        pool.recordFirstOutput(3000000L);
+        pool.recordFirstOutput(5000000L);
+
+        assertEquals(2, pool.getFirstOutputLatency().getCount());
+        assertEquals(4000000L, pool.getFirstOutputLatency().getMeanNs());
+        assertEquals(3000000L, pool.getFirstOutputLatency().getMinNs());
+        assertEquals(5000000L, pool.getFirstOutputLatency().getMaxNs());
+        assertTrue(pool.dumpStats().contains("first output"));
+    }
+}
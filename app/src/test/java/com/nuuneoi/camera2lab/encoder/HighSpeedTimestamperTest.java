@@ -0,0 +1,46 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HighSpeedTimestamperTest {
+
+    private static final long INTERVAL_240_US = 1000000L / 240;
+
+    @Test
+    public void stretchesSlowMotionTimeline() {
+        HighSpeedTimestamper timestamper = new HighSpeedTimestamper(240, 30);
+        long base = 123456789L;
+
+        assertEquals(0, timestamper.toPresentationTimeUs(base));
+        // One capture interval becomes eight playback intervals
+        assertEquals(INTERVAL_240_US * 8, timestamper.toPresentationTimeUs(base + INTERVAL_240_US));
+    }
+
+    @Test
+    public void keepsTimestampsStrictlyIncreasing() {
+        HighSpeedTimestamper timestamper = new HighSpeedTimestamper(120, 120);
+        long first = timestamper.toPresentationTimeUs(1000);
+        long duplicate = timestamper.toPresentationTimeUs(1000);
+        long reordered = timestamper.toPresentationTimeUs(900);
+
+        assertTrue(duplicate > first);
+        assertTrue(reordered > duplicate);
+    }
+
+    @Test
+    public void reportsAchievedRateAndMissedFrames() {
+        HighSpeedTimestamper timestamper = new HighSpeedTimestamper(240, 240);
+        long captureUs = 0;
+        for (int i = 0; i < 240; i++) {
+            // Every tenth frame never arrives
+            captureUs += (i % 10 == 9) ? 2 * INTERVAL_240_US : INTERVAL_240_US;
+            timestamper.toPresentationTimeUs(captureUs);
+        }
+
+        assertEquals(240, timestamper.getFrameCount());
+        assertEquals(24, timestamper.getMissedFrames());
+        assertEquals(240 * 10 / 11.0, timestamper.getAchievedFps(), 2.0);
+    }
+}
@@ -0,0 +1,308 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import com.nuuneoi.camera2lab.pipeline.FakeEncoderBackend;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MediaEncoderTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    // Records what every codec it hands out gets configured with
+    static class ConfigRecorder implements EncoderPool.Factory {
+        final List<EncoderConfig> configs = new ArrayList<>();
+        final List<FakeEncoderBackend> backends = new ArrayList<>();
+        volatile int created;
+        long encodeDelayUs;
+
+        @Override
+        public EncoderBackend create() {
+            created++;
+            FakeEncoderBackend backend = new FakeEncoderBackend(created) {
+                @Override
+                public synchronized void configure(EncoderConfig config) {
+                    synchronized (configs) {
+                        configs.add(config);
+                    }
+                    super.configure(config);
+                }
+            };
+            backend.setEncodeDelayUs(encodeDelayUs);
+            synchronized (backends) {
+                backends.add(backend);
+            }
+            return backend;
+        }
+
+        EncoderConfig last() {
+            synchronized (configs) {
+                return configs.get(configs.size() - 1);
+            }
+        }
+    }
+
+    // Muxes nothing, counts finalised recordings
+    static class NullMuxer implements MuxerBackend {
+        final Semaphore released;
+
+        NullMuxer(Semaphore released) {
+            this.released = released;
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+            released.release();
+        }
+    }
+
+    // No codec list on a plain JVM: every selection falls back to AVC without a codec name.
+    // Sessions get fake codecs and a muxer that writes nothing, and stay clear of android.util
+    static class TestEncoder extends MediaEncoder {
+        final Semaphore started = new Semaphore(0);
+        final Semaphore finalised = new Semaphore(0);
+        volatile FakeEncoderBackend backend;
+        long encodeDelayUs;
+
+        TestEncoder(int width, int height) {
+            super(width, height);
+            setRecordingIndex(false, 0);
+        }
+
+        @Override
+        protected EncoderBackend createEncoderBackend() {
+            FakeEncoderBackend fake = new FakeEncoderBackend(1);
+            fake.setEncodeDelayUs(encodeDelayUs);
+            backend = fake;
+            return fake;
+        }
+
+        @Override
+        protected void onSurfaceCreated(Surface surface) {
+            started.release();
+        }
+
+        @Override
+        protected File createOutputFile() {
+            return new File("test.mp4");
+        }
+
+        @Override
+        protected MuxerBackend createMuxerBackend(File output) {
+            return new NullMuxer(finalised);
+        }
+
+        @Override
+        protected void onCodecSelected(CodecSelector.Selection selection) {
+        }
+
+        @Override
+        protected void onSurfaceDestroyed(Surface surface) {
+        }
+
+        FakeEncoderBackend awaitSession() throws InterruptedException {
+            assertTrue("session never started", started.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            return backend;
+        }
+
+        @Override
+        protected CodecSelector createCodecSelector(CodecSelector.Preference preference) {
+            return new CodecSelector(new CodecSelector.Catalog() {
+                @Override
+                public List<CodecSelector.EncoderInfo> getEncoders(String mimeType) {
+                    return null;
+                }
+            }, preference);
+        }
+    }
+
+    @Test
+    public void highSpeedBudgetsTheCaptureRate() throws IOException {
+        ConfigRecorder recorder = new ConfigRecorder();
+        MediaEncoder encoder = new TestEncoder(1280, 720);
+        encoder.setEncoderPool(new EncoderPool(recorder, 1));
+        encoder.setHighSpeed(240, 30);
+        encoder.prewarm();
+
+        // The codec sees 240 frames a second, rate control has to be sized for that
+        EncoderConfig config = recorder.last();
+        assertEquals(240, config.getFrameRate());
+        assertEquals(new BitrateModel().getBitRate(CodecSelector.MIME_AVC, 1280, 720, 240), config.getBitRate());
+        assertEquals(240, config.getOperatingRate());
+        assertEquals(240, config.getCaptureRate());
+    }
+
+    @Test
+    public void rejectsInvalidHighSpeedRates() {
+        MediaEncoder encoder = new TestEncoder(1280, 720);
+        int[][] invalid = {{0, 30}, {-120, 30}, {240, 0}, {120, 240}};
+        for (int[] rates : invalid) {
+            try {
+                encoder.setHighSpeed(rates[0], rates[1]);
+                fail("Accepted " + rates[0] + "/" + rates[1]);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void drainingSessionDoesNotCountTowardsTheNextOne() throws Exception {
+        TestEncoder encoder = new TestEncoder(640, 480);
+        encoder.encodeDelayUs = 20000;
+        encoder.startRecording();
+        FakeEncoderBackend first = encoder.awaitSession();
+        for (int i = 0; i < 8; i++)
+            assertTrue(first.queueFrame(i * 33333L));
+
+        // The first worker is still draining its frames when the second session starts
+        encoder.stopRecording();
+        encoder.startRecording();
+        encoder.awaitSession();
+        assertTrue(encoder.finalised.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(8, first.getFramesEncoded());
+        assertEquals(0, encoder.getBytesWritten());
+
+        encoder.stopRecording();
+        assertTrue(encoder.finalised.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void previewRecordPreviewKeepsOneCodec() throws Exception {
+        ConfigRecorder recorder = new ConfigRecorder();
+        recorder.encodeDelayUs = 20000;
+        EncoderPool pool = new EncoderPool(recorder, 1);
+
+        // Camera2ApiManager starts a new encoder for every switch
+        TestEncoder preview = new TestEncoder(1280, 720);
+        preview.setEncoderPool(pool);
+        preview.start();
+        preview.awaitSession();
+        FakeEncoderBackend codec = recorder.backends.get(0);
+        for (int i = 0; i < 8; i++)
+            assertTrue(codec.queueFrame(i * 33333L));
+        // Still draining: a prewarm now would open a second codec
+        preview.prewarm();
+        assertEquals(1, recorder.created);
+
+        preview.stop();
+        TestEncoder recording = new TestEncoder(1280, 720);
+        recording.setEncoderPool(pool);
+        recording.startRecording();
+        recording.awaitSession();
+        recording.prewarm();
+        assertEquals(8, codec.getFramesEncoded());
+
+        recording.stopRecording();
+        TestEncoder next = new TestEncoder(1280, 720);
+        next.setEncoderPool(pool);
+        next.start();
+        next.awaitSession();
+        assertTrue(recording.finalised.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // Both switches got the codec the previous session gave back
+        assertEquals(1, recorder.created);
+        assertEquals(1, pool.getMisses());
+        assertEquals(2, pool.getHits());
+        next.stop();
+    }
+
+    @Test
+    public void pooledEncodersShareOneDrainThread() throws Exception {
+        EncoderDrainPool drainPool = new EncoderDrainPool(1, null);
+        final Set<String> drainThreads = Collections.synchronizedSet(new HashSet<String>());
+        TestEncoder[] encoders = new TestEncoder[2];
+        FakeEncoderBackend[] codecs = new FakeEncoderBackend[encoders.length];
+        for (int i = 0; i < encoders.length; i++) {
+            encoders[i] = new TestEncoder(640, 480) {
+                @Override
+                protected void onEncodedSample(SampleInfo info, ByteBuffer data) {
+                    drainThreads.add(Thread.currentThread().getName());
+                }
+            };
+            encoders[i].encodeDelayUs = 5000;
+            encoders[i].setDrainPool(drainPool);
+            encoders[i].startRecording();
+            codecs[i] = encoders[i].awaitSession();
+        }
+        for (int frame = 0; frame < 8; frame++) {
+            for (FakeEncoderBackend codec : codecs)
+                assertTrue(codec.queueFrame(frame * 33333L));
+        }
+
+        // Both streams end on the one thread without holding each other up
+        for (TestEncoder encoder : encoders)
+            encoder.stopRecording();
+        for (int i = 0; i < encoders.length; i++) {
+            assertTrue(encoders[i].finalised.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertEquals(8, codecs[i].getFramesEncoded());
+            assertTrue(encoders[i].getBytesWritten() > 0);
+        }
+        assertEquals(Collections.singleton("Encoder Drain 0"), drainThreads);
+        drainPool.shutdown();
+        assertEquals(0, drainPool.getTaskCount());
+    }
+
+    @Test
+    public void failedStartReleasesTheCodec() throws Exception {
+        final Semaphore released = new Semaphore(0);
+        EncoderPool pool = new EncoderPool(new EncoderPool.Factory() {
+            @Override
+            public EncoderBackend create() {
+                return new FakeEncoderBackend(1) {
+                    @Override
+                    public synchronized void start() {
+                        throw new IllegalStateException("codec start failed");
+                    }
+
+                    @Override
+                    public synchronized void release() {
+                        super.release();
+                        released.release();
+                    }
+                };
+            }
+        }, 1);
+        TestEncoder encoder = new TestEncoder(640, 480);
+        encoder.setEncoderPool(pool);
+        encoder.start();
+
+        // Neither kept idle nor counted as handed out
+        assertTrue(released.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, pool.getInUseCount());
+        assertEquals(0, pool.getIdleCount());
+        encoder.stop();
+    }
+}
@@ -0,0 +1,115 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RecordingIndexTest {
+
+    private static final long FRAME_US = 33333;
+    private static final int GOP = 30;
+    private static final long START_US = 5000000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("recording", ".idx");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void roundTripsSamplesKeyFramesAndThumbnails() throws IOException {
+        RecordingIndexWriter writer = new RecordingIndexWriter(mFile, 1000000);
+        writer.addSample(0, 30, SampleInfo.FLAG_CODEC_CONFIG);
+        int frames = 10000;
+        int thumbnails = 0;
+        for (int i = 0; i < frames; i++) {
+            long ptsUs = START_US + i * FRAME_US;
+            writer.addSample(ptsUs, 1000 + i, i % GOP == 0 ? SampleInfo.FLAG_KEY_FRAME : 0);
+            if (writer.wantsThumbnail(ptsUs)) {
+                byte[] jpeg = thumbnail(thumbnails);
+                assertTrue(writer.addThumbnail(ptsUs, jpeg, 0, jpeg.length, 160, 90));
+                thumbnails++;
+            }
+        }
+        writer.close();
+        assertFalse(new File(mFile.getPath() + ".thumbs").exists());
+
+        RecordingIndexReader reader = new RecordingIndexReader(mFile);
+        assertEquals(frames, reader.getSampleCount());
+        assertEquals(START_US + 1234 * FRAME_US, reader.getPresentationTimeUs(1234));
+        assertEquals(2234, reader.getSampleSize(1234));
+        assertTrue(reader.isKeyFrame(1230));
+        assertFalse(reader.isKeyFrame(1231));
+        assertEquals((frames + GOP - 1) / GOP, reader.getKeyFrameCount());
+
+        // Every time resolves to the key frame that starts its group
+        for (int i = 0; i < frames; i += 7) {
+            long ptsUs = START_US + i * FRAME_US;
+            assertEquals(i / GOP * GOP, reader.findKeyFrame(ptsUs));
+            assertEquals(i / GOP * GOP, reader.findKeyFrame(ptsUs + FRAME_US / 2));
+        }
+        assertEquals(-1, reader.findKeyFrame(START_US - 1));
+        assertEquals((frames - 1) / GOP * GOP, reader.findKeyFrame(Long.MAX_VALUE / 2));
+
+        // One thumbnail per second of the 333s recording
+        assertEquals(thumbnails, reader.getThumbnailCount());
+        assertEquals(334, thumbnails);
+        assertEquals(160, reader.getThumbnailWidth(10));
+        assertEquals(90, reader.getThumbnailHeight(10));
+        int index = reader.findThumbnail(START_US + 10500000);
+        assertEquals(10, index);
+        assertTrue(reader.getThumbnailTimeUs(index) <= START_US + 10500000);
+        ByteBuffer data = reader.getThumbnail(index);
+        byte[] expected = thumbnail(index);
+        byte[] actual = new byte[data.remaining()];
+        data.get(actual);
+        assertArrayEquals(expected, actual);
+        assertEquals(0, reader.findThumbnail(0));
+    }
+
+    @Test
+    public void skipsThumbnailsThatAreNotDue() throws IOException {
+        RecordingIndexWriter writer = new RecordingIndexWriter(mFile, 1000000);
+        byte[] jpeg = thumbnail(0);
+        assertTrue(writer.addThumbnail(0, jpeg, 0, jpeg.length, 2, 2));
+        assertFalse(writer.addThumbnail(500000, jpeg, 0, jpeg.length, 2, 2));
+        // A late frame takes the slot it falls in, the next one stays on the grid
+        assertTrue(writer.addThumbnail(2300000, jpeg, 0, jpeg.length, 2, 2));
+        assertFalse(writer.wantsThumbnail(2900000));
+        assertTrue(writer.wantsThumbnail(3000000));
+        writer.close();
+
+        assertEquals(2, new RecordingIndexReader(mFile).getThumbnailCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnfinishedIndex() throws IOException {
+        RecordingIndexWriter writer = new RecordingIndexWriter(mFile, 0);
+        try {
+            writer.addSample(0, 10, SampleInfo.FLAG_KEY_FRAME);
+            new RecordingIndexReader(mFile);
+        } finally {
+            // Releases its memory budget registration
+            writer.close();
+        }
+    }
+
+    private static byte[] thumbnail(int index) {
+        byte[] jpeg = new byte[100 + index % 50];
+        for (int i = 0; i < jpeg.length; i++)
+            jpeg[i] = (byte) (index * 31 + i);
+        return jpeg;
+    }
+}
@@ -0,0 +1,172 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import com.nuuneoi.camera2lab.pipeline.FakeEncoderBackend;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SceneChangeDetectorTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final long FRAME_US = 33333;
+
+    private final Random mRandom = new Random(11);
+
+    @Test
+    public void ignoresNoiseOnStaticScene() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        for (int i = 0; i < 60; i++)
+            assertFalse("frame " + i, process(detector, noisy(gradient(0)), i));
+        assertEquals(0, detector.getChangeCount());
+        assertEquals(60, detector.getFrameCount());
+    }
+
+    @Test
+    public void ignoresPans() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        for (int i = 0; i < 60; i++)
+            assertFalse("frame " + i, process(detector, noisy(gradient(i * 7)), i));
+        assertEquals(0, detector.getChangeCount());
+    }
+
+    @Test
+    public void detectsCut() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        for (int i = 0; i < 60; i++) {
+            byte[] frame = i < 40 ? gradient(i * 2) : blocks(0);
+            assertEquals("frame " + i, i == 40, process(detector, noisy(frame), i));
+        }
+        assertEquals(1, detector.getChangeCount());
+        assertTrue(detector.getLastHistogramDistance() < SceneChangeDetector.DEFAULT_HISTOGRAM_THRESHOLD);
+    }
+
+    @Test
+    public void detectsLightingChange() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        byte[] dark = gradient(0);
+        byte[] lit = brighten(dark, 70);
+        for (int i = 0; i < 60; i++)
+            assertEquals("frame " + i, i == 45, process(detector, noisy(i < 45 ? dark : lit), i));
+    }
+
+    @Test
+    public void keepsMinimumSpacing() {
+        SceneChangeDetector detector = new SceneChangeDetector().setMinSpacingUs(1000 * 1000);
+        byte[] a = gradient(0);
+        byte[] b = blocks(0);
+        // Cuts every 10 frames (a third of a second), then every 40 frames
+        int changes = 0;
+        for (int i = 0; i < 60; i++) {
+            if (process(detector, noisy((i / 10) % 2 == 0 ? a : b), i))
+                changes++;
+        }
+        assertEquals(2, changes);
+        assertEquals(3, detector.getSuppressedCount());
+
+        detector = new SceneChangeDetector().setMinSpacingUs(1000 * 1000);
+        changes = 0;
+        for (int i = 0; i < 160; i++) {
+            if (process(detector, noisy((i / 40) % 2 == 0 ? a : b), i))
+                changes++;
+        }
+        assertEquals(3, changes);
+        assertEquals(0, detector.getSuppressedCount());
+    }
+
+    @Test
+    public void bufferMatchesArray() {
+        SceneChangeDetector fromArray = new SceneChangeDetector();
+        SceneChangeDetector fromBuffer = new SceneChangeDetector();
+        int rowStride = WIDTH + 64;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        for (int i = 0; i < 30; i++) {
+            byte[] frame = noisy(i < 15 ? gradient(i) : blocks(i));
+            buffer.clear();
+            for (int y = 0; y < HEIGHT; y++) {
+                buffer.position(y * rowStride);
+                buffer.put(frame, y * WIDTH, WIDTH);
+            }
+            buffer.rewind();
+
+            boolean expected = fromArray.process(frame, 0, WIDTH, HEIGHT, WIDTH, i * FRAME_US);
+            assertEquals(expected, fromBuffer.process(buffer, WIDTH, HEIGHT, rowStride, 1, i * FRAME_US));
+            assertEquals(fromArray.getLastHistogramDistance(), fromBuffer.getLastHistogramDistance(), 0);
+            assertEquals(fromArray.getLastBlockDifference(), fromBuffer.getLastBlockDifference(), 0);
+            assertEquals(0, buffer.position());
+        }
+        assertEquals(1, fromBuffer.getChangeCount());
+    }
+
+    @Test
+    public void requestedSyncFrameRestartsGop() {
+        FakeEncoderBackend backend = new FakeEncoderBackend(1);
+        backend.configure(new EncoderConfig("video/avc", 640, 480, 2000000, 30, 10));
+        backend.start();
+        SampleInfo info = new SampleInfo();
+        assertEquals(EncoderBackend.INFO_OUTPUT_FORMAT_CHANGED, backend.dequeueOutputBuffer(info, 0));
+
+        boolean[] keyFrames = new boolean[20];
+        for (int i = 0; i < keyFrames.length; i++) {
+            if (i == 12)
+                backend.requestSyncFrame();
+            assertTrue(backend.queueFrame(i * FRAME_US));
+            int index = backend.dequeueOutputBuffer(info, 0);
+            assertTrue(index >= 0);
+            keyFrames[i] = info.isKeyFrame();
+            backend.releaseOutputBuffer(index);
+        }
+        for (int i = 0; i < keyFrames.length; i++)
+            assertEquals("frame " + i, i == 0 || i == 12, keyFrames[i]);
+        assertEquals(2, backend.getKeyFramesEncoded());
+    }
+
+    private static boolean process(SceneChangeDetector detector, byte[] frame, int index) {
+        return detector.process(frame, 0, WIDTH, HEIGHT, WIDTH, index * FRAME_US);
+    }
+
+    // Horizontally periodic, so a pan keeps the histogram
+    private static byte[] gradient(int offset) {
+        byte[] frame = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int phase = (x + offset) % WIDTH;
+                int ramp = phase < WIDTH / 2 ? phase : WIDTH - phase;
+                frame[y * WIDTH + x] = (byte) (40 + ramp * 120 / (WIDTH / 2) + y / 8);
+            }
+        }
+        return frame;
+    }
+
+    // Dark room with a few bright windows
+    private static byte[] blocks(int offset) {
+        byte[] frame = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean window = ((x + offset) / 40 + y / 40) % 5 == 0;
+                frame[y * WIDTH + x] = (byte) (window ? 220 : 24);
+            }
+        }
+        return frame;
+    }
+
+    private static byte[] brighten(byte[] frame, int amount) {
+        byte[] out = new byte[frame.length];
+        for (int i = 0; i < frame.length; i++)
+            out[i] = (byte) Math.min(255, (frame[i] & 0xff) + amount);
+        return out;
+    }
+
+    private byte[] noisy(byte[] frame) {
+        byte[] out = new byte[frame.length];
+        for (int i = 0; i < frame.length; i++) {
+            int value = (frame[i] & 0xff) + (int) Math.round(mRandom.nextGaussian() * 4);
+            out[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+        return out;
+    }
+}
@@ -0,0 +1,37 @@
+package com.nuuneoi.camera2lab.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimeLapseTimestamperTest {
+
+    private static final long INTERVAL_US = 5 * 1000000L;
+
+    @Test
+    public void placesFramesOnPlaybackTimeline() {
+        TimeLapseTimestamper timestamper = new TimeLapseTimestamper(INTERVAL_US, 30);
+        long captureUs = 987654321L;
+
+        assertEquals(0, timestamper.toPresentationTimeUs(captureUs));
+        assertEquals(33333, timestamper.toPresentationTimeUs(captureUs + INTERVAL_US));
+        // A late capture still becomes the next frame
+        assertEquals(66666, timestamper.toPresentationTimeUs(captureUs + 3 * INTERVAL_US));
+    }
+
+    @Test
+    public void reportsAchievedIntervalAndSpeedup() {
+        TimeLapseTimestamper timestamper = new TimeLapseTimestamper(INTERVAL_US, 30);
+        for (int i = 0; i < 10; i++)
+            timestamper.toPresentationTimeUs(i * (INTERVAL_US + 100000));
+
+        assertEquals(10, timestamper.getFrameCount());
+        assertEquals(INTERVAL_US + 100000, timestamper.getAchievedIntervalUs());
+        assertEquals(150.0, timestamper.getSpeedup(), 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroInterval() {
+        new TimeLapseTimestamper(0, 30);
+    }
+}
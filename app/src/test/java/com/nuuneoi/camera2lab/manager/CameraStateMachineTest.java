@@ -0,0 +1,123 @@
+package com.nuuneoi.camera2lab.manager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CameraStateMachineTest {
+
+    private static class FakeClock implements CameraStateMachine.Clock {
+        long now;
+
+        @Override
+        public long nowMs() {
+            return now;
+        }
+    }
+
+    private final FakeClock mClock = new FakeClock();
+
+    @Test
+    public void followsLifecycle() {
+        CameraStateMachine machine = new CameraStateMachine(mClock);
+        assertFalse(machine.isStarted());
+
+        assertFalse(machine.moveTo(CameraStateMachine.State.STREAMING));
+        assertEquals(CameraStateMachine.State.CLOSED, machine.getState());
+
+        assertTrue(machine.moveTo(CameraStateMachine.State.OPENING));
+        assertTrue(machine.isStarted());
+        assertFalse(machine.moveTo(CameraStateMachine.State.STREAMING));
+        assertTrue(machine.moveTo(CameraStateMachine.State.CONFIGURING));
+        assertTrue(machine.moveTo(CameraStateMachine.State.STREAMING));
+        // Reconfiguring, e.g. a new fps range
+        assertTrue(machine.moveTo(CameraStateMachine.State.CONFIGURING));
+        assertTrue(machine.moveTo(CameraStateMachine.State.CLOSED));
+        assertFalse(machine.isStarted());
+    }
+
+    @Test
+    public void backsOffExponentially() {
+        CameraStateMachine machine = new CameraStateMachine(mClock);
+        machine.setBackoff(100, 1000, 100000);
+        machine.moveTo(CameraStateMachine.State.OPENING);
+
+        long[] expected = {100, 200, 400, 800, 1000, 1000};
+        for (long delay : expected) {
+            assertEquals(delay, machine.onFailure());
+            assertEquals(CameraStateMachine.State.RECOVERING, machine.getState());
+            mClock.now += delay;
+            assertTrue(machine.moveTo(CameraStateMachine.State.OPENING));
+        }
+
+        // A successful recovery resets the backoff
+        machine.moveTo(CameraStateMachine.State.CONFIGURING);
+        machine.moveTo(CameraStateMachine.State.STREAMING);
+        assertEquals(1, machine.getRecoveryCount());
+        assertEquals(3500, machine.getLastRecoveryMs());
+        assertEquals(100, machine.onFailure());
+    }
+
+    @Test
+    public void givesUpWhenBudgetIsSpent() {
+        CameraStateMachine machine = new CameraStateMachine(mClock);
+        machine.setBackoff(100, 1000, 1000);
+        final List<CameraStateMachine.State> closedFrom = new ArrayList<>();
+        machine.setListener(new CameraStateMachine.Listener() {
+            @Override
+            public void onStateChanged(CameraStateMachine.State from, CameraStateMachine.State to) {
+                if (to == CameraStateMachine.State.CLOSED)
+                    closedFrom.add(from);
+            }
+        });
+        machine.moveTo(CameraStateMachine.State.OPENING);
+
+        // 100 + 200 + 400 fit, the next 800 would end past the 1000ms budget
+        long delay;
+        while ((delay = machine.onFailure()) != CameraStateMachine.GAVE_UP) {
+            mClock.now += delay;
+            machine.moveTo(CameraStateMachine.State.OPENING);
+        }
+        assertEquals(700, mClock.now);
+        assertEquals(CameraStateMachine.State.CLOSED, machine.getState());
+        assertFalse(machine.isStarted());
+        assertEquals(1, machine.getFailedRecoveryCount());
+        assertEquals(1, closedFrom.size());
+        assertEquals(CameraStateMachine.State.OPENING, closedFrom.get(0));
+
+        // Nothing to recover once closed
+        assertEquals(CameraStateMachine.GAVE_UP, machine.onFailure());
+        assertEquals(1, machine.getFailedRecoveryCount());
+
+        // A fresh start gets a fresh budget
+        machine.moveTo(CameraStateMachine.State.OPENING);
+        assertEquals(100, machine.onFailure());
+    }
+
+    @Test
+    public void accumulatesTimeInState() {
+        CameraStateMachine machine = new CameraStateMachine(mClock);
+        mClock.now = 50;
+        machine.moveTo(CameraStateMachine.State.OPENING);
+        mClock.now = 80;
+        machine.moveTo(CameraStateMachine.State.CONFIGURING);
+        mClock.now = 100;
+        machine.moveTo(CameraStateMachine.State.STREAMING);
+        mClock.now = 1100;
+        machine.onFailure();
+        mClock.now = 1200;
+        machine.moveTo(CameraStateMachine.State.OPENING);
+        mClock.now = 1250;
+
+        assertEquals(50, machine.getTimeInStateMs(CameraStateMachine.State.CLOSED));
+        // Counted up to now while still in the state
+        assertEquals(30 + 50, machine.getTimeInStateMs(CameraStateMachine.State.OPENING));
+        assertEquals(20, machine.getTimeInStateMs(CameraStateMachine.State.CONFIGURING));
+        assertEquals(1000, machine.getTimeInStateMs(CameraStateMachine.State.STREAMING));
+        assertEquals(100, machine.getTimeInStateMs(CameraStateMachine.State.RECOVERING));
+        assertTrue(machine.dumpMetrics().contains("streaming=1000ms"));
+    }
+}
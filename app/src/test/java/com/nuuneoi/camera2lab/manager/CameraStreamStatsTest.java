@@ -0,0 +1,84 @@
+package com.nuuneoi.camera2lab.manager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CameraStreamStatsTest {
+
+    private static void repeat(Runnable action, int times) {
+        for (int i = 0; i < times; i++)
+            action.run();
+    }
+
+    @Test
+    public void reportsRatesSinceLastSample() {
+        final CameraStreamStats stats = new CameraStreamStats("1", 1000);
+        stats.setStreaming(true);
+        repeat(new Runnable() {
+            @Override
+            public void run() {
+                stats.onCaptured();
+            }
+        }, 30);
+        repeat(new Runnable() {
+            @Override
+            public void run() {
+                stats.onAnalyzed();
+            }
+        }, 20);
+        repeat(new Runnable() {
+            @Override
+            public void run() {
+                stats.onEncoded();
+            }
+        }, 29);
+        repeat(new Runnable() {
+            @Override
+            public void run() {
+                stats.onDropped();
+            }
+        }, 10);
+
+        CameraStreamStats.Snapshot first = stats.sample(2000);
+        assertEquals("1", first.cameraId);
+        assertTrue(first.streaming);
+        assertEquals(30f, first.captureFps, 0.01f);
+        assertEquals(20f, first.analysisFps, 0.01f);
+        assertEquals(29f, first.encodedFps, 0.01f);
+        assertEquals(10, first.droppedFrames);
+        assertEquals(10, first.totalDroppedFrames);
+
+        // Half a second later, only the new frames count
+        stats.onCaptured();
+        stats.onDropped();
+        stats.setStreaming(false);
+        CameraStreamStats.Snapshot second = stats.sample(2500);
+        assertFalse(second.streaming);
+        assertEquals(2f, second.captureFps, 0.01f);
+        assertEquals(0f, second.analysisFps, 0.01f);
+        assertEquals(1, second.droppedFrames);
+        assertEquals(11, second.totalDroppedFrames);
+        assertTrue(second.toString().contains("(down)"));
+    }
+
+    @Test
+    public void countsFromSeveralThreads() throws InterruptedException {
+        final CameraStreamStats stats = new CameraStreamStats("0", 0);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++)
+                        stats.onDropped();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(40000, stats.sample(1000).totalDroppedFrames);
+    }
+}
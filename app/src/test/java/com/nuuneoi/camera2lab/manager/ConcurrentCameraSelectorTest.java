@@ -0,0 +1,54 @@
+package com.nuuneoi.camera2lab.manager;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentCameraSelectorTest {
+
+    private static final List<String> AVAILABLE = Arrays.asList("0", "1", "2", "3");
+    private static final List<String> NONE = Collections.emptyList();
+
+    private static Set<String> ids(String... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+
+    @Test
+    public void opensLargestCombinationByDefault() {
+        List<Set<String>> combinations = Arrays.asList(ids("0", "1"), ids("1", "2", "3"));
+
+        assertEquals(Arrays.asList("1", "2", "3"), ConcurrentCameraSelector.select(combinations, AVAILABLE, NONE, 4));
+        assertEquals(Arrays.asList("0", "1"), ConcurrentCameraSelector.select(combinations, AVAILABLE, NONE, 2));
+    }
+
+    @Test
+    public void keepsRequestedOrderWithinCombination() {
+        List<Set<String>> combinations = Arrays.asList(ids("0", "1"), ids("0", "2"));
+
+        assertEquals(Arrays.asList("2", "0"),
+                ConcurrentCameraSelector.select(combinations, AVAILABLE, Arrays.asList("2", "0"), 2));
+        // 1 and 2 never stream together: the first requested camera wins
+        assertEquals(Arrays.asList("1", "0"),
+                ConcurrentCameraSelector.select(combinations, AVAILABLE, Arrays.asList("1", "2", "0"), 2));
+    }
+
+    @Test
+    public void fallsBackToSingleCamera() {
+        assertEquals(Collections.singletonList("0"),
+                ConcurrentCameraSelector.select(Collections.<Set<String>>emptySet(), AVAILABLE, NONE, 2));
+        assertEquals(Collections.singletonList("3"),
+                ConcurrentCameraSelector.select(Collections.<Set<String>>emptySet(), AVAILABLE, Arrays.asList("9", "3"), 2));
+    }
+
+    @Test
+    public void ignoresUnknownIds() {
+        assertTrue(ConcurrentCameraSelector.select(Collections.singleton(ids("0", "1")), AVAILABLE,
+                Collections.singletonList("9"), 2).isEmpty());
+    }
+}
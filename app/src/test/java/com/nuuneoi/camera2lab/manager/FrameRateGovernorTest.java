@@ -0,0 +1,90 @@
+package com.nuuneoi.camera2lab.manager;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameRateGovernorTest {
+
+    private static final List<FrameRateGovernor.FpsRange> SUPPORTED = Arrays.asList(
+            new FrameRateGovernor.FpsRange(7, 15),
+            new FrameRateGovernor.FpsRange(15, 15),
+            new FrameRateGovernor.FpsRange(8, 24),
+            new FrameRateGovernor.FpsRange(24, 24),
+            new FrameRateGovernor.FpsRange(15, 30),
+            new FrameRateGovernor.FpsRange(30, 30),
+            new FrameRateGovernor.FpsRange(60, 60));
+
+    // Consumer that can handle `capacity` frames per second
+    private static void simulateWindow(FrameRateGovernor governor, int capacity) {
+        int fps = governor.getCurrentRange().upper;
+        int delivered = Math.min(fps, capacity);
+        long frameIntervalNs = 1000000000L / fps;
+        long costNs = 1000000000L / capacity;
+        for (int i = 0; i < delivered; i++)
+            governor.onFrameDelivered(Math.min(costNs, 2 * frameIntervalNs));
+        governor.onFramesDropped(fps - delivered);
+        governor.onEncoderQueueDepth(capacity < fps ? 4 : 0);
+    }
+
+    @Test
+    public void buildsLadderOfTightestRanges() {
+        FrameRateGovernor governor = new FrameRateGovernor(SUPPORTED, 30);
+        List<FrameRateGovernor.FpsRange> ladder = governor.getLadder();
+        assertEquals(3, ladder.size());
+        assertEquals(15, ladder.get(0).lower);
+        assertEquals(24, ladder.get(1).lower);
+        assertEquals(30, ladder.get(2).lower);
+        assertEquals(30, governor.getCurrentRange().upper);
+    }
+
+    @Test
+    public void stepsDownUnderSustainedLoadAndRecovers() {
+        FrameRateGovernor governor = new FrameRateGovernor(SUPPORTED, 30);
+
+        // Consumers can only do 12 fps: governor walks down to the bottom rung
+        for (int window = 0; window < 20; window++) {
+            simulateWindow(governor, 12);
+            governor.evaluate();
+        }
+        assertEquals(15, governor.getCurrentRange().upper);
+
+        // Load goes away: governor climbs back to 30
+        for (int window = 0; window < 40; window++) {
+            simulateWindow(governor, 100);
+            governor.evaluate();
+        }
+        assertEquals(30, governor.getCurrentRange().upper);
+    }
+
+    @Test
+    public void doesNotOscillateOnAlternatingLoad() {
+        FrameRateGovernor governor = new FrameRateGovernor(SUPPORTED, 30);
+
+        int changes = 0;
+        for (int window = 0; window < 60; window++) {
+            simulateWindow(governor, window % 2 == 0 ? 20 : 100);
+            if (governor.evaluate())
+                changes++;
+        }
+        // Single bad windows never complete a streak
+        assertEquals(0, changes);
+    }
+
+    @Test
+    public void settlesOnHighestSustainableRung() {
+        FrameRateGovernor governor = new FrameRateGovernor(SUPPORTED, 30);
+
+        int changes = 0;
+        for (int window = 0; window < 200; window++) {
+            simulateWindow(governor, 26);
+            if (governor.evaluate())
+                changes++;
+        }
+        assertEquals(24, governor.getCurrentRange().upper);
+        assertEquals(1, changes);
+    }
+}
@@ -0,0 +1,70 @@
+package com.nuuneoi.camera2lab.manager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HighSpeedRequestBatcherTest {
+
+    // Mimics CameraConstrainedHighSpeedCaptureSession: one request becomes fps / 30 requests
+    static class FakeSession implements HighSpeedRequestBatcher.Session<String> {
+        final int sessionFps;
+        List<String> repeating;
+        int stopCalls;
+
+        FakeSession(int sessionFps) {
+            this.sessionFps = sessionFps;
+        }
+
+        @Override
+        public List<String> createHighSpeedRequestList(String request) {
+            List<String> burst = new ArrayList<>();
+            for (int i = 0; i < sessionFps / 30; i++)
+                burst.add(request + (i == 0 ? "+preview" : "#" + i));
+            return burst;
+        }
+
+        @Override
+        public void setRepeatingBurst(List<String> requests) {
+            repeating = requests;
+        }
+
+        @Override
+        public void stopRepeating() {
+            stopCalls++;
+            repeating = null;
+        }
+    }
+
+    @Test
+    public void submitsWholeBurst() {
+        FakeSession session = new FakeSession(240);
+        HighSpeedRequestBatcher<String> batcher = new HighSpeedRequestBatcher<>(session, 240);
+
+        batcher.start("record");
+
+        assertEquals(8, batcher.getBatchSize());
+        assertEquals(8, session.repeating.size());
+        assertEquals("record+preview", session.repeating.get(0));
+
+        batcher.stop();
+        batcher.stop();
+        assertNull(session.repeating);
+        assertEquals(1, session.stopCalls);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsBurstForOtherRate() {
+        // Request FPS range says 120 while the batcher was set up for 240
+        HighSpeedRequestBatcher<String> batcher = new HighSpeedRequestBatcher<>(new FakeSession(120), 240);
+        batcher.start("record");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRateThatIsNotMultipleOfPreview() {
+        new HighSpeedRequestBatcher<>(new FakeSession(100), 100);
+    }
+}
@@ -0,0 +1,155 @@
+package com.nuuneoi.camera2lab.manager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StreamConfigNegotiatorTest {
+
+    private static final int PRIVATE = 0x22;
+    private static final int YUV = 0x23;
+    private static final int JPEG = 0x100;
+
+    private static final long FPS_30 = 33333333L;
+    private static final long FPS_20 = 50000000L;
+    private static final long FPS_60 = 16666666L;
+
+    static class FakeCapabilities implements StreamConfigNegotiator.CapabilityTable {
+        private final Map<Integer, List<StreamSize>> mSizes = new HashMap<>();
+        private final Map<String, long[]> mDurations = new HashMap<>();
+
+        FakeCapabilities add(int format, int width, int height, long minFrameDurationNs, long stallNs) {
+            List<StreamSize> sizes = mSizes.get(format);
+            if (sizes == null) {
+                sizes = new ArrayList<>();
+                mSizes.put(format, sizes);
+            }
+            sizes.add(new StreamSize(width, height));
+            mDurations.put(format + ":" + width + "x" + height, new long[]{minFrameDurationNs, stallNs});
+            return this;
+        }
+
+        @Override
+        public StreamSize[] getOutputSizes(int format) {
+            List<StreamSize> sizes = mSizes.get(format);
+            return sizes == null ? new StreamSize[0] : sizes.toArray(new StreamSize[0]);
+        }
+
+        @Override
+        public long getOutputMinFrameDuration(int format, StreamSize size) {
+            return mDurations.get(format + ":" + size)[0];
+        }
+
+        @Override
+        public long getOutputStallDuration(int format, StreamSize size) {
+            return mDurations.get(format + ":" + size)[1];
+        }
+    }
+
+    private static FakeCapabilities typicalDevice() {
+        return new FakeCapabilities()
+                .add(PRIVATE, 3840, 2160, FPS_20, 0)
+                .add(PRIVATE, 1920, 1080, FPS_30, 0)
+                .add(PRIVATE, 1440, 1080, FPS_30, 0)
+                .add(PRIVATE, 1280, 720, FPS_60, 0)
+                .add(PRIVATE, 640, 480, FPS_60, 0)
+                .add(YUV, 1920, 1080, FPS_20, 0)
+                .add(YUV, 1280, 720, FPS_30, 0)
+                .add(YUV, 640, 480, FPS_30, 0)
+                .add(YUV, 640, 360, FPS_30, 0)
+                .add(JPEG, 4000, 3000, FPS_20, 200000000L)
+                .add(JPEG, 1920, 1080, FPS_30, 30000000L)
+                .add(JPEG, 640, 360, FPS_60, 5000000L);
+    }
+
+    @Test
+    public void picksRequestedSizesWhenTheyFit() {
+        StreamConfigNegotiator negotiator = new StreamConfigNegotiator(typicalDevice());
+        StreamConfigNegotiator.Result result = negotiator.negotiate(Arrays.asList(
+                new StreamConfigNegotiator.OutputRequest("encoder", PRIVATE, 1280, 720, true),
+                new StreamConfigNegotiator.OutputRequest("analysis", YUV, 1280, 720, true)), 30);
+
+        assertTrue(result.explain(), result.satisfied);
+        assertEquals(new StreamSize(1280, 720), result.get("encoder").size);
+        assertEquals(new StreamSize(1280, 720), result.get("analysis").size);
+        assertTrue(result.get("encoder").reason.contains("requested size"));
+    }
+
+    @Test
+    public void dropsSizesTooSlowForTargetAndKeepsAspect() {
+        StreamConfigNegotiator negotiator = new StreamConfigNegotiator(typicalDevice());
+        StreamConfigNegotiator.Result result = negotiator.negotiate(Arrays.asList(
+                new StreamConfigNegotiator.OutputRequest("encoder", PRIVATE, 3840, 2160, true),
+                new StreamConfigNegotiator.OutputRequest("analysis", YUV, 1920, 1080, true)), 30);
+
+        assertTrue(result.explain(), result.satisfied);
+        // 4K and 1080p YUV only reach 20 fps; 1440x1080 is larger but not 16:9
+        assertEquals(new StreamSize(1920, 1080), result.get("encoder").size);
+        assertEquals(new StreamSize(1280, 720), result.get("analysis").size);
+    }
+
+    @Test
+    public void stepsDownRepeatingStillToAbsorbStall() {
+        StreamConfigNegotiator negotiator = new StreamConfigNegotiator(typicalDevice());
+        StreamConfigNegotiator.Result result = negotiator.negotiate(Arrays.asList(
+                new StreamConfigNegotiator.OutputRequest("encoder", PRIVATE, 1280, 720, true),
+                new StreamConfigNegotiator.OutputRequest("still", JPEG, 1920, 1080, true)), 30);
+
+        // 33.3ms + 30ms stall is over budget, 16.7ms + 5ms stall of 640x360 is not
+        assertTrue(result.explain(), result.satisfied);
+        assertEquals(new StreamSize(640, 360), result.get("still").size);
+        assertTrue(result.get("still").reason.contains("stepped down"));
+    }
+
+    @Test
+    public void occasionalStillOnlyReportsStall() {
+        StreamConfigNegotiator negotiator = new StreamConfigNegotiator(typicalDevice());
+        StreamConfigNegotiator.Result result = negotiator.negotiate(Arrays.asList(
+                new StreamConfigNegotiator.OutputRequest("encoder", PRIVATE, 1280, 720, true),
+                new StreamConfigNegotiator.OutputRequest("still", JPEG, 4000, 3000, false)), 20);
+
+        // Counted per frame the 30ms stall would break 20fps; the 4:3 size loses on aspect
+        assertTrue(result.explain(), result.satisfied);
+        assertEquals(new StreamSize(1920, 1080), result.get("still").size);
+        assertTrue(result.get("still").reason.contains("stalls the frame"));
+    }
+
+    @Test
+    public void reportsStillFrameDuration() {
+        StreamConfigNegotiator negotiator = new StreamConfigNegotiator(typicalDevice());
+        StreamConfigNegotiator.Result jpeg = negotiator.negotiate(Arrays.asList(
+                new StreamConfigNegotiator.OutputRequest("encoder", PRIVATE, 1280, 720, true),
+                new StreamConfigNegotiator.OutputRequest("snapshot", JPEG, 8000, 6000, false)), 30);
+        StreamConfigNegotiator.Result yuv = negotiator.negotiate(Arrays.asList(
+                new StreamConfigNegotiator.OutputRequest("encoder", PRIVATE, 1280, 720, true),
+                new StreamConfigNegotiator.OutputRequest("snapshot", YUV, 8000, 6000, false)), 30);
+
+        // The 1080p JPEG runs at 30fps but its 30ms stall stretches the frame it lands in
+        assertTrue(jpeg.explain(), jpeg.satisfied);
+        assertEquals(new StreamSize(1920, 1080), jpeg.get("snapshot").size);
+        assertEquals(FPS_60, jpeg.frameDurationNs);
+        assertEquals(FPS_30 + 30000000L, jpeg.stillFrameDurationNs);
+        assertTrue(jpeg.explain().contains("over budget"));
+
+        // The largest YUV fitting 30fps does not stall
+        assertTrue(yuv.explain(), yuv.satisfied);
+        assertEquals(new StreamSize(1280, 720), yuv.get("snapshot").size);
+        assertEquals(FPS_30, yuv.stillFrameDurationNs);
+    }
+
+    @Test
+    public void reportsUnsatisfiableTarget() {
+        StreamConfigNegotiator negotiator = new StreamConfigNegotiator(typicalDevice());
+        StreamConfigNegotiator.Result result = negotiator.negotiate(Arrays.asList(
+                new StreamConfigNegotiator.OutputRequest("encoder", PRIVATE, 1280, 720, true)), 120);
+
+        assertFalse(result.satisfied);
+        assertTrue(result.explain().contains("120fps"));
+    }
+}
@@ -0,0 +1,114 @@
+package com.nuuneoi.camera2lab.manager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VideoSnapshotMonitorTest {
+
+    private static final long FRAME_NS = 33333333L;
+    private static final long MS = 1000000L;
+
+    @Test
+    public void measuresLatencyWithoutGaps() {
+        VideoSnapshotMonitor monitor = new VideoSnapshotMonitor();
+        long ts = feed(monitor, 0, 30, FRAME_NS);
+        assertEquals(FRAME_NS, monitor.getBaselineIntervalNs());
+
+        assertTrue(monitor.onSnapshotRequested(1000 * MS));
+        ts = feed(monitor, ts, 2, FRAME_NS);
+        ts += FRAME_NS;
+        monitor.onFrameCaptured(ts, true);
+        monitor.onSnapshotWritten(1180 * MS);
+        assertTrue(monitor.isPending());
+        feed(monitor, ts, VideoSnapshotMonitor.TRAILING_FRAMES, FRAME_NS);
+
+        assertFalse(monitor.isPending());
+        assertEquals(1, monitor.getSnapshotCount());
+        assertEquals(180 * MS, monitor.getLastLatencyNs());
+        assertEquals(FRAME_NS, monitor.getLastMaxGapNs());
+        assertEquals(0, monitor.getLastMissedFrames());
+    }
+
+    @Test
+    public void countsFramesLostToStall() {
+        VideoSnapshotMonitor monitor = new VideoSnapshotMonitor();
+        long ts = feed(monitor, 0, 30, FRAME_NS);
+
+        monitor.onSnapshotRequested(0);
+        // The JPEG stall pushes the frame after the snapshot out by two frame times
+        ts += FRAME_NS;
+        monitor.onFrameCaptured(ts, true);
+        ts += 3 * FRAME_NS;
+        monitor.onFrameCaptured(ts, false);
+        feed(monitor, ts, 5, FRAME_NS);
+        monitor.onSnapshotWritten(250 * MS);
+
+        assertFalse(monitor.isPending());
+        assertEquals(3 * FRAME_NS, monitor.getLastMaxGapNs());
+        assertEquals(2, monitor.getLastMissedFrames());
+        // Gaps outside the window do not count
+        assertEquals(2, monitor.getTotalMissedFrames());
+        assertEquals(FRAME_NS, monitor.getBaselineIntervalNs());
+    }
+
+    @Test
+    public void toleratesJitter() {
+        VideoSnapshotMonitor monitor = new VideoSnapshotMonitor();
+        long ts = feed(monitor, 0, 30, FRAME_NS);
+
+        monitor.onSnapshotRequested(0);
+        ts += FRAME_NS * 14 / 10;
+        monitor.onFrameCaptured(ts, true);
+        feed(monitor, ts, VideoSnapshotMonitor.TRAILING_FRAMES, FRAME_NS);
+        monitor.onSnapshotWritten(100 * MS);
+
+        assertEquals(0, monitor.getLastMissedFrames());
+        assertEquals(FRAME_NS * 14 / 10, monitor.getLastMaxGapNs());
+    }
+
+    @Test
+    public void oneSnapshotAtATime() {
+        VideoSnapshotMonitor monitor = new VideoSnapshotMonitor();
+        long ts = feed(monitor, 0, 10, FRAME_NS);
+
+        assertTrue(monitor.onSnapshotRequested(0));
+        assertFalse(monitor.onSnapshotRequested(10 * MS));
+        monitor.onSnapshotFailed();
+        assertEquals(1, monitor.getFailedCount());
+        assertEquals(0, monitor.getSnapshotCount());
+
+        assertTrue(monitor.onSnapshotRequested(20 * MS));
+        ts += FRAME_NS;
+        monitor.onFrameCaptured(ts, true);
+        feed(monitor, ts, VideoSnapshotMonitor.TRAILING_FRAMES, FRAME_NS);
+        monitor.onSnapshotWritten(120 * MS);
+        monitor.onSnapshotWritten(500 * MS);
+
+        assertEquals(1, monitor.getSnapshotCount());
+        assertEquals(100 * MS, monitor.getAverageLatencyNs());
+        assertEquals(100 * MS, monitor.getMaxLatencyNs());
+    }
+
+    @Test
+    public void resetForgetsBaseline() {
+        VideoSnapshotMonitor monitor = new VideoSnapshotMonitor();
+        long ts = feed(monitor, 0, 10, FRAME_NS);
+        monitor.onSnapshotRequested(0);
+        monitor.reset();
+
+        assertFalse(monitor.isPending());
+        assertEquals(0, monitor.getBaselineIntervalNs());
+        // A new session starts over instead of measuring the gap since the old one
+        feed(monitor, ts + 5000 * MS, 10, 2 * FRAME_NS);
+        assertEquals(2 * FRAME_NS, monitor.getBaselineIntervalNs());
+    }
+
+    private static long feed(VideoSnapshotMonitor monitor, long ts, int frames, long intervalNs) {
+        for (int i = 0; i < frames; i++) {
+            ts += intervalNs;
+            monitor.onFrameCaptured(ts, false);
+        }
+        return ts;
+    }
+}
@@ -0,0 +1,210 @@
+package com.nuuneoi.camera2lab.memory;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+
+    // Holds fixed size blocks, and frees whole blocks when asked
+    private static class BlockPool implements MemoryBudget.Reclaimer {
+        final List<Integer> order;
+        final MemoryBudget.Pool pool;
+        int blocks;
+        final int blockSize;
+
+        BlockPool(MemoryBudget budget, String name, int priority, int blockSize, List<Integer> order) {
+            this.blockSize = blockSize;
+            this.order = order;
+            pool = budget.register(name, MemoryBudget.Kind.HEAP, priority, this);
+        }
+
+        boolean allocate() {
+            if (!pool.tryReserve(blockSize))
+                return false;
+            blocks++;
+            return true;
+        }
+
+        // Always locks a lower priority pool than the caller, so pools cannot deadlock
+        @Override
+        public synchronized long reclaim(long bytes) {
+            order.add(pool.getPriority());
+            long freed = 0;
+            while (blocks > 0 && freed < bytes) {
+                blocks--;
+                freed += blockSize;
+            }
+            pool.release(freed);
+            return freed;
+        }
+    }
+
+    @Test
+    public void reservesWithinCap() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        MemoryBudget.Pool heap = budget.register("heap", MemoryBudget.Kind.HEAP, MemoryBudget.PRIORITY_NORMAL, null);
+        MemoryBudget.Pool direct = budget.register("direct", MemoryBudget.Kind.DIRECT, MemoryBudget.PRIORITY_NORMAL, null);
+
+        assertTrue(heap.tryReserve(600));
+        assertTrue(direct.tryReserve(400));
+        assertFalse(heap.tryReserve(1));
+        assertEquals(600, budget.getUsedBytes(MemoryBudget.Kind.HEAP));
+        assertEquals(400, budget.getUsedBytes(MemoryBudget.Kind.DIRECT));
+
+        direct.release(100);
+        assertTrue(heap.tryReserve(100));
+        assertEquals(1000, budget.getUsedBytes());
+        assertEquals(1, budget.getBreakdown().get(0).deniedCount + budget.getBreakdown().get(1).deniedCount);
+    }
+
+    @Test
+    public void reclaimsFromLowerPriorityFirst() {
+        List<Integer> order = new ArrayList<>();
+        MemoryBudget budget = new MemoryBudget(1000);
+        BlockPool cache = new BlockPool(budget, "cache", MemoryBudget.PRIORITY_CACHE, 100, order);
+        BlockPool normal = new BlockPool(budget, "normal", MemoryBudget.PRIORITY_NORMAL, 100, order);
+        BlockPool required = new BlockPool(budget, "required", MemoryBudget.PRIORITY_REQUIRED, 100, order);
+
+        for (int i = 0; i < 3; i++)
+            assertTrue(cache.allocate());
+        for (int i = 0; i < 7; i++)
+            assertTrue(normal.allocate());
+
+        // The cache goes first, then the normal pool
+        for (int i = 0; i < 5; i++)
+            assertTrue(required.allocate());
+        assertEquals(0, cache.blocks);
+        assertEquals(5, normal.blocks);
+        assertEquals(1000, budget.getUsedBytes());
+        assertEquals(MemoryBudget.PRIORITY_CACHE, (int) order.get(0));
+        assertEquals(MemoryBudget.PRIORITY_NORMAL, (int) order.get(order.size() - 1));
+
+        // A pool never reclaims from its own priority or above
+        assertFalse(cache.allocate());
+        assertFalse(normal.allocate());
+        assertEquals(5, required.blocks);
+    }
+
+    @Test
+    public void forcedReservationMayCrossCap() {
+        MemoryBudget budget = new MemoryBudget(100);
+        MemoryBudget.Pool pool = budget.register("ring", MemoryBudget.Kind.DIRECT, MemoryBudget.PRIORITY_REQUIRED, null);
+
+        pool.reserve(150);
+        assertEquals(150, budget.getUsedBytes());
+        assertEquals(150, budget.getPeakUsedBytes());
+
+        pool.unregister();
+        assertEquals(0, budget.getUsedBytes());
+        assertFalse(pool.tryReserve(10));
+        assertTrue(budget.getBreakdown().isEmpty());
+    }
+
+    @Test
+    public void trimMemorySimulatedPressure() {
+        List<Integer> order = new ArrayList<>();
+        MemoryBudget budget = new MemoryBudget(1000);
+        BlockPool cache = new BlockPool(budget, "cache", MemoryBudget.PRIORITY_CACHE, 100, order);
+        BlockPool normal = new BlockPool(budget, "normal", MemoryBudget.PRIORITY_NORMAL, 100, order);
+        MemoryBudget.Pool required = budget.register("required", MemoryBudget.Kind.DIRECT,
+                MemoryBudget.PRIORITY_REQUIRED, null);
+        for (int i = 0; i < 4; i++)
+            cache.allocate();
+        for (int i = 0; i < 4; i++)
+            normal.allocate();
+        required.reserve(200);
+
+        // Light pressure only costs the cache, down to 75% of the cap
+        assertEquals(300, budget.onTrimMemory(MemoryBudget.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(700, budget.getUsedBytes());
+        // Still only the cache, which cannot reach 50% on its own
+        assertEquals(100, budget.onTrimMemory(MemoryBudget.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(0, cache.blocks);
+        assertEquals(4, normal.blocks);
+
+        // Critical pressure reaches the normal pool
+        assertEquals(400, budget.onTrimMemory(MemoryBudget.TRIM_MEMORY_COMPLETE));
+        assertEquals(200, budget.getUsedBytes());
+        assertEquals(0, budget.onTrimMemory(MemoryBudget.TRIM_MEMORY_COMPLETE));
+        assertEquals(200, required.getUsedBytes());
+    }
+
+    @Test
+    public void shrinkingCapReclaims() {
+        List<Integer> order = new ArrayList<>();
+        MemoryBudget budget = new MemoryBudget(1000);
+        BlockPool cache = new BlockPool(budget, "cache", MemoryBudget.PRIORITY_CACHE, 100, order);
+        for (int i = 0; i < 10; i++)
+            assertTrue(cache.allocate());
+
+        budget.setCapBytes(450);
+        assertEquals(4, cache.blocks);
+        assertEquals(400, budget.getUsedBytes());
+
+        MemoryBudget.Usage usage = budget.getBreakdown().get(0);
+        assertEquals("cache", usage.name);
+        assertEquals(1000, usage.peakBytes);
+        assertEquals(600, usage.reclaimedBytes);
+        assertTrue(budget.dump().contains("cache"));
+    }
+
+    @Test
+    public void stuckReclaimerDoesNotLoop() {
+        MemoryBudget budget = new MemoryBudget(100);
+        MemoryBudget.Pool stuck = budget.register("stuck", MemoryBudget.Kind.HEAP, MemoryBudget.PRIORITY_CACHE,
+                new MemoryBudget.Reclaimer() {
+                    @Override
+                    public long reclaim(long bytes) {
+                        return 0;
+                    }
+                });
+        MemoryBudget.Pool other = budget.register("other", MemoryBudget.Kind.HEAP, MemoryBudget.PRIORITY_NORMAL, null);
+        assertTrue(stuck.tryReserve(100));
+
+        assertFalse(other.tryReserve(50));
+        assertEquals(0, budget.onTrimMemory(MemoryBudget.TRIM_MEMORY_COMPLETE));
+    }
+
+    @Test
+    public void concurrentPoolsStayConsistent() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(10000);
+        Thread[] threads = new Thread[4];
+        final BlockPool[] pools = new BlockPool[threads.length];
+        for (int i = 0; i < threads.length; i++)
+            pools[i] = new BlockPool(budget, "pool" + i, i * 10, 100, new ArrayList<Integer>());
+        for (int i = 0; i < threads.length; i++) {
+            final BlockPool pool = pools[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 2000; n++) {
+                        synchronized (pool) {
+                            if (n % 3 == 2 && pool.blocks > 0) {
+                                pool.blocks--;
+                                pool.pool.release(pool.blockSize);
+                            } else {
+                                pool.allocate();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        long total = 0;
+        for (BlockPool pool : pools) {
+            assertEquals(pool.blocks * 100L, pool.pool.getUsedBytes());
+            total += pool.pool.getUsedBytes();
+        }
+        assertEquals(total, budget.getUsedBytes());
+        assertTrue(total <= 10000);
+    }
+}
@@ -0,0 +1,189 @@
+package com.nuuneoi.camera2lab.metadata;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CaptureMetadataJournalTest {
+
+    private static final long FRAME_NS = 33333333L;
+    private static final long START_NS = 1000000000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("recording", ".meta");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    // Every field derives from the frame number, so a torn read shows
+    private static void recordFrame(CaptureMetadataJournal journal, long frame) {
+        journal.record(START_NS + frame * FRAME_NS, frame, 10000 + frame, FRAME_NS, (int) (100 + frame % 1000), (int) (frame % 5));
+    }
+
+    private static void assertFrame(long frame, CaptureMetadataJournal.Entry entry) {
+        assertEquals(START_NS + frame * FRAME_NS, entry.sensorTimestampNs);
+        assertEquals(frame, entry.frameNumber);
+        assertEquals(10000 + frame, entry.exposureTimeNs);
+        assertEquals(FRAME_NS, entry.frameDurationNs);
+        assertEquals(100 + frame % 1000, entry.sensitivity);
+        assertEquals(frame % 5, entry.afState);
+    }
+
+    @Test
+    public void findsFramesBySensorTimestamp() {
+        CaptureMetadataJournal journal = new CaptureMetadataJournal(64);
+        CaptureMetadataJournal.Entry entry = new CaptureMetadataJournal.Entry();
+        assertFalse(journal.find(START_NS, entry));
+        assertFalse(journal.getLatest(entry));
+
+        for (long frame = 0; frame < 40; frame++)
+            recordFrame(journal, frame);
+
+        for (long frame = 0; frame < 40; frame++) {
+            assertTrue(journal.find(START_NS + frame * FRAME_NS, entry));
+            assertFrame(frame, entry);
+        }
+        assertFalse(journal.find(START_NS + 5 * FRAME_NS + 1, entry));
+        assertTrue(journal.getLatest(entry));
+        assertFrame(39, entry);
+    }
+
+    @Test
+    public void findsNearestWithinTolerance() {
+        CaptureMetadataJournal journal = new CaptureMetadataJournal(16);
+        CaptureMetadataJournal.Entry entry = new CaptureMetadataJournal.Entry();
+        for (long frame = 0; frame < 10; frame++)
+            recordFrame(journal, frame);
+
+        assertTrue(journal.findNearest(START_NS + 3 * FRAME_NS + FRAME_NS / 4, FRAME_NS / 2, entry));
+        assertFrame(3, entry);
+        assertTrue(journal.findNearest(START_NS + 3 * FRAME_NS + 3 * FRAME_NS / 4, FRAME_NS / 2, entry));
+        assertFrame(4, entry);
+        assertTrue(journal.findNearest(0, START_NS, entry));
+        assertFrame(0, entry);
+        assertFalse(journal.findNearest(START_NS + 20 * FRAME_NS, FRAME_NS, entry));
+    }
+
+    @Test
+    public void wrapsAroundKeepingLatestFrames() {
+        CaptureMetadataJournal journal = new CaptureMetadataJournal(32);
+        CaptureMetadataJournal.Entry entry = new CaptureMetadataJournal.Entry();
+        for (long frame = 0; frame < 1000; frame++)
+            recordFrame(journal, frame);
+
+        assertEquals(1000, journal.getRecordedCount());
+        // The oldest slot is the one the writer fills next, so it is not handed out
+        for (long frame = 1000 - 31; frame < 1000; frame++) {
+            assertTrue(journal.find(START_NS + frame * FRAME_NS, entry));
+            assertFrame(frame, entry);
+        }
+        assertFalse(journal.find(START_NS + (1000 - 32) * FRAME_NS, entry));
+        assertFalse(journal.find(START_NS, entry));
+    }
+
+    @Test
+    public void persistsToFile() throws IOException {
+        CaptureMetadataJournal journal = new CaptureMetadataJournal(64);
+        for (long frame = 0; frame < 10; frame++)
+            recordFrame(journal, frame);
+
+        journal.startPersisting(mFile);
+        assertTrue(journal.isPersisting());
+        // More than the writer buffers at once
+        int frames = 5000;
+        for (long frame = 10; frame < 10 + frames; frame++)
+            recordFrame(journal, frame);
+        journal.stopPersisting();
+        recordFrame(journal, 10 + frames);
+
+        assertEquals(32 + 40L * frames, mFile.length());
+        CaptureMetadataReader reader = new CaptureMetadataReader(mFile);
+        assertEquals(frames, reader.getCount());
+        for (int i = 0; i < frames; i++) {
+            long frame = 10 + i;
+            assertEquals(START_NS + frame * FRAME_NS, reader.getSensorTimestampNs(i));
+            assertEquals(frame, reader.getFrameNumber(i));
+            assertEquals(10000 + frame, reader.getExposureTimeNs(i));
+            assertEquals(FRAME_NS, reader.getFrameDurationNs(i));
+            assertEquals(100 + frame % 1000, reader.getSensitivity(i));
+            assertEquals(frame % 5, reader.getAfState(i));
+        }
+        assertEquals(1234, reader.find(START_NS + 1244 * FRAME_NS));
+        assertEquals(-1, reader.find(START_NS));
+    }
+
+    @Test
+    public void unknownValuesRoundTrip() throws IOException {
+        CaptureMetadataJournal journal = new CaptureMetadataJournal(4);
+        journal.startPersisting(mFile);
+        journal.record(START_NS, 1, CaptureMetadataJournal.UNKNOWN, CaptureMetadataJournal.UNKNOWN,
+                CaptureMetadataJournal.UNKNOWN, CaptureMetadataJournal.UNKNOWN);
+        journal.stopPersisting();
+
+        CaptureMetadataJournal.Entry entry = new CaptureMetadataJournal.Entry();
+        assertTrue(journal.find(START_NS, entry));
+        assertEquals(CaptureMetadataJournal.UNKNOWN, entry.afState);
+        CaptureMetadataReader reader = new CaptureMetadataReader(mFile);
+        assertEquals(CaptureMetadataJournal.UNKNOWN, reader.getAfState(0));
+        assertEquals(CaptureMetadataJournal.UNKNOWN, reader.getSensitivity(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnfinishedFile() throws IOException {
+        CaptureMetadataWriter writer = new CaptureMetadataWriter(mFile);
+        writer.append(START_NS, 0, 0, 0, 0, 0);
+        new CaptureMetadataReader(mFile);
+    }
+
+    @Test
+    public void concurrentLookupsNeverSeeTornFrames() throws InterruptedException {
+        final CaptureMetadataJournal journal = new CaptureMetadataJournal(8);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong torn = new AtomicLong();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long frame = 0; frame < 2000000; frame++)
+                    recordFrame(journal, frame);
+                done.set(true);
+            }
+        });
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                CaptureMetadataJournal.Entry entry = new CaptureMetadataJournal.Entry();
+                while (!done.get()) {
+                    long latest = journal.getRecordedCount() - 1;
+                    long frame = latest - 6;
+                    if (frame < 0 || !journal.find(START_NS + frame * FRAME_NS, entry))
+                        continue;
+                    hits.incrementAndGet();
+                    if (entry.frameNumber != frame || entry.exposureTimeNs != 10000 + frame)
+                        torn.incrementAndGet();
+                }
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+
+        assertEquals(0, torn.get());
+        assertTrue(hits.get() > 0);
+    }
+}
@@ -0,0 +1,148 @@
+package com.nuuneoi.camera2lab.pipeline;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameAnalysisPoolTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    // Holds every item until released, then reports it done
+    private static class GatedProcessor implements FrameAnalysisPool.Processor<Integer> {
+        final Semaphore started = new Semaphore(0);
+        final Semaphore gate = new Semaphore(0);
+        final Semaphore done = new Semaphore(0);
+
+        @Override
+        public void process(Integer item) {
+            started.release();
+            gate.acquireUninterruptibly();
+            done.release();
+        }
+
+        void awaitStarted() throws InterruptedException {
+            assertTrue("item never started", started.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        void finishOne() throws InterruptedException {
+            gate.release();
+            assertTrue("item never finished", done.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private FrameAnalysisPool mPool;
+
+    @After
+    public void tearDown() {
+        if (mPool != null)
+            mPool.shutdown();
+    }
+
+    // The lane goes idle just after the processor returns
+    private static void awaitIdle(FrameAnalysisPool.Lane<?> lane) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (lane.isBusy()) {
+            assertTrue("lane never went idle", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void laneKeepsOneItemInFlight() throws Exception {
+        mPool = new FrameAnalysisPool(2);
+        GatedProcessor processor = new GatedProcessor();
+        FrameAnalysisPool.Lane<Integer> lane = mPool.newLane(processor);
+
+        assertTrue(lane.offer(1));
+        processor.awaitStarted();
+        // A second thread is free, but the lane is not
+        assertFalse(lane.offer(2));
+        assertEquals(1, mPool.getBusyCount());
+
+        processor.finishOne();
+        awaitIdle(lane);
+        assertTrue(lane.offer(3));
+        processor.awaitStarted();
+        processor.finishOne();
+    }
+
+    @Test
+    public void saturatedPoolDropsForEveryLane() throws Exception {
+        mPool = new FrameAnalysisPool(1);
+        GatedProcessor slow = new GatedProcessor();
+        GatedProcessor other = new GatedProcessor();
+        FrameAnalysisPool.Lane<Integer> slowLane = mPool.newLane(slow);
+        FrameAnalysisPool.Lane<Integer> otherLane = mPool.newLane(other);
+
+        assertTrue(slowLane.offer(1));
+        slow.awaitStarted();
+        // Nothing queues behind the busy thread
+        assertFalse(otherLane.offer(2));
+        assertFalse(otherLane.isBusy());
+
+        slow.finishOne();
+        awaitIdle(slowLane);
+        assertTrue(otherLane.offer(3));
+        other.awaitStarted();
+        other.finishOne();
+    }
+
+    @Test
+    public void closeWaitsForItemInFlight() throws Exception {
+        mPool = new FrameAnalysisPool(1);
+        GatedProcessor processor = new GatedProcessor();
+        FrameAnalysisPool.Lane<Integer> lane = mPool.newLane(processor);
+        final CountDownLatch idle = new CountDownLatch(1);
+        final AtomicReference<Thread> idleThread = new AtomicReference<>();
+
+        assertTrue(lane.offer(1));
+        processor.awaitStarted();
+        lane.close(new Runnable() {
+            @Override
+            public void run() {
+                idleThread.set(Thread.currentThread());
+                idle.countDown();
+            }
+        });
+        assertEquals(1, idle.getCount());
+        assertFalse(lane.offer(2));
+
+        processor.finishOne();
+        assertTrue(idle.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNotSame(Thread.currentThread(), idleThread.get());
+    }
+
+    @Test
+    public void closeOfIdleLaneRunsRightAway() {
+        mPool = new FrameAnalysisPool(1);
+        FrameAnalysisPool.Lane<Integer> lane = mPool.newLane(new GatedProcessor());
+        final boolean[] idle = new boolean[1];
+
+        lane.close(new Runnable() {
+            @Override
+            public void run() {
+                idle[0] = true;
+            }
+        });
+        assertTrue(idle[0]);
+        assertFalse(lane.offer(1));
+    }
+
+    @Test
+    public void offerFailsAfterShutdown() {
+        mPool = new FrameAnalysisPool(1);
+        FrameAnalysisPool.Lane<Integer> lane = mPool.newLane(new GatedProcessor());
+
+        mPool.shutdown();
+        assertFalse(lane.offer(1));
+        assertFalse(lane.isBusy());
+        assertEquals(0, mPool.getBusyCount());
+    }
+}
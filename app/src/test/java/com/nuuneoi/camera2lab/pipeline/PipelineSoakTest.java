@@ -0,0 +1,89 @@
+package com.nuuneoi.camera2lab.pipeline;
+
+import android.media.MediaFormat;
+
+import com.nuuneoi.camera2lab.encoder.BitrateModel;
+import com.nuuneoi.camera2lab.encoder.SampleInfo;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PipelineSoakTest {
+
+    private static final int FRAMES = 3000;
+
+    static class CountingSink implements SampleSink {
+        int formatChanges;
+        long keyFrames;
+        long lastPts = Long.MIN_VALUE;
+        boolean monotonic = true;
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            formatChanges++;
+        }
+
+        @Override
+        public void writeSample(ByteBuffer data, SampleInfo info) {
+            if (info.isKeyFrame())
+                keyFrames++;
+            if (info.presentationTimeUs <= lastPts)
+                monotonic = false;
+            lastPts = info.presentationTimeUs;
+        }
+    }
+
+    static class LumaAnalyzer implements PipelineSoakRunner.FrameAnalyzer {
+        long checksum;
+
+        @Override
+        public void analyze(Frame frame) {
+            ByteBuffer y = frame.getPlane(0);
+            int stride = frame.getRowStride(0);
+            for (int row = 0; row < frame.getHeight(); row += 8)
+                for (int x = 0; x < frame.getWidth(); x += 8)
+                    checksum += y.get(row * stride + x) & 0xff;
+        }
+    }
+
+    @Test
+    public void sustainsThousandsOfFrames() throws Exception {
+        SyntheticFrameSource source = new SyntheticFrameSource(1280, 720, 30,
+                1344, 1344, 2, 200000L, 3, 42L);
+        FakeEncoderBackend encoder = new FakeEncoderBackend(7L);
+        CountingSink sink = new CountingSink();
+
+        PipelineSoakRunner runner = new PipelineSoakRunner(source, encoder, sink);
+        runner.getMediaEncoder().setKeyFrameInterval(1);
+        runner.setAnalyzer(new LumaAnalyzer());
+        PipelineSoakRunner.Report report = runner.run(FRAMES);
+
+        assertEquals(FRAMES, report.framesProduced);
+        assertEquals(report.framesProduced, report.framesEncoded + report.getTotalDrops());
+        assertEquals(1, sink.formatChanges);
+        assertTrue(sink.monotonic);
+        assertTrue(sink.keyFrames > 0);
+        assertTrue(report.getSustainedFps() > 0);
+        // Everything is pooled, so a long run must not leave garbage behind
+        assertTrue(report.toString(), report.heapGrowthBytes < 16 * 1024 * 1024);
+    }
+
+    @Test
+    public void sampleSizesFollowBitrate() throws Exception {
+        SyntheticFrameSource source = new SyntheticFrameSource(640, 480, 30);
+        FakeEncoderBackend encoder = new FakeEncoderBackend(1L);
+
+        PipelineSoakRunner runner = new PipelineSoakRunner(source, encoder, new CountingSink());
+        runner.getMediaEncoder().setKeyFrameInterval(1);
+        runner.setRealtime(true);
+        PipelineSoakRunner.Report report = runner.run(90);
+
+        // Three seconds at the encoder's bitrate, within the size jitter of the fake encoder
+        int expected = new BitrateModel().getBitRate("video/avc", 640, 480, 30) / 8 / 30;
+        double bytesPerFrame = report.bytesWritten / (double) report.framesEncoded;
+        assertEquals(expected, bytesPerFrame, expected * 0.5);
+    }
+}
@@ -0,0 +1,202 @@
+package com.nuuneoi.camera2lab.streaming;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MjpegServerTest {
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private MjpegServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MjpegServer(2);
+        mServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void streamsMultipartJpegToEveryClient() throws Exception {
+        assertFalse(mServer.wantsFrame());
+
+        Socket first = connect();
+        Socket second = connect();
+        InputStream firstIn = first.getInputStream();
+        InputStream secondIn = second.getInputStream();
+        String header = readHeader(firstIn);
+        readHeader(secondIn);
+        assertTrue(header.startsWith("HTTP/1.0 200 OK"));
+        assertTrue(header.contains("Content-Type: multipart/x-mixed-replace; boundary=" + MjpegServer.BOUNDARY));
+        waitUntilWantsFrame();
+
+        byte[] jpeg = jpeg(1000, 1);
+        mServer.publishJpeg(jpeg, 0, jpeg.length);
+
+        assertArrayEquals(jpeg, readPart(firstIn));
+        assertArrayEquals(jpeg, readPart(secondIn));
+        assertEquals(1, mServer.getFramesPublished());
+
+        waitUntilWantsFrame();
+        List<MjpegServer.ClientStats> stats = mServer.getClientStats();
+        assertEquals(2, stats.size());
+        for (MjpegServer.ClientStats client : stats) {
+            assertEquals(1, client.framesSent);
+            assertEquals(0, client.framesSkipped);
+            assertTrue(client.bytesSent > jpeg.length);
+        }
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void reusedFramesCarryTheirOwnLength() throws Exception {
+        Socket client = connect();
+        InputStream in = client.getInputStream();
+        readHeader(in);
+        waitUntilWantsFrame();
+
+        // Shrinking and growing frames land in buffers left over from earlier ones
+        int[] lengths = {5000, 120, 9, 4000, 0, 7000, 6999};
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] jpeg = jpeg(Math.max(2, lengths[i]), i);
+            mServer.publishJpeg(jpeg, 0, jpeg.length);
+            assertArrayEquals(jpeg, readPart(in));
+            waitUntilWantsFrame();
+        }
+
+        client.close();
+    }
+
+    @Test
+    public void rejectsClientsOverTheCap() throws Exception {
+        Socket first = connect();
+        Socket second = connect();
+        readHeader(first.getInputStream());
+        readHeader(second.getInputStream());
+
+        Socket third = connect();
+        String header = readHeader(third.getInputStream());
+        assertTrue(header.startsWith("HTTP/1.0 503"));
+        assertEquals(1, mServer.getRejectedClients());
+        assertEquals(2, mServer.getClientCount());
+
+        first.close();
+        second.close();
+        third.close();
+    }
+
+    @Test
+    public void slowClientSkipsFramesWhileFastClientKeepsUp() throws Exception {
+        Socket slow = connect();
+        Socket fast = connect();
+        InputStream slowIn = slow.getInputStream();
+        InputStream fastIn = fast.getInputStream();
+        readHeader(slowIn);
+        readHeader(fastIn);
+        waitUntilWantsFrame();
+
+        // Large enough that the slow client cannot take a frame into its socket buffers at once
+        int frames = 20;
+        byte[] last = null;
+        for (int i = 0; i < frames; i++) {
+            last = jpeg(4 * 1024 * 1024, i);
+            mServer.publishJpeg(last, 0, last.length);
+            assertArrayEquals(last, readPart(fastIn));
+        }
+
+        // The slow client only now starts reading: after what socket buffers held it jumps
+        // straight to the newest frame
+        int slowFrames = 0;
+        while (!Arrays.equals(last, readPart(slowIn)))
+            slowFrames++;
+        assertTrue("slow client received " + slowFrames + " stale frames", slowFrames < frames / 2);
+
+        long skipped = 0;
+        for (MjpegServer.ClientStats stats : mServer.getClientStats())
+            skipped += stats.framesSkipped;
+        assertEquals(frames - 1 - slowFrames, skipped);
+
+        slow.close();
+        fast.close();
+    }
+
+    // Helpers
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort());
+        socket.setSoTimeout(TIMEOUT_MS);
+        OutputStream out = socket.getOutputStream();
+        out.write("GET /stream HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+        out.flush();
+        return socket;
+    }
+
+    private void waitUntilWantsFrame() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!mServer.wantsFrame()) {
+            assertTrue("server never became ready", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static byte[] jpeg(int length, int seed) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) seed);
+        data[0] = (byte) 0xff;
+        data[1] = (byte) 0xd8;
+        return data;
+    }
+
+    private static String readHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            int b = in.read();
+            if (b < 0)
+                break;
+            out.write(b);
+            byte[] bytes = out.toByteArray();
+            int n = bytes.length;
+            if (n >= 4 && bytes[n - 4] == '\r' && bytes[n - 3] == '\n' && bytes[n - 2] == '\r' && bytes[n - 1] == '\n')
+                break;
+        }
+        return out.toString("US-ASCII");
+    }
+
+    private static byte[] readPart(InputStream in) throws IOException {
+        String header = readHeader(in);
+        assertTrue(header, header.startsWith("--" + MjpegServer.BOUNDARY + "\r\n"));
+        assertTrue(header.contains("Content-Type: image/jpeg"));
+        int start = header.indexOf("Content-Length: ") + "Content-Length: ".length();
+        int length = Integer.parseInt(header.substring(start, header.indexOf("\r\n", start)));
+
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(data, read, length - read);
+            assertTrue("stream ended", n > 0);
+            read += n;
+        }
+        assertEquals('\r', in.read());
+        assertEquals('\n', in.read());
+        return data;
+    }
+}
@@ -0,0 +1,192 @@
+package com.nuuneoi.camera2lab.streaming;
+
+import com.nuuneoi.camera2lab.encoder.SampleInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RtpStreamSinkTest {
+
+    private static final int MAX_PAYLOAD = 200;
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    private DatagramChannel mReceiver;
+    private RtpStreamSink mSink;
+
+    @Before
+    public void setUp() throws Exception {
+        mReceiver = DatagramChannel.open();
+        mReceiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mReceiver.socket().setSoTimeout(2000);
+        mSink = new RtpStreamSink(mReceiver.getLocalAddress(), MAX_PAYLOAD);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSink.close();
+        mReceiver.close();
+    }
+
+    @Test
+    public void sendsParameterSetsSingleNalsAndFragmentsPerRfc6184() throws Exception {
+        mSink.setParameterSets(ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+
+        byte[] sei = nal(0x06, 20, 1);
+        byte[] idr = nal(0x65, 1000, 2);
+        byte[] sample = annexB(sei, idr);
+        // The sample sits at an offset inside a larger codec buffer
+        ByteBuffer codecBuffer = ByteBuffer.allocateDirect(sample.length + 64);
+        codecBuffer.position(32);
+        codecBuffer.put(sample);
+        SampleInfo info = new SampleInfo();
+        info.set(32, sample.length, 1000000, SampleInfo.FLAG_KEY_FRAME);
+
+        mSink.writeSample(codecBuffer, info);
+
+        List<byte[]> packets = receive((int) mSink.getPacketsSent());
+        // SPS, PPS, SEI, then the IDR slice in FU-A fragments of MAX_PAYLOAD - 2 bytes
+        int fragments = (idr.length - 1 + MAX_PAYLOAD - 3) / (MAX_PAYLOAD - 2);
+        assertEquals(3 + fragments, packets.size());
+
+        assertArrayEquals(slice(SPS, 4), payload(packets.get(0)));
+        assertArrayEquals(slice(PPS, 4), payload(packets.get(1)));
+        assertArrayEquals(sei, payload(packets.get(2)));
+
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (int i = 3; i < packets.size(); i++) {
+            byte[] payload = payload(packets.get(i));
+            assertEquals(RtpH264Packetizer.NAL_TYPE_FU_A, payload[0] & 0x1f);
+            assertEquals(0x60, payload[0] & 0xe0);
+            assertEquals(i == 3, (payload[1] & 0x80) != 0);
+            assertEquals(i == packets.size() - 1, (payload[1] & 0x40) != 0);
+            if (i == 3)
+                reassembled.write((payload[0] & 0xe0) | (payload[1] & 0x1f));
+            reassembled.write(payload, 2, payload.length - 2);
+        }
+        assertArrayEquals(idr, reassembled.toByteArray());
+
+        int firstSequence = sequence(packets.get(0));
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            assertEquals(0x80, packet[0] & 0xff);
+            assertEquals(96, packet[1] & 0x7f);
+            assertEquals((firstSequence + i) & 0xffff, sequence(packet));
+            assertEquals(90000, ByteBuffer.wrap(packet).getInt(4));
+            // Marker only on the last packet of the access unit
+            assertEquals(i == packets.size() - 1, (packet[1] & 0x80) != 0);
+        }
+        // The codec buffer is untouched
+        assertEquals(32 + sample.length, codecBuffer.position());
+    }
+
+    @Test
+    public void skipsDeltaFramesUntilFirstKeyFrame() throws Exception {
+        SampleInfo info = new SampleInfo();
+        byte[] slice = annexB(nal(0x41, 50, 3));
+        info.set(0, slice.length, 0, 0);
+        mSink.writeSample(ByteBuffer.wrap(slice), info);
+        assertEquals(1, mSink.getSkippedSamples());
+        assertEquals(0, mSink.getPacketsSent());
+
+        byte[] config = annexB(slice(SPS, 4), slice(PPS, 4));
+        info.set(0, config.length, 0, SampleInfo.FLAG_CODEC_CONFIG);
+        mSink.writeSample(ByteBuffer.wrap(config), info);
+        assertEquals(0, mSink.getPacketsSent());
+
+        byte[] idr = annexB(nal(0x65, 50, 4));
+        info.set(0, idr.length, 33333, SampleInfo.FLAG_KEY_FRAME);
+        mSink.writeSample(ByteBuffer.wrap(idr), info);
+
+        List<byte[]> packets = receive(3);
+        assertEquals(0x67, payload(packets.get(0))[0]);
+        assertEquals(0x68, payload(packets.get(1))[0]);
+        assertEquals(0x65, payload(packets.get(2))[0]);
+    }
+
+    @Test
+    public void keepsSpsWhenPpsArrivesSeparately() throws Exception {
+        SampleInfo info = new SampleInfo();
+        // Some encoders emit one codec config sample per parameter set
+        info.set(0, SPS.length, 0, SampleInfo.FLAG_CODEC_CONFIG);
+        mSink.writeSample(ByteBuffer.wrap(SPS), info);
+        info.set(0, PPS.length, 0, SampleInfo.FLAG_CODEC_CONFIG);
+        mSink.writeSample(ByteBuffer.wrap(PPS), info);
+
+        byte[] idr = annexB(nal(0x65, 50, 5));
+        info.set(0, idr.length, 0, SampleInfo.FLAG_KEY_FRAME);
+        mSink.writeSample(ByteBuffer.wrap(idr), info);
+
+        List<byte[]> packets = receive(3);
+        assertArrayEquals(slice(SPS, 4), payload(packets.get(0)));
+        assertArrayEquals(slice(PPS, 4), payload(packets.get(1)));
+        assertEquals(0x65, payload(packets.get(2))[0]);
+    }
+
+    // Helpers
+
+    private static byte[] nal(int header, int length, long seed) {
+        byte[] nal = new byte[length];
+        new Random(seed).nextBytes(nal);
+        nal[0] = (byte) header;
+        // Keep start code emulation out of the payload, as the encoder does
+        for (int i = 1; i < length; i++) {
+            if (nal[i] == 0)
+                nal[i] = 0x55;
+        }
+        return nal;
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(nal, 0, nal.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] slice(byte[] data, int from) {
+        byte[] result = new byte[data.length - from];
+        System.arraycopy(data, from, result, 0, result.length);
+        return result;
+    }
+
+    private static byte[] payload(byte[] packet) {
+        return slice(packet, RtpH264Packetizer.RTP_HEADER_SIZE);
+    }
+
+    private static int sequence(byte[] packet) {
+        return ByteBuffer.wrap(packet).getShort(2) & 0xffff;
+    }
+
+    private List<byte[]> receive(int count) throws Exception {
+        List<byte[]> packets = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        for (int i = 0; i < count; i++) {
+            buffer.clear();
+            assertNotNull(mReceiver.receive(buffer));
+            buffer.flip();
+            byte[] packet = new byte[buffer.remaining()];
+            buffer.get(packet);
+            packets.add(packet);
+        }
+        return packets;
+    }
+}
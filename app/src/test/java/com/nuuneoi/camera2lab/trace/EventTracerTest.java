@@ -0,0 +1,141 @@
+package com.nuuneoi.camera2lab.trace;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventTracerTest {
+
+    private static final int EV_ENCODE = EventTracer.define("test.encode");
+    private static final int EV_SIZE = EventTracer.define("test.size");
+
+    @Test
+    public void recordsNothingWhileDisabled() {
+        EventTracer tracer = new EventTracer(16);
+        tracer.begin(EV_ENCODE);
+        tracer.instant(EV_SIZE, 1, 2);
+
+        assertEquals(0, tracer.getRecordedCount());
+    }
+
+    @Test
+    public void decodesRecordsInOrder() {
+        EventTracer tracer = new EventTracer(16);
+        tracer.setEnabled(true);
+        tracer.begin(EV_ENCODE, 7, 8);
+        tracer.end(EV_ENCODE);
+        tracer.counter(EV_SIZE, 4096);
+
+        final List<long[]> records = collect(tracer);
+        assertEquals(3, records.size());
+        assertArrayEquals(new long[]{EV_ENCODE, EventTracer.PHASE_BEGIN, 7, 8}, records.get(0));
+        assertArrayEquals(new long[]{EV_ENCODE, EventTracer.PHASE_END, 0, 0}, records.get(1));
+        assertArrayEquals(new long[]{EV_SIZE, EventTracer.PHASE_COUNTER, 4096, 0}, records.get(2));
+    }
+
+    @Test
+    public void keepsNewestRecordsWhenWrapping() {
+        EventTracer tracer = new EventTracer(8);
+        tracer.setEnabled(true);
+        for (int i = 0; i < 20; i++)
+            tracer.instant(EV_SIZE, i, 0);
+
+        List<long[]> records = collect(tracer);
+        assertEquals(8, records.size());
+        assertEquals(12, records.get(0)[2]);
+        assertEquals(19, records.get(7)[2]);
+    }
+
+    @Test
+    public void definesEachNameOnce() {
+        assertEquals(EV_ENCODE, EventTracer.define("test.encode"));
+        assertEquals("test.size", EventTracer.getEventName(EV_SIZE));
+    }
+
+    @Test
+    public void writesChromeTraceJson() throws Exception {
+        EventTracer tracer = new EventTracer(16);
+        tracer.setEnabled(true);
+        tracer.begin(EV_ENCODE);
+        tracer.instant(EV_SIZE, 1234, 1);
+        tracer.end(EV_ENCODE);
+
+        StringWriter writer = new StringWriter();
+        tracer.writeChromeTrace(writer);
+        String json = writer.toString();
+
+        assertTrue(json.startsWith("{\"traceEvents\":["));
+        assertTrue(json.endsWith("],\"displayTimeUnit\":\"ns\"}"));
+        assertTrue(json.contains("\"name\":\"thread_name\",\"ph\":\"M\""));
+        assertTrue(json.contains("\"args\":{\"name\":\"" + Thread.currentThread().getName() + "\"}"));
+        assertTrue(json.contains("{\"name\":\"test.encode\",\"ph\":\"B\",\"pid\":1,\"tid\":" + Thread.currentThread().getId() + ",\"ts\":0.000"));
+        assertTrue(json.contains("\"name\":\"test.size\",\"ph\":\"i\""));
+        assertTrue(json.contains("\"args\":{\"a0\":1234,\"a1\":1}"));
+        assertTrue(json.contains("\"name\":\"test.encode\",\"ph\":\"E\""));
+    }
+
+    @Test
+    public void writesCompleteSpanFromAnotherThread() throws Exception {
+        final EventTracer tracer = new EventTracer(16);
+        tracer.setEnabled(true);
+        final long startNs = System.nanoTime() - 5000000;
+        // Started elsewhere, finished here: one event carrying its own duration
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tracer.complete(EV_ENCODE, startNs, 1);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        List<long[]> records = collect(tracer);
+        assertEquals(1, records.size());
+        assertEquals(EventTracer.PHASE_COMPLETE, records.get(0)[1]);
+        assertTrue(records.get(0)[2] >= 5000000);
+        assertEquals(1, records.get(0)[3]);
+
+        StringWriter writer = new StringWriter();
+        tracer.writeChromeTrace(writer);
+        String json = writer.toString();
+        assertTrue(json.contains("{\"name\":\"test.encode\",\"ph\":\"X\",\"pid\":1,\"tid\":" + thread.getId() + ",\"ts\":0.000,\"dur\":"));
+        assertTrue(json.contains("\"args\":{\"a0\":1}"));
+    }
+
+    @Test
+    public void recordsFromConcurrentThreads() throws Exception {
+        final EventTracer tracer = new EventTracer(1 << 12);
+        tracer.setEnabled(true);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++)
+                        tracer.instant(EV_SIZE, i, 0);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(2000, tracer.getRecordedCount());
+        assertEquals(2000, collect(tracer).size());
+    }
+
+    private static List<long[]> collect(EventTracer tracer) {
+        final List<long[]> records = new ArrayList<>();
+        tracer.forEachRecord(new EventTracer.RecordVisitor() {
+            @Override
+            public void onRecord(int eventId, int phase, long threadId, long timeNs, long arg0, long arg1) {
+                records.add(new long[]{eventId, phase, arg0, arg1});
+            }
+        });
+        return records;
+    }
+}
@@ -0,0 +1,59 @@
+package com.nuuneoi.camera2lab.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class BandRunnerTest {
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(3);
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void runsEveryBandOncePerPass() {
+        final AtomicIntegerArray runs = new AtomicIntegerArray(4);
+        BandRunner runner = new BandRunner(mExecutor, 4, new BandRunner.Bands() {
+            @Override
+            public void runBand(int band) {
+                runs.incrementAndGet(band);
+            }
+        });
+        for (int pass = 1; pass <= 50; pass++) {
+            runner.run();
+            // All bands are done by the time run() returns
+            for (int band = 0; band < 4; band++)
+                assertEquals(pass, runs.get(band));
+        }
+    }
+
+    @Test
+    public void rethrowsBandFailureAfterAllBandsFinish() {
+        final AtomicIntegerArray runs = new AtomicIntegerArray(4);
+        BandRunner runner = new BandRunner(mExecutor, 4, new BandRunner.Bands() {
+            @Override
+            public void runBand(int band) {
+                if (band == 0 || band == 2)
+                    throw new IllegalStateException("band " + band);
+                runs.incrementAndGet(band);
+            }
+        });
+        try {
+            runner.run();
+            fail("Band failure was swallowed");
+        } catch (IllegalStateException e) {
+            // The caller's own band wins
+            assertEquals("band 0", e.getMessage());
+        }
+        assertEquals(1, runs.get(1));
+        assertEquals(1, runs.get(3));
+    }
+}
@@ -0,0 +1,169 @@
+package com.nuuneoi.camera2lab.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class TemporalDenoiserTest {
+
+    // Not a multiple of the tile size, to cover the edge tiles
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 120;
+    private static final double NOISE_SIGMA = 3;
+
+    @Test
+    public void reducesNoiseOnStaticScene() {
+        for (YuvTransformer.Format format : YuvTransformer.Format.values()) {
+            TemporalDenoiser denoiser = new TemporalDenoiser(format, WIDTH, HEIGHT);
+            byte[] clean = scene(0);
+            byte[] noisy = new byte[clean.length];
+            byte[] out = new byte[clean.length];
+            Random random = new Random(1);
+
+            double inputError = 0;
+            for (int i = 0; i < 30; i++) {
+                addNoise(clean, noisy, random);
+                denoiser.denoise(noisy, out);
+                inputError = meanSquaredError(clean, noisy);
+            }
+
+            double outputError = meanSquaredError(clean, out);
+            assertTrue(format + ": " + outputError + " vs " + inputError, outputError < inputError / 2);
+            assertEquals(0, denoiser.getLastMovingTiles());
+        }
+    }
+
+    @Test
+    public void passesMovingTilesThrough() {
+        for (YuvTransformer.Format format : YuvTransformer.Format.values()) {
+            TemporalDenoiser denoiser = new TemporalDenoiser(format, WIDTH, HEIGHT);
+            byte[] frame = scene(0);
+            byte[] out = new byte[frame.length];
+            for (int i = 0; i < 5; i++)
+                denoiser.denoise(frame, out);
+
+            // A bright object appears over the top left tile: no trace of the old content
+            byte[] moved = scene(0);
+            for (int y = 0; y < 32; y++) {
+                for (int x = 0; x < 32; x++)
+                    moved[y * WIDTH + x] = (byte) 240;
+            }
+            denoiser.denoise(moved, out);
+            assertEquals(1, denoiser.getLastMovingTiles());
+            for (int y = 0; y < 32; y++) {
+                for (int x = 0; x < 32; x++)
+                    assertEquals(format + " at " + x + "," + y, 240, out[y * WIDTH + x] & 0xff);
+            }
+            assertArrayEquals(moved, out);
+        }
+    }
+
+    @Test
+    public void parallelMatchesSerial() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (YuvTransformer.Format format : YuvTransformer.Format.values()) {
+                TemporalDenoiser serial = new TemporalDenoiser(format, WIDTH, HEIGHT);
+                TemporalDenoiser parallel = new TemporalDenoiser(format, WIDTH, HEIGHT).setParallelism(executor, 4);
+                byte[] noisy = new byte[serial.getFrameSize()];
+                byte[] serialOut = new byte[noisy.length];
+                Random random = new Random(7);
+
+                for (int i = 0; i < 20; i++) {
+                    addNoise(scene(i * 3), noisy, random);
+                    serial.denoise(noisy, serialOut);
+                    // In place on the parallel side
+                    parallel.denoise(noisy, noisy);
+                    assertArrayEquals(format + " frame " + i, serialOut, noisy);
+                    assertEquals(serial.getLastMovingTiles(), parallel.getLastMovingTiles());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void firstFrameAndResetPassThrough() {
+        TemporalDenoiser denoiser = new TemporalDenoiser(YuvTransformer.Format.NV12, WIDTH, HEIGHT);
+        byte[] noisy = new byte[denoiser.getFrameSize()];
+        byte[] out = new byte[noisy.length];
+        Random random = new Random(3);
+
+        addNoise(scene(0), noisy, random);
+        denoiser.denoise(noisy, out);
+        assertArrayEquals(noisy, out);
+
+        addNoise(scene(0), noisy, random);
+        denoiser.denoise(noisy, out);
+        assertFalse(Arrays.equals(noisy, out));
+
+        denoiser.reset();
+        addNoise(scene(0), noisy, random);
+        denoiser.denoise(noisy, out);
+        assertArrayEquals(noisy, out);
+    }
+
+    @Test
+    public void zeroStrengthIsIdentity() {
+        TemporalDenoiser denoiser = new TemporalDenoiser(YuvTransformer.Format.I420, WIDTH, HEIGHT)
+                .setStrength(0);
+        byte[] noisy = new byte[denoiser.getFrameSize()];
+        byte[] out = new byte[noisy.length];
+        Random random = new Random(5);
+        for (int i = 0; i < 5; i++) {
+            addNoise(scene(0), noisy, random);
+            denoiser.denoise(noisy, out);
+            assertArrayEquals(noisy, out);
+        }
+    }
+
+    @Test
+    public void reportsCost() {
+        TemporalDenoiser denoiser = new TemporalDenoiser(YuvTransformer.Format.NV21, 640, 480);
+        byte[] frame = new byte[denoiser.getFrameSize()];
+        Random random = new Random(9);
+        for (int i = 0; i < 10; i++) {
+            random.nextBytes(frame);
+            denoiser.denoise(frame, frame);
+        }
+        assertEquals(10, denoiser.getFrameCount());
+        assertTrue(denoiser.getLastCostNs() > 0);
+        assertTrue(denoiser.getAverageCostNs() > 0);
+        assertEquals(20 * 15, denoiser.getTileCount());
+    }
+
+    // Smooth gradients, shifted horizontally by {@code offset}
+    private static byte[] scene(int offset) {
+        byte[] frame = new byte[YuvTransformer.getFrameSize(WIDTH, HEIGHT)];
+        int lumaSize = WIDTH * HEIGHT;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++)
+                frame[y * WIDTH + x] = (byte) (40 + ((x + offset) * 160 / WIDTH + y / 2) % 180);
+        }
+        for (int i = lumaSize; i < frame.length; i++)
+            frame[i] = (byte) (112 + (i + offset) % 32);
+        return frame;
+    }
+
+    private static void addNoise(byte[] clean, byte[] out, Random random) {
+        for (int i = 0; i < clean.length; i++) {
+            int value = (clean[i] & 0xff) + (int) Math.round(random.nextGaussian() * NOISE_SIGMA);
+            out[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+    }
+
+    private static double meanSquaredError(byte[] a, byte[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            sum += diff * diff;
+        }
+        return sum / a.length;
+    }
+}
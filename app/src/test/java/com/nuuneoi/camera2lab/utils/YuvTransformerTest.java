@@ -0,0 +1,142 @@
+package com.nuuneoi.camera2lab.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class YuvTransformerTest {
+
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    @Test
+    public void rotatesAndMirrorsBitExact() {
+        for (YuvTransformer.Format format : YuvTransformer.Format.values()) {
+            for (int rotation : ROTATIONS) {
+                for (int mirror = 0; mirror < 2; mirror++) {
+                    check(format, 70, 38, 0, 0, 70, 38, 70, 38, rotation, mirror == 1, null);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void cropsAndScalesBitExact() {
+        for (YuvTransformer.Format format : YuvTransformer.Format.values()) {
+            for (int rotation : ROTATIONS) {
+                check(format, 96, 64, 10, 6, 50, 40, 50, 40, rotation, false, null);
+                check(format, 96, 64, 10, 6, 50, 40, 26, 70, rotation, true, null);
+                check(format, 96, 64, 0, 0, 96, 64, 48, 32, rotation, false, null);
+            }
+        }
+    }
+
+    @Test
+    public void parallelMatchesSerial() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (YuvTransformer.Format format : YuvTransformer.Format.values()) {
+                for (int rotation : ROTATIONS) {
+                    check(format, 200, 120, 4, 2, 180, 110, 180, 110, rotation, false, executor);
+                    check(format, 200, 120, 4, 2, 180, 110, 90, 56, rotation, true, executor);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void reportsRotatedOutputSize() {
+        YuvTransformer transformer = new YuvTransformer(YuvTransformer.Format.NV21, 1920, 1080)
+                .setRotation(90);
+        assertEquals(1080, transformer.getOutputWidth());
+        assertEquals(1920, transformer.getOutputHeight());
+        assertEquals(1920 * 1080 * 3 / 2, transformer.getOutputSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddCrop() {
+        new YuvTransformer(YuvTransformer.Format.NV12, 64, 64).setCrop(1, 0, 32, 32);
+    }
+
+    private static void check(YuvTransformer.Format format, int width, int height,
+                              int cropX, int cropY, int cropWidth, int cropHeight,
+                              int scaledWidth, int scaledHeight, int rotation, boolean mirror,
+                              ExecutorService executor) {
+        byte[] src = randomFrame(width, height, format.ordinal() * 31 + rotation);
+        YuvTransformer transformer = new YuvTransformer(format, width, height)
+                .setCrop(cropX, cropY, cropWidth, cropHeight)
+                .setScale(scaledWidth, scaledHeight)
+                .setRotation(rotation)
+                .setMirror(mirror);
+        if (executor != null)
+            transformer.setParallelism(executor, 4);
+        byte[] actual = new byte[transformer.getOutputSize()];
+        transformer.transform(src, actual);
+
+        byte[] expected = reference(format, src, width, height, cropX, cropY, cropWidth, cropHeight,
+                scaledWidth, scaledHeight, rotation, mirror);
+        assertArrayEquals(format + " rotation " + rotation + " mirror " + mirror, expected, actual);
+    }
+
+    // One sample at a time, straight from the definition
+    private static byte[] reference(YuvTransformer.Format format, byte[] src, int width, int height,
+                                    int cropX, int cropY, int cropWidth, int cropHeight,
+                                    int scaledWidth, int scaledHeight, int rotation, boolean mirror) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int outWidth = swap ? scaledHeight : scaledWidth;
+        int outHeight = swap ? scaledWidth : scaledHeight;
+        byte[] out = new byte[outWidth * outHeight * 3 / 2];
+
+        for (int plane = 0; plane < 3; plane++) {
+            int divisor = plane == 0 ? 1 : 2;
+            int ow = outWidth / divisor;
+            int oh = outHeight / divisor;
+            int sw = scaledWidth / divisor;
+            int sh = scaledHeight / divisor;
+            for (int y = 0; y < oh; y++) {
+                for (int x = 0; x < ow; x++) {
+                    int mx = mirror ? ow - 1 - x : x;
+                    int px;
+                    int py;
+                    switch (rotation) {
+                        case 90: px = y; py = sh - 1 - mx; break;
+                        case 180: px = sw - 1 - mx; py = sh - 1 - y; break;
+                        case 270: px = sw - 1 - y; py = mx; break;
+                        default: px = mx; py = y; break;
+                    }
+                    int sx = cropX / divisor + (2 * px + 1) * (cropWidth / divisor) / (2 * sw);
+                    int sy = cropY / divisor + (2 * py + 1) * (cropHeight / divisor) / (2 * sh);
+                    out[sampleIndex(format, plane, outWidth, outHeight, x, y)] =
+                            src[sampleIndex(format, plane, width, height, sx, sy)];
+                }
+            }
+        }
+        return out;
+    }
+
+    // Plane 1 is U and plane 2 is V
+    private static int sampleIndex(YuvTransformer.Format format, int plane, int width, int height, int x, int y) {
+        if (plane == 0)
+            return y * width + x;
+        int chroma = width * height;
+        switch (format) {
+            case NV21:
+                return chroma + y * width + x * 2 + (plane == 2 ? 0 : 1);
+            case NV12:
+                return chroma + y * width + x * 2 + (plane == 1 ? 0 : 1);
+            default:
+                return chroma + (plane == 2 ? (width / 2) * (height / 2) : 0) + y * (width / 2) + x;
+        }
+    }
+
+    private static byte[] randomFrame(int width, int height, int seed) {
+        byte[] frame = new byte[width * height * 3 / 2];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+}